@@ -0,0 +1,214 @@
+// times the lookup of the clips that play in a block, on a Linux host
+//
+// every configuration places N random clips on a track, with the length of the song
+// growing with N so that about two clips overlap any position, then walks through the
+// song one block at a time
+//
+// index  mode times ClipIndex::forEachClipIn for every block
+// scan   mode times a linear scan over every clip for every block, for comparison
+// engine mode times Playlist::write through the Null backend, with the clips playing
+//        one pattern list of 16 sampler channels
+//
+// with the index the cost of a block should stay flat as the number of clips grows
+//
+// usage: clip_benchmark [--csv] [--cycles N] [--warmup N] [--sample-rate R]
+//                       [--clips 100,1000,10000,100000] [--frames 256,4096]
+//                       [--modes index,scan,engine]
+
+#include "ardour/ardour.h"
+#include "ardour/Backends/Null.h"
+#include "Statistics.h"
+#include <chrono>
+#include <cmath>
+#include <random>
+#include <thread>
+
+using namespace ARDOUR;
+
+static const int STEPS = 16;
+static const int CHANNELS = 16;
+
+// the mean length of a clip, in samples
+static const int64_t CLIP_LENGTH = 96000;
+
+struct RandomClips {
+    std::vector<Clip> clips;
+    int64_t songLength = 0;
+
+    RandomClips(uint32_t count, PatternList * patternList) {
+        std::mt19937_64 random(count);
+        songLength = std::max<int64_t>(CLIP_LENGTH, (count * CLIP_LENGTH) / 2);
+        std::uniform_int_distribution<int64_t> start(0, songLength - 1);
+        std::uniform_int_distribution<int64_t> length(CLIP_LENGTH / 2, (CLIP_LENGTH * 3) / 2);
+        for (uint32_t i = 0; i < count; i++) {
+            Clip clip;
+            clip.id = i;
+            clip.start = start(random);
+            clip.length = length(random);
+            clip.patternList = patternList;
+            clips.push_back(clip);
+        }
+    }
+};
+
+static std::vector<uint64_t> timeIndex(const RandomClips & random, uint32_t frames, size_t warmup, size_t cycles, bool scan) {
+    ClipIndex index;
+    for (const Clip & clip : random.clips) index.add(clip);
+    index.build();
+    const std::vector<Clip> & clips = index.getClips();
+    std::vector<uint64_t> nanos;
+    nanos.reserve(cycles);
+    int64_t position = 0;
+    // keeps the compiler from removing the lookups
+    volatile int64_t sink = 0;
+    for (size_t cycle = 0; cycle < warmup + cycles; cycle++) {
+        int64_t from = position;
+        int64_t to = position + frames;
+        int64_t found = 0;
+        auto begin = std::chrono::steady_clock::now();
+        if (scan) {
+            for (const Clip & clip : clips) {
+                if (clip.start < to && clip.end() > from) found += clip.id;
+            }
+        } else {
+            index.forEachClipIn(from, to, [&found](const Clip & clip) { found += clip.id; });
+        }
+        auto end = std::chrono::steady_clock::now();
+        sink = sink + found;
+        if (cycle >= warmup) {
+            nanos.push_back(std::chrono::duration_cast<std::chrono::nanoseconds>(end - begin).count());
+        }
+        position = to % random.songLength;
+    }
+    return nanos;
+}
+
+struct Scene {
+    AudioEngine * engine = nullptr;
+    PatternList * patternList = nullptr;
+    TrackList * trackList = nullptr;
+    Track * track = nullptr;
+    std::vector<Channel_Generator *> channels;
+    std::vector<Sampler *> samplers;
+    std::vector<ENGINE_FORMAT> sample;
+
+    Scene(AudioEngine * engine, float sampleRate) : engine(engine) {
+        size_t frames = static_cast<size_t>(sampleRate);
+        sample.resize(frames * 2);
+        for (size_t i = 0; i < frames; i++) {
+            ENGINE_FORMAT value = static_cast<ENGINE_FORMAT>(0.25 * sin((2.0 * M_PI * 440.0 * i) / sampleRate));
+            sample[(i * 2) + 0] = value;
+            sample[(i * 2) + 1] = value;
+        }
+
+        bool steps[STEPS];
+        for (int i = 0; i < STEPS; i++) steps[i] = (i % 2) == 0;
+
+        patternList = engine->createPatternList();
+        for (int i = 0; i < CHANNELS; i++) {
+            Channel_Generator * channel = engine->newChannel();
+            Sampler * sampler = new Sampler();
+            sampler->audioData = sample.data();
+            sampler->audioDataTotalSamples = sample.size();
+            channel->plugin = sampler;
+            engine->loop(channel, true);
+            Pattern * pattern = engine->createPattern(patternList);
+            pattern->pianoRoll.setNoteData(steps, STEPS);
+            engine->bindChannelToPattern(channel, pattern);
+            channels.push_back(channel);
+            samplers.push_back(sampler);
+        }
+
+        trackList = engine->createTrackList();
+        track = engine->createTrack(trackList);
+        engine->bindPatternListToTrack(patternList, track);
+    }
+
+    void setClips(const RandomClips & random) {
+        // a single edit, so the index is only built once
+        track->editClips([&](ClipIndex & index) {
+            index.clear();
+            for (Clip clip : random.clips) {
+                clip.id = track->newClipId();
+                index.add(clip);
+            }
+        });
+    }
+
+    ~Scene() {
+        engine->deleteTrackList(trackList);
+        engine->deletePatternList(patternList);
+        for (Channel_Generator * channel : channels) {
+            engine->deleteChannel(channel);
+        }
+        for (Sampler * sampler : samplers) {
+            delete sampler;
+        }
+    }
+};
+
+int main(int argc, char ** argv) {
+    bool csv = hasFlag(argc, argv, "--csv");
+    size_t cycles = strtoul(flagValue(argc, argv, "--cycles", "2000"), nullptr, 10);
+    size_t warmup = strtoul(flagValue(argc, argv, "--warmup", "200"), nullptr, 10);
+    float sampleRate = strtof(flagValue(argc, argv, "--sample-rate", "48000"), nullptr);
+    std::vector<uint32_t> clipCounts = parseList(flagValue(argc, argv, "--clips", "100,1000,10000,100000"));
+    std::vector<uint32_t> frameCounts = parseList(flagValue(argc, argv, "--frames", "256,4096"));
+    std::string modes = flagValue(argc, argv, "--modes", "index,scan,engine");
+
+    Report report(csv);
+    report.header({"mode", "clips"});
+
+    for (uint32_t clipCount : clipCounts) {
+        RandomClips random(clipCount, nullptr);
+        for (uint32_t frames : frameCounts) {
+            if (modes.find("index") != std::string::npos) {
+                report.row({"index", std::to_string(clipCount)}, frames, cycles,
+                           Statistics::of(timeIndex(random, frames, warmup, cycles, false)), sampleRate);
+            }
+            if (modes.find("scan") != std::string::npos) {
+                report.row({"scan", std::to_string(clipCount)}, frames, cycles,
+                           Statistics::of(timeIndex(random, frames, warmup, cycles, true)), sampleRate);
+            }
+        }
+    }
+
+    if (modes.find("engine") == std::string::npos) return 0;
+
+    AudioEngine * engine = AudioEngine::create(nullptr, nullptr);
+    std::shared_ptr<AudioBackend> backend = engine->set_backend(Null::descriptor()->name, "benchmark", "");
+    if (!backend) {
+        fprintf(stderr, "cannot set the Null backend\n");
+        return 1;
+    }
+    Null * null = static_cast<Null *>(backend.get());
+    null->set_sample_rate(sampleRate);
+    null->freewheel(true);
+    engine->changeToSongMode();
+
+    {
+        Scene scene(engine, sampleRate);
+        for (uint32_t clipCount : clipCounts) {
+            RandomClips random(clipCount, scene.patternList);
+            scene.setClips(random);
+            for (uint32_t frames : frameCounts) {
+                null->set_buffer_size(frames);
+                null->record_cycle_times(warmup + cycles);
+                if (engine->start() != 0) {
+                    fprintf(stderr, "cannot start the engine: %s\n", engine->get_last_backend_error().c_str());
+                    return 1;
+                }
+                while (null->recorded_cycle_count() < warmup + cycles) {
+                    std::this_thread::sleep_for(std::chrono::milliseconds(1));
+                }
+                engine->stop();
+
+                std::vector<uint64_t> nanos(null->cycle_times.begin() + warmup, null->cycle_times.end());
+                report.row({"engine", std::to_string(clipCount)}, frames, cycles, Statistics::of(nanos), sampleRate);
+            }
+        }
+    }
+
+    AudioEngine::destroy();
+    return 0;
+}
@@ -0,0 +1,205 @@
+// times loading a project's samples on a Linux host, as the app does when it starts
+//
+// every run creates a new engine, as a restarted app would, and loads every sample
+// into its own channel with AudioEngine::load
+//
+// none mode decodes every sample on every load, as the app did before the decode cache
+// cold mode starts every run with an empty decode cache, so every sample is decoded
+//      and written to the cache
+// warm mode starts every run with the cache left by the previous run, so every sample
+//      is mapped from the cache without being decoded
+// pcm mode loads WAV files, which the engine converts itself without the decoder
+//
+// the host has no FFmpeg, the samples of the first three modes are 16 bit pcm WAV files
+// whose header is disguised, so that the engine hands them to the decoder as it would a
+// compressed file, the decoder is a plain conversion to float, which is far cheaper than
+// decoding a compressed file on a device, so the difference between the modes is smaller
+// here than it is in the app
+//
+// usage: load_benchmark [--csv] [--runs N] [--samples 1,8,32] [--seconds S]
+//                       [--directory DIR] [--modes none,cold,warm,pcm]
+
+#include "ardour/ardour.h"
+#include "ardour/Backends/Null.h"
+#include "Statistics.h"
+#include <chrono>
+#include <cmath>
+#include <dirent.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+using namespace ARDOUR;
+
+static const uint32_t SOURCE_RATE = 48000;
+
+// a disguised file has an unknown header, see above
+static void writeWav(const std::string & path, uint32_t frames, uint32_t seed, bool disguised) {
+    std::vector<int16_t> pcm(frames * 2);
+    for (uint32_t i = 0; i < frames; i++) {
+        double phase = (2 * M_PI * (110 + seed) * i) / SOURCE_RATE;
+        pcm[(i * 2) + 0] = static_cast<int16_t>(8000 * sin(phase));
+        pcm[(i * 2) + 1] = static_cast<int16_t>(8000 * cos(phase));
+    }
+    uint32_t dataBytes = static_cast<uint32_t>(pcm.size() * sizeof(int16_t));
+    uint32_t riffBytes = 36 + dataBytes;
+    uint16_t format = 1;
+    uint16_t channels = 2;
+    uint32_t rate = SOURCE_RATE;
+    uint32_t byteRate = rate * 4;
+    uint16_t blockAlign = 4;
+    uint16_t bits = 16;
+    uint32_t fmtBytes = 16;
+    FILE * file = fopen(path.c_str(), "wb");
+    fwrite(disguised ? "DATA" : "RIFF", 1, 4, file);
+    fwrite(&riffBytes, 4, 1, file);
+    fwrite("WAVEfmt ", 1, 8, file);
+    fwrite(&fmtBytes, 4, 1, file);
+    fwrite(&format, 2, 1, file);
+    fwrite(&channels, 2, 1, file);
+    fwrite(&rate, 4, 1, file);
+    fwrite(&byteRate, 4, 1, file);
+    fwrite(&blockAlign, 2, 1, file);
+    fwrite(&bits, 2, 1, file);
+    fwrite("data", 1, 4, file);
+    fwrite(&dataBytes, 4, 1, file);
+    fwrite(pcm.data(), sizeof(int16_t), pcm.size(), file);
+    fclose(file);
+}
+
+// stands in for FFmpeg, converts the 16 bit stereo WAV files written above to raw float
+static bool decodeWav(const std::string & input, const std::string & output, int sampleRate, int channelCount) {
+    FILE * in = fopen(input.c_str(), "rb");
+    if (in == nullptr) return false;
+    fseek(in, 44, SEEK_SET);
+    FILE * out = fopen(output.c_str(), "wb");
+    if (out == nullptr) {
+        fclose(in);
+        return false;
+    }
+    std::vector<int16_t> pcm(65536);
+    std::vector<float> converted(pcm.size());
+    size_t count;
+    while ((count = fread(pcm.data(), sizeof(int16_t), pcm.size(), in)) > 0) {
+        for (size_t i = 0; i < count; i++) converted[i] = pcm[i] / 32768.0f;
+        fwrite(converted.data(), sizeof(float), count, out);
+    }
+    fclose(in);
+    fclose(out);
+    return true;
+}
+
+static void clearDirectory(const std::string & directory) {
+    DIR * dir = opendir(directory.c_str());
+    if (dir == nullptr) return;
+    std::vector<std::string> names;
+    while (struct dirent * entry = readdir(dir)) {
+        if (entry->d_name[0] != '.') names.push_back(entry->d_name);
+    }
+    closedir(dir);
+    for (const std::string & name : names) unlink((directory + "/" + name).c_str());
+}
+
+// loads every source into a new engine, returns the time taken by the loads
+static uint64_t startup(const std::vector<std::string> & sources, const std::string & cache) {
+    AudioEngine * engine = AudioEngine::create(nullptr, nullptr);
+    engine->set_backend(Null::descriptor()->name, "benchmark", "");
+    engine->headlessDecoder = decodeWav;
+    engine->setDecodeCache(cache, UINT64_MAX);
+    std::vector<Channel_Generator *> channels;
+    std::vector<Sampler *> samplers;
+    for (size_t i = 0; i < sources.size(); i++) {
+        Channel_Generator * channel = engine->newChannel();
+        Sampler * sampler = new Sampler();
+        channel->plugin = sampler;
+        channels.push_back(channel);
+        samplers.push_back(sampler);
+    }
+
+    auto begin = std::chrono::steady_clock::now();
+    for (size_t i = 0; i < sources.size(); i++) engine->load(channels[i], sources[i].c_str());
+    auto end = std::chrono::steady_clock::now();
+
+    for (Sampler * sampler : samplers) {
+        if (sampler->sample.load() == nullptr) LOGE("a sample failed to load");
+    }
+    for (Channel_Generator * channel : channels) engine->deleteChannel(channel);
+    for (Sampler * sampler : samplers) delete sampler;
+    AudioEngine::destroy();
+    return std::chrono::duration_cast<std::chrono::nanoseconds>(end - begin).count();
+}
+
+static void report(bool csv, const char * mode, uint32_t sampleCount, uint32_t seconds, size_t runs,
+                   const std::vector<uint64_t> & nanos) {
+    Statistics s = Statistics::of(nanos);
+    const char * format = csv ? "%s,%u,%u,%zu,%.3f,%.3f,%.3f,%.3f,%.3f\n"
+                              : "%-6s %8u %8u %5zu %10.3f %10.3f %10.3f %10.3f %14.3f\n";
+    printf(format, mode, sampleCount, seconds, runs,
+           s.mean / 1e6, s.min / 1e6, s.p50 / 1e6, s.max / 1e6, (s.mean / 1e6) / sampleCount);
+    fflush(stdout);
+}
+
+int main(int argc, char ** argv) {
+    bool csv = hasFlag(argc, argv, "--csv");
+    size_t runs = strtoul(flagValue(argc, argv, "--runs", "5"), nullptr, 10);
+    std::vector<uint32_t> sampleCounts = parseList(flagValue(argc, argv, "--samples", "1,8,32"));
+    uint32_t seconds = static_cast<uint32_t>(strtoul(flagValue(argc, argv, "--seconds", "10"), nullptr, 10));
+    std::string modes = flagValue(argc, argv, "--modes", "none,cold,warm,pcm");
+
+    char temporary[] = "/tmp/load_benchmark_XXXXXX";
+    std::string directory = flagValue(argc, argv, "--directory", "");
+    if (directory.empty()) {
+        if (mkdtemp(temporary) == nullptr) {
+            LOGE("cannot create a directory for the benchmark");
+            return 1;
+        }
+        directory = temporary;
+    }
+    std::string sourceDirectory = directory + "/sources";
+    std::string cacheDirectory = directory + "/cache";
+    mkdir(sourceDirectory.c_str(), 0700);
+
+    if (csv) {
+        printf("mode,samples,seconds,runs,mean_ms,min_ms,p50_ms,max_ms,ms_per_sample\n");
+    } else {
+        printf("%-6s %8s %8s %5s %10s %10s %10s %10s %14s\n",
+               "mode", "samples", "seconds", "runs", "mean ms", "min ms", "p50 ms", "max ms", "ms/sample");
+    }
+
+    for (uint32_t sampleCount : sampleCounts) {
+        clearDirectory(sourceDirectory);
+        std::vector<std::string> sources;
+        std::vector<std::string> wavSources;
+        for (uint32_t i = 0; i < sampleCount; i++) {
+            sources.push_back(sourceDirectory + "/sample" + std::to_string(i) + ".dat");
+            writeWav(sources.back(), seconds * SOURCE_RATE, i, true);
+            wavSources.push_back(sourceDirectory + "/sample" + std::to_string(i) + ".wav");
+            writeWav(wavSources.back(), seconds * SOURCE_RATE, i, false);
+        }
+        for (const char * mode : {"none", "cold", "warm", "pcm"}) {
+            if (modes.find(mode) == std::string::npos) continue;
+            std::string name = mode;
+            if (name == "pcm") {
+                std::vector<uint64_t> nanos;
+                for (size_t run = 0; run < runs; run++) nanos.push_back(startup(wavSources, std::string()));
+                report(csv, mode, sampleCount, seconds, runs, nanos);
+                continue;
+            }
+            std::vector<uint64_t> nanos;
+            clearDirectory(cacheDirectory);
+            // the first warm run fills the cache
+            if (name == "warm") startup(sources, cacheDirectory);
+            for (size_t run = 0; run < runs; run++) {
+                if (name == "cold") clearDirectory(cacheDirectory);
+                nanos.push_back(startup(sources, name == "none" ? std::string() : cacheDirectory));
+            }
+            report(csv, mode, sampleCount, seconds, runs, nanos);
+        }
+    }
+
+    clearDirectory(cacheDirectory);
+    clearDirectory(sourceDirectory);
+    rmdir(cacheDirectory.c_str());
+    rmdir(sourceDirectory.c_str());
+    if (directory == temporary) rmdir(directory.c_str());
+    return 0;
+}
@@ -0,0 +1,148 @@
+// times the Mixer on a Linux host
+//
+// every configuration mixes N stereo inputs of noise into one output, without the engine
+//
+// legacy mode times the previous per sample mixer, which sums every port for each sample
+//        with PLUGIN_HELPERS_add, kept here as a reference
+// block  mode times Mixer::write with every input at a constant gain and pan
+// ramp   mode times Mixer::write with the gain of every input changing on every block,
+//        so every input is ramped
+//
+// usage: mixer_benchmark [--csv] [--cycles N] [--warmup N] [--sample-rate R]
+//                        [--channels 1,16,64,256] [--frames 64,128,...,4096]
+//                        [--modes legacy,block,ramp]
+
+#include "smallville7123/plugins/Mixer.h"
+#include "Statistics.h"
+#include <chrono>
+#include <memory>
+#include <random>
+
+// the Mixer as it was before it summed whole blocks
+class LegacyMixer : public Plugin {
+public:
+    int write(HostInfo *hostInfo, PortUtils2 *unused, Plugin *mixer, PortUtils2 *out,
+              unsigned int samples) override {
+        if (ports.empty() || ports.size() == 1) {
+            out->fillPortBuffer<ENGINE_FORMAT>(0);
+            return PLUGIN_STOP;
+        }
+
+        for (int i = 0; i < samples; i++) {
+            ENGINE_FORMAT sumLeft = 0;
+            ENGINE_FORMAT sumRight = 0;
+            for (PortUtils2 * portUtils2 : ports) {
+                if (portUtils2->allocated) {
+                    bool overflowed = false;
+                    bool underflowed = false;
+                    ENGINE_FORMAT left = static_cast<ENGINE_FORMAT *>(portUtils2->ports.outputStereo->l->buf)[i];
+                    sumLeft = PLUGIN_HELPERS_add<ENGINE_FORMAT>(ENGINE_FORMAT_MIN,
+                                                                ENGINE_FORMAT_MAX, sumLeft, left,
+                                                                overflowed, underflowed);
+                    ENGINE_FORMAT right = static_cast<ENGINE_FORMAT *>(portUtils2->ports.outputStereo->r->buf)[i];
+                    sumRight = PLUGIN_HELPERS_add<ENGINE_FORMAT>(ENGINE_FORMAT_MIN,
+                                                                 ENGINE_FORMAT_MAX, sumRight, right,
+                                                                 overflowed, underflowed);
+                    if (overflowed || underflowed) break;
+                }
+            }
+            reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->l->buf)[i] = sumLeft;
+            reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->r->buf)[i] = sumRight;
+        }
+        return PLUGIN_STOP;
+    }
+};
+
+struct Inputs {
+    std::vector<std::unique_ptr<PortUtils2>> ports;
+    std::vector<std::unique_ptr<MixerStrip>> strips;
+    PortUtils2 out;
+    PortUtils2 silence;
+
+    Inputs(uint32_t channelCount, uint32_t frames) {
+        std::mt19937 random(channelCount);
+        // quiet enough that the sum of 256 inputs rarely reaches the soft clip knee
+        std::uniform_real_distribution<ENGINE_FORMAT> noise(-0.01f, 0.01f);
+        for (uint32_t i = 0; i < channelCount; i++) {
+            PortUtils2 * port = new PortUtils2();
+            port->allocatePorts<ENGINE_FORMAT>(frames * 2, 2);
+            ENGINE_FORMAT * left = static_cast<ENGINE_FORMAT *>(port->ports.outputStereo->l->buf);
+            ENGINE_FORMAT * right = static_cast<ENGINE_FORMAT *>(port->ports.outputStereo->r->buf);
+            for (uint32_t frame = 0; frame < frames; frame++) {
+                left[frame] = noise(random);
+                right[frame] = noise(random);
+            }
+            ports.emplace_back(port);
+            MixerStrip * strip = new MixerStrip();
+            strip->pan.store((static_cast<int>(i % 3) - 1) * 0.5f);
+            strips.emplace_back(strip);
+        }
+        out.allocatePorts<ENGINE_FORMAT>(frames * 2, 2);
+        silence.allocatePorts<ENGINE_FORMAT>(frames * 2, 2);
+        silence.fillPortBuffer<ENGINE_FORMAT>(0);
+    }
+
+    ~Inputs() {
+        for (std::unique_ptr<PortUtils2> & port : ports) port->deallocatePorts<ENGINE_FORMAT>();
+        out.deallocatePorts<ENGINE_FORMAT>();
+        silence.deallocatePorts<ENGINE_FORMAT>();
+    }
+};
+
+static std::vector<uint64_t> timeMixer(Plugin & mixer, Inputs & inputs, uint32_t frames, size_t warmup, size_t cycles,
+                                       bool ramp) {
+    std::vector<uint64_t> nanos;
+    nanos.reserve(cycles);
+    for (size_t cycle = 0; cycle < warmup + cycles; cycle++) {
+        if (ramp) {
+            float gain = (cycle % 2) == 0 ? 0.5f : 1.0f;
+            for (std::unique_ptr<MixerStrip> & strip : inputs.strips) strip->gain.store(gain);
+        }
+        auto begin = std::chrono::steady_clock::now();
+        mixer.write(nullptr, nullptr, &mixer, &inputs.out, frames);
+        auto end = std::chrono::steady_clock::now();
+        if (cycle >= warmup) {
+            nanos.push_back(std::chrono::duration_cast<std::chrono::nanoseconds>(end - begin).count());
+        }
+    }
+    return nanos;
+}
+
+int main(int argc, char ** argv) {
+    bool csv = hasFlag(argc, argv, "--csv");
+    size_t cycles = strtoul(flagValue(argc, argv, "--cycles", "2000"), nullptr, 10);
+    size_t warmup = strtoul(flagValue(argc, argv, "--warmup", "200"), nullptr, 10);
+    float sampleRate = strtof(flagValue(argc, argv, "--sample-rate", "48000"), nullptr);
+    std::vector<uint32_t> channelCounts = parseList(flagValue(argc, argv, "--channels", "1,16,64,256"));
+    std::vector<uint32_t> frameCounts = parseList(flagValue(argc, argv, "--frames", "64,128,256,512,1024,2048,4096"));
+    std::string modes = flagValue(argc, argv, "--modes", "legacy,block,ramp");
+
+    Report report(csv);
+    report.header({"mode", "channels"});
+
+    for (uint32_t channelCount : channelCounts) {
+        for (uint32_t frames : frameCounts) {
+            Inputs inputs(channelCount, frames);
+            if (modes.find("legacy") != std::string::npos) {
+                LegacyMixer legacy;
+                for (std::unique_ptr<PortUtils2> & port : inputs.ports) legacy.addPort(port.get());
+                legacy.addPort(&inputs.silence);
+                report.row({"legacy", std::to_string(channelCount)}, frames, cycles,
+                           Statistics::of(timeMixer(legacy, inputs, frames, warmup, cycles, false)), sampleRate);
+            }
+            Mixer mixer;
+            for (size_t i = 0; i < inputs.ports.size(); i++) {
+                mixer.addInput(inputs.ports[i].get(), inputs.strips[i].get());
+            }
+            if (modes.find("block") != std::string::npos) {
+                report.row({"block", std::to_string(channelCount)}, frames, cycles,
+                           Statistics::of(timeMixer(mixer, inputs, frames, warmup, cycles, false)), sampleRate);
+            }
+            if (modes.find("ramp") != std::string::npos) {
+                report.row({"ramp", std::to_string(channelCount)}, frames, cycles,
+                           Statistics::of(timeMixer(mixer, inputs, frames, warmup, cycles, true)), sampleRate);
+            }
+        }
+    }
+    return 0;
+}
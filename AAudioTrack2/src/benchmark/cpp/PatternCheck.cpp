@@ -0,0 +1,181 @@
+// checks on a Linux host that a step pattern sends every note off it should, whatever
+// the size of the blocks it is played in and whenever it is edited
+//
+// every check plays a pattern of STEPS steps that are all on through PianoRoll::fillMidiEvents,
+// one block at a time, and counts the note ons and note offs of every key
+//
+// steady mode plays the pattern without editing it
+// wrap   mode edits a step after every block, so an edit is published after the block
+//        that ends on the last frame of the loop, the note off of the last step must still
+//        be sent on the first frame of the next loop
+//
+// a pattern whose steps are all on turns every note on off again, so after whole loops every key
+// has as many note offs as note ons
+//
+// pitched mode plays the pattern through a pitched Sampler with every interpolation mode and
+//        through one that is not pitched, the steps play at the root key, so every frame
+//        must match
+//
+// exits with 1 if a check fails
+//
+// usage: pattern_check [--frames 1000,4000,7000,24000] [--loops 3] [--modes steady,wrap,pitched]
+
+#include "smallville7123/PianoRoll.h"
+#include "smallville7123/plugins/Sampler.h"
+#include "Statistics.h"
+#include <cmath>
+
+static const int STEPS = 4;
+
+static const uint32_t SAMPLE_RATE = 48000;
+
+struct Counts {
+    int noteOns[128] = {};
+    int noteOffs[128] = {};
+    // the note offs of the last step sent on the first frame of a loop
+    int loopEnds = 0;
+};
+
+// plays loops whole loops of the pattern in blocks of frames frames
+static void allStepsOn(PianoRoll & pianoRoll) {
+    pianoRoll.setResolution(STEPS);
+    pianoRoll.updateGrid();
+    bool steps[STEPS];
+    for (bool & step : steps) step = true;
+    pianoRoll.setNoteData(steps, STEPS);
+}
+
+static Counts play(uint32_t frames, uint32_t loops, bool edit) {
+    PianoRoll pianoRoll;
+    allStepsOn(pianoRoll);
+
+    int64_t length = static_cast<int64_t>(STEPS) * pianoRoll.grid.samples_per_note;
+    // the note off that ends the last loop plays on the first frame after it,
+    // with the note on of the next loop, which is not counted
+    int64_t end = (loops * length) + 1;
+    HostInfo::PianoRollRingBuffer buffer;
+    Counts counts;
+    for (int64_t sample = 0; sample < end; sample += frames) {
+        pianoRoll.fillMidiEvents(buffer, frames, sample);
+        size_t size = buffer.readAvailable();
+        for (size_t i = 0; i < size; i++) {
+            smf::MidiEvent * midiEvent = buffer.at(i);
+            if (midiEvent == nullptr || sample + midiEvent->tick >= end) continue;
+            int key = midiEvent->getKeyNumber() & 0x7F;
+            if (midiEvent->isNoteOn()) {
+                if (sample + midiEvent->tick < end - 1) counts.noteOns[key]++;
+            } else if (midiEvent->isNoteOff()) {
+                counts.noteOffs[key]++;
+                int64_t at = sample + midiEvent->tick;
+                if (at != 0 && at % length == 0) counts.loopEnds++;
+            }
+        }
+        // a step that is not the last one, turned off and on again, so the steps play as before
+        if (edit) {
+            pianoRoll.setStep(1, false);
+            pianoRoll.setStep(1, true);
+        }
+    }
+    return counts;
+}
+
+static bool check(const char * mode, uint32_t frames, uint32_t loops, const Counts & counts) {
+    bool passed = counts.loopEnds == static_cast<int>(loops);
+    for (int key = 0; key < 128; key++) {
+        if (counts.noteOns[key] != counts.noteOffs[key]) passed = false;
+    }
+    printf("%-7s %8u %6u %10d %10d   %s\n", mode, frames, loops, counts.noteOns[PianoRoll::STEP_KEY],
+           counts.noteOffs[PianoRoll::STEP_KEY], passed ? "ok" : "FAILED");
+    fflush(stdout);
+    return passed;
+}
+
+// a second of a tone, that the notes of the steps cut short
+static Sample * tone() {
+    std::vector<ENGINE_FORMAT> pcm(SAMPLE_RATE * Sample::CHANNELS);
+    for (uint32_t i = 0; i < SAMPLE_RATE; i++) {
+        double phase = (2 * M_PI * 440 * i) / SAMPLE_RATE;
+        pcm[(i * 2) + 0] = static_cast<ENGINE_FORMAT>(0.25 * sin(phase));
+        pcm[(i * 2) + 1] = static_cast<ENGINE_FORMAT>(0.25 * cos(phase));
+    }
+    return Sample::fromMemory(std::move(pcm));
+}
+
+// plays loops whole loops of the pattern in blocks of frames frames through a sampler pitched with
+// interpolation and one that is not, returns the number of frames that differ
+static uint64_t playPitched(uint32_t frames, uint32_t loops, int interpolation) {
+    PianoRoll pianoRoll;
+    allStepsOn(pianoRoll);
+    Sample * sample = tone();
+    Sampler pitched;
+    pitched.pitched.store(true);
+    pitched.interpolation.store(interpolation);
+    pitched.setSample(sample, nullptr, nullptr);
+    Sampler unpitched;
+    unpitched.setSample(sample, nullptr, nullptr);
+
+    HostInfo hostInfo;
+    PortUtils2 pitchedOut;
+    pitchedOut.allocatePorts<ENGINE_FORMAT>(frames * 2, 2);
+    PortUtils2 unpitchedOut;
+    unpitchedOut.allocatePorts<ENGINE_FORMAT>(frames * 2, 2);
+    const PortUtils2 * outs[] = {&pitchedOut, &unpitchedOut};
+
+    int64_t end = loops * STEPS * static_cast<int64_t>(pianoRoll.grid.samples_per_note);
+    uint64_t differences = 0;
+    for (int64_t position = 0; position < end; position += frames) {
+        pianoRoll.fillMidiEvents(hostInfo.midiInputBuffer, frames, position);
+        pitched.write(&hostInfo, nullptr, nullptr, &pitchedOut, frames);
+        unpitched.write(&hostInfo, nullptr, nullptr, &unpitchedOut, frames);
+        hostInfo.midiInputBuffer.consumerClear();
+        ENGINE_FORMAT * channels[2][2];
+        for (int i = 0; i < 2; i++) {
+            channels[i][0] = reinterpret_cast<ENGINE_FORMAT *>(outs[i]->ports.outputStereo->l->buf);
+            channels[i][1] = reinterpret_cast<ENGINE_FORMAT *>(outs[i]->ports.outputStereo->r->buf);
+        }
+        for (uint32_t frame = 0; frame < frames; frame++) {
+            if (channels[0][0][frame] != channels[1][0][frame] || channels[0][1][frame] != channels[1][1][frame]) {
+                differences++;
+            }
+        }
+    }
+
+    // the sample outlives the samplers, which would otherwise give it back to a pool
+    pitched.setSample(nullptr, nullptr, nullptr);
+    unpitched.setSample(nullptr, nullptr, nullptr);
+    delete sample;
+    pitchedOut.deallocatePorts<ENGINE_FORMAT>();
+    unpitchedOut.deallocatePorts<ENGINE_FORMAT>();
+    return differences;
+}
+
+static bool checkPitched(uint32_t frames, uint32_t loops) {
+    static const char * names[] = {"drop", "linear", "cubic", "sinc"};
+    bool passed = true;
+    for (int interpolation = Interpolator::DROP; interpolation <= Interpolator::SINC; interpolation++) {
+        uint64_t differences = playPitched(frames, loops, interpolation);
+        printf("%-7s %8u %6u %-6s %llu frames differ   %s\n", "pitched", frames, loops, names[interpolation],
+               static_cast<unsigned long long>(differences), differences == 0 ? "ok" : "FAILED");
+        fflush(stdout);
+        passed &= differences == 0;
+    }
+    return passed;
+}
+
+int main(int argc, char ** argv) {
+    std::vector<uint32_t> frameCounts = parseList(flagValue(argc, argv, "--frames", "1000,4000,7000,24000"));
+    uint32_t loops = static_cast<uint32_t>(strtoul(flagValue(argc, argv, "--loops", "3"), nullptr, 10));
+    std::string modes = flagValue(argc, argv, "--modes", "steady,wrap,pitched");
+
+    printf("%-7s %8s %6s %10s %10s\n", "mode", "frames", "loops", "note ons", "note offs");
+    bool passed = true;
+    for (uint32_t frames : frameCounts) {
+        for (const char * mode : {"steady", "wrap"}) {
+            if (modes.find(mode) == std::string::npos) continue;
+            bool edit = std::string(mode) == "wrap";
+            passed &= check(mode, frames, loops, play(frames, loops, edit));
+        }
+        if (modes.find("pitched") != std::string::npos) passed &= checkPitched(frames, loops);
+    }
+    return passed ? 0 : 1;
+}
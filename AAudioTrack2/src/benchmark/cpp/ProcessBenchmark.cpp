@@ -0,0 +1,168 @@
+// times the engine process callback on a Linux host
+//
+// each configuration builds a scene of N channels, each playing a looping sample
+// from its own pattern, then lets the Null backend call AudioEngine::renderAudio
+// from its process thread, freewheeling, recording the duration of every cycle
+//
+// direct  mode times ChannelRack::writeDirect
+// pattern mode times ChannelRack::write
+// song    mode times Playlist::write, with one track playing every pattern
+//
+// every configuration is timed with the channels rendered on each number of workers
+// given by --workers, see AudioEngine::setRenderWorkers, song mode always renders on one,
+// and --effects adds that many delays to the effect rack of every channel
+// to make each channel more expensive to render
+//
+// the engine never uses more workers than there are cores, the benchmark does unless
+// --limit-to-cores is given, so the scaling can be measured on any host, the workers column
+// shows how many were used and the cores column how many cores the host has, a run with
+// more workers than cores only measures the cost of sharing them
+//
+// usage: process_benchmark [--csv] [--cycles N] [--warmup N] [--sample-rate R]
+//                          [--channels 1,16,64,256] [--frames 64,128,...,4096]
+//                          [--modes direct,pattern,song] [--workers 1,2,4,8] [--effects N]
+//                          [--limit-to-cores]
+
+#include "ardour/ardour.h"
+#include "ardour/Backends/Null.h"
+#include "Statistics.h"
+#include <chrono>
+#include <cmath>
+#include <thread>
+
+using namespace ARDOUR;
+
+static const int STEPS = 16;
+
+struct Scene {
+    AudioEngine * engine = nullptr;
+    PatternList * patternList = nullptr;
+    TrackList * trackList = nullptr;
+    std::vector<Channel_Generator *> channels;
+    std::vector<Sampler *> samplers;
+    std::vector<ENGINE_FORMAT> sample;
+
+    Scene(AudioEngine * engine, uint32_t channelCount, float sampleRate, uint32_t effects) : engine(engine) {
+        // one second of a stereo sine, long enough that the sampler never idles
+        size_t frames = static_cast<size_t>(sampleRate);
+        sample.resize(frames * 2);
+        for (size_t i = 0; i < frames; i++) {
+            ENGINE_FORMAT value = static_cast<ENGINE_FORMAT>(0.25 * sin((2.0 * M_PI * 440.0 * i) / sampleRate));
+            sample[(i * 2) + 0] = value;
+            sample[(i * 2) + 1] = value;
+        }
+
+        // every other step is on
+        bool steps[STEPS];
+        for (int i = 0; i < STEPS; i++) steps[i] = (i % 2) == 0;
+        bool trackSteps[STEPS];
+        for (int i = 0; i < STEPS; i++) trackSteps[i] = true;
+
+        patternList = engine->createPatternList();
+        for (uint32_t i = 0; i < channelCount; i++) {
+            Channel_Generator * channel = engine->newChannel();
+            Sampler * sampler = new Sampler();
+            sampler->audioData = sample.data();
+            sampler->audioDataTotalSamples = sample.size();
+            channel->plugin = sampler;
+            for (uint32_t effect = 0; effect < effects; effect++) channel->effectRack->newDelayChannel();
+            engine->loop(channel, true);
+            Pattern * pattern = engine->createPattern(patternList);
+            pattern->pianoRoll.setNoteData(steps, STEPS);
+            engine->bindChannelToPattern(channel, pattern);
+            channels.push_back(channel);
+            samplers.push_back(sampler);
+        }
+
+        trackList = engine->createTrackList();
+        Track * track = engine->createTrack(trackList);
+        track->pianoRoll.setNoteData(trackSteps, STEPS);
+        engine->bindPatternListToTrack(patternList, track);
+    }
+
+    // direct mode only plays channels that have received a note on
+    void noteOn() {
+        for (Channel_Generator * channel : channels) {
+            engine->sendEvent(channel, ChannelRack::EVENT_NOTE_ON);
+        }
+    }
+
+    ~Scene() {
+        engine->deleteTrackList(trackList);
+        engine->deletePatternList(patternList);
+        for (Channel_Generator * channel : channels) {
+            engine->deleteChannel(channel);
+        }
+        for (Sampler * sampler : samplers) {
+            delete sampler;
+        }
+    }
+};
+
+int main(int argc, char ** argv) {
+    bool csv = hasFlag(argc, argv, "--csv");
+    size_t cycles = strtoul(flagValue(argc, argv, "--cycles", "2000"), nullptr, 10);
+    size_t warmup = strtoul(flagValue(argc, argv, "--warmup", "200"), nullptr, 10);
+    float sampleRate = strtof(flagValue(argc, argv, "--sample-rate", "48000"), nullptr);
+    std::vector<uint32_t> channelCounts = parseList(flagValue(argc, argv, "--channels", "1,16,64,256"));
+    std::vector<uint32_t> frameCounts = parseList(flagValue(argc, argv, "--frames", "64,128,256,512,1024,2048,4096"));
+    std::string modes = flagValue(argc, argv, "--modes", "direct,pattern,song");
+    std::vector<uint32_t> workerCounts = parseList(flagValue(argc, argv, "--workers", "1,2,4,8"));
+    uint32_t effects = strtoul(flagValue(argc, argv, "--effects", "0"), nullptr, 10);
+    bool limitToCores = hasFlag(argc, argv, "--limit-to-cores");
+    std::string cores = std::to_string(std::thread::hardware_concurrency());
+
+    AudioEngine * engine = AudioEngine::create(nullptr, nullptr);
+    std::shared_ptr<AudioBackend> backend = engine->set_backend(Null::descriptor()->name, "benchmark", "");
+    if (!backend) {
+        fprintf(stderr, "cannot set the Null backend\n");
+        return 1;
+    }
+    Null * null = static_cast<Null *>(backend.get());
+    null->set_sample_rate(sampleRate);
+    null->freewheel(true);
+
+    Report report(csv);
+    report.header({"mode", "channels", "workers", "cores"});
+
+    const char * modeNames[] = {"direct", "pattern", "song"};
+    for (uint32_t channelCount : channelCounts) {
+        Scene scene(engine, channelCount, sampleRate, effects);
+        for (uint32_t frames : frameCounts) {
+            for (const char * mode : modeNames) {
+                if (modes.find(mode) == std::string::npos) continue;
+                for (uint32_t workers : workerCounts) {
+                    // song mode does not render on the workers
+                    if (strcmp(mode, "song") == 0 && workers != workerCounts.front()) continue;
+                    engine->setRenderWorkers(workers, limitToCores);
+                    if (strcmp(mode, "direct") == 0) {
+                        engine->changeToDirectMode();
+                        scene.noteOn();
+                    } else if (strcmp(mode, "pattern") == 0) {
+                        engine->changeToPatternMode();
+                    } else {
+                        engine->changeToSongMode();
+                    }
+
+                    null->set_buffer_size(frames);
+                    null->record_cycle_times(warmup + cycles);
+                    if (engine->start() != 0) {
+                        fprintf(stderr, "cannot start the engine: %s\n", engine->get_last_backend_error().c_str());
+                        return 1;
+                    }
+                    while (null->recorded_cycle_count() < warmup + cycles) {
+                        std::this_thread::sleep_for(std::chrono::milliseconds(1));
+                    }
+                    engine->stop();
+
+                    std::vector<uint64_t> nanos(null->cycle_times.begin() + warmup, null->cycle_times.end());
+                    report.row({mode, std::to_string(channelCount), std::to_string(engine->getRenderWorkers()), cores}, frames, cycles,
+                               Statistics::of(nanos), sampleRate);
+                }
+            }
+        }
+    }
+
+    AudioEngine::destroy();
+    return 0;
+}
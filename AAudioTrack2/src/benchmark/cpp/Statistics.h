@@ -0,0 +1,107 @@
+#ifndef AAUDIOTRACK_BENCHMARK_STATISTICS_H
+#define AAUDIOTRACK_BENCHMARK_STATISTICS_H
+
+#include <algorithm>
+#include <cstdint>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <string>
+#include <vector>
+
+// summary of a set of timings, in nanoseconds
+struct Statistics {
+    double mean = 0;
+    double min = 0;
+    double p50 = 0;
+    double p90 = 0;
+    double p99 = 0;
+    double p999 = 0;
+    double max = 0;
+
+    static double percentile(const std::vector<uint64_t> & sorted, double p) {
+        if (sorted.empty()) return 0;
+        size_t index = static_cast<size_t>(p * (sorted.size() - 1) + 0.5);
+        return static_cast<double>(sorted[index]);
+    }
+
+    static Statistics of(std::vector<uint64_t> nanos) {
+        Statistics statistics;
+        if (nanos.empty()) return statistics;
+        std::sort(nanos.begin(), nanos.end());
+        double sum = 0;
+        for (uint64_t value : nanos) sum += value;
+        statistics.mean = sum / nanos.size();
+        statistics.min = static_cast<double>(nanos.front());
+        statistics.p50 = percentile(nanos, 0.50);
+        statistics.p90 = percentile(nanos, 0.90);
+        statistics.p99 = percentile(nanos, 0.99);
+        statistics.p999 = percentile(nanos, 0.999);
+        statistics.max = static_cast<double>(nanos.back());
+        return statistics;
+    }
+};
+
+// prints one row per benchmark, either as an aligned table or as csv
+class Report {
+public:
+    bool csv = false;
+
+    explicit Report(bool csv) : csv(csv) {}
+
+    // label columns are printed first, followed by the timing columns
+    void header(const std::vector<std::string> & labels) const {
+        if (csv) {
+            for (const std::string & label : labels) printf("%s,", label.c_str());
+            printf("frames,cycles,ns_per_frame,mean_ns,min_ns,p50_ns,p90_ns,p99_ns,p99.9_ns,max_ns,load_percent\n");
+        } else {
+            for (const std::string & label : labels) printf("%-10s ", label.c_str());
+            printf("%7s %7s %12s %12s %12s %12s %12s %12s %12s %7s\n",
+                   "frames", "cycles", "ns/frame", "mean", "p50", "p90", "p99", "p99.9", "max", "load%");
+        }
+        fflush(stdout);
+    }
+
+    // load is the mean cycle time as a percentage of the duration of one buffer
+    void row(const std::vector<std::string> & labels, uint32_t frames, size_t cycles,
+             const Statistics & s, double sampleRate) const {
+        double nsPerFrame = s.mean / frames;
+        double load = (s.mean / ((frames * 1000000000.0) / sampleRate)) * 100.0;
+        if (csv) {
+            for (const std::string & label : labels) printf("%s,", label.c_str());
+            printf("%u,%zu,%.3f,%.0f,%.0f,%.0f,%.0f,%.0f,%.0f,%.0f,%.3f\n",
+                   frames, cycles, nsPerFrame, s.mean, s.min, s.p50, s.p90, s.p99, s.p999, s.max, load);
+        } else {
+            for (const std::string & label : labels) printf("%-10s ", label.c_str());
+            printf("%7u %7zu %12.3f %12.0f %12.0f %12.0f %12.0f %12.0f %12.0f %7.2f\n",
+                   frames, cycles, nsPerFrame, s.mean, s.p50, s.p90, s.p99, s.p999, s.max, load);
+        }
+        fflush(stdout);
+    }
+};
+
+// parses "1,16,64" into a list of numbers
+static std::vector<uint32_t> parseList(const char * value) {
+    std::vector<uint32_t> list;
+    std::string string(value);
+    size_t start = 0;
+    while (start <= string.size()) {
+        size_t end = string.find(',', start);
+        if (end == std::string::npos) end = string.size();
+        if (end > start) list.push_back(static_cast<uint32_t>(strtoul(string.substr(start, end - start).c_str(), nullptr, 10)));
+        start = end + 1;
+    }
+    return list;
+}
+
+static bool hasFlag(int argc, char ** argv, const char * flag) {
+    for (int i = 1; i < argc; i++) if (strcmp(argv[i], flag) == 0) return true;
+    return false;
+}
+
+static const char * flagValue(int argc, char ** argv, const char * flag, const char * fallback) {
+    for (int i = 1; i < argc - 1; i++) if (strcmp(argv[i], flag) == 0) return argv[i + 1];
+    return fallback;
+}
+
+#endif //AAUDIOTRACK_BENCHMARK_STATISTICS_H
@@ -0,0 +1,143 @@
+// checks on a Linux host that a streamed sample plays the same frames as the same sample
+// held in memory
+//
+// every mode plays a few seconds of a tone through a Sampler, once with the sample resident
+// and once streamed from a file with only its attack resident, rendering one block at a time
+// at about the speed of the device, so that the streamer keeps ahead of the voice
+//
+// triggered mode starts a voice that does not loop from the first frame and plays it to the end
+// looping   mode starts a voice that loops and plays it several times over
+//
+// exits with 1 if any frame differs, or if the streamer fell behind and a voice played silence
+//
+// usage: stream_check [--frames 256] [--attack 1024] [--seconds 3] [--directory DIR]
+//                     [--modes triggered,looping]
+
+#include "smallville7123/plugins/Sampler.h"
+#include "Statistics.h"
+#include <chrono>
+#include <cmath>
+#include <thread>
+#include <unistd.h>
+
+static const uint32_t SOURCE_RATE = 48000;
+
+// raw interleaved stereo, as AAudioTrack2.decode writes it
+static bool writeTone(const std::string & path, uint64_t frames) {
+    std::vector<ENGINE_FORMAT> pcm(frames * Sample::CHANNELS);
+    for (uint64_t i = 0; i < frames; i++) {
+        double phase = (2 * M_PI * 440 * i) / SOURCE_RATE;
+        pcm[(i * 2) + 0] = static_cast<ENGINE_FORMAT>(0.25 * sin(phase));
+        // a ramp, so that a frame played from the wrong place is never mistaken for the right one
+        pcm[(i * 2) + 1] = static_cast<ENGINE_FORMAT>(i % 1000) / 4000;
+    }
+    FILE * file = fopen(path.c_str(), "wb");
+    if (file == nullptr) return false;
+    fwrite(pcm.data(), sizeof(ENGINE_FORMAT), pcm.size(), file);
+    fclose(file);
+    return true;
+}
+
+// renders blocks blocks of frames frames, returns the left and right channels one after the other
+static std::vector<ENGINE_FORMAT> render(Sample * sample, SampleStreamer * streamer, bool looping,
+                                         uint32_t frames, uint64_t blocks, uint32_t & underruns) {
+    Sampler sampler;
+    sampler.loop(looping);
+    sampler.setSample(sample, streamer, nullptr);
+    HostInfo hostInfo;
+    PortUtils2 out;
+    out.allocatePorts<ENGINE_FORMAT>(frames * 2, 2);
+    ENGINE_FORMAT * left = reinterpret_cast<ENGINE_FORMAT *>(out.ports.outputStereo->l->buf);
+    ENGINE_FORMAT * right = reinterpret_cast<ENGINE_FORMAT *>(out.ports.outputStereo->r->buf);
+
+    smf::MidiEvent midiEvent;
+    midiEvent.makeNoteOn(0, Sampler::DEFAULT_ROOT_KEY, 127);
+    hostInfo.midiInputBuffer.insert(midiEvent);
+
+    std::vector<ENGINE_FORMAT> rendered;
+    rendered.reserve(blocks * frames * 2);
+    auto block = std::chrono::microseconds((1000000ull * frames) / SOURCE_RATE);
+    for (uint64_t i = 0; i < blocks; i++) {
+        sampler.write(&hostInfo, nullptr, nullptr, &out, frames);
+        hostInfo.midiInputBuffer.consumerClear();
+        rendered.insert(rendered.end(), left, left + frames);
+        rendered.insert(rendered.end(), right, right + frames);
+        if (streamer != nullptr) std::this_thread::sleep_for(block);
+    }
+    underruns = sampler.underruns();
+
+    // the sample outlives the sampler, which would otherwise give it back to a pool
+    sampler.setSample(nullptr, nullptr, nullptr);
+    out.deallocatePorts<ENGINE_FORMAT>();
+    return rendered;
+}
+
+// returns the first frame at which a and b differ, or a.size() if they do not
+static size_t firstDifference(const std::vector<ENGINE_FORMAT> & a, const std::vector<ENGINE_FORMAT> & b) {
+    for (size_t i = 0; i < a.size(); i++) {
+        if (a[i] != b[i]) return i;
+    }
+    return a.size();
+}
+
+int main(int argc, char ** argv) {
+    uint32_t frames = static_cast<uint32_t>(strtoul(flagValue(argc, argv, "--frames", "256"), nullptr, 10));
+    uint64_t attack = strtoull(flagValue(argc, argv, "--attack", "1024"), nullptr, 10);
+    uint64_t seconds = strtoull(flagValue(argc, argv, "--seconds", "3"), nullptr, 10);
+    std::string modes = flagValue(argc, argv, "--modes", "triggered,looping");
+
+    char temporary[] = "/tmp/stream_check_XXXXXX";
+    std::string directory = flagValue(argc, argv, "--directory", "");
+    if (directory.empty()) {
+        if (mkdtemp(temporary) == nullptr) {
+            LOGE("cannot create a directory for the check");
+            return 1;
+        }
+        directory = temporary;
+    }
+    std::string path = directory + "/tone.pcm";
+    uint64_t sampleFrames = seconds * SOURCE_RATE;
+    if (!writeTone(path, sampleFrames)) {
+        LOGE("cannot write %s", path.c_str());
+        return 1;
+    }
+
+    Sample * resident = Sample::load(path.c_str(), SIZE_MAX, attack);
+    Sample * streamed = Sample::load(path.c_str(), 0, attack);
+    if (resident == nullptr || streamed == nullptr || !streamed->streamed()) {
+        LOGE("cannot load %s", path.c_str());
+        return 1;
+    }
+
+    SampleStreamer streamer;
+    bool passed = true;
+    for (const char * mode : {"triggered", "looping"}) {
+        if (modes.find(mode) == std::string::npos) continue;
+        bool looping = std::string(mode) == "looping";
+        // past the end of the sample, or twice through it and a bit when it loops
+        uint64_t blocks = (((looping ? 2 : 1) * sampleFrames) / frames) + 8;
+        uint32_t residentUnderruns;
+        uint32_t streamedUnderruns;
+        std::vector<ENGINE_FORMAT> expected = render(resident, nullptr, looping, frames, blocks, residentUnderruns);
+        std::vector<ENGINE_FORMAT> actual = render(streamed, &streamer, looping, frames, blocks, streamedUnderruns);
+        size_t difference = firstDifference(expected, actual);
+        bool matches = difference == expected.size() && streamedUnderruns == 0;
+        if (difference != expected.size()) {
+            // every block holds frames frames of left and then frames frames of right
+            uint64_t frame = ((difference / (frames * 2)) * frames) + (difference % frames);
+            printf("%-9s differs from frame %llu, underruns %u\n", mode,
+                   static_cast<unsigned long long>(frame), streamedUnderruns);
+        } else {
+            printf("%-9s %s, %llu frames, underruns %u\n", mode, matches ? "matches" : "fell behind",
+                   static_cast<unsigned long long>(blocks * frames), streamedUnderruns);
+        }
+        fflush(stdout);
+        passed &= matches;
+    }
+
+    delete resident;
+    delete streamed;
+    unlink(path.c_str());
+    if (directory == temporary) rmdir(directory.c_str());
+    return passed ? 0 : 1;
+}
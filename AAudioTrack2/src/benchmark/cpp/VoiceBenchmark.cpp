@@ -0,0 +1,129 @@
+// times a polyphonic Sampler on a Linux host
+//
+// every configuration plays a looping sample of noise, held in memory, on N voices at once
+// and renders one block at a time, without the engine
+//
+// sustain mode times blocks in which N voices sound and no note starts or ends
+// steal   mode times blocks in which N voices sound and a note starts in every block,
+//         so every block steals the oldest voice, which fades out on top of the others
+//
+// drop, linear, cubic and sinc modes time sustain with a pitched sampler, the voices playing
+// keys spread over two octaves around the root key, with that interpolation mode
+//
+// the cost of a block should grow linearly with the number of voices, with a block of
+// no voices costing about as much as clearing the output
+//
+// usage: voice_benchmark [--csv] [--cycles N] [--warmup N] [--sample-rate R]
+//                        [--voices 0,1,2,4,8,16,32,64] [--frames 64,256,1024,4096]
+//                        [--modes sustain,steal,drop,linear,cubic,sinc]
+
+#include "smallville7123/plugins/Sampler.h"
+#include "Statistics.h"
+#include <chrono>
+#include <random>
+
+// a second of noise, long enough that the voices never play the same frames
+static const uint64_t SAMPLE_FRAMES = 48000;
+
+static Sample * noise() {
+    std::mt19937 random(SAMPLE_FRAMES);
+    std::uniform_real_distribution<ENGINE_FORMAT> distribution(-0.1f, 0.1f);
+    std::vector<ENGINE_FORMAT> pcm(SAMPLE_FRAMES * Sample::CHANNELS);
+    for (ENGINE_FORMAT & value : pcm) value = distribution(random);
+    return Sample::fromMemory(std::move(pcm));
+}
+
+struct Mode {
+    const char * name;
+    bool steal;
+    // -1 if the sampler is not pitched
+    int interpolation;
+};
+
+static const Mode MODES[] = {
+        {"sustain", false, -1},
+        {"steal", true, -1},
+        {"drop", false, Interpolator::DROP},
+        {"linear", false, Interpolator::LINEAR},
+        {"cubic", false, Interpolator::CUBIC},
+        {"sinc", false, Interpolator::SINC},
+};
+
+static void noteOn(HostInfo & hostInfo, int key) {
+    smf::MidiEvent midiEvent;
+    midiEvent.makeNoteOn(0, key & 0x7F, 127);
+    hostInfo.midiInputBuffer.insert(midiEvent);
+}
+
+// the key of voice, the keys of a pitched sampler go up and down an octave from the root key
+// without ever playing the root key, which is not interpolated
+static int keyOf(uint32_t voice, bool pitched) {
+    if (!pitched) return static_cast<int>(voice);
+    int offset = 1 + static_cast<int>(voice % 12);
+    return Sampler::DEFAULT_ROOT_KEY + ((voice % 2) == 0 ? offset : -offset);
+}
+
+static std::vector<uint64_t> timeVoices(Sample * sample, uint32_t voices, uint32_t frames, size_t warmup, size_t cycles,
+                                        const Mode & mode) {
+    bool pitched = mode.interpolation >= 0;
+    Sampler sampler(std::max<uint32_t>(voices, 1));
+    sampler.loop(true);
+    sampler.pitched.store(pitched);
+    if (pitched) sampler.interpolation.store(mode.interpolation);
+    sampler.setSample(sample, nullptr, nullptr);
+    HostInfo hostInfo;
+    PortUtils2 out;
+    out.allocatePorts<ENGINE_FORMAT>(frames * 2, 2);
+
+    // start the voices a block apart, so that they play different frames
+    for (uint32_t voice = 0; voice < voices; voice++) {
+        noteOn(hostInfo, keyOf(voice, pitched));
+        sampler.write(&hostInfo, nullptr, nullptr, &out, frames);
+        hostInfo.midiInputBuffer.consumerClear();
+    }
+
+    std::vector<uint64_t> nanos;
+    nanos.reserve(cycles);
+    for (size_t cycle = 0; cycle < warmup + cycles; cycle++) {
+        if (mode.steal && voices != 0) noteOn(hostInfo, static_cast<int>(voices + cycle));
+        auto begin = std::chrono::steady_clock::now();
+        sampler.write(&hostInfo, nullptr, nullptr, &out, frames);
+        auto end = std::chrono::steady_clock::now();
+        hostInfo.midiInputBuffer.consumerClear();
+        if (cycle >= warmup) {
+            nanos.push_back(std::chrono::duration_cast<std::chrono::nanoseconds>(end - begin).count());
+        }
+    }
+
+    // the sample outlives the sampler, which would otherwise give it back to a pool
+    sampler.setSample(nullptr, nullptr, nullptr);
+    out.deallocatePorts<ENGINE_FORMAT>();
+    return nanos;
+}
+
+int main(int argc, char ** argv) {
+    bool csv = hasFlag(argc, argv, "--csv");
+    size_t cycles = strtoul(flagValue(argc, argv, "--cycles", "2000"), nullptr, 10);
+    size_t warmup = strtoul(flagValue(argc, argv, "--warmup", "200"), nullptr, 10);
+    float sampleRate = strtof(flagValue(argc, argv, "--sample-rate", "48000"), nullptr);
+    std::vector<uint32_t> voiceCounts = parseList(flagValue(argc, argv, "--voices", "0,1,2,4,8,16,32,64"));
+    std::vector<uint32_t> frameCounts = parseList(flagValue(argc, argv, "--frames", "64,256,1024,4096"));
+    std::string modes = flagValue(argc, argv, "--modes", "sustain,steal,drop,linear,cubic,sinc");
+
+    Sample * sample = noise();
+
+    Report report(csv);
+    report.header({"mode", "voices"});
+
+    for (uint32_t voices : voiceCounts) {
+        for (uint32_t frames : frameCounts) {
+            for (const Mode & mode : MODES) {
+                if (modes.find(mode.name) == std::string::npos) continue;
+                report.row({mode.name, std::to_string(voices)}, frames, cycles,
+                           Statistics::of(timeVoices(sample, voices, frames, warmup, cycles, mode)), sampleRate);
+            }
+        }
+    }
+    delete sample;
+    return 0;
+}
@@ -5,6 +5,7 @@
 #include <jni.h>
 #include <string>
 #include <unistd.h>
+#include <mutex>
 #include "ardour/ardour.h"
 #include <AndroidDAW_SDK/JniHelpers/JniHelpers.h>
 
@@ -14,6 +15,13 @@ AudioEngine * engine = nullptr;
 #define makeVoidPtr(what) reinterpret_cast<void*>(what)
 #define makejlong(what) reinterpret_cast<jlong>(what)
 
+// every call that reaches into the engine holds this lock, so a render, which stops the
+// engine and swaps its backend on its own thread, never runs alongside another such call
+//
+// recursive so that a RenderListener may call back into the engine from the render thread
+std::recursive_mutex engineMutex;
+#define lockEngine() std::lock_guard<std::recursive_mutex> engineLock(engineMutex)
+
 bool engine_exists() {
     if (engine == nullptr) {
         LOGW("engine is null");
@@ -55,6 +63,7 @@ bool check_engine() {
 
 extern "C" JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_createNativeInstance(JNIEnv* env, jobject  object) {
+    lockEngine();
     // create the engine
     engine = AudioEngine::create(env, object);
 
@@ -77,88 +86,83 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_createNativeInstance(JNIEnv* env,
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_setNoteData(JNIEnv *env, jobject thiz,
-                                                          jlong pattern, jbooleanArray booleanArray) {
-    jsize arrayLength = env->GetArrayLength(booleanArray);
-    if (arrayLength == 0) {
+                                                          jlong pattern, jlongArray steps, jint length) {
+    if (length <= 0) {
         // clear note data
     } else {
-        jboolean isCopy;
-        jboolean * ptr = env->GetBooleanArrayElements(booleanArray, &isCopy);
+        jsize words = env->GetArrayLength(steps);
+        if (static_cast<jlong>(words) * 64 < length) return;
+        // the steps are read in place, the array is only pinned while the events are built
+        auto * ptr = static_cast<jlong *>(env->GetPrimitiveArrayCritical(steps, nullptr));
+        if (ptr == nullptr) return;
         // set note data
-        reinterpret_cast<Pattern *>(pattern)->pianoRoll.setNoteData(reinterpret_cast<bool *>(ptr), arrayLength);
+        reinterpret_cast<Pattern *>(pattern)->pianoRoll.setNoteData(reinterpret_cast<const uint64_t *>(ptr), length);
         // free the buffer without copying back the possible changes
-        env->ReleaseBooleanArrayElements(booleanArray, ptr, JNI_ABORT);
+        env->ReleasePrimitiveArrayCritical(steps, ptr, JNI_ABORT);
     }
 }
 
-extern "C"
-JNIEXPORT jlong JNICALL
-Java_smallville7123_aaudiotrack2_AAudioTrack2_getMidiEventAt(JNIEnv *env, jobject thiz, jlong pattern, jint index) {
-    return makejlong(reinterpret_cast<Pattern *>(pattern)->pianoRoll.getMidiEventAt(index));
-}
-
-extern "C"
-JNIEXPORT jint JNICALL
-Java_smallville7123_aaudiotrack2_AAudioTrack2_getMidiTickAt(JNIEnv *env, jobject thiz, jlong pattern, jlong midiEvent) {
-    return reinterpret_cast<Pattern *>(pattern)->pianoRoll.getMidiTickAt(makeVoidPtr(midiEvent));
-}
-
-extern "C"
-JNIEXPORT jint JNICALL
-Java_smallville7123_aaudiotrack2_AAudioTrack2_getMidiChannelAt(JNIEnv *env, jobject thiz, jlong pattern, jlong midiEvent) {
-    return reinterpret_cast<Pattern *>(pattern)->pianoRoll.getMidiChannelAt(makeVoidPtr(midiEvent));
-}
-
-extern "C"
-JNIEXPORT jint JNICALL
-Java_smallville7123_aaudiotrack2_AAudioTrack2_getMidiNumberAt(JNIEnv *env, jobject thiz, jlong pattern, jlong midiEvent) {
-    return reinterpret_cast<Pattern *>(pattern)->pianoRoll.getMidiNumberAt(makeVoidPtr(midiEvent));
-}
-
-extern "C"
-JNIEXPORT jint JNICALL
-Java_smallville7123_aaudiotrack2_AAudioTrack2_getMidiVelocityAt(JNIEnv *env, jobject thiz, jlong pattern, jlong midiEvent) {
-    return reinterpret_cast<Pattern *>(pattern)->pianoRoll.getMidiVelocityAt(makeVoidPtr(midiEvent));
-}
-
 extern "C"
 JNIEXPORT jboolean JNICALL
-Java_smallville7123_aaudiotrack2_AAudioTrack2_isMidiEventNote(JNIEnv *env, jobject thiz, jlong pattern, jlong midiEvent) {
-    return reinterpret_cast<Pattern *>(pattern)->pianoRoll.isMidiEventNote(makeVoidPtr(midiEvent));
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setStep(JNIEnv *env, jobject thiz, jlong pattern,
+                                                      jint index, jboolean on) {
+    return reinterpret_cast<Pattern *>(pattern)->pianoRoll.setStep(index, on);
 }
 
 extern "C"
 JNIEXPORT jboolean JNICALL
-Java_smallville7123_aaudiotrack2_AAudioTrack2_isMidiEventNoteOn(JNIEnv *env, jobject thiz, jlong pattern, jlong midiEvent) {
-    return reinterpret_cast<Pattern *>(pattern)->pianoRoll.isMidiEventNoteOn(makeVoidPtr(midiEvent));
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setSteps(JNIEnv *env, jobject thiz, jlong pattern,
+                                                       jint offset, jlongArray steps, jint length) {
+    if (length <= 0) return true;
+    jsize words = env->GetArrayLength(steps);
+    if (static_cast<jlong>(words) * 64 < length) return false;
+    auto * ptr = static_cast<jlong *>(env->GetPrimitiveArrayCritical(steps, nullptr));
+    if (ptr == nullptr) return false;
+    bool applied = reinterpret_cast<Pattern *>(pattern)->pianoRoll.setSteps(offset, reinterpret_cast<const uint64_t *>(ptr), length);
+    // free the buffer without copying back the possible changes
+    env->ReleasePrimitiveArrayCritical(steps, ptr, JNI_ABORT);
+    return applied;
 }
 
 extern "C"
-JNIEXPORT jboolean JNICALL
-Java_smallville7123_aaudiotrack2_AAudioTrack2_isMidiEventNoteOff(JNIEnv *env, jobject thiz, jlong pattern, jlong midiEvent) {
-    return reinterpret_cast<Pattern *>(pattern)->pianoRoll.isMidiEventNoteOff(makeVoidPtr(midiEvent));
+JNIEXPORT jint JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_snapshotPatternEvents(JNIEnv *env, jobject thiz, jlong pattern,
+                                                                    jint fromTick, jint toTick, jobject out) {
+    int32_t * buffer = nullptr;
+    int capacity = 0;
+    if (out != nullptr) {
+        buffer = static_cast<int32_t *>(env->GetDirectBufferAddress(out));
+        jlong bytes = env->GetDirectBufferCapacity(out);
+        if (buffer != nullptr && bytes > 0) {
+            capacity = static_cast<int>(bytes / (sizeof(int32_t) * PianoRoll::SNAPSHOT_FIELDS));
+        }
+    }
+    return reinterpret_cast<Pattern *>(pattern)->pianoRoll.snapshotEvents(fromTick, toTick, buffer, capacity);
 }
 
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_setTrackData(JNIEnv *env, jobject thiz,
-                                                          jlong track, jbooleanArray booleanArray) {
-    jsize arrayLength = env->GetArrayLength(booleanArray);
-    if (arrayLength == 0) {
+                                                          jlong track, jlongArray steps, jint length) {
+    if (length <= 0) {
         // clear note data
     } else {
-        jboolean isCopy;
-        jboolean * ptr = env->GetBooleanArrayElements(booleanArray, &isCopy);
+        jsize words = env->GetArrayLength(steps);
+        if (static_cast<jlong>(words) * 64 < length) return;
+        // the steps are read in place, the array is only pinned while the events are built
+        auto * ptr = static_cast<jlong *>(env->GetPrimitiveArrayCritical(steps, nullptr));
+        if (ptr == nullptr) return;
         // set note data
-        reinterpret_cast<Track *>(track)->pianoRoll.setNoteData(reinterpret_cast<bool *>(ptr), arrayLength);
+        reinterpret_cast<Track *>(track)->pianoRoll.setNoteData(reinterpret_cast<const uint64_t *>(ptr), length);
         // free the buffer without copying back the possible changes
-        env->ReleaseBooleanArrayElements(booleanArray, ptr, JNI_ABORT);
+        env->ReleasePrimitiveArrayCritical(steps, ptr, JNI_ABORT);
     }
 }
 
 extern "C"
 JNIEXPORT jint JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_getDSPLoad(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (engine_exists()) {
 //        LOGE("processing time: %llu nanoseconds, buffer length: %llu nanoseconds, DSPLoadInt: %d, DSPLoadDouble: %G", engine->processingTime, engine->bufferLength, engine->DSPLoadInt, engine->DSPLoadDouble);
         return engine->DSPLoadInt;
@@ -168,18 +172,21 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_getDSPLoad(JNIEnv *env, jobject th
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_changeToDirectMode(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (engine_exists()) engine->changeToDirectMode();
 }
 
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_changeToPatternMode(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (engine_exists()) engine->changeToPatternMode();
 }
 
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_changeToSongMode(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (engine_exists()) engine->changeToSongMode();
 }
 
@@ -187,6 +194,7 @@ extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_setPatternGridResolution(JNIEnv *env, jobject thiz,
                                                                    jlong pattern, jint size) {
+    lockEngine();
     if (engine_exists()) {
         engine->setPatternGridResolution(makeVoidPtr(pattern), size);
     }
@@ -196,6 +204,7 @@ extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_setTrackGridResolution(JNIEnv *env, jobject thiz,
                                                                        jlong track, jint size) {
+    lockEngine();
     if (engine_exists()) {
         engine->setTrackGridResolution(makeVoidPtr(track), size);
     }
@@ -205,6 +214,7 @@ extern "C"
 JNIEXPORT jboolean JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_isNotePlaying(JNIEnv *env, jobject thiz,
                                                             jint note_data_index) {
+    lockEngine();
     if (engine_exists()) {
         for (int i = 0; i < engine->getPatternGroup()->rack.typeList.size(); ++i) {
             PatternList *patternList = engine->getPatternGroup()->rack.typeList[i];
@@ -224,6 +234,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_isNotePlaying(JNIEnv *env, jobject
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_startEngine(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (!engine_exists()) return;
     // start the engine
     if (engine->start () != 0) {
@@ -234,6 +245,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_startEngine(JNIEnv *env, jobject t
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_stopEngine(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (!engine_exists()) return;
     // start the engine
     if (engine->stop() != 0) {
@@ -244,14 +256,16 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_stopEngine(JNIEnv *env, jobject th
 extern "C"
 JNIEXPORT jlong JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_newChannel_1(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (!engine_exists()) return 0;
-    return reinterpret_cast<jlong>(engine->channelRack.newChannel());
+    return reinterpret_cast<jlong>(engine->newChannel());
 }
 
 extern "C"
 JNIEXPORT jlong JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_newSamplerChannel_1(JNIEnv *env, jobject thiz) {
-    Channel_Generator * channel = engine->channelRack.newChannel();
+    lockEngine();
+    Channel_Generator * channel = engine->newChannel();
     channel->plugin = new Sampler();
     return reinterpret_cast<jlong>(channel);
 }
@@ -259,6 +273,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_newSamplerChannel_1(JNIEnv *env, j
 extern "C"
 JNIEXPORT jint JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_getSampleRate(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (!check_engine()) return 0;
     return engine->sample_rate();
 }
@@ -266,6 +281,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_getSampleRate(JNIEnv *env, jobject
 extern "C"
 JNIEXPORT jint JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_getChannelCount(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (!check_engine()) return 0;
     return engine->output_channels();
 }
@@ -273,15 +289,105 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_getChannelCount(JNIEnv *env, jobje
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_setTrack(JNIEnv *env, jobject thiz, jlong nativeChannel, jstring track) {
+    lockEngine();
     if (!engine_exists()) return;
     char * path_ = JniHelpers::Strings::newJniStringUTF(env, track);
     engine->load(makeVoidPtr(nativeChannel), path_);
     JniHelpers::Strings::deleteJniStringUTF(path_);
 }
 
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setTrackRange(JNIEnv *env, jobject thiz, jlong nativeChannel,
+                                                            jint fd, jlong offset, jlong length,
+                                                            jstring temporary_directory) {
+    lockEngine();
+    if (!engine_exists() || offset < 0) return JNI_FALSE;
+    char * directory_ = JniHelpers::Strings::newJniStringUTF(env, temporary_directory);
+    bool loaded = engine->load(
+            makeVoidPtr(nativeChannel), fd, static_cast<uint64_t>(offset),
+            // a negative length reads to the end of the file
+            length < 0 ? UINT64_MAX : static_cast<uint64_t>(length), directory_
+    );
+    JniHelpers::Strings::deleteJniStringUTF(directory_);
+    return loaded ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_prepareSample(JNIEnv *env, jobject thiz, jstring path,
+                                                            jstring temporary_directory) {
+    lockEngine();
+    if (!engine_exists()) return 0;
+    char * path_ = JniHelpers::Strings::newJniStringUTF(env, path);
+    char * directory_ = JniHelpers::Strings::newJniStringUTF(env, temporary_directory);
+    Sample * sample = engine->prepareSample(path_, directory_);
+    JniHelpers::Strings::deleteJniStringUTF(directory_);
+    JniHelpers::Strings::deleteJniStringUTF(path_);
+    return reinterpret_cast<jlong>(sample);
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_prepareSampleRange(JNIEnv *env, jobject thiz,
+                                                                 jint fd, jlong offset, jlong length,
+                                                                 jstring temporary_directory) {
+    lockEngine();
+    if (!engine_exists() || offset < 0) return 0;
+    char * directory_ = JniHelpers::Strings::newJniStringUTF(env, temporary_directory);
+    Sample * sample = engine->prepareSample(
+            fd, static_cast<uint64_t>(offset),
+            // a negative length reads to the end of the file
+            length < 0 ? UINT64_MAX : static_cast<uint64_t>(length), directory_
+    );
+    JniHelpers::Strings::deleteJniStringUTF(directory_);
+    return reinterpret_cast<jlong>(sample);
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_playsSamples(JNIEnv *env, jobject thiz, jlong nativeChannel) {
+    if (!engine_exists()) return JNI_FALSE;
+    return AudioEngine::playsSamples(makeVoidPtr(nativeChannel)) ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setPitched(JNIEnv *env, jobject thiz, jlong nativeChannel,
+                                                         jboolean pitched, jint rootKey) {
+    if (!engine_exists()) return JNI_FALSE;
+    return AudioEngine::setPitched(makeVoidPtr(nativeChannel), pitched, rootKey) ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setInterpolation(JNIEnv *env, jobject thiz, jlong nativeChannel,
+                                                               jint mode) {
+    if (!engine_exists()) return JNI_FALSE;
+    return AudioEngine::setInterpolation(makeVoidPtr(nativeChannel), mode) ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setSample(JNIEnv *env, jobject thiz, jlong nativeChannel, jlong sample) {
+    lockEngine();
+    if (!engine_exists()) return JNI_FALSE;
+    return engine->setSample(makeVoidPtr(nativeChannel), reinterpret_cast<Sample *>(sample)) ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_releaseSample(JNIEnv *env, jobject thiz, jlong sample) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->releaseSample(reinterpret_cast<Sample *>(sample));
+    }
+}
+
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_setPlugin(JNIEnv *env, jobject thiz, jlong nativeChannel, jlong plugin) {
+    lockEngine();
     if (!engine_exists()) return;
     engine->setPlugin(makeVoidPtr(nativeChannel), makeVoidPtr(plugin));
 }
@@ -289,6 +395,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_setPlugin(JNIEnv *env, jobject thi
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_sendEvent(JNIEnv *env, jobject thiz, jlong nativeChannel, jint event) {
+    lockEngine();
     if (!engine_exists()) return;
     engine->sendEvent(makeVoidPtr(nativeChannel), event);
 }
@@ -296,6 +403,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_sendEvent(JNIEnv *env, jobject thi
 extern "C"
 JNIEXPORT jint JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_getUnderrunCount(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (!check_engine()) return 0;
     return engine->current_backend()->XRunCount();
 }
@@ -303,6 +411,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_getUnderrunCount(JNIEnv *env, jobj
 extern "C"
 JNIEXPORT jint JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_getCurrentSample(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (!check_engine()) return 0;
     return 0; //reinterpret_cast<AudioEngine*>(native_aaudio_track_pointer)->mReadSampleIndex;
 }
@@ -310,6 +419,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_getCurrentSample(JNIEnv *env, jobj
 extern "C"
 JNIEXPORT jint JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_getTotalSamples(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (!check_engine()) return 0;
     return 0; //reinterpret_cast<AudioEngine*>(native_aaudio_track_pointer)->mTotalSamples;
 }
@@ -317,6 +427,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_getTotalSamples(JNIEnv *env, jobje
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_resetPlayHead(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (!check_engine()) return;
 //    reinterpret_cast<AudioEngine*>(native_aaudio_track_pointer)->mReadSampleIndex = 0;
 }
@@ -324,6 +435,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_resetPlayHead(JNIEnv *env, jobject
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_pause(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (!check_engine()) return;
 //    AudioEngine* AE = reinterpret_cast<AudioEngine*>(native_aaudio_track_pointer);
 //    if (!AE->metronomeMode.load()) AE->mIsPlaying.store(false);
@@ -332,6 +444,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_pause(JNIEnv *env, jobject thiz) {
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_resume(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (!check_engine()) return;
 //    AudioEngine* AE = reinterpret_cast<AudioEngine*>(native_aaudio_track_pointer);
 //    if (!AE->metronomeMode.load()) AE->mIsPlaying.store(true);
@@ -341,15 +454,37 @@ extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_loop(JNIEnv *env, jobject thiz,
                                                    jlong channel, jboolean value) {
+    lockEngine();
     if (engine_exists()) {
         engine->loop(makeVoidPtr(channel), value);
     }
 }
 
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setGain(JNIEnv *env, jobject thiz,
+                                                      jlong channel, jfloat gain) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->setGain(makeVoidPtr(channel), gain);
+    }
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setPan(JNIEnv *env, jobject thiz,
+                                                     jlong channel, jfloat pan) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->setPan(makeVoidPtr(channel), pan);
+    }
+}
+
 extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_bindChannelToPattern(JNIEnv *env, jobject thiz,
                                                                    jlong channel, jlong pattern) {
+    lockEngine();
     if (engine_exists()) {
         engine->bindChannelToPattern(makeVoidPtr(channel), makeVoidPtr(pattern));
     }
@@ -358,6 +493,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_bindChannelToPattern(JNIEnv *env,
 extern "C"
 JNIEXPORT jlong JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_createPatternList(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (engine_exists()) {
         return makejlong(engine->createPatternList());
     } else return 0;
@@ -367,6 +503,7 @@ extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_deletePatternList(JNIEnv *env, jobject thiz,
                                                                 jlong patternList) {
+    lockEngine();
     if (engine_exists()) {
         engine->deletePatternList(makeVoidPtr(patternList));
     }
@@ -375,6 +512,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_deletePatternList(JNIEnv *env, job
 extern "C"
 JNIEXPORT jlong JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_createPattern(JNIEnv *env, jobject thiz, jlong patternList) {
+    lockEngine();
     if (engine_exists()) {
         return makejlong(engine->createPattern(makeVoidPtr(patternList)));
     } else return 0;
@@ -384,6 +522,7 @@ extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_deletePattern(JNIEnv *env, jobject thiz,
                                                                 jlong patternList, jlong pattern) {
+    lockEngine();
     if (engine_exists()) {
         engine->deletePattern(makeVoidPtr(patternList), makeVoidPtr(pattern));
     }
@@ -395,6 +534,7 @@ extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_bindPatternListToTrack(JNIEnv *env, jobject thiz,
                                                                    jlong patternList, jlong track) {
+    lockEngine();
     if (engine_exists()) {
         engine->bindPatternListToTrack(makeVoidPtr(patternList), makeVoidPtr(track));
     }
@@ -403,6 +543,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_bindPatternListToTrack(JNIEnv *env
 extern "C"
 JNIEXPORT jlong JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_createTrackList(JNIEnv *env, jobject thiz) {
+    lockEngine();
     if (engine_exists()) {
         return makejlong(engine->createTrackList());
     } else return 0;
@@ -412,6 +553,7 @@ extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_deleteTrackList(JNIEnv *env, jobject thiz,
                                                                 jlong trackList) {
+    lockEngine();
     if (engine_exists()) {
         engine->deleteTrackList(makeVoidPtr(trackList));
     }
@@ -420,6 +562,7 @@ Java_smallville7123_aaudiotrack2_AAudioTrack2_deleteTrackList(JNIEnv *env, jobje
 extern "C"
 JNIEXPORT jlong JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_createTrack(JNIEnv *env, jobject thiz, jlong trackList) {
+    lockEngine();
     if (engine_exists()) {
         return makejlong(engine->createTrack(makeVoidPtr(trackList)));
     } else return 0;
@@ -429,7 +572,262 @@ extern "C"
 JNIEXPORT void JNICALL
 Java_smallville7123_aaudiotrack2_AAudioTrack2_deleteTrack(JNIEnv *env, jobject thiz,
                                                             jlong trackList, jlong track) {
+    lockEngine();
     if (engine_exists()) {
         engine->deleteTrack(makeVoidPtr(trackList), makeVoidPtr(track));
     }
-}
\ No newline at end of file
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_addClip(JNIEnv *env, jobject thiz, jlong track,
+                                                      jlong patternList, jlong start,
+                                                      jlong length, jlong offset) {
+    lockEngine();
+    if (engine_exists()) {
+        return engine->addClip(makeVoidPtr(track), makeVoidPtr(patternList), start, length, offset);
+    } else return -1;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_removeClip(JNIEnv *env, jobject thiz, jlong track,
+                                                         jint clip) {
+    lockEngine();
+    if (engine_exists()) {
+        return engine->removeClip(makeVoidPtr(track), clip);
+    } else return false;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_clearClips(JNIEnv *env, jobject thiz, jlong track) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->clearClips(makeVoidPtr(track));
+    }
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_renderToFile_1(JNIEnv *env, jobject thiz, jstring path,
+                                                             jlong startSample, jlong lengthSamples,
+                                                             jobject listener) {
+    lockEngine();
+    if (!check_engine()) return false;
+    jmethodID onProgress = nullptr;
+    if (listener != nullptr) {
+        jclass listenerClass = env->GetObjectClass(listener);
+        onProgress = env->GetMethodID(listenerClass, "onProgress", "(JJ)Z");
+        env->DeleteLocalRef(listenerClass);
+    }
+    // an exception thrown by the listener, held until the engine is restored
+    jthrowable thrown = nullptr;
+    char * path_ = JniHelpers::Strings::newJniStringUTF(env, path);
+    int result = engine->renderToFile(
+            path_, startSample, lengthSamples,
+            [env, listener, onProgress, &thrown](sample_count_t rendered, sample_count_t total) {
+                if (onProgress == nullptr) return true;
+                jboolean keepGoing = env->CallBooleanMethod(
+                        listener, onProgress,
+                        static_cast<jlong>(rendered), static_cast<jlong>(total)
+                );
+                // cancel if the listener threw
+                if (env->ExceptionCheck()) {
+                    thrown = env->ExceptionOccurred();
+                    env->ExceptionClear();
+                    return false;
+                }
+                return keepGoing == JNI_TRUE;
+            }
+    );
+    JniHelpers::Strings::deleteJniStringUTF(path_);
+    // the previous backend was re-created, see createNativeInstance
+    _backend = engine->current_backend();
+    if (thrown != nullptr) {
+        // rethrown once the render has finished, renderToFile still calls onFinished
+        env->Throw(thrown);
+        env->DeleteLocalRef(thrown);
+        return false;
+    }
+    return result == 0;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setRenderWorkers(JNIEnv *env, jobject thiz, jint count) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->setRenderWorkers(count);
+    }
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_getRenderWorkers(JNIEnv *env, jobject thiz) {
+    lockEngine();
+    if (!engine_exists()) return 0;
+    return engine->getRenderWorkers();
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setSampleStreaming(JNIEnv *env, jobject thiz,
+                                                                 jlong threshold_bytes, jlong attack_frames) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->setSampleStreaming(
+                static_cast<size_t>(std::max<jlong>(threshold_bytes, 0)),
+                static_cast<uint64_t>(std::max<jlong>(attack_frames, 0))
+        );
+    }
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setDecodeCache_1(JNIEnv *env, jobject thiz,
+                                                               jstring directory, jlong max_bytes) {
+    lockEngine();
+    if (!engine_exists()) return;
+    if (directory == nullptr) {
+        engine->setDecodeCache(std::string(), 0);
+        return;
+    }
+    char * directory_ = JniHelpers::Strings::newJniStringUTF(env, directory);
+    engine->setDecodeCache(directory_, static_cast<uint64_t>(std::max<jlong>(max_bytes, 0)));
+    JniHelpers::Strings::deleteJniStringUTF(directory_);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setResamplerQuality(JNIEnv *env, jobject thiz, jint quality) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->setResamplerQuality(quality);
+    }
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setSamplePoolBudget(JNIEnv *env, jobject thiz, jlong bytes) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->setSamplePoolBudget(static_cast<size_t>(std::max<jlong>(bytes, 0)));
+    }
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_getSamplePoolBytes(JNIEnv *env, jobject thiz) {
+    lockEngine();
+    if (!engine_exists()) return 0;
+    return static_cast<jlong>(engine->samplePool.bytes());
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_createBus(JNIEnv *env, jobject thiz) {
+    lockEngine();
+    if (engine_exists()) {
+        return makejlong(engine->createBus());
+    } else return 0;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_deleteBus(JNIEnv *env, jobject thiz, jlong bus) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->deleteBus(makeVoidPtr(bus));
+    }
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_getMasterBus(JNIEnv *env, jobject thiz) {
+    lockEngine();
+    if (engine_exists()) {
+        return makejlong(engine->getMasterBus());
+    } else return 0;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setChannelOutput(JNIEnv *env, jobject thiz, jlong channel, jlong bus) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->setChannelOutput(makeVoidPtr(channel), makeVoidPtr(bus));
+    }
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setBusOutput(JNIEnv *env, jobject thiz, jlong bus, jlong target) {
+    lockEngine();
+    if (engine_exists()) {
+        return engine->setBusOutput(makeVoidPtr(bus), makeVoidPtr(target));
+    } else return false;
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_addChannelSend(JNIEnv *env, jobject thiz, jlong channel, jlong bus, jfloat level, jboolean preFader) {
+    lockEngine();
+    if (engine_exists()) {
+        return makejlong(engine->addChannelSend(makeVoidPtr(channel), makeVoidPtr(bus), level, preFader));
+    } else return 0;
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_addBusSend(JNIEnv *env, jobject thiz, jlong bus, jlong target, jfloat level, jboolean preFader) {
+    lockEngine();
+    if (engine_exists()) {
+        return makejlong(engine->addBusSend(makeVoidPtr(bus), makeVoidPtr(target), level, preFader));
+    } else return 0;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_removeSend(JNIEnv *env, jobject thiz, jlong send) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->removeSend(makeVoidPtr(send));
+    }
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setSendLevel(JNIEnv *env, jobject thiz, jlong send, jfloat level) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->setSendLevel(makeVoidPtr(send), level);
+    }
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setBusGain(JNIEnv *env, jobject thiz, jlong bus, jfloat gain) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->setBusGain(makeVoidPtr(bus), gain);
+    }
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_setBusPan(JNIEnv *env, jobject thiz, jlong bus, jfloat pan) {
+    lockEngine();
+    if (engine_exists()) {
+        engine->setBusPan(makeVoidPtr(bus), pan);
+    }
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_smallville7123_aaudiotrack2_AAudioTrack2_addBusDelay(JNIEnv *env, jobject thiz, jlong bus) {
+    lockEngine();
+    if (engine_exists()) {
+        return makejlong(engine->addBusDelay(makeVoidPtr(bus)));
+    } else return 0;
+}
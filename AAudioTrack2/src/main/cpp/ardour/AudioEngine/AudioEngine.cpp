@@ -7,8 +7,13 @@
 #include "../pdb/failed_constructor.h"
 #include "../pdb/i18n.h"
 #include "AudioBackend.h"
+#ifdef __ANDROID__
 #include "../Backends/AAudio.h"
+#endif
+#include "../Backends/File.h"
+#include "../Backends/Null.h"
 #include <thread>
+#include <cinttypes>
 #include <fcntl.h>
 #include <unistd.h>
 #include <AndroidDAW_SDK/plugin/TempoGrid.h>
@@ -22,6 +27,8 @@
 #include "../../smallville7123/plugins/Mixer.h"
 // channel rack plugin
 #include "../../smallville7123/plugins/ChannelRack.h"
+#include "../../smallville7123/ContentHash.h"
+#include "../../smallville7123/PcmDecoder.h"
 
 using namespace std;
 
@@ -68,47 +75,91 @@ namespace ARDOUR {
 //            , _pending_playback_latency_callback (0)
 //            , _pending_capture_latency_callback (0)
             , jniEnv(env)
-            , jniObject(object)
+            , jniObject(nullptr)
+            , javaVM(nullptr)
     {
 //        reset_silence_countdown ();
 //        start_hw_event_processing();
         hostInfo.patternGroup = &patternGroup;
         hostInfo.midiFile = &midifile;
+        channelRack.routingGraph = &routingGraph;
+        playlist.routingGraph = &routingGraph;
         discover_backends ();
-        jclass AAudioTrack2Class = jniEnv->FindClass("smallville7123/aaudiotrack2/AAudioTrack2");
-        AAudioTrack2ClassDecodeMethod = jniEnv->GetMethodID(AAudioTrack2Class, "decode", "(Ljava/lang/String;II)Ljava/lang/String;");
+        // a headless engine, such as the one used by the host benchmarks, has no JVM
+        if (jniEnv != nullptr) {
+            // object is a local reference, only valid until the call that created the engine returns
+            jniObject = jniEnv->NewGlobalRef(object);
+            jniEnv->GetJavaVM(&javaVM);
+            jclass AAudioTrack2Class = jniEnv->FindClass("smallville7123/aaudiotrack2/AAudioTrack2");
+            AAudioTrack2ClassDecodeMethod = jniEnv->GetMethodID(AAudioTrack2Class, "decode", "(Ljava/lang/String;II)Ljava/lang/String;");
+            AAudioTrack2ClassDecodeToMethod = jniEnv->GetMethodID(AAudioTrack2Class, "decodeTo", "(Ljava/lang/String;Ljava/lang/String;II)Z");
+        } else {
+            AAudioTrack2ClassDecodeMethod = nullptr;
+            AAudioTrack2ClassDecodeToMethod = nullptr;
+        }
+        rebuildRoutingGraph();
     }
 
     AudioEngine::~AudioEngine ()
     {
         _in_destructor = true;
+        {
+            std::lock_guard<std::mutex> lock(sampleConverterMutex);
+            if (sampleConverter.joinable()) sampleConverter.join();
+        }
         drop_backend ();
         for (BackendMap::const_iterator i = _backends.begin(); i != _backends.end(); ++i) {
             i->second->deinstantiate();
         }
-        jniEnv->DeleteGlobalRef(reinterpret_cast<jobject>(AAudioTrack2ClassDecodeMethod));
+        JNIEnv * env = threadEnv();
+        if (env != nullptr) {
+            env->DeleteGlobalRef(jniObject);
+        }
+        jniObject = nullptr;
         AAudioTrack2ClassDecodeMethod = nullptr;
+        AAudioTrack2ClassDecodeToMethod = nullptr;
+    }
+
+    JNIEnv * AudioEngine::threadEnv() {
+        if (javaVM == nullptr) return nullptr;
+        JNIEnv * env = nullptr;
+        if (javaVM->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) != JNI_OK) {
+            LOGE("the JVM does not know this thread");
+            return nullptr;
+        }
+        return env;
     }
 
     std::string AudioEngine::decode(const std::string & path) {
+        if (jniEnv == nullptr) {
+            if (!headlessDecoder) {
+                LOGE("cannot decode %s without a JVM", path.c_str());
+                return std::string();
+            }
+            std::string converted = path + ".converted.f32";
+            return decodeTo(path, converted) ? converted : std::string();
+        }
+
+        JNIEnv * env = threadEnv();
+        if (env == nullptr) return std::string();
 
         // obtain memory
-        jstring javaString = JniHelpers::Strings::newString(jniEnv, path);
+        jstring javaString = JniHelpers::Strings::newString(env, path);
 
         // obtain memory
-        jobject result = jniEnv->CallObjectMethod(
+        jobject result = env->CallObjectMethod(
                 jniObject, AAudioTrack2ClassDecodeMethod,
                 javaString, sample_rate(), output_channels()
         );
 
         // free memory
-        jniEnv->DeleteLocalRef(javaString);
+        env->DeleteLocalRef(javaString);
 
         // obtain memory
-        char * str = JniHelpers::Strings::newJniStringUTF(jniEnv, static_cast<jstring>(result));
+        char * str = JniHelpers::Strings::newJniStringUTF(env, static_cast<jstring>(result));
 
         // free memory
-        jniEnv->DeleteLocalRef(result);
+        env->DeleteLocalRef(result);
 
         // copy string so we can free original
         // copied string is auto freed in destructor ~string()
@@ -120,6 +171,34 @@ namespace ARDOUR {
         return res;
     }
 
+    bool AudioEngine::decodeTo(const std::string & input, const std::string & output) {
+        if (jniEnv == nullptr) {
+            if (!headlessDecoder) {
+                LOGE("cannot decode %s without a JVM", input.c_str());
+                return false;
+            }
+            return headlessDecoder(input, output, sample_rate(), output_channels());
+        }
+
+        JNIEnv * env = threadEnv();
+        if (env == nullptr) return false;
+
+        // obtain memory
+        jstring javaInput = JniHelpers::Strings::newString(env, input);
+        jstring javaOutput = JniHelpers::Strings::newString(env, output);
+
+        jboolean result = env->CallBooleanMethod(
+                jniObject, AAudioTrack2ClassDecodeToMethod,
+                javaInput, javaOutput, sample_rate(), output_channels()
+        );
+
+        // free memory
+        env->DeleteLocalRef(javaInput);
+        env->DeleteLocalRef(javaOutput);
+
+        return result == JNI_TRUE;
+    }
+
     AudioEngine*
     AudioEngine::create (JNIEnv* env, jobject object)
     {
@@ -144,7 +223,11 @@ namespace ARDOUR {
     {
         _backends.clear ();
 
+#ifdef __ANDROID__
         _backends.insert (make_pair (AAudio::descriptor()->name, AAudio::descriptor()));
+#endif
+        _backends.insert (make_pair (File::descriptor()->name, File::descriptor()));
+        _backends.insert (make_pair (Null::descriptor()->name, Null::descriptor()));
 
         return _backends.size();
     }
@@ -202,6 +285,8 @@ namespace ARDOUR {
             }
 
             _backend = b->second->factory (*this);
+            _backend_arg1 = arg1;
+            _backend_arg2 = arg2;
 
         } catch (exception& e) {
             LOGE("%s", string_compose (_("Could not create backend for %1: %2"), name, e.what()).c_str());
@@ -231,6 +316,11 @@ namespace ARDOUR {
         _processed_samples = 0;
         last_monitor_check = 0;
 
+        // the backend may have another block size than the one it replaced,
+        // it does not call back yet, so the ports can be reallocated
+        updatePortSize();
+        preparePorts();
+
         int error_code = _backend->start (for_latency);
 
         if (error_code != 0) {
@@ -240,6 +330,8 @@ namespace ARDOUR {
 
         _running = true;
 
+        sampleRateChanged();
+
 //        if (_session) {
 //            _session->set_sample_rate (_backend->sample_rate());
 //
@@ -367,7 +459,9 @@ namespace ARDOUR {
             return -1;
         }
 
-        return _backend->set_sample_rate  (sr);
+        int error_code = _backend->set_sample_rate  (sr);
+        if (error_code == 0) sampleRateChanged();
+        return error_code;
     }
 
     int
@@ -429,7 +523,11 @@ namespace ARDOUR {
     // AUDIO ENGINE
 
     void AudioEngine::load(void * nativeChannel, const char *filename) {
-        reinterpret_cast<Channel_Generator*>(nativeChannel)->plugin->load(filename);
+        if (!playsSamples(nativeChannel)) {
+            reinterpret_cast<Channel_Generator*>(nativeChannel)->plugin->load(filename);
+            return;
+        }
+        setSample(nativeChannel, prepareSample(filename, std::string()));
         // if the audio buffer is 8k or larger
         // then this can handle up to 120 channels
         // (with 0 FX)
@@ -445,6 +543,238 @@ namespace ARDOUR {
 //        }
     }
 
+    bool AudioEngine::load(void * nativeChannel, int fd, uint64_t offset, uint64_t length,
+                           const std::string & temporaryDirectory) {
+        // other plugins load files themselves
+        if (!playsSamples(nativeChannel)) return false;
+        Sample * sample = prepareSample(fd, offset, length, temporaryDirectory);
+        if (sample == nullptr) return false;
+        return setSample(nativeChannel, sample);
+    }
+
+    Sample * AudioEngine::prepareSample(const char * path, const std::string & temporaryDirectory) {
+        // the same mapping is hashed and, for pcm, converted
+        MappedFile source;
+        if (!source.map(path)) return nullptr;
+        source.advise(0, source.size, MADV_SEQUENTIAL);
+        SamplePool::Key key;
+        key.hash = ContentHash::hash(source.data, source.size);
+        return acquireSample(key, source, path, temporaryDirectory);
+    }
+
+    Sample * AudioEngine::prepareSample(int fd, uint64_t offset, uint64_t length,
+                                        const std::string & temporaryDirectory) {
+        MappedFile source;
+        if (!source.map(fd, offset, length)) {
+            LOGE("cannot load %" PRIu64 " bytes at %" PRIu64 " of fd %d", length, offset, fd);
+            return nullptr;
+        }
+        source.advise(0, source.size, MADV_SEQUENTIAL);
+        SamplePool::Key key;
+        key.hash = ContentHash::hash(source.data, source.size);
+        // the decoder reads the range in place, through the subfile protocol of FFmpeg
+        std::string input = "subfile,,start," + std::to_string(offset) + ",end," + std::to_string(offset + source.size)
+                            + ",,:/proc/self/fd/" + std::to_string(fd);
+        return acquireSample(key, source, input, temporaryDirectory);
+    }
+
+    bool AudioEngine::playsSamples(void * nativeChannel) {
+        return dynamic_cast<Sampler *>(reinterpret_cast<Channel_Generator*>(nativeChannel)->plugin) != nullptr;
+    }
+
+    bool AudioEngine::setPitched(void * nativeChannel, bool pitched, int rootKey) {
+        Sampler * sampler = dynamic_cast<Sampler *>(reinterpret_cast<Channel_Generator*>(nativeChannel)->plugin);
+        if (sampler == nullptr) return false;
+        sampler->rootKey.store(std::max(0, std::min(rootKey, 127)));
+        sampler->pitched.store(pitched);
+        return true;
+    }
+
+    bool AudioEngine::setInterpolation(void * nativeChannel, int mode) {
+        Sampler * sampler = dynamic_cast<Sampler *>(reinterpret_cast<Channel_Generator*>(nativeChannel)->plugin);
+        if (sampler == nullptr) return false;
+        sampler->interpolation.store(std::max<int>(Interpolator::DROP, std::min<int>(mode, Interpolator::SINC)));
+        return true;
+    }
+
+    bool AudioEngine::setSample(void * nativeChannel, Sample * sample) {
+        Sampler * sampler = dynamic_cast<Sampler *>(reinterpret_cast<Channel_Generator*>(nativeChannel)->plugin);
+        if (sampler == nullptr) {
+            samplePool.release(sample);
+            return false;
+        }
+        if (sample == nullptr) return false;
+        // two loads into the same channel must not both release the sample they replaced
+        std::lock_guard<std::mutex> lock(sampleSwapMutex);
+        Sample * old = sampler->setSample(sample, &sampleStreamer, &samplePool);
+        samplers.insert(sampler);
+        quiesce();
+        samplePool.release(old);
+        return true;
+    }
+
+    void AudioEngine::releaseSample(Sample * sample) {
+        samplePool.release(sample);
+    }
+
+    Sample * AudioEngine::acquireSample(SamplePool::Key key, const MappedFile & source, const std::string & input,
+                                        const std::string & temporaryDirectory) {
+        key.sampleRate = sample_rate();
+        key.channelCount = output_channels();
+        if (!temporaryDirectory.empty()) {
+            std::lock_guard<std::mutex> lock(sampleSwapMutex);
+            conversionDirectory = temporaryDirectory;
+        }
+        const Resampler::Quality quality = static_cast<Resampler::Quality>(resamplerQuality.load());
+        auto load = [&, this]() -> Sample * {
+            // uncompressed files are converted by the engine, FFmpeg only decodes compressed ones
+            PcmDecoder pcm;
+            bool isPcm = pcm.open(source.data, source.size);
+            if (isPcm) {
+                uint64_t bytes = pcm.outputFrames(key.sampleRate) * key.channelCount * sizeof(ENGINE_FORMAT);
+                // a sample that is not streamed is converted straight into memory, it is not worth caching
+                if (bytes <= sampleStreamThreshold) {
+                    std::vector<ENGINE_FORMAT> converted;
+                    pcm.decodeInto(converted, key.sampleRate, key.channelCount, quality);
+                    return Sample::fromMemory(std::move(converted));
+                }
+            }
+            auto decodeFile = [&, this](const std::string & output) {
+                if (isPcm) return pcm.decodeTo(output, key.sampleRate, key.channelCount, quality);
+                return decodeTo(input, output);
+            };
+            if (decodeCache.enabled()) {
+                std::string decoded = decodeCache.fetch(key, decodeFile);
+                if (decoded.empty()) return nullptr;
+                return Sample::load(decoded.c_str(), sampleStreamThreshold, sampleAttackFrames);
+            }
+            if (temporaryDirectory.empty() && !isPcm) {
+                std::string decoded = decode(input);
+                if (decoded.empty()) return nullptr;
+                return Sample::load(decoded.c_str(), sampleStreamThreshold, sampleAttackFrames);
+            }
+            // the decoded file is only needed until it is mapped
+            std::string decoded;
+            if (temporaryDirectory.empty()) {
+                decoded = input + ".converted.f32";
+            } else {
+                char name[32];
+                snprintf(name, sizeof(name), "/TMP_%016" PRIx64 ".f32", key.hash);
+                decoded = temporaryDirectory + name;
+            }
+            Sample * loaded = nullptr;
+            if (decodeFile(decoded)) {
+                loaded = Sample::load(decoded.c_str(), sampleStreamThreshold, sampleAttackFrames);
+            }
+            unlink(decoded.c_str());
+            return loaded;
+        };
+        return samplePool.acquire(key, [&]() {
+            Sample * sample = load();
+            if (sample != nullptr) sample->sampleRate = static_cast<uint32_t>(key.sampleRate);
+            return sample;
+        });
+    }
+
+    void AudioEngine::sampleRateChanged() {
+        std::lock_guard<std::mutex> lock(sampleConverterMutex);
+        if (sampleConverter.joinable()) sampleConverter.join();
+        // read here, the backend may be replaced while the converter runs
+        int sampleRate = sample_rate();
+        int channelCount = output_channels();
+        if (sampleRate <= 0) return;
+        sampleConverter = std::thread(&AudioEngine::convertSamples, this, sampleRate, channelCount);
+    }
+
+    void AudioEngine::convertSamples(int sampleRate, int channelCount) {
+        SamplePool::Key target;
+        target.sampleRate = sampleRate;
+        target.channelCount = channelCount;
+        // the samples played at another rate, each held until it is converted
+        std::vector<Sample *> stale;
+        std::string directory;
+        {
+            std::lock_guard<std::mutex> lock(sampleSwapMutex);
+            for (Sampler * sampler : samplers) {
+                Sample * sample = sampler->sample.load();
+                if (sample == nullptr || sample->sampleRate == static_cast<uint32_t>(target.sampleRate)) continue;
+                if (std::find(stale.begin(), stale.end(), sample) != stale.end()) continue;
+                samplePool.retain(sample);
+                stale.push_back(sample);
+            }
+            directory = conversionDirectory;
+        }
+        for (Sample * sample : stale) {
+            SamplePool::Key key;
+            if (samplePool.keyOf(sample, key)) {
+                key.sampleRate = target.sampleRate;
+                key.channelCount = target.channelCount;
+                // a file loaded at the new rate in the meantime is shared instead
+                Sample * converted = samplePool.acquire(key, [&, this]() {
+                    return convertSample(sample, key, directory);
+                });
+                if (converted != nullptr) {
+                    std::vector<Sample *> replaced;
+                    {
+                        std::lock_guard<std::mutex> lock(sampleSwapMutex);
+                        for (Sampler * sampler : samplers) {
+                            if (sampler->sample.load() != sample) continue;
+                            samplePool.retain(converted);
+                            replaced.push_back(sampler->setSample(converted, &sampleStreamer, &samplePool));
+                        }
+                        quiesce();
+                    }
+                    for (Sample * old : replaced) samplePool.release(old);
+                    samplePool.release(converted);
+                }
+            }
+            samplePool.release(sample);
+        }
+        if (!stale.empty()) LOGI("converted %zu samples to %d Hz", stale.size(), target.sampleRate);
+    }
+
+    Sample * AudioEngine::convertSample(const Sample * source, const SamplePool::Key & key, const std::string & directory) {
+        if (source->sampleRate == 0) return nullptr;
+        Resampler resampler(source->sampleRate, static_cast<uint32_t>(key.sampleRate),
+                            static_cast<Resampler::Quality>(resamplerQuality.load()));
+        auto read = [source](uint64_t first, size_t count, float * interleaved) {
+            source->readFrames(first, count, interleaved);
+        };
+        Sample * converted;
+        uint64_t bytes = resampler.outputFrames(source->frames) * Sample::CHANNELS * sizeof(ENGINE_FORMAT);
+        if (bytes <= sampleStreamThreshold || directory.empty()) {
+            std::vector<ENGINE_FORMAT> pcm;
+            pcm.reserve(bytes / sizeof(ENGINE_FORMAT));
+            resampler.process(source->frames, Sample::CHANNELS, read, [&pcm](const float * samples, size_t count) {
+                pcm.insert(pcm.end(), samples, samples + count);
+                return true;
+            });
+            converted = Sample::fromMemory(std::move(pcm));
+        } else {
+            // a long sample keeps being streamed, from a file that is only needed until it is mapped
+            char name[48];
+            snprintf(name, sizeof(name), "/TMP_%016" PRIx64 ".ar_%d.f32", key.hash, key.sampleRate);
+            std::string path = directory + name;
+            FILE * file = fopen(path.c_str(), "wb");
+            if (file == nullptr) {
+                LOGE("cannot write %s", path.c_str());
+                return nullptr;
+            }
+            bool written = resampler.process(source->frames, Sample::CHANNELS, read, [file](const float * samples, size_t count) {
+                return fwrite(samples, sizeof(float), count, file) == count;
+            });
+            if (fclose(file) != 0) written = false;
+            converted = written ? Sample::load(path.c_str(), sampleStreamThreshold, sampleAttackFrames) : nullptr;
+            unlink(path.c_str());
+        }
+        if (converted != nullptr) converted->sampleRate = static_cast<uint32_t>(key.sampleRate);
+        return converted;
+    }
+
+    void AudioEngine::setResamplerQuality(int quality) {
+        resamplerQuality.store(std::max<int>(Resampler::FAST, std::min<int>(quality, Resampler::BEST)));
+    }
+
     enum Mode {
         direct,
         pattern,
@@ -488,8 +818,17 @@ namespace ARDOUR {
             return;
         }
 
+        if (out->ports.samples != portSamples || out->ports.channelCount != portChannels) {
+            // the ports are not reallocated here, the backend zeroed out, so the block stays silent
+            unpreparedBlocks++;
+            return;
+        }
+
         auto start = std::chrono::high_resolution_clock::now();
 
+        callbacks.fetch_add(1, std::memory_order_seq_cst);
+        mixer.block++;
+
         switch(mode) {
             case Mode::direct:
                 channelRack.writeDirect(&hostInfo, in, &mixer, out, out->ports.samplesPerChannel);
@@ -501,6 +840,7 @@ namespace ARDOUR {
                 playlist.write(&hostInfo, in, &mixer, out, out->ports.samplesPerChannel);
                 break;
         }
+        callbacks.fetch_add(1, std::memory_order_seq_cst);
 
         auto end = std::chrono::high_resolution_clock::now();
         processingTime = std::chrono::duration_cast<std::chrono::nanoseconds>(end - start).count();
@@ -509,6 +849,25 @@ namespace ARDOUR {
         DSPLoadInt = processingTime > bufferLength ? 100 : static_cast<int>(DSPLoadDouble);
     }
 
+    void AudioEngine::setSampleStreaming(size_t thresholdBytes, uint64_t attackFrames) {
+        sampleStreamThreshold = thresholdBytes;
+        sampleAttackFrames = attackFrames;
+    }
+
+    void AudioEngine::setDecodeCache(const std::string & directory, uint64_t maxBytes) {
+        decodeCache.configure(directory, maxBytes);
+    }
+
+    void AudioEngine::setSamplePoolBudget(size_t bytes) {
+        samplePool.setBudget(bytes);
+    }
+
+    void AudioEngine::quiesce() {
+        uint64_t current = callbacks.load(std::memory_order_seq_cst);
+        if ((current & 1) == 0) return;
+        while (callbacks.load(std::memory_order_seq_cst) == current) std::this_thread::yield();
+    }
+
     sample_position_t AudioEngine::sample_time() {
         if (!_backend) {
             return 0;
@@ -516,6 +875,50 @@ namespace ARDOUR {
         return _backend->sample_time();
     }
 
+    int AudioEngine::renderToFile(const std::string & path, sample_position_t startSample, sample_count_t lengthSamples, const RenderProgressCallback & progress) {
+        if (!_backend) {
+            LOGE("no backend");
+            return -1;
+        }
+
+        // render at the device rate so that loaded samples play back at the correct speed
+        float deviceSampleRate = _backend->sample_rate();
+        const std::string previousBackend = _backend->info().name;
+        const std::string previousArg1 = _backend_arg1;
+        const std::string previousArg2 = _backend_arg2;
+        bool wasRunning = _running;
+
+        stop();
+
+        int result = -1;
+        sample_position_t previousEngineSample = hostInfo.engineSample;
+        std::shared_ptr<AudioBackend> backend = set_backend(File::descriptor()->name, path, "");
+        if (backend) {
+            backend->set_sample_rate(deviceSampleRate);
+            if (start() == 0) {
+                hostInfo.engineSample = startSample;
+                result = static_cast<File *>(backend.get())->render(lengthSamples, progress);
+                if (stop() != 0 && result == 0) {
+                    result = -1;
+                }
+            } else {
+                LOGE("Cannot start the File backend: %s", _last_backend_error_string.c_str());
+            }
+        } else {
+            LOGE("Cannot set the File backend");
+        }
+        hostInfo.engineSample = previousEngineSample;
+
+        if (!set_backend(previousBackend, previousArg1, previousArg2)) {
+            LOGE("Cannot restore the %s backend", previousBackend.c_str());
+            return -1;
+        }
+        if (wasRunning) {
+            start();
+        }
+        return result;
+    }
+
     shared_ptr<AudioBackend> AudioEngine::current_backend() const {
         return _backend;
     }
@@ -549,16 +952,227 @@ namespace ARDOUR {
         channelRack.loop(nativeChannel, value);
     }
 
+    void AudioEngine::setGain(void *nativeChannel, float gain) {
+        static_cast<Channel_Generator *>(nativeChannel)->strip.gain.store(gain);
+    }
+
+    void AudioEngine::setPan(void *nativeChannel, float pan) {
+        static_cast<Channel_Generator *>(nativeChannel)->strip.pan.store(pan);
+    }
+
+    void AudioEngine::updatePortSize() {
+        if (!_backend) return;
+        // a backend that calls back with a fixed number of frames reports it as its period size
+        unsigned int frames = _backend->period_size();
+        if (frames == 0) frames = _backend->buffer_size();
+        unsigned int channelCount = _backend->output_channels();
+        portSamples = frames * channelCount;
+        portChannels = channelCount;
+    }
+
+    void AudioEngine::preparePorts() {
+        if (portSamples == 0 || portChannels == 0) return;
+        for (Channel_Generator * channel : channelRack.rack.typeList) {
+            if (channel != nullptr) channel->preparePorts(portSamples, portChannels);
+        }
+        masterBus.preparePorts(portSamples, portChannels);
+        for (MixerBus * bus : mixerBuses.typeList) {
+            if (bus != nullptr) bus->preparePorts(portSamples, portChannels);
+        }
+        playlist.preparePorts(portSamples, portChannels);
+    }
+
+    void AudioEngine::rebuildRoutingGraph() {
+        // a new channel, effect or bus is not in the published graph yet, so its ports can be allocated
+        preparePorts();
+        RoutingGraph * graph = routingGraph.beginWrite();
+        graph->build(getPatternGroup(), channelRack.rack, &masterBus, mixerBuses);
+        routingGraph.publish(graph);
+        // once the audio thread has let go of the previous graph, nothing it refers to is in use
+        routingGraph.synchronize();
+    }
+
+    Channel_Generator * AudioEngine::newChannel() {
+        Channel_Generator * channel = channelRack.newChannel();
+        rebuildRoutingGraph();
+        return channel;
+    }
+
+    void AudioEngine::deleteChannel(void *nativeChannel) {
+        Channel_Generator * channel = static_cast<Channel_Generator *>(nativeChannel);
+        for (PatternList * patternList : getPatternGroup()->rack.typeList) {
+            if (patternList == nullptr) continue;
+            for (Pattern * pattern : patternList->rack.typeList) {
+                if (pattern != nullptr && pattern->channelReference == channel) {
+                    pattern->channelReference = nullptr;
+                }
+            }
+        }
+        channelRack.rack.detachType(channel);
+        rebuildRoutingGraph();
+        // the channel does not own its plugin, but the sample it played goes back to the pool
+        Sampler * sampler = dynamic_cast<Sampler *>(channel->plugin);
+        if (sampler != nullptr) {
+            std::lock_guard<std::mutex> lock(sampleSwapMutex);
+            samplers.erase(sampler);
+            samplePool.release(sampler->setSample(nullptr, nullptr, nullptr));
+        }
+        delete channel;
+    }
+
+    // the master bus is represented by nullptr in the routing
+    static MixerBus * busOrMaster(MixerBus * master, void *nativeBus) {
+        MixerBus * bus = static_cast<MixerBus *>(nativeBus);
+        return bus == master ? nullptr : bus;
+    }
+
+    // true if audio leaving from reaches to, following outputs and sends
+    static bool reaches(MixerBus * from, MixerBus * to) {
+        if (from == nullptr) return to == nullptr;
+        if (from == to) return true;
+        if (reaches(from->output, to)) return true;
+        for (MixerSend * send : from->sends) {
+            if (reaches(send->target, to)) return true;
+        }
+        return false;
+    }
+
+    MixerBus * AudioEngine::createBus() {
+        MixerBus * bus = mixerBuses.newType();
+        rebuildRoutingGraph();
+        return bus;
+    }
+
+    void AudioEngine::deleteBus(void *nativeBus) {
+        MixerBus * bus = busOrMaster(&masterBus, nativeBus);
+        if (bus == nullptr) return;
+        std::vector<MixerSend *> removed;
+        auto detachSends = [&](std::vector<MixerSend *> & sends) {
+            for (MixerSend * send : sends) {
+                if (send->target == bus) removed.push_back(send);
+            }
+            sends.erase(std::remove_if(sends.begin(), sends.end(), [bus](MixerSend * send) {
+                return send->target == bus;
+            }), sends.end());
+        };
+        for (Channel_Generator * channel : channelRack.rack.typeList) {
+            if (channel == nullptr) continue;
+            if (channel->bus == bus) channel->bus = nullptr;
+            detachSends(channel->sends);
+        }
+        for (MixerBus * other : mixerBuses.typeList) {
+            if (other == nullptr) continue;
+            if (other->output == bus) other->output = nullptr;
+            detachSends(other->sends);
+        }
+        mixerBuses.detachType(bus);
+        rebuildRoutingGraph();
+        for (MixerSend * send : removed) delete send;
+        delete bus;
+    }
+
+    MixerBus * AudioEngine::getMasterBus() {
+        return &masterBus;
+    }
+
+    void AudioEngine::setChannelOutput(void *nativeChannel, void *nativeBus) {
+        static_cast<Channel_Generator *>(nativeChannel)->bus = busOrMaster(&masterBus, nativeBus);
+        rebuildRoutingGraph();
+    }
+
+    bool AudioEngine::setBusOutput(void *nativeBus, void *nativeTarget) {
+        MixerBus * bus = busOrMaster(&masterBus, nativeBus);
+        MixerBus * target = busOrMaster(&masterBus, nativeTarget);
+        // the master bus has no output
+        if (bus == nullptr || (target != nullptr && reaches(target, bus))) return false;
+        bus->output = target;
+        rebuildRoutingGraph();
+        return true;
+    }
+
+    MixerSend * AudioEngine::addChannelSend(void *nativeChannel, void *nativeTarget, float level, bool preFader) {
+        Channel_Generator * channel = static_cast<Channel_Generator *>(nativeChannel);
+        MixerSend * send = new MixerSend();
+        send->target = busOrMaster(&masterBus, nativeTarget);
+        send->preFader = preFader;
+        send->strip.gain.store(level);
+        send->from = &channel->sends;
+        channel->sends.push_back(send);
+        rebuildRoutingGraph();
+        return send;
+    }
+
+    MixerSend * AudioEngine::addBusSend(void *nativeBus, void *nativeTarget, float level, bool preFader) {
+        MixerBus * bus = busOrMaster(&masterBus, nativeBus);
+        MixerBus * target = busOrMaster(&masterBus, nativeTarget);
+        if (bus == nullptr || (target != nullptr && reaches(target, bus))) return nullptr;
+        MixerSend * send = new MixerSend();
+        send->target = target;
+        send->preFader = preFader;
+        send->strip.gain.store(level);
+        send->from = &bus->sends;
+        bus->sends.push_back(send);
+        rebuildRoutingGraph();
+        return send;
+    }
+
+    void AudioEngine::removeSend(void *nativeSend) {
+        MixerSend * send = static_cast<MixerSend *>(nativeSend);
+        send->from->erase(std::remove(send->from->begin(), send->from->end(), send), send->from->end());
+        rebuildRoutingGraph();
+        delete send;
+    }
+
+    void AudioEngine::setSendLevel(void *nativeSend, float level) {
+        static_cast<MixerSend *>(nativeSend)->strip.gain.store(level);
+    }
+
+    void AudioEngine::setBusGain(void *nativeBus, float gain) {
+        static_cast<MixerBus *>(nativeBus)->strip.gain.store(gain);
+    }
+
+    void AudioEngine::setBusPan(void *nativeBus, float pan) {
+        static_cast<MixerBus *>(nativeBus)->strip.pan.store(pan);
+    }
+
+    Channel_Effect * AudioEngine::addBusDelay(void *nativeBus) {
+        Channel_Effect * delay = static_cast<MixerBus *>(nativeBus)->effectRack->newDelayChannel();
+        rebuildRoutingGraph();
+        return delay;
+    }
+
+    void AudioEngine::setRenderWorkers(int count, bool limitToCores) {
+        bool wasRunning = _running;
+        if (wasRunning) stop();
+        channelRack.setWorkers(count < 1 ? 1 : static_cast<size_t>(count), limitToCores);
+        if (wasRunning) start();
+    }
+
+    int AudioEngine::getRenderWorkers() {
+        return static_cast<int>(channelRack.workers.size());
+    }
+
     void AudioEngine::bindChannelToPattern(void *nativeChannel, void *nativePattern) {
         channelRack.bindChannelToPattern(nativeChannel, nativePattern);
+        rebuildRoutingGraph();
     }
 
     PatternList * AudioEngine::createPatternList() {
         return getPatternGroup()->newPatternList();
     }
 
-    void AudioEngine::deletePatternList(void * patternList) {
-        return getPatternGroup()->removePatternList(static_cast<PatternList *>(patternList));
+    void AudioEngine::deletePatternList(void * nativePatternList) {
+        PatternList * patternList = static_cast<PatternList *>(nativePatternList);
+        // no clip may refer to the pattern list once it is gone
+        for (TrackList * trackList : playlist.trackGroup.rack.typeList) {
+            if (trackList == nullptr) continue;
+            for (Track * track : trackList->rack.typeList) {
+                if (track != nullptr) track->removePatternList(patternList);
+            }
+        }
+        getPatternGroup()->rack.detachType(patternList);
+        rebuildRoutingGraph();
+        delete patternList;
     }
 
     Pattern * AudioEngine::createPattern(void * patternList) {
@@ -569,8 +1183,11 @@ namespace ARDOUR {
         return pattern;
     }
 
-    void AudioEngine::deletePattern(void * patternList, void * pattern) {
-        static_cast<PatternList *>(patternList)->removePattern(static_cast<Pattern *>(pattern));
+    void AudioEngine::deletePattern(void * patternList, void * nativePattern) {
+        Pattern * pattern = static_cast<Pattern *>(nativePattern);
+        static_cast<PatternList *>(patternList)->rack.detachType(pattern);
+        rebuildRoutingGraph();
+        delete pattern;
     }
 
 
@@ -598,6 +1215,18 @@ namespace ARDOUR {
         static_cast<TrackList *>(trackList)->removeTrack(static_cast<Track *>(track));
     }
 
+    int32_t AudioEngine::addClip(void * track, void * patternList, sample_position_t start, sample_count_t length, sample_position_t offset) {
+        return static_cast<Track *>(track)->addClip(static_cast<PatternList *>(patternList), start, length, offset);
+    }
+
+    bool AudioEngine::removeClip(void * track, int32_t clip) {
+        return static_cast<Track *>(track)->removeClip(clip);
+    }
+
+    void AudioEngine::clearClips(void * track) {
+        static_cast<Track *>(track)->clearClips();
+    }
+
     PatternGroup * AudioEngine::getPatternGroup() {
         return PatternGroup::cast(hostInfo.patternGroup);
     }
@@ -5,11 +5,16 @@
 #ifndef AAUDIOTRACK_AAUDIOENGINE_H
 #define AAUDIOTRACK_AAUDIOENGINE_H
 
+#ifdef __ANDROID__
 #include <aaudio/AAudio.h>
+#endif
+#include <functional>
 #include <atomic>
 #include <thread>
 #include <optional>
 #include <map>
+#include <mutex>
+#include <set>
 #include <jni.h>
 #include "typedefs.h"
 #include <AndroidDAW_SDK/plugin/PortUtils2.h>
@@ -17,6 +22,8 @@
 #include "../../smallville7123/plugins/ChannelRack.h"
 #include "../../smallville7123/plugins/EffectRack.h"
 #include "../../smallville7123/plugins/Playlist.h"
+#include "../../smallville7123/DecodeCache.h"
+#include "../../smallville7123/Resampler.h"
 
 namespace ARDOUR {
     using namespace ARDOUR_TYPEDEFS;
@@ -36,13 +43,122 @@ namespace ARDOUR {
         uint64_t bufferLength;
 
         JNIEnv* jniEnv;
+        // a global reference, used from every thread that loads samples
         jobject jniObject;
+        JavaVM* javaVM;
+
+        /**
+         * the JNIEnv of the calling thread, which must be a thread the JVM knows,
+         * such as the thread of a java executor
+         *
+         * @return nullptr for a headless engine or a thread the JVM does not know
+         */
+        JNIEnv * threadEnv();
+
+        // outlive the channels, whose samplers stream through them and hold samples from them
+        SampleStreamer sampleStreamer;
+        SamplePool samplePool;
+        DecodeCache decodeCache;
+
         Mixer mixer;
         ChannelRack channelRack;
         EffectRack effectRack;
         Playlist playlist;
+
+        // the channels and patterns the audio thread renders, rebuilt whenever channels
+        // or patterns are added, removed or bound to each other
+        DoubleBuffer<RoutingGraph> routingGraph;
+
+        void rebuildRoutingGraph();
+
+        // the size of the blocks the ports are allocated for, see preparePorts
+        unsigned int portSamples = 0;
+        unsigned int portChannels = 0;
+
+        // sets the size of the ports to the blocks of the current backend,
+        // only while the backend is not running
+        void updatePortSize();
+
+        // the blocks the audio thread left silent because the backend asked for
+        // a size the ports were not allocated for
+        uint64_t unpreparedBlocks = 0;
+
+        /**
+         * allocates the port of every channel, effect and bus, and the port a block is split into,
+         * with the size set by updatePortSize, so the audio thread never allocates a port
+         *
+         * this runs before the backend starts and whenever the routing graph is rebuilt,
+         * a port the audio thread may be using already has this size, so only new ports are allocated
+         */
+        void preparePorts();
+
+        Channel_Generator * newChannel();
+
+        void deleteChannel(void *nativeChannel);
+
+        // the mixer buses, every channel and bus is mixed into the master bus unless it is
+        // routed to another bus
+        MixerBus masterBus;
+        Rack<MixerBus> mixerBuses;
+
+        MixerBus * createBus();
+
+        /**
+         * deletes a bus, the channels and buses routed to it are routed to the master bus,
+         * and the sends to it are removed
+         */
+        void deleteBus(void *nativeBus);
+
+        MixerBus * getMasterBus();
+
+        /**
+         * routes a channel to a bus, nullptr or the master bus routes it to the master bus
+         */
+        void setChannelOutput(void *nativeChannel, void *nativeBus);
+
+        /**
+         * routes a bus into another bus
+         *
+         * @return false if the route would create a cycle, in which case nothing changes
+         */
+        bool setBusOutput(void *nativeBus, void *nativeTarget);
+
+        /**
+         * adds a send from a channel to a bus
+         */
+        MixerSend * addChannelSend(void *nativeChannel, void *nativeTarget, float level, bool preFader);
+
+        /**
+         * adds a send from a bus to another bus
+         *
+         * @return nullptr if the send would create a cycle
+         */
+        MixerSend * addBusSend(void *nativeBus, void *nativeTarget, float level, bool preFader);
+
+        void removeSend(void *nativeSend);
+
+        void setSendLevel(void *nativeSend, float level);
+
+        void setBusGain(void *nativeBus, float gain);
+
+        void setBusPan(void *nativeBus, float pan);
+
+        /**
+         * adds a delay to the inserts of a bus
+         */
+        Channel_Effect * addBusDelay(void *nativeBus);
         std::string decode(const std::string & path);
 
+        /**
+         * decodes input to raw pcm in the engine's format, sample rate and channel count
+         *
+         * @return false if the decoder failed
+         */
+        bool decodeTo(const std::string & input, const std::string & output);
+
+        // decodes for an engine without a JVM, such as the one used by the host benchmarks
+        std::function<bool(const std::string & input, const std::string & output, int sampleRate, int channelCount)> headlessDecoder;
+
         /* latency measurement */
 
         MTDM* mtdm() { return _mtdm; }
@@ -73,6 +189,8 @@ namespace ARDOUR {
         /// the number of samples processed since start() was called
         sample_count_t           _processed_samples;
         std::string               _last_backend_error_string;
+        std::string               _backend_arg1;
+        std::string               _backend_arg2;
         uint32_t                  _start_cnt;
         MTDM*                     _mtdm;
         MIDIDM*                   _mididm;
@@ -131,8 +249,168 @@ namespace ARDOUR {
 
         void renderAudio(PortUtils2 * in, PortUtils2 * out);
 
+        /** called with the number of samples rendered so far and the total,
+         * return false to cancel the render
+         */
+        typedef std::function<bool(sample_count_t, sample_count_t)> RenderProgressCallback;
+
+        /** bounce lengthSamples samples, starting at startSample, to a 32-bit float WAV file
+         *
+         * the current backend is swapped for the File backend for the duration of the render
+         * and restored afterwards, the render runs on the calling thread as fast as the CPU allows
+         *
+         * @return zero on success, 1 if cancelled by progress, another non-zero value on error
+         */
+        int renderToFile(const std::string & path, sample_position_t startSample, sample_count_t lengthSamples, const RenderProgressCallback & progress);
+
+        /**
+         * decodes a file into the sampler of a channel, other plugins load it themselves
+         *
+         * a file whose content is already in the sample pool is shared instead of decoded again,
+         * a decoded sample larger than the streaming threshold is streamed, see setSampleStreaming
+         */
         void load(void * nativeChannel, const char *string);
 
+        /**
+         * decodes length bytes of fd from offset into the sampler of a channel, in place,
+         * without copying them to a file first
+         *
+         * without a decode cache the decoded sample is written to temporaryDirectory
+         * and deleted again once it is loaded
+         *
+         * @return false if the channel is not a sampler, or the range cannot be loaded
+         */
+        bool load(void * nativeChannel, int fd, uint64_t offset, uint64_t length, const std::string & temporaryDirectory);
+
+        /**
+         * decodes a file into the sample pool without giving it to a channel, so that
+         * it can be decoded on any thread and given to a sampler later with setSample
+         *
+         * any number of threads may prepare samples at once, the same file prepared by
+         * several of them at once is decoded once
+         *
+         * an empty temporaryDirectory decodes next to the file
+         *
+         * @return a sample pool reference, or nullptr if the file cannot be decoded
+         */
+        Sample * prepareSample(const char * path, const std::string & temporaryDirectory);
+
+        /**
+         * prepareSample for length bytes of fd from offset, see load
+         */
+        Sample * prepareSample(int fd, uint64_t offset, uint64_t length, const std::string & temporaryDirectory);
+
+        /**
+         * gives a sample returned by prepareSample to the sampler of a channel, the sample
+         * the sampler played before is released once the audio thread no longer plays it
+         *
+         * the reference is consumed either way
+         *
+         * @return false if the channel is not a sampler, in which case the sample is released
+         */
+        bool setSample(void * nativeChannel, Sample * sample);
+
+        // gives back a sample returned by prepareSample that is not going to be played
+        void releaseSample(Sample * sample);
+
+        static bool playsSamples(void * nativeChannel);
+
+        /**
+         * makes the sampler of a channel play every note at the pitch of its key, relative
+         * to rootKey, or every note at the pitch of the sample, applies to the notes started from now on
+         *
+         * @return false if the channel is not a sampler
+         */
+        static bool setPitched(void * nativeChannel, bool pitched, int rootKey);
+
+        /**
+         * the Interpolator::Mode the sampler of a channel plays pitched notes with
+         *
+         * @return false if the channel is not a sampler
+         */
+        static bool setInterpolation(void * nativeChannel, int mode);
+
+        /**
+         * returns the sample decoded from source, input is what FFmpeg reads to decode it
+         */
+        Sample * acquireSample(SamplePool::Key key, const MappedFile & source, const std::string & input,
+                               const std::string & temporaryDirectory);
+
+        // serialises the samples given to samplers, by the threads that load them and by the sample converter
+        std::mutex sampleSwapMutex;
+
+        // the samplers that hold a sample from the pool, guarded by sampleSwapMutex
+        std::set<Sampler *> samplers;
+
+        // where samples that are too long to keep in memory are written when they are
+        // converted to a new rate, the last temporary directory given to a load, guarded by sampleSwapMutex
+        std::string conversionDirectory;
+
+        /**
+         * converts the samples the samplers play to the current rate of the device, if it has
+         * changed, on a background thread, without reading them from disk again
+         *
+         * each sampler keeps playing the sample at the old rate, at the wrong pitch, until the
+         * converted sample is swapped in, which happens between two blocks
+         *
+         * called when the backend starts or its stream is reopened, waits for the previous conversion
+         */
+        void sampleRateChanged();
+
+        void convertSamples(int sampleRate, int channelCount);
+
+        // converts a sample to the rate and channel count of key
+        Sample * convertSample(const Sample * source, const SamplePool::Key & key, const std::string & directory);
+
+        std::mutex sampleConverterMutex;
+        std::thread sampleConverter;
+
+        /**
+         * the quality of the resampler used for the rate conversions done by the engine,
+         * a Resampler::Quality, applies to samples converted from now on
+         *
+         * compressed files are decoded to the device rate by FFmpeg
+         */
+        void setResamplerQuality(int quality);
+
+        std::atomic<int> resamplerQuality {Resampler::DEFAULT_QUALITY};
+
+        /**
+         * samples larger than thresholdBytes once decoded are mapped instead of read into memory,
+         * only their first attackFrames frames stay in memory and the rest is streamed
+         * to each voice that plays them
+         *
+         * applies to samples loaded from now on
+         */
+        void setSampleStreaming(size_t thresholdBytes, uint64_t attackFrames);
+
+        /**
+         * keeps decoded samples in directory, so that a file is decoded once and mapped from the
+         * cache on every later load, even after the app restarts
+         *
+         * the cache holds up to maxBytes, the entries used the longest ago are deleted first,
+         * an empty directory decodes every load without a cache
+         */
+        void setDecodeCache(const std::string & directory, uint64_t maxBytes);
+
+        /**
+         * the memory the sample pool may keep for samples no channel plays,
+         * samples that are loaded into a channel are always kept
+         */
+        void setSamplePoolBudget(size_t bytes);
+
+        size_t sampleStreamThreshold = Sample::DEFAULT_STREAM_THRESHOLD;
+        uint64_t sampleAttackFrames = Sample::DEFAULT_ATTACK_FRAMES;
+
+        /**
+         * waits until the audio thread has finished the block it is rendering, if any,
+         * after which it no longer uses anything that was unpublished before the call
+         */
+        void quiesce();
+
+        // advanced at the start and at the end of every block, odd while a block is rendering
+        std::atomic<uint64_t> callbacks {0};
+
         sample_position_t sample_time();
 
         void setPlugin(void *pVoid, void *pVoid1);
@@ -143,6 +421,30 @@ namespace ARDOUR {
         void setTrackGridResolution(void *nativeTrack, int size);
 
         void loop(void *nativeChannel, bool value);
+
+        /**
+         * sets the gain of a channel in the mixer, 1 is unity
+         *
+         * the mixer moves to the new gain over one block, so the change does not click
+         */
+        void setGain(void *nativeChannel, float gain);
+
+        /**
+         * sets the pan of a channel in the mixer, from -1 (left) through 0 (centre) to 1 (right)
+         */
+        void setPan(void *nativeChannel, float pan);
+
+        /**
+         * renders the channels on count threads, the audio thread and count - 1 workers,
+         * count is limited to the number of cores unless limitToCores is false,
+         * which only benchmarks should need
+         *
+         * the engine is stopped while the workers are replaced, and started again if it was running
+         */
+        void setRenderWorkers(int count, bool limitToCores = true);
+
+        int getRenderWorkers();
+
         void bindChannelToPattern(void *nativeChannel, void *nativePattern);
 
         PatternList * createPatternList();
@@ -163,6 +465,18 @@ namespace ARDOUR {
 
         void deleteTrack(void *trackList, void *track);
 
+        /**
+         * places a clip of the given pattern list on a track, the clip plays the pattern
+         * list from offset for length samples, starting at song position start
+         *
+         * @return the id of the clip, used to remove it again, or -1 if length is not positive
+         */
+        int32_t addClip(void *track, void *patternList, sample_position_t start, sample_count_t length, sample_position_t offset);
+
+        bool removeClip(void *track, int32_t clip);
+
+        void clearClips(void *track);
+
         PatternGroup *getPatternGroup();
 
         smf::MidiFile *getMidiFile();
@@ -178,6 +492,7 @@ namespace ARDOUR {
         int output_channels();
 
         jmethodID AAudioTrack2ClassDecodeMethod;
+        jmethodID AAudioTrack2ClassDecodeToMethod;
     };
 }
 
@@ -4,6 +4,7 @@
 
 #include "AAudio.h"
 #include <AndroidDAW_SDK/plugin/PortUtils2.h>
+#include <algorithm>
 #include <memory>
 
 namespace ARDOUR {
@@ -84,6 +85,9 @@ namespace ARDOUR {
 
     int AAudio::_start(bool for_latency_measurement) {
         LOGE("_start called()");
+        if (!callbackPort.allocated) {
+            callbackPort.allocatePorts<ENGINE_FORMAT>(FRAMES_PER_CALLBACK * currentOutputChannelCount, currentOutputChannelCount);
+        }
         StartStreamBlocking();
         return 0;
     }
@@ -99,6 +103,7 @@ namespace ARDOUR {
             FlushStreamBlocking();
             DestroyStream();
         }
+        callbackPort.deallocatePorts<ENGINE_FORMAT>();
         _instance.reset();
         return 0;
     }
@@ -114,12 +119,17 @@ namespace ARDOUR {
         int channelCount = aaudio->currentOutputChannelCount;
         samples_t samples = number_of_samples_to_render*channelCount;
 
-        PortUtils2 outPort = PortUtils2();
-
-        outPort.allocatePorts<ENGINE_FORMAT>(samples, channelCount);
-        outPort.fillPortBuffer(0);
+        PortUtils2 & outPort = aaudio->callbackPort;
 
         ENGINE_FORMAT * data = reinterpret_cast<ENGINE_FORMAT *>(audioData);
+        if (!outPort.allocated || static_cast<uint32_t>(samples) != outPort.ports.samples) {
+            // the port is not reallocated here
+            std::fill(data, data + samples, 0);
+            aaudio->_processed_samples += number_of_samples_to_render;
+            return AAUDIO_CALLBACK_RESULT_CONTINUE;
+        }
+        outPort.fillPortBuffer<ENGINE_FORMAT>(0);
+
         ENGINE_FORMAT * left = reinterpret_cast<ENGINE_FORMAT *>(outPort.ports.outputStereo->l->buf);
         ENGINE_FORMAT * right = reinterpret_cast<ENGINE_FORMAT *>(outPort.ports.outputStereo->r->buf);
 
@@ -144,8 +154,6 @@ namespace ARDOUR {
             bufIndex++;
         }
 
-        outPort.deallocatePorts<ENGINE_FORMAT>(channelCount);
-
         aaudio->_processed_samples += number_of_samples_to_render;
 
         // Are we getting underruns?
@@ -191,7 +199,7 @@ namespace ARDOUR {
         AAudioStreamBuilder_setDataCallback(builder, onAudioReady, this);
         AAudioStreamBuilder_setErrorCallback(builder, onError, this);
 
-        int bufferSize = 512;
+        int bufferSize = FRAMES_PER_CALLBACK;
 
         AAudioStreamBuilder_setBufferCapacityInFrames(builder, bufferSize*2);
         AAudioStreamBuilder_setFramesPerDataCallback(builder, bufferSize);
@@ -235,12 +243,16 @@ namespace ARDOUR {
     void AAudio::RestartStreamNonBlocking() {
         DestroyStream();
         CreateStream();
+        // the new stream may run at another rate, such as after switching to another device
+        engine.sampleRateChanged();
         StartStreamNonBlocking();
     }
 
     void AAudio::RestartStreamBlocking() {
         DestroyStream();
         CreateStream();
+        // the new stream may run at another rate, such as after switching to another device
+        engine.sampleRateChanged();
         StartStreamBlocking();
     }
 
@@ -416,6 +428,10 @@ namespace ARDOUR {
         return stream == nullptr ? 0 : AAudioStream_getBufferSizeInFrames(stream);
     }
 
+    uint32_t AAudio::period_size() const {
+        return FRAMES_PER_CALLBACK;
+    }
+
     bool AAudio::interleaved() const {
         return false;
     }
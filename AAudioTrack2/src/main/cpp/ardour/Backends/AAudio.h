@@ -28,6 +28,10 @@ namespace ARDOUR {
         DeviceStatus currentDeviceStatus;
         float currentSampleRate;
         int32_t currentBufferSizeInSamples;
+        // the stream always calls back with this many frames, see period_size
+        static constexpr int32_t FRAMES_PER_CALLBACK = 512;
+        // the port the engine renders a callback into, allocated when the stream starts
+        PortUtils2 callbackPort;
         int32_t currentInputChannelCount;
         int32_t currentOutputChannelCount;
         aaudio_format_t outputFormat = AAUDIO_FORMAT_UNSPECIFIED;
@@ -121,6 +125,8 @@ namespace ARDOUR {
 
         uint32_t buffer_size() const override;
 
+        uint32_t period_size() const override;
+
         bool interleaved() const override;
 
         uint32_t input_channels() const override;
@@ -0,0 +1,421 @@
+#include "File.h"
+#include <AndroidDAW_SDK/plugin/PortUtils2.h>
+#include <algorithm>
+#include <cstring>
+#include <memory>
+
+namespace ARDOUR {
+    using namespace ARDOUR_TYPEDEFS;
+
+    static std::string s_instance_name;
+    static std::shared_ptr<File> _instance;
+
+    #define N_CHANNELS (2)
+
+    AudioBackendInfo File::_descriptor = {
+            "File",
+            instantiate,
+            deinstantiate,
+            backend_factory,
+            already_configured,
+            available
+    };
+
+    std::shared_ptr<AudioBackend>
+    File::backend_factory (AudioEngine& e)
+    {
+        if (!_instance) {
+            File * file = new File(e, _descriptor);
+            _instance.reset(file);
+        }
+        return _instance;
+    }
+
+    int
+    File::instantiate (const std::string& arg1, const std::string& /* arg2 */)
+    {
+        s_instance_name = arg1;
+        if (_instance) {
+            _instance->_instance_name = arg1;
+        }
+        return 0;
+    }
+
+    int
+    File::deinstantiate ()
+    {
+        _instance.reset ();
+        return 0;
+    }
+
+    bool
+    File::already_configured ()
+    {
+        return false;
+    }
+
+    bool
+    File::available ()
+    {
+        return true;
+    }
+
+    ARDOUR::AudioBackendInfo* File::descriptor ()
+    {
+        return &_descriptor;
+    }
+
+    File::File(AudioEngine &audioEngine, AudioBackendInfo& i)
+        : AudioBackend(audioEngine, i)
+        , currentDeviceStatus("file", true)
+        , currentSampleRate(48000.0)
+        , currentBufferSizeInSamples(512)
+        , currentOutputChannelCount(N_CHANNELS)
+        {
+        _instance_name = s_instance_name;
+    }
+
+    File::~File() {
+        stop();
+    }
+
+    static void put16(uint8_t * p, uint16_t v) {
+        p[0] = v & 0xFF;
+        p[1] = (v >> 8) & 0xFF;
+    }
+
+    static void put32(uint8_t * p, uint32_t v) {
+        p[0] = v & 0xFF;
+        p[1] = (v >> 8) & 0xFF;
+        p[2] = (v >> 16) & 0xFF;
+        p[3] = (v >> 24) & 0xFF;
+    }
+
+    bool File::writeHeader() {
+        // WAVE_FORMAT_IEEE_FLOAT, the sizes are patched in stop()
+        uint8_t header[44];
+        uint32_t bytesPerFrame = currentOutputChannelCount * sizeof(float);
+        memcpy(header + 0, "RIFF", 4);
+        put32(header + 4, static_cast<uint32_t>(36 + dataBytes));
+        memcpy(header + 8, "WAVE", 4);
+        memcpy(header + 12, "fmt ", 4);
+        put32(header + 16, 16);
+        put16(header + 20, 3);
+        put16(header + 22, currentOutputChannelCount);
+        put32(header + 24, static_cast<uint32_t>(currentSampleRate));
+        put32(header + 28, static_cast<uint32_t>(currentSampleRate) * bytesPerFrame);
+        put16(header + 32, bytesPerFrame);
+        put16(header + 34, 32);
+        memcpy(header + 36, "data", 4);
+        put32(header + 40, static_cast<uint32_t>(dataBytes));
+        return fseek(file, 0, SEEK_SET) == 0 && fwrite(header, sizeof(header), 1, file) == 1;
+    }
+
+    int File::_start(bool for_latency_measurement) {
+        if (file != nullptr) {
+            return 0;
+        }
+        file = fopen(_instance_name.c_str(), "wb");
+        if (file == nullptr) {
+            LOGE("FAILED TO OPEN %s FOR WRITING", _instance_name.c_str());
+            return AudioDeviceOpenError;
+        }
+        dataBytes = 0;
+        _processed_samples = 0;
+        if (!writeHeader()) {
+            LOGE("FAILED TO WRITE THE HEADER OF %s", _instance_name.c_str());
+            fclose(file);
+            file = nullptr;
+            return AudioDeviceIOError;
+        }
+        return 0;
+    }
+
+    int File::render(sample_count_t lengthSamples, const ProgressCallback & progress) {
+        if (file == nullptr) {
+            return AudioDeviceNotConnectedError;
+        }
+
+        uint32_t channelCount = currentOutputChannelCount;
+        uint32_t bufferSize = currentBufferSizeInSamples;
+
+        // unlike the AAudio callback, the port is allocated once for the whole render
+        PortUtils2 outPort = PortUtils2();
+        outPort.allocatePorts<ENGINE_FORMAT>(bufferSize * channelCount, channelCount);
+        interleaved_buffer.resize(bufferSize * channelCount);
+
+        ENGINE_FORMAT * left = reinterpret_cast<ENGINE_FORMAT *>(outPort.ports.outputStereo->l->buf);
+        ENGINE_FORMAT * right = reinterpret_cast<ENGINE_FORMAT *>(outPort.ports.outputStereo->r->buf);
+
+        // report progress roughly once per second of audio
+        sample_count_t progressInterval = static_cast<sample_count_t>(currentSampleRate);
+        sample_count_t nextProgress = progressInterval;
+
+        int result = 0;
+        sample_count_t rendered = 0;
+        while (rendered < lengthSamples) {
+            outPort.fillPortBuffer<ENGINE_FORMAT>(0);
+
+            // always render a full block, the last block is truncated when written
+            engine.renderAudio(nullptr, &outPort);
+
+            sample_count_t frames = std::min<sample_count_t>(bufferSize, lengthSamples - rendered);
+            ENGINE_FORMAT * data = interleaved_buffer.data();
+            for (sample_count_t i = 0; i < frames; i++) {
+                data[(i * 2) + 0] = left[i];
+                data[(i * 2) + 1] = right[i];
+            }
+            if (fwrite(data, sizeof(ENGINE_FORMAT) * channelCount, frames, file) != static_cast<size_t>(frames)) {
+                LOGE("FAILED TO WRITE TO %s", _instance_name.c_str());
+                result = AudioDeviceIOError;
+                break;
+            }
+            dataBytes += frames * sizeof(ENGINE_FORMAT) * channelCount;
+            rendered += frames;
+            _processed_samples += frames;
+
+            if (progress && (rendered >= nextProgress || rendered == lengthSamples)) {
+                nextProgress += progressInterval;
+                if (!progress(rendered, lengthSamples)) {
+                    result = 1;
+                    break;
+                }
+            }
+        }
+
+        outPort.deallocatePorts<ENGINE_FORMAT>(channelCount);
+        return result;
+    }
+
+    int File::stop() {
+        return drop_device();
+    }
+
+    int File::drop_device() {
+        if (file == nullptr) {
+            return 1;
+        }
+        int result = 0;
+        if (!writeHeader()) {
+            LOGE("FAILED TO FINALIZE %s", _instance_name.c_str());
+            result = AudioDeviceIOError;
+        }
+        if (fclose(file) != 0) {
+            result = AudioDeviceCloseError;
+        }
+        file = nullptr;
+        return result;
+    }
+
+    uint32_t File::XRunCount() const {
+        // nothing waits on this backend, so it can never under-run
+        return 0;
+    }
+
+    std::string File::name() const {
+        return _descriptor.name;
+    }
+
+    bool File::is_realtime() const {
+        return false;
+    }
+
+    std::vector<File::DeviceStatus> File::enumerate_devices() const {
+        return std::vector<DeviceStatus>(1, currentDeviceStatus);
+    }
+
+    std::vector<float> File::available_sample_rates(const std::string &device) const {
+        return std::vector<float>(1, currentSampleRate);
+    }
+
+    std::vector<uint32_t> File::available_buffer_sizes(const std::string &device) const {
+        return std::vector<uint32_t>(1, currentBufferSizeInSamples);
+    }
+
+    uint32_t File::available_input_channel_count(const std::string &device) const {
+        return 0;
+    }
+
+    uint32_t File::available_output_channel_count(const std::string &device) const {
+        return N_CHANNELS;
+    }
+
+    bool File::can_change_sample_rate_when_running() const {
+        return false;
+    }
+
+    bool File::can_change_buffer_size_when_running() const {
+        return false;
+    }
+
+    bool File::can_measure_systemic_latency() const {
+        return false;
+    }
+
+    int File::set_device_name(const std::string &string) {
+        return 0;
+    }
+
+    int File::set_sample_rate(float d) {
+        if (file != nullptr || d <= 0) return -1;
+        currentSampleRate = d;
+        return 0;
+    }
+
+    int File::set_buffer_size(uint32_t uint32) {
+        if (file != nullptr || uint32 == 0) return -1;
+        currentBufferSizeInSamples = uint32;
+        return 0;
+    }
+
+    int File::set_interleaved(bool yn) {
+        return 0;
+    }
+
+    int File::set_input_channels(uint32_t uint32) {
+        return uint32 == 0 ? 0 : InputChannelCountNotSupportedError;
+    }
+
+    int File::set_output_channels(uint32_t uint32) {
+        // the engine only renders to a stereo port
+        return uint32 == N_CHANNELS ? 0 : OutputChannelCountNotSupportedError;
+    }
+
+    int File::set_systemic_input_latency(uint32_t uint32) {
+        return 0;
+    }
+
+    int File::set_systemic_output_latency(uint32_t uint32) {
+        return 0;
+    }
+
+    int File::set_systemic_midi_input_latency(std::string string, uint32_t uint32) {
+        return 0;
+    }
+
+    int File::set_systemic_midi_output_latency(std::string string, uint32_t uint32) {
+        return 0;
+    }
+
+    std::string File::device_name() const {
+        return _instance_name;
+    }
+
+    float File::sample_rate() const {
+        return currentSampleRate;
+    }
+
+    uint32_t File::buffer_size() const {
+        return currentBufferSizeInSamples;
+    }
+
+    bool File::interleaved() const {
+        return false;
+    }
+
+    uint32_t File::input_channels() const {
+        return 0;
+    }
+
+    uint32_t File::output_channels() const {
+        return currentOutputChannelCount;
+    }
+
+    uint32_t File::systemic_input_latency() const {
+        return 0;
+    }
+
+    uint32_t File::systemic_output_latency() const {
+        return 0;
+    }
+
+    uint32_t File::systemic_midi_input_latency(std::string string) const {
+        return 0;
+    }
+
+    uint32_t File::systemic_midi_output_latency(std::string string) const {
+        return 0;
+    }
+
+    std::string File::control_app_name() const {
+        return std::string();
+    }
+
+    void File::launch_control_app() {
+
+    }
+
+    std::vector<std::string> File::enumerate_midi_options() const {
+        return std::vector<std::string>();
+    }
+
+    int File::set_midi_option(const std::string &option) {
+        return 0;
+    }
+
+    std::string File::midi_option() const {
+        return std::string();
+    }
+
+    std::vector<File::DeviceStatus> File::enumerate_midi_devices() const {
+        return std::vector<DeviceStatus>();
+    }
+
+    int File::set_midi_device_enabled(std::string string, bool b) {
+        return 0;
+    }
+
+    bool File::midi_device_enabled(std::string string) const {
+        return false;
+    }
+
+    bool File::can_set_systemic_midi_latencies() const {
+        return false;
+    }
+
+    int File::reset_device() {
+        return 0;
+    }
+
+    int File::freewheel(bool start_stop) {
+        // this backend is always freewheeling
+        return start_stop ? 0 : -1;
+    }
+
+    float File::dsp_load() const {
+        return 0;
+    }
+
+    sample_position_t File::sample_time() {
+        return _processed_samples;
+    }
+
+    sample_position_t File::sample_time_at_cycle_start() {
+        return _processed_samples;
+    }
+
+    samples_t File::samples_since_cycle_start() {
+        return 0;
+    }
+
+    int File::create_process_thread(std::function<void()> func) {
+        return 0;
+    }
+
+    int File::join_process_threads() {
+        return 0;
+    }
+
+    bool File::in_process_thread() {
+        return false;
+    }
+
+    uint32_t File::process_thread_count() {
+        return 0;
+    }
+
+    void File::update_latencies() {
+
+    }
+
+}
@@ -0,0 +1,368 @@
+#include "Null.h"
+#include <AndroidDAW_SDK/plugin/PortUtils2.h>
+#include <chrono>
+#include <memory>
+
+namespace ARDOUR {
+    using namespace ARDOUR_TYPEDEFS;
+
+    static std::string s_instance_name;
+    static std::shared_ptr<Null> _instance;
+
+    #define N_CHANNELS (2)
+
+    AudioBackendInfo Null::_descriptor = {
+            "Null",
+            instantiate,
+            deinstantiate,
+            backend_factory,
+            already_configured,
+            available
+    };
+
+    std::shared_ptr<AudioBackend>
+    Null::backend_factory (AudioEngine& e)
+    {
+        if (!_instance) {
+            Null * null = new Null(e, _descriptor);
+            _instance.reset(null);
+        }
+        return _instance;
+    }
+
+    int
+    Null::instantiate (const std::string& arg1, const std::string& /* arg2 */)
+    {
+        s_instance_name = arg1;
+        return 0;
+    }
+
+    int
+    Null::deinstantiate ()
+    {
+        _instance.reset ();
+        return 0;
+    }
+
+    bool
+    Null::already_configured ()
+    {
+        return false;
+    }
+
+    bool
+    Null::available ()
+    {
+        return true;
+    }
+
+    ARDOUR::AudioBackendInfo* Null::descriptor ()
+    {
+        return &_descriptor;
+    }
+
+    Null::Null(AudioEngine &audioEngine, AudioBackendInfo& i)
+        : AudioBackend(audioEngine, i)
+        , currentDeviceStatus("null", true)
+        , currentSampleRate(48000.0)
+        , currentBufferSizeInSamples(512)
+        , currentOutputChannelCount(N_CHANNELS)
+        , running(false)
+        , freewheeling(false)
+        , _processed_samples(0)
+        , recorded_cycles(0)
+        {
+        _instance_name = s_instance_name;
+    }
+
+    Null::~Null() {
+        stop();
+    }
+
+    void Null::record_cycle_times(size_t capacity) {
+        if (running) return;
+        cycle_times.assign(capacity, 0);
+        recorded_cycles = 0;
+    }
+
+    size_t Null::recorded_cycle_count() const {
+        return recorded_cycles;
+    }
+
+    int Null::_start(bool for_latency_measurement) {
+        if (running) {
+            return 0;
+        }
+        running = true;
+        process_thread = std::thread(&Null::process_loop, this);
+        return 0;
+    }
+
+    void Null::process_loop() {
+        process_thread_id = std::this_thread::get_id();
+
+        uint32_t channelCount = currentOutputChannelCount;
+        uint32_t bufferSize = currentBufferSizeInSamples;
+
+        // the port is allocated once, so the cost of a cycle is the cost of the engine alone
+        PortUtils2 outPort = PortUtils2();
+        outPort.allocatePorts<ENGINE_FORMAT>(bufferSize * channelCount, channelCount);
+
+        auto period = std::chrono::nanoseconds(
+                static_cast<int64_t>((bufferSize * 1000000000.0) / currentSampleRate)
+        );
+        auto next = std::chrono::steady_clock::now();
+
+        while (running) {
+            outPort.fillPortBuffer<ENGINE_FORMAT>(0);
+
+            auto start = std::chrono::steady_clock::now();
+            engine.renderAudio(nullptr, &outPort);
+            auto end = std::chrono::steady_clock::now();
+
+            uint64_t nanos = std::chrono::duration_cast<std::chrono::nanoseconds>(end - start).count();
+            size_t cycle = recorded_cycles.load(std::memory_order_relaxed);
+            if (cycle < cycle_times.size()) {
+                cycle_times[cycle] = nanos;
+                recorded_cycles.store(cycle + 1, std::memory_order_release);
+            }
+            _dsp_load = static_cast<float>(nanos) / static_cast<float>(period.count());
+            _processed_samples += bufferSize;
+
+            if (!freewheeling) {
+                next += period;
+                std::this_thread::sleep_until(next);
+            } else {
+                next = end;
+            }
+        }
+
+        outPort.deallocatePorts<ENGINE_FORMAT>(channelCount);
+    }
+
+    int Null::stop() {
+        return drop_device();
+    }
+
+    int Null::drop_device() {
+        if (!running) {
+            return 1;
+        }
+        running = false;
+        if (process_thread.joinable()) {
+            process_thread.join();
+        }
+        return 0;
+    }
+
+    uint32_t Null::XRunCount() const {
+        return 0;
+    }
+
+    std::string Null::name() const {
+        return _descriptor.name;
+    }
+
+    bool Null::is_realtime() const {
+        return false;
+    }
+
+    std::vector<Null::DeviceStatus> Null::enumerate_devices() const {
+        return std::vector<DeviceStatus>(1, currentDeviceStatus);
+    }
+
+    std::vector<float> Null::available_sample_rates(const std::string &device) const {
+        return {22050.0f, 44100.0f, 48000.0f, 88200.0f, 96000.0f, 192000.0f};
+    }
+
+    std::vector<uint32_t> Null::available_buffer_sizes(const std::string &device) const {
+        return {32, 64, 128, 256, 512, 1024, 2048, 4096, 8192};
+    }
+
+    uint32_t Null::available_input_channel_count(const std::string &device) const {
+        return 0;
+    }
+
+    uint32_t Null::available_output_channel_count(const std::string &device) const {
+        return N_CHANNELS;
+    }
+
+    bool Null::can_change_sample_rate_when_running() const {
+        return false;
+    }
+
+    bool Null::can_change_buffer_size_when_running() const {
+        return false;
+    }
+
+    bool Null::can_measure_systemic_latency() const {
+        return false;
+    }
+
+    int Null::set_device_name(const std::string &string) {
+        return 0;
+    }
+
+    int Null::set_sample_rate(float d) {
+        if (running || d <= 0) return -1;
+        currentSampleRate = d;
+        return 0;
+    }
+
+    int Null::set_buffer_size(uint32_t uint32) {
+        if (running || uint32 == 0) return -1;
+        currentBufferSizeInSamples = uint32;
+        return 0;
+    }
+
+    int Null::set_interleaved(bool yn) {
+        return 0;
+    }
+
+    int Null::set_input_channels(uint32_t uint32) {
+        return uint32 == 0 ? 0 : InputChannelCountNotSupportedError;
+    }
+
+    int Null::set_output_channels(uint32_t uint32) {
+        // the engine only renders to a stereo port
+        return uint32 == N_CHANNELS ? 0 : OutputChannelCountNotSupportedError;
+    }
+
+    int Null::set_systemic_input_latency(uint32_t uint32) {
+        return 0;
+    }
+
+    int Null::set_systemic_output_latency(uint32_t uint32) {
+        return 0;
+    }
+
+    int Null::set_systemic_midi_input_latency(std::string string, uint32_t uint32) {
+        return 0;
+    }
+
+    int Null::set_systemic_midi_output_latency(std::string string, uint32_t uint32) {
+        return 0;
+    }
+
+    std::string Null::device_name() const {
+        return _instance_name;
+    }
+
+    float Null::sample_rate() const {
+        return currentSampleRate;
+    }
+
+    uint32_t Null::buffer_size() const {
+        return currentBufferSizeInSamples;
+    }
+
+    bool Null::interleaved() const {
+        return false;
+    }
+
+    uint32_t Null::input_channels() const {
+        return 0;
+    }
+
+    uint32_t Null::output_channels() const {
+        return currentOutputChannelCount;
+    }
+
+    uint32_t Null::systemic_input_latency() const {
+        return 0;
+    }
+
+    uint32_t Null::systemic_output_latency() const {
+        return 0;
+    }
+
+    uint32_t Null::systemic_midi_input_latency(std::string string) const {
+        return 0;
+    }
+
+    uint32_t Null::systemic_midi_output_latency(std::string string) const {
+        return 0;
+    }
+
+    int Null::freewheel(bool start_stop) {
+        freewheeling = start_stop;
+        return 0;
+    }
+
+    float Null::dsp_load() const {
+        return _dsp_load;
+    }
+
+    sample_position_t Null::sample_time() {
+        return _processed_samples;
+    }
+
+    sample_position_t Null::sample_time_at_cycle_start() {
+        return _processed_samples;
+    }
+
+    int Null::create_process_thread(std::function<void()> func) {
+        return 0;
+    }
+
+    int Null::join_process_threads() {
+        return 0;
+    }
+
+    bool Null::in_process_thread() {
+        return std::this_thread::get_id() == process_thread_id;
+    }
+
+    uint32_t Null::process_thread_count() {
+        return running ? 1 : 0;
+    }
+
+    std::string Null::control_app_name() const {
+        return std::string();
+    }
+
+    void Null::launch_control_app() {
+
+    }
+
+    std::vector<std::string> Null::enumerate_midi_options() const {
+        return std::vector<std::string>();
+    }
+
+    int Null::set_midi_option(const std::string &option) {
+        return 0;
+    }
+
+    std::string Null::midi_option() const {
+        return std::string();
+    }
+
+    std::vector<Null::DeviceStatus> Null::enumerate_midi_devices() const {
+        return std::vector<DeviceStatus>();
+    }
+
+    int Null::set_midi_device_enabled(std::string string, bool b) {
+        return 0;
+    }
+
+    bool Null::midi_device_enabled(std::string string) const {
+        return false;
+    }
+
+    bool Null::can_set_systemic_midi_latencies() const {
+        return false;
+    }
+
+    int Null::reset_device() {
+        return 0;
+    }
+
+    samples_t Null::samples_since_cycle_start() {
+        return 0;
+    }
+
+    void Null::update_latencies() {
+
+    }
+
+}
@@ -37,6 +37,13 @@
 # include <locale.h>
 #endif
 
+/* glibc's <libintl.h> is pulled in by <locale> and friends, which
+   chokes for the same reason, so include it now when building on a
+   Linux host.  Bionic does not provide it.  */
+#if defined(__linux__) && !defined(__ANDROID__)
+# include <libintl.h>
+#endif
+
 /* Disabled NLS.
    The casts to 'const char *' serve the purpose of producing warnings
    for invalid uses of the value returned from these functions.
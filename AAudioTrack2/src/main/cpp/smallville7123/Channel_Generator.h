@@ -7,6 +7,8 @@
 
 #include <AndroidDAW_SDK/plugin/Plugin.h>
 #include "plugins/EffectRack.h"
+#include "plugins/Mixer.h"
+#include "MixerBus.h"
 
 class Channel_Generator {
 public:
@@ -14,12 +16,43 @@ public:
     EffectRack * effectRack = nullptr;
     PortUtils2 * out = nullptr;
 
+    // the gain and pan of this channel in the mixer
+    MixerStrip strip;
+
+    // the bus this channel is mixed into, nullptr is the master bus
+    MixerBus * bus = nullptr;
+
+    // owned by this channel
+    std::vector<MixerSend *> sends;
+
+    // the block out was last written in, see Mixer::Input::written
+    uint64_t renderedBlock = 0;
+
+    // song mode, the track or clip that plays this channel in the current block,
+    // and the frame of the block it has rendered the channel up to,
+    // only valid while renderedBlock is the block being rendered
+    const void * songOwner = nullptr;
+    unsigned int songRenderedTo = 0;
+
+    // song mode, the frames the channel is still rendered for after its owner stopped it
+    // with an all notes off, so the voices it stopped fade out instead of freezing until
+    // the channel plays again, see Playlist::renderTail
+    unsigned int songTailFrames = 0;
+
     Channel_Generator() {
         effectRack = new EffectRack();
         out = new PortUtils2();
     }
 
+    // never on the audio thread, allocates out and the ports of the effects
+    // for blocks of samples samples, see AudioEngine::preparePorts
+    void preparePorts(unsigned int samples, unsigned int channelCount) {
+        Mixer::preparePort(out, samples, channelCount);
+        effectRack->preparePorts(samples, channelCount);
+    }
+
     ~Channel_Generator() {
+        for (MixerSend * send : sends) delete send;
         delete effectRack;
         out->deallocatePorts<ENGINE_FORMAT>();
         delete out;
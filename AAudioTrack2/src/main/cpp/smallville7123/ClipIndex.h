@@ -0,0 +1,125 @@
+#ifndef AAUDIOTRACK_CLIPINDEX_H
+#define AAUDIOTRACK_CLIPINDEX_H
+
+#include <algorithm>
+#include <cstdint>
+#include <limits>
+#include <vector>
+
+class PatternList;
+
+// an instance of a pattern list placed on a track
+//
+// the clip plays its pattern list from offset for length samples, starting at start
+class Clip {
+public:
+    int32_t id = 0;
+    // the engine sample the clip starts at
+    int64_t start = 0;
+    // the number of samples the clip plays for
+    int64_t length = 0;
+    // the position inside the pattern list that plays at start
+    int64_t offset = 0;
+    PatternList * patternList = nullptr;
+
+    int64_t end() const {
+        return start + length;
+    }
+};
+
+// the clips of a track, indexed by the samples they cover
+//
+// the clips are kept sorted by start and form an implicit balanced search tree,
+// the root of the range [lo, hi) is (lo + hi) / 2, and every node also stores the
+// largest end of any clip in its subtree, so subtrees that end before a window can
+// be skipped without being visited
+//
+// finding the clips that overlap a window costs O(log n + k) for k overlapping clips,
+// a query never allocates, only build does
+class ClipIndex {
+    std::vector<Clip> clips;
+    std::vector<int64_t> maxEnd;
+
+    int64_t build(size_t lo, size_t hi) {
+        if (lo >= hi) return std::numeric_limits<int64_t>::min();
+        size_t mid = lo + (hi - lo) / 2;
+        int64_t end = std::max(clips[mid].end(), std::max(build(lo, mid), build(mid + 1, hi)));
+        maxEnd[mid] = end;
+        return end;
+    }
+
+    template <typename Function>
+    void query(size_t lo, size_t hi, int64_t from, int64_t to, Function & function) const {
+        if (lo >= hi) return;
+        size_t mid = lo + (hi - lo) / 2;
+        // nothing in this subtree reaches the window
+        if (maxEnd[mid] <= from) return;
+        query(lo, mid, from, to, function);
+        // this clip and everything after it starts after the window
+        if (clips[mid].start >= to) return;
+        if (clips[mid].end() > from) function(clips[mid]);
+        query(mid + 1, hi, from, to, function);
+    }
+
+public:
+    size_t size() const {
+        return clips.size();
+    }
+
+    bool empty() const {
+        return clips.empty();
+    }
+
+    const std::vector<Clip> & getClips() const {
+        return clips;
+    }
+
+    // adds a clip, build must be called before the index is queried again
+    void add(const Clip & clip) {
+        clips.push_back(clip);
+    }
+
+    // removes the clip with the given id, build must be called before the index is queried again
+    bool remove(int32_t id) {
+        auto it = std::find_if(clips.begin(), clips.end(), [id](const Clip & clip) { return clip.id == id; });
+        if (it == clips.end()) return false;
+        clips.erase(it);
+        return true;
+    }
+
+    // removes every clip that plays the given pattern list
+    void removePatternList(const PatternList * patternList) {
+        clips.erase(std::remove_if(clips.begin(), clips.end(), [patternList](const Clip & clip) {
+            return clip.patternList == patternList;
+        }), clips.end());
+    }
+
+    void clear() {
+        clips.clear();
+        maxEnd.clear();
+    }
+
+    void build() {
+        std::stable_sort(clips.begin(), clips.end(), [](const Clip & a, const Clip & b) {
+            return a.start < b.start;
+        });
+        maxEnd.resize(clips.size());
+        build(0, clips.size());
+    }
+
+    // calls function(const Clip &) for every clip that overlaps [from, to), in order of start
+    template <typename Function>
+    void forEachClipIn(int64_t from, int64_t to, Function function) const {
+        if (from >= to) return;
+        query(0, clips.size(), from, to, function);
+    }
+
+    // returns true if any clip covers the given sample
+    bool covers(int64_t sample) const {
+        bool found = false;
+        forEachClipIn(sample, sample + 1, [&found](const Clip &) { found = true; });
+        return found;
+    }
+};
+
+#endif //AAUDIOTRACK_CLIPINDEX_H
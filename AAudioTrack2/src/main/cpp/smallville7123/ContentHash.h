@@ -0,0 +1,115 @@
+#ifndef AAUDIOTRACK_CONTENTHASH_H
+#define AAUDIOTRACK_CONTENTHASH_H
+
+#include <cstddef>
+#include <cstdint>
+#include <cstring>
+#include "MappedFile.h"
+
+// identifies the content of a file, whatever it is called, with the 64 bit xxHash
+//
+// not cryptographic, it only has to tell apart the audio files of one device
+class ContentHash {
+    static constexpr uint64_t PRIME1 = 11400714785074694791ULL;
+    static constexpr uint64_t PRIME2 = 14029467366897019727ULL;
+    static constexpr uint64_t PRIME3 = 1609587929392839161ULL;
+    static constexpr uint64_t PRIME4 = 9650029242287828579ULL;
+    static constexpr uint64_t PRIME5 = 2870177450012600261ULL;
+
+    static uint64_t rotate(uint64_t value, int bits) {
+        return (value << bits) | (value >> (64 - bits));
+    }
+
+    static uint64_t read64(const uint8_t * data) {
+        uint64_t value;
+        memcpy(&value, data, sizeof(value));
+        return value;
+    }
+
+    static uint32_t read32(const uint8_t * data) {
+        uint32_t value;
+        memcpy(&value, data, sizeof(value));
+        return value;
+    }
+
+    static uint64_t round(uint64_t accumulator, uint64_t input) {
+        return rotate(accumulator + (input * PRIME2), 31) * PRIME1;
+    }
+
+    static uint64_t merge(uint64_t accumulator, uint64_t lane) {
+        return ((accumulator ^ round(0, lane)) * PRIME1) + PRIME4;
+    }
+
+public:
+    static uint64_t hash(const uint8_t * data, size_t size, uint64_t seed = 0) {
+        const uint8_t * end = data + size;
+        uint64_t h;
+        if (size >= 32) {
+            uint64_t v1 = seed + PRIME1 + PRIME2;
+            uint64_t v2 = seed + PRIME2;
+            uint64_t v3 = seed;
+            uint64_t v4 = seed - PRIME1;
+            const uint8_t * limit = end - 32;
+            do {
+                v1 = round(v1, read64(data));
+                v2 = round(v2, read64(data + 8));
+                v3 = round(v3, read64(data + 16));
+                v4 = round(v4, read64(data + 24));
+                data += 32;
+            } while (data <= limit);
+            h = rotate(v1, 1) + rotate(v2, 7) + rotate(v3, 12) + rotate(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = seed + PRIME5;
+        }
+        h += static_cast<uint64_t>(size);
+        for (; data + 8 <= end; data += 8) {
+            h = (rotate(h ^ round(0, read64(data)), 27) * PRIME1) + PRIME4;
+        }
+        if (data + 4 <= end) {
+            h = (rotate(h ^ (static_cast<uint64_t>(read32(data)) * PRIME1), 23) * PRIME2) + PRIME3;
+            data += 4;
+        }
+        for (; data < end; data++) {
+            h = rotate(h ^ (*data * PRIME5), 11) * PRIME1;
+        }
+        h ^= h >> 33;
+        h *= PRIME2;
+        h ^= h >> 29;
+        h *= PRIME3;
+        h ^= h >> 32;
+        return h;
+    }
+
+    /**
+     * hashes the content of a file
+     *
+     * @return false if the file cannot be read
+     */
+    static bool hashFile(const char * path, uint64_t & hash) {
+        MappedFile file;
+        if (!file.map(path)) return false;
+        file.advise(0, file.size, MADV_SEQUENTIAL);
+        hash = ContentHash::hash(file.data, file.size);
+        return true;
+    }
+
+    /**
+     * hashes length bytes of fd from offset, a range holding the same bytes as a
+     * file has the same hash as the file
+     *
+     * @return false if the range cannot be read
+     */
+    static bool hashRange(int fd, uint64_t offset, uint64_t length, uint64_t & hash) {
+        MappedFile file;
+        if (!file.map(fd, offset, length)) return false;
+        file.advise(0, file.size, MADV_SEQUENTIAL);
+        hash = ContentHash::hash(file.data, file.size);
+        return true;
+    }
+};
+
+#endif //AAUDIOTRACK_CONTENTHASH_H
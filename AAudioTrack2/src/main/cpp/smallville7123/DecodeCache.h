@@ -0,0 +1,162 @@
+#ifndef AAUDIOTRACK_DECODECACHE_H
+#define AAUDIOTRACK_DECODECACHE_H
+
+#include <algorithm>
+#include <atomic>
+#include <cerrno>
+#include <cinttypes>
+#include <cstdio>
+#include <cstring>
+#include <functional>
+#include <mutex>
+#include <string>
+#include <vector>
+#include <dirent.h>
+#include <fcntl.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include "SamplePool.h"
+
+// decoded samples kept on disk between runs of the app, so that a sample is only
+// decoded the first time it is loaded, and afterwards mapped straight from the cache
+//
+// entries are named after the SamplePool key of the sample, a file is decoded to a
+// temporary name and renamed into place once it is complete, so an entry is either
+// whole or absent, even if the app dies while decoding
+//
+// the cache is bounded in size, the entries that were used the longest ago are
+// deleted first, the time an entry was last used is its modification time
+class DecodeCache {
+    std::mutex mutex;
+    std::string directory;
+    uint64_t maxBytes = 0;
+    std::atomic<uint32_t> temporaries {0};
+
+    static constexpr const char * EXTENSION = ".f32";
+    static constexpr const char * TEMPORARY = ".tmp";
+
+    static bool endsWith(const std::string & name, const char * suffix) {
+        size_t length = strlen(suffix);
+        return name.size() >= length && name.compare(name.size() - length, length, suffix) == 0;
+    }
+
+    struct Entry {
+        std::string path;
+        uint64_t bytes;
+        struct timespec used;
+    };
+
+    // deletes the least recently used entries, other than keep, until the cache fits, with the mutex held
+    void trim(const std::string & keep = std::string()) {
+        DIR * dir = opendir(directory.c_str());
+        if (dir == nullptr) return;
+        std::vector<Entry> entries;
+        uint64_t total = 0;
+        while (struct dirent * entry = readdir(dir)) {
+            std::string name = entry->d_name;
+            if (!endsWith(name, EXTENSION)) continue;
+            std::string path = directory + "/" + name;
+            struct stat st {};
+            if (stat(path.c_str(), &st) != 0) continue;
+            entries.push_back({path, static_cast<uint64_t>(st.st_size), st.st_mtim});
+            total += st.st_size;
+        }
+        closedir(dir);
+        if (total <= maxBytes) return;
+        std::sort(entries.begin(), entries.end(), [](const Entry & a, const Entry & b) {
+            if (a.used.tv_sec != b.used.tv_sec) return a.used.tv_sec < b.used.tv_sec;
+            return a.used.tv_nsec < b.used.tv_nsec;
+        });
+        // a sample that is mapped keeps playing from its deleted file
+        for (const Entry & entry : entries) {
+            if (total <= maxBytes) break;
+            if (entry.path == keep) continue;
+            if (unlink(entry.path.c_str()) == 0) total -= entry.bytes;
+        }
+    }
+
+    // temporary files left behind by a decode that never finished
+    void removeTemporaries() {
+        DIR * dir = opendir(directory.c_str());
+        if (dir == nullptr) return;
+        std::vector<std::string> stale;
+        while (struct dirent * entry = readdir(dir)) {
+            std::string name = entry->d_name;
+            if (name.find(TEMPORARY) != std::string::npos) stale.push_back(directory + "/" + name);
+        }
+        closedir(dir);
+        for (const std::string & path : stale) unlink(path.c_str());
+    }
+
+    std::string pathOf(const SamplePool::Key & key) const {
+        char name[96];
+        snprintf(name, sizeof(name), "/%016" PRIx64 ".ar_%d.ac_%d%s", key.hash, key.sampleRate, key.channelCount, EXTENSION);
+        return directory + name;
+    }
+
+public:
+    /**
+     * stores entries in directory, which is created if needed, an empty directory disables the cache
+     *
+     * must not be called while a sample is being fetched
+     */
+    void configure(const std::string & newDirectory, uint64_t newMaxBytes) {
+        std::lock_guard<std::mutex> lock(mutex);
+        directory = newDirectory;
+        maxBytes = newMaxBytes;
+        if (directory.empty()) return;
+        if (mkdir(directory.c_str(), 0700) != 0 && errno != EEXIST) {
+            LOGE("cannot create the decode cache %s, decoding without it", directory.c_str());
+            directory.clear();
+            return;
+        }
+        removeTemporaries();
+        trim();
+    }
+
+    bool enabled() {
+        std::lock_guard<std::mutex> lock(mutex);
+        return !directory.empty();
+    }
+
+    /**
+     * returns the path of the decoded sample of key, calling decode to write it to the
+     * given temporary path if the cache does not hold it yet
+     *
+     * decode runs without the cache locked
+     *
+     * @return an empty string if decode failed
+     */
+    std::string fetch(const SamplePool::Key & key, const std::function<bool(const std::string &)> & decode) {
+        std::string path;
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            path = pathOf(key);
+            // a hit is marked as used now
+            if (utimensat(AT_FDCWD, path.c_str(), nullptr, 0) == 0) return path;
+        }
+        std::string temporary = path + TEMPORARY + std::to_string(getpid()) + "." + std::to_string(temporaries.fetch_add(1));
+        if (!decode(temporary)) {
+            unlink(temporary.c_str());
+            return std::string();
+        }
+        // the data has to reach the disk before the entry becomes visible under its name
+        int fd = open(temporary.c_str(), O_RDONLY | O_CLOEXEC);
+        if (fd == -1) {
+            LOGE("the decoder did not write %s", temporary.c_str());
+            return std::string();
+        }
+        fsync(fd);
+        close(fd);
+        std::lock_guard<std::mutex> lock(mutex);
+        if (rename(temporary.c_str(), path.c_str()) != 0) {
+            LOGE("cannot add %s to the decode cache", path.c_str());
+            unlink(temporary.c_str());
+            return std::string();
+        }
+        trim(path);
+        return path;
+    }
+};
+
+#endif //AAUDIOTRACK_DECODECACHE_H
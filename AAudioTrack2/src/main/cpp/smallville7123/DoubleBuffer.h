@@ -0,0 +1,84 @@
+#ifndef AAUDIOTRACK_DOUBLEBUFFER_H
+#define AAUDIOTRACK_DOUBLEBUFFER_H
+
+#include <atomic>
+#include <thread>
+
+// two copies of T, one is published and may be read by the audio thread,
+// the other is rebuilt by the writer off to the side and then published in its place
+// with a single pointer store
+//
+// the audio thread marks the copy it is reading with pin, which is the acknowledgement
+// of a swap, the writer only rebuilds a copy once the audio thread is no longer reading it
+//
+// there must only be one writer at a time and one reader at a time,
+// the reader never waits, allocates or frees memory
+template <typename T>
+class DoubleBuffer {
+    T buffers[2];
+
+    // the copy the audio thread should read, only the writer stores this
+    std::atomic<T *> published {&buffers[0]};
+
+    // the copy the audio thread is reading, or nullptr between reads
+    std::atomic<T *> reading {nullptr};
+
+public:
+    // writer only, the copy the audio thread reads from its next pin
+    T * current() {
+        return published.load(std::memory_order_relaxed);
+    }
+
+    // writer only, returns the copy that is not published, once the audio thread has let go of it
+    //
+    // this waits for at most the duration of one pin/unpin pair on the audio thread,
+    // and never waits while the audio thread is not reading
+    T * beginWrite() {
+        T * spare = current() == &buffers[0] ? &buffers[1] : &buffers[0];
+        while (reading.load(std::memory_order_seq_cst) == spare) {
+            std::this_thread::yield();
+        }
+        return spare;
+    }
+
+    // writer only, publishes the copy returned by beginWrite
+    void publish(T * written) {
+        published.store(written, std::memory_order_seq_cst);
+    }
+
+    // writer only, waits until the audio thread has let go of the copy that was
+    // published before the current one
+    //
+    // after this returns, nothing the previous copy referred to is still being read
+    void synchronize() {
+        beginWrite();
+    }
+
+    // reader only, peeks at the published copy without pinning it
+    //
+    // the result must only be used to decide whether to pin again
+    const T * peek() {
+        return published.load(std::memory_order_acquire);
+    }
+
+    // reader only, marks the published copy as being read and returns it
+    //
+    // calling this again while pinned moves the pin to the newest copy
+    T * pin() {
+        T * pinned;
+        do {
+            pinned = published.load(std::memory_order_seq_cst);
+            reading.store(pinned, std::memory_order_seq_cst);
+            // if a copy was published in between, the writer may not have seen our
+            // store before choosing which copy to rebuild, so try again
+        } while (published.load(std::memory_order_seq_cst) != pinned);
+        return pinned;
+    }
+
+    // reader only, ends the read started by pin
+    void unpin() {
+        reading.store(nullptr, std::memory_order_release);
+    }
+};
+
+#endif //AAUDIOTRACK_DOUBLEBUFFER_H
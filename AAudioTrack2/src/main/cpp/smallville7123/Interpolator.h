@@ -0,0 +1,165 @@
+#ifndef AAUDIOTRACK_INTERPOLATOR_H
+#define AAUDIOTRACK_INTERPOLATOR_H
+
+#include <cmath>
+#include <cstddef>
+#include <cstdint>
+#include <vector>
+#include "Resampler.h"
+
+// reads a sample between its frames, for a voice that plays it at another pitch
+//
+// the voice walks through a window of planar frames with a 32.32 fixed point position,
+// which advances by the step of the voice every output frame, so a pitch is held exactly
+// over any length, the window must hold HALF - 1 frames before every position it is read
+// at and HALF frames after it
+//
+// the modes trade the cost of every output frame for less aliasing and less dulling:
+//
+//   DROP   the frame before the position, a rough, aliased sound
+//   LINEAR a straight line between the frames around the position
+//   CUBIC  a Catmull-Rom spline through the 4 frames around the position
+//   SINC   a Kaiser windowed sinc of TAPS frames, precomputed for PHASES positions between
+//          two frames and interpolated between them
+//
+// the sinc keeps a fixed cutoff, a voice pitched up far enough still aliases
+class Interpolator {
+public:
+    enum Mode {
+        DROP = 0,
+        LINEAR = 1,
+        CUBIC = 2,
+        SINC = 3
+    };
+
+    static constexpr Mode DEFAULT_MODE = CUBIC;
+
+    static constexpr size_t HALF = 8;
+    static constexpr size_t TAPS = 2 * HALF;
+
+    static constexpr uint32_t PHASE_BITS = 8;
+    static constexpr size_t PHASES = size_t(1) << PHASE_BITS;
+
+    static constexpr uint64_t ONE = uint64_t(1) << 32;
+
+    // the step of a voice playing semitones above the pitch of its sample
+    static uint64_t step(double semitones) {
+        return static_cast<uint64_t>(std::llround(std::exp2(semitones / 12) * ONE));
+    }
+
+    /**
+     * the sinc table, PHASES + 1 rows of TAPS taps, row p for the position p / PHASES
+     * of the way from one frame to the next, for the frames HALF - 1 before it to HALF after it
+     *
+     * built the first time it is asked for, which must not be on the audio thread
+     */
+    static const float * sincTable() {
+        static const std::vector<float> table = buildSincTable();
+        return table.data();
+    }
+
+    /**
+     * writes count frames read from the window left and right into outLeft and outRight
+     *
+     * @param position the position of the first frame, in frames from the start of the window
+     *                 in 32.32 fixed point
+     * @param step the frames the position advances by every output frame, in 32.32 fixed point
+     */
+    template <Mode MODE>
+    static void render(const float * left, const float * right, uint64_t position, uint64_t step,
+                       float * outLeft, float * outRight, size_t count, const float * table) {
+        for (size_t i = 0; i < count; i++, position += step) {
+            size_t frame = static_cast<size_t>(position >> 32);
+            uint32_t fraction = static_cast<uint32_t>(position);
+            switch (MODE) {
+                case DROP:
+                    outLeft[i] = left[frame];
+                    outRight[i] = right[frame];
+                    break;
+                case LINEAR: {
+                    float t = fraction * (1.0f / ONE);
+                    outLeft[i] = left[frame] + (t * (left[frame + 1] - left[frame]));
+                    outRight[i] = right[frame] + (t * (right[frame + 1] - right[frame]));
+                    break;
+                }
+                case CUBIC: {
+                    float t = fraction * (1.0f / ONE);
+                    outLeft[i] = cubic(left + frame - 1, t);
+                    outRight[i] = cubic(right + frame - 1, t);
+                    break;
+                }
+                case SINC: {
+                    uint32_t phase = fraction >> (32 - PHASE_BITS);
+                    float t = (fraction & ((uint32_t(1) << (32 - PHASE_BITS)) - 1)) * (1.0f / (uint32_t(1) << (32 - PHASE_BITS)));
+                    const float * row = table + (phase * TAPS);
+                    float kernel[TAPS];
+                    for (size_t k = 0; k < TAPS; k++) kernel[k] = row[k] + (t * (row[k + TAPS] - row[k]));
+                    outLeft[i] = Resampler::dot(kernel, left + frame - (HALF - 1), TAPS);
+                    outRight[i] = Resampler::dot(kernel, right + frame - (HALF - 1), TAPS);
+                    break;
+                }
+            }
+        }
+    }
+
+    // render, choosing the mode when the block starts instead of for every frame
+    static void render(Mode mode, const float * left, const float * right, uint64_t position, uint64_t step,
+                       float * outLeft, float * outRight, size_t count) {
+        switch (mode) {
+            case DROP: render<DROP>(left, right, position, step, outLeft, outRight, count, nullptr); break;
+            case LINEAR: render<LINEAR>(left, right, position, step, outLeft, outRight, count, nullptr); break;
+            case SINC: render<SINC>(left, right, position, step, outLeft, outRight, count, sincTable()); break;
+            default: render<CUBIC>(left, right, position, step, outLeft, outRight, count, nullptr); break;
+        }
+    }
+
+private:
+    // p holds the frames before, at, after and 2 after the position
+    static float cubic(const float * p, float t) {
+        float a = (-0.5f * p[0]) + (1.5f * p[1]) - (1.5f * p[2]) + (0.5f * p[3]);
+        float b = p[0] - (2.5f * p[1]) + (2.0f * p[2]) - (0.5f * p[3]);
+        float c = (-0.5f * p[0]) + (0.5f * p[2]);
+        return (((((a * t) + b) * t) + c) * t) + p[1];
+    }
+
+    static double bessel(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 64; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) break;
+        }
+        return sum;
+    }
+
+    static std::vector<float> buildSincTable() {
+        const double beta = 8.0;
+        const double cutoff = 0.9;
+        const double window = bessel(beta);
+        std::vector<float> table((PHASES + 1) * TAPS);
+        for (size_t phase = 0; phase <= PHASES; phase++) {
+            double fraction = static_cast<double>(phase) / PHASES;
+            float * row = table.data() + (phase * TAPS);
+            double taps[TAPS];
+            double sum = 0;
+            for (size_t k = 0; k < TAPS; k++) {
+                // the distance, in frames, from the position to frame k of the row
+                double t = (static_cast<double>(k) - (HALF - 1)) - fraction;
+                double x = t / HALF;
+                double value = 0;
+                if (x > -1 && x < 1) {
+                    double sinc = t == 0 ? 1 : std::sin(M_PI * cutoff * t) / (M_PI * cutoff * t);
+                    value = sinc * (bessel(beta * std::sqrt(1 - (x * x))) / window);
+                }
+                taps[k] = value;
+                sum += value;
+            }
+            // every phase passes a constant signal unchanged
+            for (size_t k = 0; k < TAPS; k++) row[k] = static_cast<float>(taps[k] / sum);
+        }
+        return table;
+    }
+};
+
+#endif //AAUDIOTRACK_INTERPOLATOR_H
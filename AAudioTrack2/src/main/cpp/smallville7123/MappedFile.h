@@ -0,0 +1,91 @@
+#ifndef AAUDIOTRACK_MAPPEDFILE_H
+#define AAUDIOTRACK_MAPPEDFILE_H
+
+#include <algorithm>
+#include <cstddef>
+#include <cstdint>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <AndroidDAW_SDK/Log/log.h>
+
+// a read only mapping of a file, or of a range of one
+//
+// the pages are backed by the file rather than by the native heap, the kernel
+// reads them in on first access and may drop them again under memory pressure
+//
+// the mapping stays valid after the file is deleted, until unmap is called
+class MappedFile {
+public:
+    const uint8_t * data = nullptr;
+    size_t size = 0;
+
+    MappedFile() = default;
+    MappedFile(const MappedFile &) = delete;
+    MappedFile & operator=(const MappedFile &) = delete;
+
+    ~MappedFile() {
+        unmap();
+    }
+
+    bool map(const char * path) {
+        unmap();
+        int fd = open(path, O_RDONLY | O_CLOEXEC);
+        if (fd == -1) {
+            LOGE("cannot open %s", path);
+            return false;
+        }
+        bool mapped = map(fd, 0, UINT64_MAX);
+        // the mapping holds its own reference to the file
+        close(fd);
+        if (!mapped) LOGE("cannot map %s", path);
+        return mapped;
+    }
+
+    // maps length bytes of fd from offset, or up to the end of the file if it is shorter
+    bool map(int fd, uint64_t offset, uint64_t length) {
+        unmap();
+        struct stat st {};
+        if (fstat(fd, &st) != 0 || static_cast<uint64_t>(st.st_size) <= offset) return false;
+        length = std::min(length, static_cast<uint64_t>(st.st_size) - offset);
+        // mmap needs a page aligned offset, the pages before offset are mapped but never read
+        static const uint64_t page = static_cast<uint64_t>(sysconf(_SC_PAGESIZE));
+        uint64_t start = offset - (offset % page);
+        size_t mapSize = static_cast<size_t>(length + (offset - start));
+        void * address = mmap(nullptr, mapSize, PROT_READ, MAP_SHARED, fd, static_cast<off_t>(start));
+        if (address == MAP_FAILED) return false;
+        base = static_cast<uint8_t *>(address);
+        baseSize = mapSize;
+        data = base + (offset - start);
+        size = static_cast<size_t>(length);
+        return true;
+    }
+
+    void unmap() {
+        if (base == nullptr) return;
+        munmap(base, baseSize);
+        base = nullptr;
+        baseSize = 0;
+        data = nullptr;
+        size = 0;
+    }
+
+    // hints how the mapping will be read, see madvise
+    void advise(size_t offset, size_t length, int advice) const {
+        if (data == nullptr || offset >= size) return;
+        // madvise needs a page aligned start
+        static const uintptr_t page = static_cast<uintptr_t>(sysconf(_SC_PAGESIZE));
+        uintptr_t address = reinterpret_cast<uintptr_t>(data) + offset;
+        uintptr_t start = address - (address % page);
+        length = std::min(size - offset, length) + (address - start);
+        madvise(reinterpret_cast<void *>(start), length, advice);
+    }
+
+private:
+    // the mapping itself, which starts at a page boundary at or before data
+    uint8_t * base = nullptr;
+    size_t baseSize = 0;
+};
+
+#endif //AAUDIOTRACK_MAPPEDFILE_H
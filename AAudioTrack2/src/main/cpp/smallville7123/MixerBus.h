@@ -0,0 +1,90 @@
+#ifndef AAUDIOTRACK_MIXERBUS_H
+#define AAUDIOTRACK_MIXERBUS_H
+
+#include <algorithm>
+#include <vector>
+#include "plugins/Mixer.h"
+#include "plugins/EffectRack.h"
+#include "Channel_Effect.h"
+
+class MixerBus;
+
+// sends a copy of a channel or bus to another bus, at its own level and pan
+//
+// a pre fader send is taken before the fader of its source,
+// a post fader send follows the fader of its source
+class MixerSend {
+public:
+    // nullptr sends to the master bus
+    MixerBus * target = nullptr;
+    bool preFader = false;
+
+    // the level and pan of the send
+    MixerStrip strip;
+
+    // the sends of the source, which owns this send
+    std::vector<MixerSend *> * from = nullptr;
+};
+
+// a mixer track, the sum of the channels, buses and sends routed to it,
+// processed by its inserts and then sent through its fader to its output
+//
+// buses are created, routed and deleted by AudioEngine, which compiles
+// them into the processing order of the RoutingGraph
+class MixerBus {
+public:
+    // the sum of the inputs of the bus, the master bus sums into the engine's output instead
+    PortUtils2 * out = nullptr;
+
+    // the inserts of the bus, compiled into the RoutingGraph when it is rebuilt
+    EffectRack * effectRack = nullptr;
+
+    // the output of the insert being run
+    PortUtils2 * insertPort = nullptr;
+
+    // the fader of the bus
+    MixerStrip strip;
+
+    // the bus this bus is mixed into after its fader, nullptr is the master bus
+    MixerBus * output = nullptr;
+
+    // owned by this bus
+    std::vector<MixerSend *> sends;
+
+    // the block out was last written in, see Mixer::Input::written
+    uint64_t renderedBlock = 0;
+
+    MixerBus() {
+        effectRack = new EffectRack();
+        out = new PortUtils2();
+        insertPort = new PortUtils2();
+    }
+
+    // never on the audio thread, allocates out and insertPort, see AudioEngine::preparePorts
+    void preparePorts(unsigned int samples, unsigned int channelCount) {
+        Mixer::preparePort(out, samples, channelCount);
+        Mixer::preparePort(insertPort, samples, channelCount);
+    }
+
+    // audio thread only, runs the inserts over port, in order, each one replacing port with its output
+    void writeInserts(const std::vector<Channel_Effect *> & inserts, HostInfo *hostInfo, Plugin *mixer,
+                      PortUtils2 *port, unsigned int samples) {
+        if (inserts.empty()) return;
+        for (Channel_Effect * insert : inserts) {
+            insertPort->fillPortBuffer<ENGINE_FORMAT>(0);
+            insert->plugin->is_writing = insert->plugin->write(hostInfo, port, mixer, insertPort, samples);
+            port->copyFromPortToPort<ENGINE_FORMAT>(*insertPort);
+        }
+    }
+
+    ~MixerBus() {
+        for (MixerSend * send : sends) delete send;
+        delete effectRack;
+        out->deallocatePorts<ENGINE_FORMAT>();
+        delete out;
+        insertPort->deallocatePorts<ENGINE_FORMAT>();
+        delete insertPort;
+    }
+};
+
+#endif //AAUDIOTRACK_MIXERBUS_H
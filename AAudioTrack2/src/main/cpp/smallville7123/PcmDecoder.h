@@ -0,0 +1,355 @@
+#ifndef AAUDIOTRACK_PCMDECODER_H
+#define AAUDIOTRACK_PCMDECODER_H
+
+#include <algorithm>
+#include <cmath>
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <functional>
+#include <string>
+#include <vector>
+#include <AndroidDAW_SDK/Log/log.h>
+#include "Resampler.h"
+
+// converts uncompressed WAV and AIFF files to the engine's format without FFmpeg
+//
+// the file is read in place from memory, usually a mapping of it, and converted in one
+// pass, block by block, to interleaved float at the engine's sample rate and channel count,
+// see Resampler
+//
+// handles 8, 16, 24 and 32 bit integer and 32 and 64 bit float pcm, in WAV (including
+// WAVE_FORMAT_EXTENSIBLE), AIFF and uncompressed AIFF-C files, anything else is left to FFmpeg
+//
+// a mono file is played on every channel, a mono engine plays the average of the channels
+// of a file, otherwise channel c of the engine plays channel c of the file, or its last channel
+class PcmDecoder {
+public:
+    enum Encoding {
+        UNSIGNED_INT,
+        SIGNED_INT,
+        FLOAT
+    };
+
+    Encoding encoding = SIGNED_INT;
+    unsigned int bytesPerSample = 0;
+    bool bigEndian = false;
+    unsigned int channels = 0;
+    uint32_t sampleRate = 0;
+    // the bytes from one frame to the next, at least channels * bytesPerSample
+    size_t frameStride = 0;
+    const uint8_t * data = nullptr;
+    uint64_t frames = 0;
+
+    // the frames converted or resampled at a time
+    static constexpr size_t BLOCK_FRAMES = 1024;
+
+private:
+    static uint16_t le16(const uint8_t * p) {
+        return static_cast<uint16_t>(p[0] | (p[1] << 8));
+    }
+
+    static uint32_t le32(const uint8_t * p) {
+        return static_cast<uint32_t>(p[0]) | (static_cast<uint32_t>(p[1]) << 8)
+               | (static_cast<uint32_t>(p[2]) << 16) | (static_cast<uint32_t>(p[3]) << 24);
+    }
+
+    static uint16_t be16(const uint8_t * p) {
+        return static_cast<uint16_t>((p[0] << 8) | p[1]);
+    }
+
+    static uint32_t be32(const uint8_t * p) {
+        return (static_cast<uint32_t>(p[0]) << 24) | (static_cast<uint32_t>(p[1]) << 16)
+               | (static_cast<uint32_t>(p[2]) << 8) | static_cast<uint32_t>(p[3]);
+    }
+
+    // the 80 bit IEEE 754 extended precision number AIFF stores its sample rate in
+    static double extended(const uint8_t * p) {
+        int exponent = ((p[0] & 0x7F) << 8) | p[1];
+        uint64_t mantissa = 0;
+        for (int i = 0; i < 8; i++) mantissa = (mantissa << 8) | p[2 + i];
+        if (exponent == 0 && mantissa == 0) return 0;
+        double value = std::ldexp(static_cast<double>(mantissa), exponent - 16383 - 63);
+        return (p[0] & 0x80) ? -value : value;
+    }
+
+    bool setEncoding(Encoding newEncoding, unsigned int bits) {
+        encoding = newEncoding;
+        bytesPerSample = (bits + 7) / 8;
+        if (encoding == FLOAT) return bytesPerSample == 4 || bytesPerSample == 8;
+        return bytesPerSample >= 1 && bytesPerSample <= 4;
+    }
+
+    // clamps the data to the file and derives the frame count, false if there is no audio
+    bool setData(const uint8_t * file, size_t size, size_t offset, uint64_t bytes) {
+        if (channels == 0 || sampleRate == 0 || offset > size) return false;
+        if (frameStride < channels * bytesPerSample) return false;
+        data = file + offset;
+        frames = std::min<uint64_t>(bytes, size - offset) / frameStride;
+        return frames != 0;
+    }
+
+    bool openWav(const uint8_t * file, size_t size) {
+        bool haveFormat = false;
+        size_t position = 12;
+        while (position + 8 <= size) {
+            const uint8_t * chunk = file + position;
+            uint32_t chunkBytes = le32(chunk + 4);
+            size_t body = position + 8;
+            if (memcmp(chunk, "fmt ", 4) == 0 && chunkBytes >= 16 && body + 16 <= size) {
+                const uint8_t * fmt = file + body;
+                uint16_t tag = le16(fmt);
+                channels = le16(fmt + 2);
+                sampleRate = le32(fmt + 4);
+                frameStride = le16(fmt + 12);
+                unsigned int bits = le16(fmt + 14);
+                // WAVE_FORMAT_EXTENSIBLE keeps the real tag at the start of its sub format
+                if (tag == 0xFFFE && chunkBytes >= 40 && body + 40 <= size) tag = le16(fmt + 24);
+                if (tag == 1) {
+                    // 8 bit WAV is the only unsigned format
+                    haveFormat = setEncoding(bits <= 8 ? UNSIGNED_INT : SIGNED_INT, bits);
+                } else if (tag == 3) {
+                    haveFormat = setEncoding(FLOAT, bits);
+                } else {
+                    return false;
+                }
+                if (!haveFormat) return false;
+            } else if (memcmp(chunk, "data", 4) == 0) {
+                if (!haveFormat) return false;
+                // a writer that could not seek back leaves the size unset, the data runs to the end
+                uint64_t bytes = (chunkBytes == 0 || chunkBytes == 0xFFFFFFFF) ? UINT64_MAX : chunkBytes;
+                bigEndian = false;
+                return setData(file, size, body, bytes);
+            }
+            // chunks are padded to an even size
+            position = body + chunkBytes + (chunkBytes & 1);
+        }
+        return false;
+    }
+
+    bool openAiff(const uint8_t * file, size_t size, bool compressed) {
+        bool haveFormat = false;
+        size_t position = 12;
+        while (position + 8 <= size) {
+            const uint8_t * chunk = file + position;
+            uint32_t chunkBytes = be32(chunk + 4);
+            size_t body = position + 8;
+            if (memcmp(chunk, "COMM", 4) == 0 && chunkBytes >= 18 && body + 18 <= size) {
+                const uint8_t * comm = file + body;
+                channels = be16(comm);
+                unsigned int bits = be16(comm + 6);
+                sampleRate = static_cast<uint32_t>(extended(comm + 8) + 0.5);
+                bigEndian = true;
+                Encoding kind = SIGNED_INT;
+                if (compressed) {
+                    if (chunkBytes < 22 || body + 22 > size) return false;
+                    const uint8_t * type = comm + 18;
+                    if (memcmp(type, "sowt", 4) == 0) {
+                        bigEndian = false;
+                    } else if (memcmp(type, "fl32", 4) == 0 || memcmp(type, "FL32", 4) == 0) {
+                        kind = FLOAT;
+                        bits = 32;
+                    } else if (memcmp(type, "fl64", 4) == 0 || memcmp(type, "FL64", 4) == 0) {
+                        kind = FLOAT;
+                        bits = 64;
+                    } else if (memcmp(type, "NONE", 4) != 0) {
+                        return false;
+                    }
+                }
+                haveFormat = setEncoding(kind, bits);
+                if (!haveFormat) return false;
+                frameStride = channels * bytesPerSample;
+            } else if (memcmp(chunk, "SSND", 4) == 0 && chunkBytes >= 8 && body + 8 <= size) {
+                if (!haveFormat) return false;
+                uint32_t offset = be32(file + body);
+                return setData(file, size, body + 8 + offset, chunkBytes - 8 - std::min<uint32_t>(offset, chunkBytes - 8));
+            }
+            position = body + chunkBytes + (chunkBytes & 1);
+        }
+        return false;
+    }
+
+    // reads count samples spaced step bytes apart, scaled to -1..1
+    template <typename Read>
+    static void read(const uint8_t * source, size_t step, size_t count, float * out, size_t outStep, Read sample) {
+        for (size_t i = 0; i < count; i++) {
+            out[i * outStep] = sample(source + (i * step));
+        }
+    }
+
+    // converts channel of count frames from frame to float
+    void readChannel(uint64_t frame, unsigned int channel, size_t count, float * out, size_t outStep) const {
+        const uint8_t * source = data + (frame * frameStride) + (channel * bytesPerSample);
+        const size_t step = frameStride;
+        if (encoding == FLOAT) {
+            if (bytesPerSample == 4) {
+                read(source, step, count, out, outStep, [this](const uint8_t * p) {
+                    uint32_t bits = bigEndian ? be32(p) : le32(p);
+                    float value;
+                    memcpy(&value, &bits, sizeof(value));
+                    return value;
+                });
+            } else {
+                read(source, step, count, out, outStep, [this](const uint8_t * p) {
+                    uint64_t bits = bigEndian
+                                    ? (static_cast<uint64_t>(be32(p)) << 32) | be32(p + 4)
+                                    : (static_cast<uint64_t>(le32(p + 4)) << 32) | le32(p);
+                    double value;
+                    memcpy(&value, &bits, sizeof(value));
+                    return static_cast<float>(value);
+                });
+            }
+            return;
+        }
+        switch (bytesPerSample) {
+            case 1:
+                if (encoding == UNSIGNED_INT) {
+                    read(source, step, count, out, outStep, [](const uint8_t * p) {
+                        return (static_cast<int>(p[0]) - 128) * (1.0f / 128);
+                    });
+                } else {
+                    read(source, step, count, out, outStep, [](const uint8_t * p) {
+                        return static_cast<int8_t>(p[0]) * (1.0f / 128);
+                    });
+                }
+                break;
+            case 2:
+                if (bigEndian) {
+                    read(source, step, count, out, outStep, [](const uint8_t * p) {
+                        return static_cast<int16_t>(be16(p)) * (1.0f / 32768);
+                    });
+                } else {
+                    read(source, step, count, out, outStep, [](const uint8_t * p) {
+                        return static_cast<int16_t>(le16(p)) * (1.0f / 32768);
+                    });
+                }
+                break;
+            case 3:
+                // the 24 bits are placed at the top of a 32 bit integer to extend their sign
+                if (bigEndian) {
+                    read(source, step, count, out, outStep, [](const uint8_t * p) {
+                        uint32_t bits = (static_cast<uint32_t>(p[0]) << 24) | (static_cast<uint32_t>(p[1]) << 16)
+                                        | (static_cast<uint32_t>(p[2]) << 8);
+                        return static_cast<int32_t>(bits) * (1.0f / 2147483648.0f);
+                    });
+                } else {
+                    read(source, step, count, out, outStep, [](const uint8_t * p) {
+                        uint32_t bits = (static_cast<uint32_t>(p[2]) << 24) | (static_cast<uint32_t>(p[1]) << 16)
+                                        | (static_cast<uint32_t>(p[0]) << 8);
+                        return static_cast<int32_t>(bits) * (1.0f / 2147483648.0f);
+                    });
+                }
+                break;
+            default:
+                if (bigEndian) {
+                    read(source, step, count, out, outStep, [](const uint8_t * p) {
+                        return static_cast<int32_t>(be32(p)) * (1.0f / 2147483648.0f);
+                    });
+                } else {
+                    read(source, step, count, out, outStep, [](const uint8_t * p) {
+                        return static_cast<int32_t>(le32(p)) * (1.0f / 2147483648.0f);
+                    });
+                }
+                break;
+        }
+    }
+
+    // converts count frames from frame to interleaved float with outChannels channels
+    void convert(uint64_t frame, size_t count, float * out, unsigned int outChannels) const {
+        if (outChannels == 1 && channels > 1) {
+            std::vector<float> channel(count);
+            std::fill(out, out + count, 0.0f);
+            for (unsigned int c = 0; c < channels; c++) {
+                readChannel(frame, c, count, channel.data(), 1);
+                for (size_t i = 0; i < count; i++) out[i] += channel[i];
+            }
+            const float scale = 1.0f / channels;
+            for (size_t i = 0; i < count; i++) out[i] *= scale;
+            return;
+        }
+        for (unsigned int c = 0; c < outChannels; c++) {
+            readChannel(frame, std::min(c, channels - 1), count, out + c, outChannels);
+        }
+    }
+
+public:
+    /**
+     * reads the header of a WAV or AIFF file held in memory, which must stay valid until decoding is done
+     *
+     * @return false if the file is not a pcm WAV or AIFF file
+     */
+    bool open(const uint8_t * file, size_t size) {
+        if (file == nullptr || size < 12) return false;
+        if (memcmp(file, "RIFF", 4) == 0 && memcmp(file + 8, "WAVE", 4) == 0) return openWav(file, size);
+        if (memcmp(file, "FORM", 4) == 0) {
+            if (memcmp(file + 8, "AIFF", 4) == 0) return openAiff(file, size, false);
+            if (memcmp(file + 8, "AIFC", 4) == 0) return openAiff(file, size, true);
+        }
+        return false;
+    }
+
+    // the frames the file has once converted to outputRate
+    uint64_t outputFrames(int outputRate) const {
+        if (static_cast<uint32_t>(outputRate) == sampleRate) return frames;
+        return ((frames * outputRate) + sampleRate - 1) / sampleRate;
+    }
+
+    /**
+     * converts the file to interleaved float at outputRate with outputChannels channels,
+     * handing it to write one block at a time
+     *
+     * a file at another rate is converted with a Resampler of the given quality
+     *
+     * @param write receives samples, not frames, returns false to stop
+     * @return false if write stopped the conversion
+     */
+    bool decode(int outputRate, unsigned int outputChannels, Resampler::Quality quality,
+                const Resampler::Writer & write) const {
+        if (static_cast<uint32_t>(outputRate) != sampleRate) {
+            Resampler resampler(sampleRate, static_cast<uint32_t>(outputRate), quality);
+            return resampler.process(frames, outputChannels, [&](uint64_t first, size_t count, float * interleaved) {
+                convert(first, count, interleaved, outputChannels);
+            }, write);
+        }
+        std::vector<float> block(BLOCK_FRAMES * outputChannels);
+        for (uint64_t frame = 0; frame < frames; frame += BLOCK_FRAMES) {
+            size_t count = static_cast<size_t>(std::min<uint64_t>(BLOCK_FRAMES, frames - frame));
+            convert(frame, count, block.data(), outputChannels);
+            if (!write(block.data(), count * outputChannels)) return false;
+        }
+        return true;
+    }
+
+    // converts the file into pcm, see decode
+    void decodeInto(std::vector<float> & pcm, int outputRate, unsigned int outputChannels,
+                    Resampler::Quality quality) const {
+        pcm.clear();
+        pcm.reserve(outputFrames(outputRate) * outputChannels);
+        decode(outputRate, outputChannels, quality, [&pcm](const float * samples, size_t count) {
+            pcm.insert(pcm.end(), samples, samples + count);
+            return true;
+        });
+    }
+
+    /**
+     * converts the file to raw pcm at path, in the format AAudioTrack2.decodeTo writes, see decode
+     *
+     * @return false if path cannot be written
+     */
+    bool decodeTo(const std::string & path, int outputRate, unsigned int outputChannels,
+                  Resampler::Quality quality) const {
+        FILE * file = fopen(path.c_str(), "wb");
+        if (file == nullptr) {
+            LOGE("cannot write %s", path.c_str());
+            return false;
+        }
+        bool written = decode(outputRate, outputChannels, quality, [file](const float * samples, size_t count) {
+            return fwrite(samples, sizeof(float), count, file) == count;
+        });
+        if (fclose(file) != 0) written = false;
+        if (!written) LOGE("cannot write %s", path.c_str());
+        return written;
+    }
+};
+
+#endif //AAUDIOTRACK_PCMDECODER_H
@@ -9,6 +9,9 @@
 #include "MidiMap.h"
 #include <AndroidDAW_SDK/RingBuffer/ringbuffer.hpp>
 #include <AndroidDAW_SDK/midifile/MidiEvent.h>
+#include "DoubleBuffer.h"
+#include <algorithm>
+#include <atomic>
 #include <cstdarg>
 #include <vector>
 
@@ -28,116 +31,515 @@ public:
         TempoGrid::map_tempo_to_sample(grid);
     }
 
-    // lock free, wait free ring buffer, 20 to the power of 2
-    // sample index, should this note be played
-    HostInfo::PianoRollRingBuffer noteData;
+    // a complete set of note events
+    //
+    // a PianoRoll owns two of these, one is published and may be read by the audio thread,
+    // the other is rebuilt by the writer off to the side and then published in its place
+    struct Events {
+        // lock free, wait free ring buffer, 20 to the power of 2
+        // sample index, should this note be played
+        HostInfo::PianoRollRingBuffer noteData;
+        // the generation these events were published in, the playback cursor is only
+        // reused for the events it was found in
+        uint32_t generation = 0;
+        // the number of steps these events were built from, 0 if they do not use the step layout
+        int stepCount = 0;
+        // the number of samples after which these events repeat
+        int64_t length = 0;
+    };
+
+private:
+    DoubleBuffer<Events> events;
+
+    // the writer's generation counter, every rebuild gets a new generation
+    uint32_t nextGeneration = 0;
+
+    // a change to the steps [offset, offset + count), count is at most 64
+    struct StepEdit {
+        int32_t offset;
+        int32_t count;
+        // bit i is the new state of step offset + i
+        uint64_t bits;
+    };
+
+    // writer only, the edits the published events have and the spare events do not
+    //
+    // the spare events are copied from the published events after every full rebuild,
+    // and after an edit they are the events published before it, so they lag behind
+    // the published events by exactly the last edit
+    std::vector<StepEdit> spareLag;
+
+    // returns the events that are not published, once the audio thread has let go of them
+    Events * beginRebuild() {
+        return events.beginWrite();
+    }
+
+    // publishes the rebuilt events, the audio thread picks them up at its next acquire
+    void endRebuild(Events * rebuilt, int stepCount, int64_t length) {
+        rebuilt->generation = ++nextGeneration;
+        rebuilt->stepCount = stepCount;
+        rebuilt->length = length;
+        events.publish(rebuilt);
+    }
+
+    // publishes events that were rebuilt from scratch, then copies them into the spare
+    // events once the audio thread has let go of those, so that the step edits after
+    // this only ever rewrite the events of the steps they change
+    //
+    // events that do not use the step layout are not copied, as no step edit applies to them
+    void endFullRebuild(Events * rebuilt, int stepCount, int64_t length) {
+        endRebuild(rebuilt, stepCount, length);
+        spareLag.clear();
+        if (stepCount != 0) copyEvents(*rebuilt, *beginRebuild());
+    }
+
+    // audio thread only, the events this block reads
+    Events * live = nullptr;
+
+public:
+
+    // audio thread only, returns the events to read for this block
+    //
+    // this picks up the most recently published events, they stay valid until release is called
+    HostInfo::PianoRollRingBuffer & acquire() {
+        live = events.pin();
+        return live->noteData;
+    }
+
+    // audio thread only, ends the read started by acquire
+    void release() {
+        live = nullptr;
+        events.unpin();
+    }
 
     int noteindex = -1;
 
+private:
+    // audio thread only, the playback cursor
+    //
+    // cursor is the index of the next event to play, it is only valid for the events of
+    // cursorGeneration when the pattern position is cursorPosition, anything else
+    // (a seek, a new set of events, the first block) is found again with a binary search
+    uint32_t cursorGeneration = 0;
+    size_t cursor = 0;
+    int64_t cursorPosition = -1;
+
+    // audio thread only, the events at tick length of a loop that ended on the last frame
+    // of the previous block, they play on the first frame of the next block
+    //
+    // they are copied out of the events they were found in, as new events may be published
+    // before the next block, which would lose them, such as the note off of the last step
+    static constexpr size_t MAX_LOOP_END_EVENTS = 16;
+    smf::MidiEvent loopEnd[MAX_LOOP_END_EVENTS];
+    size_t loopEndCount = 0;
+
+    // the index of the first event whose tick is at or after position
+    static size_t lowerBound(HostInfo::PianoRollRingBuffer & noteData, size_t size, int64_t position) {
+        size_t first = 0;
+        size_t count = size;
+        while (count > 0) {
+            size_t half = count / 2;
+            smf::MidiEvent * midiEvent = noteData.at(first + half);
+            if (midiEvent != nullptr && midiEvent->tick < position) {
+                first += half + 1;
+                count -= half + 1;
+            } else {
+                count = half;
+            }
+        }
+        return first;
+    }
+
+public:
+
+    // audio thread only, replaces the contents of buffer with the events that play
+    // in the block [engineSample, engineSample + samples)
+    //
+    // the tick of every copied event is its offset from the start of the block,
+    // from 0 to samples - 1, so a block can be split at its events
+    //
+    // the events repeat every Events::length samples, an event at tick length plays on
+    // the first frame of the next loop, the cursor moves forward from where the previous
+    // block ended, so the cost of a block depends on the number of events in it and not
+    // on the length of the pattern
+    void fillMidiEvents(HostInfo::PianoRollRingBuffer & buffer, unsigned int samples, int64_t engineSample) {
+        buffer.consumerClear();
+        HostInfo::PianoRollRingBuffer & noteData = acquire();
+        int64_t length = live->length;
+        size_t size = noteData.readAvailable();
+        bool empty = length <= 0 || size == 0 || engineSample < 0;
+        if (loopEndCount != 0) {
+            // a block that starts a loop, or a pattern that was emptied, still ends the previous loop
+            if (empty || engineSample % length == 0) {
+                for (size_t i = 0; i < loopEndCount; i++) {
+                    smf::MidiEvent event = loopEnd[i];
+                    event.tick = 0;
+                    buffer.insert(event);
+                }
+            }
+            loopEndCount = 0;
+        }
+        if (empty) {
+            release();
+            return;
+        }
+        int64_t position = engineSample % length;
+        if (cursorGeneration != live->generation || cursorPosition != position) {
+            // seek
+            cursor = lowerBound(noteData, size, position);
+            cursorGeneration = live->generation;
+        }
+        int64_t remaining = samples;
+        while (remaining > 0) {
+            if (position == 0 && cursor != 0) {
+                // the events at tick length end the previous loop, such as the note off of
+                // the last step, they play on the first frame of the next loop before its events
+                //
+                // this is only reached when the loop ends inside the block, see loopEnd
+                while (cursor < size) {
+                    smf::MidiEvent * midiEvent = noteData.at(cursor);
+                    if (midiEvent == nullptr) break;
+                    smf::MidiEvent event = *midiEvent;
+                    event.tick = samples - remaining;
+                    buffer.insert(event);
+                    cursor++;
+                }
+                cursor = 0;
+            }
+            int64_t end = std::min(position + remaining, length);
+            while (cursor < size) {
+                smf::MidiEvent * midiEvent = noteData.at(cursor);
+                if (midiEvent == nullptr || midiEvent->tick >= end) break;
+                smf::MidiEvent event = *midiEvent;
+                event.tick = (samples - remaining) + (midiEvent->tick - position);
+                buffer.insert(event);
+                cursor++;
+            }
+            remaining -= end - position;
+            position = end;
+            if (position == length) {
+                // loop, the cursor is left on the events at tick length, if any
+                position = 0;
+            }
+        }
+        if (position == 0 && cursor != 0) {
+            // the loop ended on the last frame of this block
+            for (; cursor < size; cursor++) {
+                smf::MidiEvent * midiEvent = noteData.at(cursor);
+                if (midiEvent == nullptr) break;
+                if (loopEndCount < MAX_LOOP_END_EVENTS) loopEnd[loopEndCount++] = *midiEvent;
+            }
+            cursor = 0;
+        }
+        cursorPosition = position;
+        release();
+    }
+
     void setNoteData(bool * noteData, int size) {
+        setSteps(size, [noteData](int i) { return noteData[i]; });
+    }
+
+    // packed steps, one bit per step, step i is bit (i % 64) of steps[i / 64]
+    //
+    // this is the layout of smallville7123.aaudiotrack2.Steps
+    void setNoteData(const uint64_t * steps, int size) {
+        setSteps(size, [steps](int i) { return ((steps[i >> 6] >> (i & 63)) & 1) != 0; });
+    }
+
+    // every step owns EVENTS_PER_STEP events, in this order
+    //
+    //   tick (step * samples_per_note) - 1, a note off that ends the note of the
+    //   previous step when both steps are on, so the note is retriggered
+    //
+    //   tick step * samples_per_note, a note on if the step is on, otherwise a
+    //   note off that ends the note of the previous step
+    //
+    // followed by one final event that ends the note of the last step
+    //
+    // every note is of STEP_KEY, the note of a step always ends before the note of the
+    // next step starts, so a note off of STEP_KEY only ends the note of the step before it
+    //
+    // events that are not needed are rests, which are neither a note on nor a note off,
+    // so every step keeps its events at the same index and a single step can be
+    // changed by rewriting at most three events, see applyEdit
+    static constexpr int EVENTS_PER_STEP = 2;
+    static constexpr int DEFAULT_VELOCITY = 127;
+
+    // middle C, Sampler::DEFAULT_ROOT_KEY, so a pitched sampler plays the steps at the pitch
+    // of the sample unless its root key is changed
+    static constexpr int STEP_KEY = 60;
+
+    // builds the note events from a sequence of on/off steps
+    // isOn(i) returns true if step i is on
+    //
+    // the events are built into the set the audio thread is not reading and then
+    // published with a single pointer store, so the audio thread never sees a
+    // partially built pattern
+    //
+    // this, setStep, setSteps and snapshotEvents must only be called from one thread at a time
+    template <typename StepFunction>
+    void setSteps(int size, StepFunction isOn) {
+        Events * rebuilt = beginRebuild();
+        HostInfo::PianoRollRingBuffer & noteData = rebuilt->noteData;
         uint64_t sample = 0;
-        this->noteData.consumerClear();
-        int counter = -1;
-        bool x = false;
-        bool on = false;
+        noteData.consumerClear();
+        bool previous = false;
         for (int i = 0; i < size; ++i) {
-            if (noteData[i]) {
-                if (x) {
-                    on = false;
-                    smf::MidiEvent midiEvent;
-                    midiEvent.tick = sample-1;
-                    midiEvent.makeNoteOff(0, counter, 0);
-                    this->noteData.insert(midiEvent);
-                }
-                on = true;
-                counter++;
-                smf::MidiEvent midiEvent;
-                midiEvent.tick = sample;
-                midiEvent.makeNoteOn(0, counter, 127);
-                this->noteData.insert(midiEvent);
-                if (!x) x = true;
-            } else {
-                on = false;
-                smf::MidiEvent midiEvent;
-                midiEvent.tick = sample;
-                midiEvent.makeNoteOff(0, counter, 0);
-                this->noteData.insert(midiEvent);
-            }
+            bool on = isOn(i);
+            smf::MidiEvent retrigger;
+            retrigger.tick = i == 0 ? 0 : sample - 1;
+            makeRetrigger(retrigger, previous, on);
+            noteData.insert(retrigger);
+            smf::MidiEvent step;
+            step.tick = sample;
+            makeStep(step, on);
+            noteData.insert(step);
+            previous = on;
             sample += grid.samples_per_note;
         }
-        if (on) {
-            on = false;
-            smf::MidiEvent midiEvent;
-            midiEvent.tick = sample;
-            sample += grid.samples_per_note;
-            midiEvent.makeNoteOff(0, counter, 0);
-            this->noteData.insert(midiEvent);
+        if (size != 0) {
+            smf::MidiEvent end;
+            end.tick = sample;
+            makeEnd(end, previous);
+            noteData.insert(end);
+        }
+        endFullRebuild(rebuilt, size, sample);
+    }
+
+    static constexpr int MAX_STEPS_PER_EDIT = 64;
+
+    // changes a single step
+    //
+    // the change is made to the events the audio thread is not reading, which are then
+    // published in place of the current ones, only the events of the changed step and
+    // of the step after it are rewritten
+    //
+    // this returns false if the events were not built from steps, the caller should
+    // then re-send every step instead, a step past the last one is ignored
+    bool setStep(int index, bool on) {
+        if (index < 0) return false;
+        StepEdit edit {};
+        edit.offset = index;
+        edit.count = 1;
+        edit.bits = on ? 1 : 0;
+        return applyEdits(&edit, 1);
+    }
+
+    // changes the steps [offset, offset + size) in the same way as setStep
+    //
+    // the steps are packed in the same way as setNoteData(const uint64_t *, int)
+    // and are all published together
+    bool setSteps(int offset, const uint64_t * steps, int size) {
+        if (offset < 0 || size < 0) return false;
+        std::vector<StepEdit> edits;
+        edits.reserve((size + MAX_STEPS_PER_EDIT - 1) / MAX_STEPS_PER_EDIT);
+        for (int first = 0; first < size; first += MAX_STEPS_PER_EDIT) {
+            StepEdit edit {};
+            edit.offset = offset + first;
+            edit.count = std::min(size - first, MAX_STEPS_PER_EDIT);
+            for (int i = 0; i < edit.count; ++i) {
+                int step = first + i;
+                if ((steps[step >> 6] >> (step & 63)) & 1) edit.bits |= uint64_t(1) << i;
+            }
+            edits.push_back(edit);
         }
+        return applyEdits(edits.data(), edits.size());
+    }
+
+private:
+    // brings the spare events up to date with the published events, applies the edits
+    // to them and publishes them, the events that were published become the spare events
+    //
+    // this costs as much as the edits and the edit before them, never the length of the pattern
+    bool applyEdits(const StepEdit * edits, size_t count) {
+        Events * published = events.current();
+        if (published->stepCount == 0) return false;
+        Events * spare = beginRebuild();
+        for (const StepEdit & edit : spareLag) applyEdit(*spare, published->stepCount, edit);
+        for (size_t i = 0; i < count; ++i) applyEdit(*spare, published->stepCount, edits[i]);
+        endRebuild(spare, published->stepCount, published->length);
+        spareLag.assign(edits, edits + count);
+        return true;
+    }
+
+    static void copyEvents(Events & from, Events & to) {
+        to.noteData.consumerClear();
+        size_t size = from.noteData.readAvailable();
+        for (size_t i = 0; i < size; ++i) {
+            smf::MidiEvent * midiEvent = from.noteData.at(i);
+            if (midiEvent != nullptr) to.noteData.insert(*midiEvent);
+        }
+    }
+
+    // rewrites the events of the changed steps, of the step after them and the final event
+    static void applyEdit(Events & target, int size, const StepEdit & edit) {
+        HostInfo::PianoRollRingBuffer & noteData = target.noteData;
+        int end = std::min(edit.offset + edit.count, size);
+        if (edit.offset >= end) return;
+        for (int i = edit.offset; i < end; ++i) {
+            bool on = (edit.bits >> (i - edit.offset)) & 1;
+            smf::MidiEvent * step = noteData.at(i * EVENTS_PER_STEP + 1);
+            if (step != nullptr) makeStep(*step, on);
+        }
+        // a step decides the retrigger of the step after it, and the last step decides the final event
+        for (int i = edit.offset; i <= end && i <= size; ++i) {
+            smf::MidiEvent * event = noteData.at(i * EVENTS_PER_STEP);
+            if (event == nullptr) continue;
+            bool previous = i != 0 && isStepOn(noteData, i - 1);
+            if (i == size) makeEnd(*event, previous);
+            else makeRetrigger(*event, previous, isStepOn(noteData, i));
+        }
+    }
+
+    static bool isStepOn(HostInfo::PianoRollRingBuffer & noteData, int index) {
+        smf::MidiEvent * step = noteData.at(index * EVENTS_PER_STEP + 1);
+        return step != nullptr && step->isNoteOn();
     }
 
+    // every rest is three bytes long like a note, so turning it into a note later
+    // does not need to grow the message
+    static void makeRest(smf::MidiEvent & event) {
+        event.makeNoteOff(0, 0, 0);
+        // polyphonic key pressure, ignored by every generator
+        event.setP0(0xA0);
+    }
+
+    static void makeRetrigger(smf::MidiEvent & event, bool previous, bool on) {
+        if (previous && on) event.makeNoteOff(0, STEP_KEY, 0);
+        else makeRest(event);
+    }
+
+    // a step that is off ends the note of the step before it, step 0 ends the note of the
+    // last step, which is already ended by the final event unless the pattern is cut short
+    static void makeStep(smf::MidiEvent & event, bool on) {
+        if (on) event.makeNoteOn(0, STEP_KEY, DEFAULT_VELOCITY);
+        else event.makeNoteOff(0, STEP_KEY, 0);
+    }
+
+    static void makeEnd(smf::MidiEvent & event, bool last) {
+        if (last) event.makeNoteOff(0, STEP_KEY, 0);
+        else makeRest(event);
+    }
+
+public:
+
     void setNoteData(std::vector<int> noteData) {
+        Events * rebuilt = beginRebuild();
         uint64_t sample = 0;
-        this->noteData.consumerClear();
+        rebuilt->noteData.consumerClear();
         for(int & data : noteData) {
             smf::MidiEvent midiEvent;
             if (data == 1) midiEvent.makeNoteOn(0, 0, 64);
             else midiEvent.makeNoteOff(0, 0, 0);
             midiEvent.tick = sample;
-            this->noteData.insert(midiEvent);
+            rebuilt->noteData.insert(midiEvent);
             sample += grid.samples_per_note;
         }
+        // these events do not use the step layout, so no step edit applies to them
+        endFullRebuild(rebuilt, 0, sample);
     }
 
-    smf::MidiEvent * getMidiEventAt(int i) {
-        if (!noteData.isEmpty()) {
-            int size = noteData.readAvailable();
-            if (size > i) {
-                return noteData.at(i);
-            }
-        }
-        return nullptr;
-    }
+    // event types written into a snapshot, these match the
+    // NO_EVENT, EVENT_NOTE_ON and EVENT_NOTE_OFF constants in AAudioTrack2.java
+    static constexpr int32_t SNAPSHOT_NO_EVENT = 0;
+    static constexpr int32_t SNAPSHOT_NOTE_ON = 1;
+    static constexpr int32_t SNAPSHOT_NOTE_OFF = 2;
 
-    int getMidiTickAt(void * midiEvent) {
-        smf::MidiEvent *midiEvent_ = reinterpret_cast<smf::MidiEvent*>(midiEvent);
-        if (midiEvent_ != nullptr) return midiEvent_->tick;
-        return -1;
-    }
+    // each event in a snapshot is packed as
+    // tick, channel, key number, velocity, type
+    static constexpr int SNAPSHOT_FIELDS = 5;
 
-    int getMidiChannelAt(void * midiEvent) {
-        smf::MidiEvent *midiEvent_ = reinterpret_cast<smf::MidiEvent*>(midiEvent);
-        if (midiEvent_ != nullptr) return midiEvent_->getChannel();
-        return -1;
-    }
+    // copies every published event whose tick lies in [fromTick, toTick) into out, along with
+    // the events of the notes that cross the edges of that window:
+    //
+    //   first, the note on of every note that is still on at fromTick
+    //   then,  the events inside the window
+    //   last,  the note off of every note that is still on at toTick
+    //
+    // so every note that is visible in the window is written as a note on followed by its
+    // note off, in the order of their ticks, even if it starts before the window or ends after it
+    //
+    // at most capacity events are written, the return value is the total number
+    // of matching events, so the caller can grow its buffer and try again if
+    // the return value is larger than capacity
+    //
+    // the events are copied by value so no pointer into noteData ever leaves this class
+    int snapshotEvents(int32_t fromTick, int32_t toTick, int32_t * out, int capacity) {
+        int count = 0;
+        HostInfo::PianoRollRingBuffer & noteData = events.current()->noteData;
+        if (noteData.isEmpty()) return count;
+        int size = noteData.readAvailable();
 
-    int getMidiNumberAt(void * midiEvent) {
-        smf::MidiEvent *midiEvent_ = reinterpret_cast<smf::MidiEvent*>(midiEvent);
-        if (midiEvent_ != nullptr) return midiEvent_->getKeyNumber();
-        return -1;
-    }
+        // the index of the note on of every note that is on, by channel and key, or -1
+        int32_t open[SNAPSHOT_CHANNELS * SNAPSHOT_KEYS];
+        std::fill(open, open + (SNAPSHOT_CHANNELS * SNAPSHOT_KEYS), -1);
+        int openCount = 0;
 
-    int getMidiVelocityAt(void * midiEvent) {
-        smf::MidiEvent *midiEvent_ = reinterpret_cast<smf::MidiEvent*>(midiEvent);
-        if (midiEvent_ != nullptr) return midiEvent_->getVelocity();
-        return -1;
+        int i = 0;
+        // the notes that start before the window
+        for (; i < size; ++i) {
+            smf::MidiEvent * midiEvent = noteData.at(i);
+            if (midiEvent == nullptr) continue;
+            if (midiEvent->tick >= fromTick) break;
+            track(open, openCount, *midiEvent, i);
+        }
+        // written in the order they started
+        for (int j = 0; j < i && openCount != 0; ++j) {
+            smf::MidiEvent * midiEvent = noteData.at(j);
+            if (midiEvent == nullptr || !midiEvent->isNoteOn() || open[slotOf(*midiEvent)] != j) continue;
+            snapshot(*midiEvent, out, capacity, count);
+        }
+        // the window
+        for (; i < size; ++i) {
+            smf::MidiEvent * midiEvent = noteData.at(i);
+            if (midiEvent == nullptr) continue;
+            if (midiEvent->tick >= toTick) break;
+            track(open, openCount, *midiEvent, i);
+            snapshot(*midiEvent, out, capacity, count);
+        }
+        // the notes that end after the window
+        for (; i < size && openCount != 0; ++i) {
+            smf::MidiEvent * midiEvent = noteData.at(i);
+            if (midiEvent == nullptr || !midiEvent->isNoteOff() || open[slotOf(*midiEvent)] == -1) continue;
+            track(open, openCount, *midiEvent, i);
+            snapshot(*midiEvent, out, capacity, count);
+        }
+        return count;
     }
 
-    bool isMidiEventNote(void * midiEvent) {
-        smf::MidiEvent *midiEvent_ = reinterpret_cast<smf::MidiEvent*>(midiEvent);
-        if (midiEvent_ != nullptr) return midiEvent_->isNote();
-        return false;
+private:
+    static constexpr int SNAPSHOT_CHANNELS = 16;
+    static constexpr int SNAPSHOT_KEYS = 128;
+
+    static int slotOf(smf::MidiEvent & midiEvent) {
+        return ((midiEvent.getChannel() & 0x0F) * SNAPSHOT_KEYS) + (midiEvent.getKeyNumber() & 0x7F);
     }
 
-    bool isMidiEventNoteOn(void * midiEvent) {
-        smf::MidiEvent *midiEvent_ = reinterpret_cast<smf::MidiEvent*>(midiEvent);
-        if (midiEvent_ != nullptr) return midiEvent_->isNoteOn();
-        return false;
+    // records the note on at index, or ends the note a note off ends
+    static void track(int32_t * open, int & openCount, smf::MidiEvent & midiEvent, int index) {
+        if (midiEvent.isNoteOn()) {
+            int32_t & slot = open[slotOf(midiEvent)];
+            if (slot == -1) openCount++;
+            slot = index;
+        } else if (midiEvent.isNoteOff()) {
+            int32_t & slot = open[slotOf(midiEvent)];
+            if (slot != -1) openCount--;
+            slot = -1;
+        }
     }
 
-    bool isMidiEventNoteOff(void * midiEvent) {
-        smf::MidiEvent *midiEvent_ = reinterpret_cast<smf::MidiEvent*>(midiEvent);
-        if (midiEvent_ != nullptr) return midiEvent_->isNoteOff();
-        return false;
+    static void snapshot(smf::MidiEvent & midiEvent, int32_t * out, int capacity, int & count) {
+        if (out != nullptr && count < capacity) {
+            int32_t * event = out + (count * SNAPSHOT_FIELDS);
+            event[0] = midiEvent.tick;
+            event[1] = midiEvent.getChannel();
+            event[2] = midiEvent.getKeyNumber();
+            event[3] = midiEvent.getVelocity();
+            if (midiEvent.isNoteOn()) event[4] = SNAPSHOT_NOTE_ON;
+            else if (midiEvent.isNoteOff()) event[4] = SNAPSHOT_NOTE_OFF;
+            else event[4] = SNAPSHOT_NO_EVENT;
+        }
+        count++;
     }
 };
 
@@ -16,13 +16,19 @@ public:
         return type;
     }
 
-    void removeType(Type * type) {
+    // removes type from the rack without deleting it, so it can be deleted
+    // once nothing else refers to it
+    void detachType(Type * type) {
         for (auto it = typeList.begin(); it != typeList.end(); it++) {
             if (*it == type) {
                 typeList.erase(it);
                 break;
             }
         }
+    }
+
+    void removeType(Type * type) {
+        detachType(type);
         delete type;
     }
 };
@@ -0,0 +1,239 @@
+#ifndef AAUDIOTRACK_RESAMPLER_H
+#define AAUDIOTRACK_RESAMPLER_H
+
+#include <algorithm>
+#include <cmath>
+#include <cstdint>
+#include <functional>
+#include <numeric>
+#include <vector>
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#elif defined(__SSE__)
+#include <xmmintrin.h>
+#endif
+
+// converts audio from one sample rate to another with a polyphase windowed sinc filter
+//
+// the filter is a Kaiser windowed sinc, precomputed once per conversion as a table with
+// a row of taps for every phase, each output frame is the dot product of one row with the
+// input frames around it
+//
+// when the ratio of the rates reduces to at most MAX_PHASES phases, such as 44100 to 48000
+// which reduces to 160, every output frame lands exactly on a phase of the table, otherwise
+// it uses the nearest of MAX_PHASES phases
+//
+// the quality presets trade the length of the filter, and so the cost of every output frame,
+// for a steeper and deeper cut of the frequencies the output rate cannot hold
+//
+// used at load time and when the device rate changes, never by the audio thread
+class Resampler {
+public:
+    enum Quality {
+        // 8 taps, for weak devices, audible aliasing on bright samples
+        FAST = 0,
+        // 32 taps
+        GOOD = 1,
+        // 64 taps, for rendering
+        BEST = 2
+    };
+
+    static constexpr Quality DEFAULT_QUALITY = GOOD;
+
+    static constexpr uint64_t MAX_PHASES = 1024;
+
+    // the output frames computed at a time
+    static constexpr size_t BLOCK_FRAMES = 1024;
+
+    // fills count interleaved frames from frame first, which is always within the input
+    typedef std::function<void(uint64_t first, size_t count, float * interleaved)> Reader;
+
+    // receives samples, not frames, returns false to stop
+    typedef std::function<bool(const float * samples, size_t count)> Writer;
+
+private:
+    uint32_t inputRate;
+    uint32_t outputRate;
+    // the output advances by inputStep / phases input frames per frame
+    uint64_t phases;
+    uint64_t inputStep;
+    bool exact;
+    // the frames before and after the position of an output frame that it is computed from
+    int64_t half;
+    // the taps of a row, 2 * half rounded up to a multiple of 4 for the vector loop
+    size_t taps;
+    std::vector<float> table;
+
+    struct Preset {
+        int64_t half;
+        double beta;
+        double rolloff;
+    };
+
+    static Preset preset(Quality quality) {
+        switch (quality) {
+            case FAST: return {4, 5.0, 0.85};
+            case BEST: return {32, 10.0, 0.95};
+            default: return {16, 8.5, 0.92};
+        }
+    }
+
+    // the modified Bessel function of the first kind of order 0, which the Kaiser window is made of
+    static double bessel(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 64; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) break;
+        }
+        return sum;
+    }
+
+    void buildTable(Quality quality) {
+        Preset p = preset(quality);
+        // downsampling cuts below the output rate, which takes a proportionally longer filter
+        double scale = std::min(1.0, static_cast<double>(outputRate) / inputRate);
+        half = static_cast<int64_t>(std::ceil(p.half / scale));
+        taps = static_cast<size_t>(((2 * half) + 3) & ~3);
+        double cutoff = scale * p.rolloff;
+        double window = bessel(p.beta);
+        table.assign(phases * taps, 0.0f);
+        for (uint64_t phase = 0; phase < phases; phase++) {
+            double fraction = static_cast<double>(phase) / phases;
+            float * row = table.data() + (phase * taps);
+            double sum = 0;
+            for (int64_t k = 0; k < 2 * half; k++) {
+                // the distance, in input frames, from the output frame to input frame k
+                double t = static_cast<double>(k - half + 1) - fraction;
+                double x = t / half;
+                if (x <= -1 || x >= 1) continue;
+                double sinc = t == 0 ? 1 : std::sin(M_PI * cutoff * t) / (M_PI * cutoff * t);
+                double value = cutoff * sinc * (bessel(p.beta * std::sqrt(1 - (x * x))) / window);
+                row[k] = static_cast<float>(value);
+                sum += value;
+            }
+            // every phase passes a constant signal unchanged
+            for (size_t k = 0; k < taps; k++) row[k] = static_cast<float>(row[k] / sum);
+        }
+    }
+
+    // the input frame before output frame, and the phase of the output frame after it
+    void locate(uint64_t frame, int64_t & base, uint64_t & phase) const {
+        if (exact) {
+            uint64_t position = frame * inputStep;
+            base = static_cast<int64_t>(position / phases);
+            phase = position % phases;
+        } else {
+            double position = static_cast<double>(frame) * inputRate / outputRate;
+            base = static_cast<int64_t>(position);
+            phase = static_cast<uint64_t>(std::llround((position - base) * phases));
+            if (phase == phases) {
+                base++;
+                phase = 0;
+            }
+        }
+    }
+
+public:
+    // a vector dot product of n floats, n a multiple of 4
+    static float dot(const float * a, const float * b, size_t n) {
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+        float32x4_t sum = vdupq_n_f32(0);
+        for (size_t i = 0; i < n; i += 4) sum = vmlaq_f32(sum, vld1q_f32(a + i), vld1q_f32(b + i));
+#if defined(__aarch64__)
+        return vaddvq_f32(sum);
+#else
+        float32x2_t pair = vadd_f32(vget_low_f32(sum), vget_high_f32(sum));
+        return vget_lane_f32(vpadd_f32(pair, pair), 0);
+#endif
+#elif defined(__SSE__)
+        __m128 sum = _mm_setzero_ps();
+        for (size_t i = 0; i < n; i += 4) sum = _mm_add_ps(sum, _mm_mul_ps(_mm_loadu_ps(a + i), _mm_loadu_ps(b + i)));
+        float lanes[4];
+        _mm_storeu_ps(lanes, sum);
+        return (lanes[0] + lanes[1]) + (lanes[2] + lanes[3]);
+#else
+        float sum[4] = {0, 0, 0, 0};
+        for (size_t i = 0; i < n; i += 4) {
+            for (size_t lane = 0; lane < 4; lane++) sum[lane] += a[i + lane] * b[i + lane];
+        }
+        return (sum[0] + sum[1]) + (sum[2] + sum[3]);
+#endif
+    }
+
+    Resampler(uint32_t inputRate, uint32_t outputRate, Quality quality)
+            : inputRate(inputRate), outputRate(outputRate) {
+        uint64_t divisor = std::gcd(inputRate, outputRate);
+        phases = outputRate / divisor;
+        inputStep = inputRate / divisor;
+        exact = phases <= MAX_PHASES;
+        if (!exact) {
+            phases = MAX_PHASES;
+            inputStep = 0;
+        }
+        buildTable(quality);
+    }
+
+    // the output frames of inputFrames input frames
+    uint64_t outputFrames(uint64_t inputFrames) const {
+        return ((inputFrames * outputRate) + inputRate - 1) / inputRate;
+    }
+
+    // the taps every output frame costs per channel
+    size_t length() const {
+        return taps;
+    }
+
+    /**
+     * converts inputFrames interleaved frames, read with read, handing the
+     * converted frames to write one block at a time
+     *
+     * the input is taken to be silent before its first frame and after its last
+     *
+     * @return false if write stopped the conversion
+     */
+    bool process(uint64_t inputFrames, unsigned int channels, const Reader & read, const Writer & write) const {
+        const uint64_t total = outputFrames(inputFrames);
+        std::vector<float> interleaved;
+        std::vector<float> planar;
+        std::vector<float> block(BLOCK_FRAMES * channels);
+        for (uint64_t out = 0; out < total; out += BLOCK_FRAMES) {
+            size_t count = static_cast<size_t>(std::min<uint64_t>(BLOCK_FRAMES, total - out));
+            int64_t firstBase;
+            int64_t lastBase;
+            uint64_t phase;
+            locate(out, firstBase, phase);
+            locate(out + count - 1, lastBase, phase);
+            // the input frames this block reads, each channel laid out on its own for the dot products
+            int64_t first = firstBase - half + 1;
+            size_t span = static_cast<size_t>((lastBase - firstBase) + taps);
+            planar.assign(span * channels, 0.0f);
+            int64_t from = std::max<int64_t>(first, 0);
+            int64_t to = std::min<int64_t>(first + span, static_cast<int64_t>(inputFrames));
+            if (from < to) {
+                size_t frames = static_cast<size_t>(to - from);
+                interleaved.resize(frames * channels);
+                read(static_cast<uint64_t>(from), frames, interleaved.data());
+                for (size_t i = 0; i < frames; i++) {
+                    for (unsigned int c = 0; c < channels; c++) {
+                        planar[(c * span) + (from - first) + i] = interleaved[(i * channels) + c];
+                    }
+                }
+            }
+            for (size_t i = 0; i < count; i++) {
+                int64_t base;
+                locate(out + i, base, phase);
+                const float * row = table.data() + (phase * taps);
+                size_t offset = static_cast<size_t>(base - half + 1 - first);
+                for (unsigned int c = 0; c < channels; c++) {
+                    block[(i * channels) + c] = dot(row, planar.data() + (c * span) + offset, taps);
+                }
+            }
+            if (!write(block.data(), count * channels)) return false;
+        }
+        return true;
+    }
+};
+
+#endif //AAUDIOTRACK_RESAMPLER_H
@@ -0,0 +1,239 @@
+#ifndef AAUDIOTRACK_ROUTINGGRAPH_H
+#define AAUDIOTRACK_ROUTINGGRAPH_H
+
+#include <algorithm>
+#include <vector>
+#include "Rack.h"
+#include "Channel_Generator.h"
+#include "MixerBus.h"
+#include "PatternGroup.h"
+#include "plugins/Mixer.h"
+
+// the channels the engine renders and the buses it mixes them through, compiled from
+// the pattern group, the channel rack and the mixer buses whenever any of them changes
+//
+// the audio thread only reads these flat arrays, it never walks the racks,
+// and never adds or removes mixer inputs
+//
+// the graph is built by the writer, see AudioEngine::rebuildRoutingGraph,
+// and published to the audio thread with a DoubleBuffer
+class RoutingGraph {
+public:
+    // a pattern that plays a channel
+    struct Route {
+        Pattern * pattern = nullptr;
+        Channel_Generator * channel = nullptr;
+    };
+
+    // the routes of one pattern list, routes[begin, end)
+    struct PatternListRoutes {
+        PatternList * patternList = nullptr;
+        size_t begin = 0;
+        size_t end = 0;
+    };
+
+    // every pattern that is bound to a channel, grouped by pattern list
+    std::vector<Route> routes;
+
+    // sorted by patternList, for find
+    std::vector<PatternListRoutes> patternLists;
+
+    // the routes of one channel, renderRoutes[begin, end)
+    struct ChannelRoutes {
+        Channel_Generator * channel = nullptr;
+        size_t begin = 0;
+        size_t end = 0;
+    };
+
+    // routes grouped by channel, so that every channel can be rendered independently of the others
+    std::vector<Route> renderRoutes;
+    std::vector<ChannelRoutes> renders;
+
+    // every channel of the channel rack, for direct mode
+    std::vector<Channel_Generator *> rackChannels;
+
+    // a bus and everything that is mixed into it
+    //
+    // every channel of the rack is an input of its bus, a channel that was not
+    // rendered in the block being mixed is skipped by the mixer
+    struct BusStep {
+        MixerBus * bus = nullptr;
+        std::vector<Mixer::Input> inputs;
+        std::vector<Channel_Effect *> inserts;
+    };
+
+    // the buses in processing order, every bus comes after everything that feeds it,
+    // the master bus is last
+    std::vector<BusStep> buses;
+
+    void clear() {
+        routes.clear();
+        patternLists.clear();
+        renderRoutes.clear();
+        renders.clear();
+        rackChannels.clear();
+        buses.clear();
+    }
+
+    void build(PatternGroup * patternGroup, Rack<Channel_Generator> & channelRack,
+               MixerBus * master, Rack<MixerBus> & busRack) {
+        clear();
+        for (PatternList * patternList : patternGroup->rack.typeList) {
+            if (patternList == nullptr) continue;
+            PatternListRoutes listRoutes;
+            listRoutes.patternList = patternList;
+            listRoutes.begin = routes.size();
+            for (Pattern * pattern : patternList->rack.typeList) {
+                if (pattern == nullptr || pattern->channelReference == nullptr) continue;
+                routes.push_back({pattern, pattern->channelReference});
+            }
+            listRoutes.end = routes.size();
+            patternLists.push_back(listRoutes);
+        }
+        std::sort(patternLists.begin(), patternLists.end(), [](const PatternListRoutes & a, const PatternListRoutes & b) {
+            return a.patternList < b.patternList;
+        });
+
+        // every channel is rendered once, in the order it is first routed,
+        // together with every pattern that plays it
+        std::vector<Channel_Generator *> channels;
+        for (const Route & route : routes) channels.push_back(route.channel);
+        std::sort(channels.begin(), channels.end());
+        channels.erase(std::unique(channels.begin(), channels.end()), channels.end());
+        auto indexOf = [&channels](Channel_Generator * channel) {
+            return std::lower_bound(channels.begin(), channels.end(), channel) - channels.begin();
+        };
+        std::vector<bool> added(channels.size(), false);
+        std::vector<size_t> order(channels.size());
+        size_t next = 0;
+        for (const Route & route : routes) {
+            size_t index = indexOf(route.channel);
+            if (added[index]) continue;
+            added[index] = true;
+            order[index] = next++;
+        }
+
+        renderRoutes = routes;
+        std::stable_sort(renderRoutes.begin(), renderRoutes.end(), [&](const Route & a, const Route & b) {
+            return order[indexOf(a.channel)] < order[indexOf(b.channel)];
+        });
+        for (size_t i = 0; i < renderRoutes.size(); i++) {
+            if (renders.empty() || renders.back().channel != renderRoutes[i].channel) {
+                renders.push_back({renderRoutes[i].channel, i, i});
+            }
+            renders.back().end = i + 1;
+        }
+
+        for (Channel_Generator * channel : channelRack.typeList) {
+            if (channel != nullptr) rackChannels.push_back(channel);
+        }
+
+        buildBuses(master, busRack);
+    }
+
+    // returns the routes of a pattern list, or nullptr if it has none
+    const PatternListRoutes * find(const PatternList * patternList) const {
+        auto it = std::lower_bound(patternLists.begin(), patternLists.end(), patternList,
+                                   [](const PatternListRoutes & routes, const PatternList * patternList) {
+                                       return routes.patternList < patternList;
+                                   });
+        if (it == patternLists.end() || it->patternList != patternList) return nullptr;
+        return &*it;
+    }
+
+    // audio thread only, mixes the channels rendered in this block through the buses into out
+    //
+    // the master bus sums straight into out, and is soft clipped after its inserts and fader
+    void mix(HostInfo *hostInfo, Mixer *mixer, PortUtils2 *out, unsigned int samples) const {
+        if (buses.empty()) {
+            // not built yet
+            out->fillPortBuffer<ENGINE_FORMAT>(0);
+            return;
+        }
+        for (size_t i = 0; i + 1 < buses.size(); i++) {
+            const BusStep & step = buses[i];
+            MixerBus * bus = step.bus;
+            Mixer::sum(step.inputs, bus->out, samples, mixer->block);
+            bus->writeInserts(step.inserts, hostInfo, mixer, bus->out, samples);
+            bus->renderedBlock = mixer->block;
+        }
+        const BusStep & master = buses.back();
+        Mixer::sum(master.inputs, out, samples, mixer->block);
+        master.bus->writeInserts(master.inserts, hostInfo, mixer, out, samples);
+        Mixer::scale(out, master.bus->strip, samples);
+        Mixer::softClip(out, samples);
+    }
+
+private:
+    // sorts the buses so that every bus is processed after the buses that feed it,
+    // and collects the inputs of every bus
+    //
+    // AudioEngine never creates a cycle, a bus that is part of one anyway is left out
+    void buildBuses(MixerBus * master, Rack<MixerBus> & busRack) {
+        std::vector<MixerBus *> nodes;
+        for (MixerBus * bus : busRack.typeList) {
+            if (bus != nullptr) nodes.push_back(bus);
+        }
+        std::sort(nodes.begin(), nodes.end());
+        // the step of a bus, the master bus and unknown buses map to the last step
+        auto stepOf = [&nodes](const MixerBus * bus) {
+            auto it = std::lower_bound(nodes.begin(), nodes.end(), bus);
+            if (bus == nullptr || it == nodes.end() || *it != bus) return nodes.size();
+            return static_cast<size_t>(it - nodes.begin());
+        };
+
+        std::vector<BusStep> steps(nodes.size() + 1);
+        for (size_t i = 0; i < nodes.size(); i++) steps[i].bus = nodes[i];
+        steps.back().bus = master;
+        for (BusStep & step : steps) {
+            for (Channel_Effect * insert : step.bus->effectRack->rack.typeList) {
+                if (insert != nullptr && insert->plugin != nullptr) step.inserts.push_back(insert);
+            }
+        }
+
+        for (Channel_Generator * channel : rackChannels) {
+            steps[stepOf(channel->bus)].inputs.push_back({channel->out, &channel->strip, nullptr, &channel->renderedBlock});
+            for (MixerSend * send : channel->sends) {
+                steps[stepOf(send->target)].inputs.push_back(
+                        {channel->out, &send->strip, send->preFader ? nullptr : &channel->strip, &channel->renderedBlock}
+                );
+            }
+        }
+
+        std::vector<size_t> incoming(steps.size(), 0);
+        for (MixerBus * bus : nodes) {
+            steps[stepOf(bus->output)].inputs.push_back({bus->out, &bus->strip, nullptr, &bus->renderedBlock});
+            incoming[stepOf(bus->output)]++;
+            for (MixerSend * send : bus->sends) {
+                steps[stepOf(send->target)].inputs.push_back(
+                        {bus->out, &send->strip, send->preFader ? nullptr : &bus->strip, &bus->renderedBlock}
+                );
+                incoming[stepOf(send->target)]++;
+            }
+        }
+
+        // Kahn's algorithm, keeping the order the buses were created in where the routing allows it
+        std::vector<size_t> ready;
+        for (MixerBus * bus : busRack.typeList) {
+            if (bus == nullptr) continue;
+            size_t step = stepOf(bus);
+            if (incoming[step] == 0) ready.push_back(step);
+        }
+        auto release = [&](const MixerBus * target) {
+            size_t step = stepOf(target);
+            if (--incoming[step] == 0 && step != nodes.size()) ready.push_back(step);
+        };
+        for (size_t i = 0; i < ready.size(); i++) {
+            MixerBus * bus = steps[ready[i]].bus;
+            buses.push_back(std::move(steps[ready[i]]));
+            release(bus->output);
+            for (MixerSend * send : bus->sends) release(send->target);
+        }
+        if (buses.size() != nodes.size()) {
+            LOGE("the mixer buses contain a cycle, %zu buses are not mixed", nodes.size() - buses.size());
+        }
+        buses.push_back(std::move(steps.back()));
+    }
+};
+
+#endif //AAUDIOTRACK_ROUTINGGRAPH_H
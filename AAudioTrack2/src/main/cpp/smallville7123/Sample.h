@@ -0,0 +1,108 @@
+#ifndef AAUDIOTRACK_SAMPLE_H
+#define AAUDIOTRACK_SAMPLE_H
+
+#include <algorithm>
+#include <cstdint>
+#include <cstdio>
+#include <vector>
+#include <AndroidDAW_SDK/plugin/PortUtils2.h>
+#include "MappedFile.h"
+
+// decoded audio in the engine's format and sample rate, interleaved stereo, read only once loaded
+//
+// a short sample is read into memory, a long one is mapped and only its attack region
+// is copied into memory, the rest is streamed to each voice that plays it, see SampleStreamer
+class Sample {
+public:
+    static constexpr unsigned int CHANNELS = 2;
+
+    // samples larger than this many bytes are streamed
+    static constexpr size_t DEFAULT_STREAM_THRESHOLD = 16 * 1024 * 1024;
+
+    // the frames of a streamed sample that stay in memory, long enough to cover
+    // the time the streamer takes to start filling a voice that was just triggered
+    static constexpr uint64_t DEFAULT_ATTACK_FRAMES = 32768;
+
+    uint64_t frames = 0;
+
+    // the rate the sample was converted to, 0 if unknown
+    uint32_t sampleRate = 0;
+
+    // the first residentFrames frames, all of them if the sample is not streamed
+    std::vector<ENGINE_FORMAT> resident;
+    uint64_t residentFrames = 0;
+
+    // every frame of a streamed sample, nothing otherwise
+    MappedFile mapped;
+
+    bool streamed() const {
+        return residentFrames < frames;
+    }
+
+    const ENGINE_FORMAT * streamData() const {
+        return reinterpret_cast<const ENGINE_FORMAT *>(mapped.data);
+    }
+
+    // copies count interleaved frames from frame first, not for the audio thread, which streams instead
+    void readFrames(uint64_t first, size_t count, ENGINE_FORMAT * out) const {
+        const ENGINE_FORMAT * from = streamed() ? streamData() : resident.data();
+        std::copy(from + (first * CHANNELS), from + ((first + count) * CHANNELS), out);
+    }
+
+    // the bytes this sample holds in the native heap
+    size_t residentBytes() const {
+        return resident.size() * sizeof(ENGINE_FORMAT);
+    }
+
+    /**
+     * takes interleaved stereo ENGINE_FORMAT pcm that is already in memory, it is never streamed
+     *
+     * @return nullptr if pcm is shorter than a frame
+     */
+    static Sample * fromMemory(std::vector<ENGINE_FORMAT> && pcm) {
+        if (pcm.size() < CHANNELS) return nullptr;
+        Sample * sample = new Sample();
+        sample->frames = pcm.size() / CHANNELS;
+        sample->residentFrames = sample->frames;
+        sample->resident = std::move(pcm);
+        return sample;
+    }
+
+    /**
+     * loads raw interleaved stereo ENGINE_FORMAT pcm, as written by AAudioTrack2.decode
+     *
+     * @param streamThreshold files larger than this many bytes are streamed
+     * @param attackFrames the frames of a streamed file that are kept in memory
+     * @return nullptr if the file cannot be read
+     */
+    static Sample * load(const char * path, size_t streamThreshold, uint64_t attackFrames) {
+        Sample * sample = new Sample();
+        if (!sample->mapped.map(path)) {
+            delete sample;
+            return nullptr;
+        }
+        const size_t frameSize = sizeof(ENGINE_FORMAT) * CHANNELS;
+        sample->frames = sample->mapped.size / frameSize;
+        if (sample->frames == 0) {
+            LOGE("%s is shorter than a frame", path);
+            delete sample;
+            return nullptr;
+        }
+        bool stream = sample->mapped.size > streamThreshold && attackFrames < sample->frames;
+        sample->residentFrames = stream ? attackFrames : sample->frames;
+        const ENGINE_FORMAT * data = sample->streamData();
+        sample->resident.assign(data, data + (sample->residentFrames * CHANNELS));
+        if (stream) {
+            // the streamer reads the rest front to back, one voice at a time
+            sample->mapped.advise(0, sample->mapped.size, MADV_SEQUENTIAL);
+            LOGI("streaming %s, %llu of %llu frames are resident", path,
+                 static_cast<unsigned long long>(sample->residentFrames),
+                 static_cast<unsigned long long>(sample->frames));
+        } else {
+            sample->mapped.unmap();
+        }
+        return sample;
+    }
+};
+
+#endif //AAUDIOTRACK_SAMPLE_H
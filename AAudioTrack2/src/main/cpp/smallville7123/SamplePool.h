@@ -0,0 +1,166 @@
+#ifndef AAUDIOTRACK_SAMPLEPOOL_H
+#define AAUDIOTRACK_SAMPLEPOOL_H
+
+#include <condition_variable>
+#include <cstdint>
+#include <functional>
+#include <map>
+#include <mutex>
+#include <set>
+#include <tuple>
+#include "Sample.h"
+
+// the decoded samples of the engine, shared by every sampler that plays the same audio
+//
+// a sample is identified by the content of the file it was decoded from and the
+// format it was decoded to, so the same file loaded into many channels, under any
+// name, is decoded and held in memory once
+//
+// samples are reference counted, a sample no sampler refers to stays in the pool so
+// that loading it again is free, until the resident bytes of the pool exceed its budget,
+// then the samples that were released the longest ago are freed first
+//
+// acquire and release are called by the threads that load and delete channels, never by the audio thread,
+// any number of them at once
+class SamplePool {
+public:
+    struct Key {
+        uint64_t hash = 0;
+        int sampleRate = 0;
+        int channelCount = 0;
+
+        bool operator<(const Key & other) const {
+            return std::tie(hash, sampleRate, channelCount) < std::tie(other.hash, other.sampleRate, other.channelCount);
+        }
+    };
+
+    static constexpr size_t DEFAULT_BUDGET = 128 * 1024 * 1024;
+
+private:
+    struct Entry {
+        Sample * sample = nullptr;
+        uint32_t references = 0;
+        // when the entry was last acquired or released, older entries are evicted first
+        uint64_t used = 0;
+    };
+
+    std::mutex mutex;
+    // signalled whenever a key leaves loading
+    std::condition_variable loaded;
+    std::map<Key, Entry> entries;
+    // the keys being loaded right now, a thread that acquires one of them waits for its load
+    std::set<Key> loading;
+    std::map<const Sample *, Key> keys;
+    size_t budget = DEFAULT_BUDGET;
+    size_t residentBytes = 0;
+    uint64_t clock = 0;
+
+    // frees unreferenced samples, least recently used first, until the pool fits its budget
+    void evict() {
+        while (residentBytes > budget) {
+            auto victim = entries.end();
+            for (auto it = entries.begin(); it != entries.end(); ++it) {
+                if (it->second.references != 0) continue;
+                if (victim == entries.end() || it->second.used < victim->second.used) victim = it;
+            }
+            // everything left is playing
+            if (victim == entries.end()) return;
+            residentBytes -= victim->second.sample->residentBytes();
+            keys.erase(victim->second.sample);
+            delete victim->second.sample;
+            entries.erase(victim);
+        }
+    }
+
+public:
+    ~SamplePool() {
+        for (auto & entry : entries) delete entry.second.sample;
+    }
+
+    /**
+     * returns the sample of key, calling load to create it if the pool does not hold it
+     *
+     * load runs without the pool locked, so loading one sample never holds up another,
+     * threads that acquire a key while it is being loaded wait for that load instead of
+     * loading it again
+     *
+     * @return a reference that is given back with release, or nullptr if load failed
+     */
+    Sample * acquire(const Key & key, const std::function<Sample *()> & load) {
+        {
+            std::unique_lock<std::mutex> lock(mutex);
+            loaded.wait(lock, [&] { return loading.count(key) == 0; });
+            auto it = entries.find(key);
+            if (it != entries.end()) {
+                it->second.references++;
+                it->second.used = ++clock;
+                return it->second.sample;
+            }
+            loading.insert(key);
+        }
+        Sample * sample = load();
+        std::lock_guard<std::mutex> lock(mutex);
+        loading.erase(key);
+        loaded.notify_all();
+        // the threads that waited try the load again themselves
+        if (sample == nullptr) return nullptr;
+        entries[key] = {sample, 1, ++clock};
+        keys[sample] = key;
+        residentBytes += sample->residentBytes();
+        evict();
+        return sample;
+    }
+
+    // adds a reference to a sample the caller already holds one to
+    void retain(Sample * sample) {
+        std::lock_guard<std::mutex> lock(mutex);
+        auto key = keys.find(sample);
+        if (key == keys.end()) {
+            LOGE("retained a sample that is not pooled");
+            return;
+        }
+        entries[key->second].references++;
+    }
+
+    // finds the key of a sample the caller holds a reference to
+    bool keyOf(const Sample * sample, Key & key) {
+        std::lock_guard<std::mutex> lock(mutex);
+        auto it = keys.find(sample);
+        if (it == keys.end()) return false;
+        key = it->second;
+        return true;
+    }
+
+    // gives back a reference returned by acquire, once the audio thread no longer plays it
+    void release(Sample * sample) {
+        if (sample == nullptr) return;
+        std::lock_guard<std::mutex> lock(mutex);
+        auto key = keys.find(sample);
+        if (key == keys.end()) {
+            LOGE("released a sample that is not pooled");
+            return;
+        }
+        Entry & entry = entries[key->second];
+        if (entry.references == 0) {
+            LOGE("released a sample more times than it was acquired");
+            return;
+        }
+        entry.references--;
+        entry.used = ++clock;
+        evict();
+    }
+
+    // the resident bytes the pool may hold, samples that are playing are never freed to meet it
+    void setBudget(size_t bytes) {
+        std::lock_guard<std::mutex> lock(mutex);
+        budget = bytes;
+        evict();
+    }
+
+    size_t bytes() {
+        std::lock_guard<std::mutex> lock(mutex);
+        return residentBytes;
+    }
+};
+
+#endif //AAUDIOTRACK_SAMPLEPOOL_H
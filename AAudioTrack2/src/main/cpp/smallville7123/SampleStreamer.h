@@ -0,0 +1,222 @@
+#ifndef AAUDIOTRACK_SAMPLESTREAMER_H
+#define AAUDIOTRACK_SAMPLESTREAMER_H
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <cstring>
+#include <memory>
+#include <mutex>
+#include <thread>
+#include <vector>
+#include "Sample.h"
+
+// the part of a streamed sample that one voice is about to play, read ahead of the voice
+// by the SampleStreamer into a ring of chunks
+//
+// the ring has a single reader, the audio thread, and a single writer, the streamer,
+// neither of them ever waits for the other: a voice that catches up with the streamer
+// plays silence until it has caught up again
+//
+// offsets count the frames the voice has played after the resident frames of the sample,
+// across loops, so they only ever move forward until the voice is restarted
+class SampleStream {
+public:
+    static constexpr uint64_t CHUNK_FRAMES = 2048;
+    static constexpr size_t CHUNKS = 16;
+
+    struct Chunk {
+        // the restart the chunk was written for, chunks of earlier restarts are skipped
+        uint32_t generation = 0;
+        uint64_t offset = 0;
+        uint64_t frames = 0;
+        ENGINE_FORMAT data[CHUNK_FRAMES * Sample::CHANNELS];
+    };
+
+    // the sample being streamed, only changed while the stream is not added to a streamer
+    const Sample * sample = nullptr;
+
+    // the number of chunks ever published and consumed
+    std::atomic<uint64_t> written {0};
+    std::atomic<uint64_t> read {0};
+
+    // set by the reader, the writer starts again from start whenever generation changes
+    std::atomic<uint32_t> generation {0};
+    std::atomic<uint64_t> start {0};
+    std::atomic<bool> looping {false};
+
+    // how many times the reader has played silence because the writer was behind
+    std::atomic<uint32_t> underruns {0};
+
+    // the memory this stream holds, whatever the length of the sample it streams
+    static constexpr size_t bytes() {
+        return sizeof(Chunk) * CHUNKS;
+    }
+
+    // allocates the ring, before the stream is first read
+    void allocate() {
+        if (!chunks) chunks.reset(new Chunk[CHUNKS]);
+    }
+
+    // audio thread only, plays the sample from offset, discarding everything read ahead so far
+    void restart(uint64_t offset) {
+        readGeneration++;
+        readOffset = offset;
+        start.store(offset, std::memory_order_relaxed);
+        generation.store(readGeneration, std::memory_order_release);
+        read.store(written.load(std::memory_order_acquire), std::memory_order_release);
+    }
+
+    // audio thread only, deinterleaves the next frames of the voice into left and right
+    void readFrames(ENGINE_FORMAT * left, ENGINE_FORMAT * right, uint64_t frames) {
+        uint64_t consumed = read.load(std::memory_order_relaxed);
+        while (frames != 0) {
+            if (consumed == written.load(std::memory_order_acquire)) {
+                std::fill(left, left + frames, 0);
+                std::fill(right, right + frames, 0);
+                readOffset += frames;
+                underruns.fetch_add(1, std::memory_order_relaxed);
+                break;
+            }
+            const Chunk & chunk = chunks[consumed % CHUNKS];
+            if (chunk.generation != readGeneration || chunk.offset + chunk.frames <= readOffset) {
+                // written before the last restart, or behind a voice that has already played past it
+                consumed++;
+                continue;
+            }
+            uint64_t count;
+            if (chunk.offset > readOffset) {
+                // never ahead of the voice unless it was restarted, play silence up to the chunk
+                count = std::min(frames, chunk.offset - readOffset);
+                std::fill(left, left + count, 0);
+                std::fill(right, right + count, 0);
+            } else {
+                uint64_t from = readOffset - chunk.offset;
+                count = std::min(frames, chunk.frames - from);
+                const ENGINE_FORMAT * data = chunk.data + (from * Sample::CHANNELS);
+                for (uint64_t i = 0; i < count; i++) {
+                    left[i] = data[(i * Sample::CHANNELS) + 0];
+                    right[i] = data[(i * Sample::CHANNELS) + 1];
+                }
+                if (from + count == chunk.frames) consumed++;
+            }
+            left += count;
+            right += count;
+            frames -= count;
+            readOffset += count;
+        }
+        read.store(consumed, std::memory_order_release);
+    }
+
+    // streamer only, fills the free chunks of the ring, returns false if there was nothing to do
+    bool fill() {
+        uint32_t current = generation.load(std::memory_order_acquire);
+        if (current != writeGeneration) {
+            writeGeneration = current;
+            writeOffset = start.load(std::memory_order_relaxed);
+        }
+        if (sample == nullptr || !sample->streamed()) return false;
+        const uint64_t streamedFrames = sample->frames - sample->residentFrames;
+        const ENGINE_FORMAT * data = sample->streamData() + (sample->residentFrames * Sample::CHANNELS);
+        bool filled = false;
+        uint64_t published = written.load(std::memory_order_relaxed);
+        while (published - read.load(std::memory_order_acquire) < CHUNKS) {
+            // a voice that does not loop stops at the end of the pass it is in, a voice
+            // at the very start is in the first pass
+            uint64_t end = UINT64_MAX;
+            if (!looping.load(std::memory_order_relaxed)) {
+                end = std::max(((writeOffset + streamedFrames - 1) / streamedFrames) * streamedFrames, streamedFrames);
+                if (writeOffset >= end) break;
+            }
+            Chunk & chunk = chunks[published % CHUNKS];
+            uint64_t frames = 0;
+            while (frames < CHUNK_FRAMES && writeOffset + frames < end) {
+                uint64_t frame = (writeOffset + frames) % streamedFrames;
+                uint64_t count = std::min(CHUNK_FRAMES - frames, streamedFrames - frame);
+                count = std::min(count, end - (writeOffset + frames));
+                // the pages are faulted in here, never on the audio thread
+                memcpy(chunk.data + (frames * Sample::CHANNELS), data + (frame * Sample::CHANNELS),
+                       count * Sample::CHANNELS * sizeof(ENGINE_FORMAT));
+                frames += count;
+            }
+            chunk.generation = writeGeneration;
+            chunk.offset = writeOffset;
+            chunk.frames = frames;
+            written.store(++published, std::memory_order_release);
+            writeOffset += frames;
+            filled = true;
+            // the voice was restarted, everything after this chunk would be skipped
+            if (generation.load(std::memory_order_relaxed) != writeGeneration) break;
+        }
+        return filled;
+    }
+
+private:
+    std::unique_ptr<Chunk[]> chunks;
+
+    // audio thread only
+    uint32_t readGeneration = 0;
+    uint64_t readOffset = 0;
+
+    // streamer only
+    uint32_t writeGeneration = 0;
+    uint64_t writeOffset = 0;
+};
+
+// a background thread that reads ahead of every streamed voice
+//
+// streams are added and removed by the thread that loads samples, once remove
+// returns the streamer no longer touches the stream
+class SampleStreamer {
+    std::mutex mutex;
+    std::condition_variable wake;
+    std::vector<SampleStream *> streams;
+    std::thread thread;
+    bool stopping = false;
+
+    // how often the streamer looks for voices that need more audio, a ring
+    // holds many times this much
+    static constexpr std::chrono::milliseconds PERIOD {5};
+
+    void loop() {
+        std::unique_lock<std::mutex> lock(mutex);
+        while (!stopping) {
+            bool busy = false;
+            for (SampleStream * stream : streams) busy |= stream->fill();
+            if (busy) {
+                // let add and remove in between passes
+                lock.unlock();
+                lock.lock();
+            } else {
+                wake.wait_for(lock, PERIOD);
+            }
+        }
+    }
+
+public:
+    ~SampleStreamer() {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            stopping = true;
+        }
+        wake.notify_all();
+        if (thread.joinable()) thread.join();
+    }
+
+    void add(SampleStream * stream) {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            streams.push_back(stream);
+            if (!thread.joinable()) thread = std::thread(&SampleStreamer::loop, this);
+        }
+        wake.notify_all();
+    }
+
+    void remove(SampleStream * stream) {
+        std::lock_guard<std::mutex> lock(mutex);
+        streams.erase(std::remove(streams.begin(), streams.end(), stream), streams.end());
+    }
+};
+
+#endif //AAUDIOTRACK_SAMPLESTREAMER_H
@@ -7,14 +7,98 @@
 
 
 #include "PianoRoll.h"
+#include "ClipIndex.h"
+#include "DoubleBuffer.h"
 
 class Track {
 public:
     PianoRoll pianoRoll;
     PatternList * patternListReference = nullptr;
 
+    // audio thread only, song mode playback of patternListReference
+    //
+    // the steps of the track start the pattern list with a note on and stop it with
+    // a note off, which also rewinds it
+    bool playing = false;
+    int64_t position = 0;
+
+private:
+    // the clips placed on this track, rebuilt off to the side and published like the
+    // events of a PianoRoll, so the audio thread never sees a half built index
+    DoubleBuffer<ClipIndex> clips;
+
+    // the writer's clip id counter
+    int32_t nextClipId = 0;
+
+public:
+
+    // applies edit to a copy of the current clips, then builds and publishes the copy
+    //
+    // many clips should be placed with one edit, as every edit copies and rebuilds the index
+    template <typename Edit>
+    void editClips(Edit edit) {
+        ClipIndex * current = clips.current();
+        ClipIndex * edited = clips.beginWrite();
+        *edited = *current;
+        edit(*edited);
+        edited->build();
+        clips.publish(edited);
+    }
+
+    // returns an unused clip id, for clips placed with editClips
+    int32_t newClipId() {
+        return nextClipId++;
+    }
+
+    // places a clip of the given pattern list on this track
+    //
+    // this, removeClip, clearClips and removePatternList must only be called from one thread at a time
+    //
+    // returns the id of the new clip, or -1 if length is not positive
+    int32_t addClip(PatternList * patternList, int64_t start, int64_t length, int64_t offset) {
+        if (length <= 0) return -1;
+        Clip clip;
+        clip.id = newClipId();
+        clip.start = start;
+        clip.length = length;
+        clip.offset = offset;
+        clip.patternList = patternList;
+        editClips([&clip](ClipIndex & index) { index.add(clip); });
+        return clip.id;
+    }
+
+    bool removeClip(int32_t id) {
+        bool removed = false;
+        editClips([id, &removed](ClipIndex & index) { removed = index.remove(id); });
+        return removed;
+    }
+
+    void clearClips() {
+        editClips([](ClipIndex & index) { index.clear(); });
+    }
+
+    // removes every clip of a pattern list that is about to be deleted
+    void removePatternList(PatternList * patternList) {
+        editClips([patternList](ClipIndex & index) { index.removePatternList(patternList); });
+        clips.synchronize();
+    }
+
+    // audio thread only, returns the clips to read for this block, they stay
+    // valid until releaseClips is called
+    const ClipIndex & acquireClips() {
+        return *clips.pin();
+    }
+
+    // audio thread only, ends the read started by acquireClips
+    void releaseClips() {
+        clips.unpin();
+    }
+
+    // audio thread only, returns true if a clip plays at the given sample
     bool hasNote(uint64_t sample) {
-        return false;
+        bool covered = acquireClips().covers(sample);
+        releaseClips();
+        return covered;
     }
 };
 
@@ -0,0 +1,182 @@
+#ifndef AAUDIOTRACK_WORKERPOOL_H
+#define AAUDIOTRACK_WORKERPOOL_H
+
+#include <atomic>
+#include <climits>
+#include <cstdint>
+#include <thread>
+#include <vector>
+#include <linux/futex.h>
+#include <pthread.h>
+#include <sched.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+#include <AndroidDAW_SDK/Log/log.h>
+
+// a pool of threads that runs a batch of independent jobs for the audio thread
+//
+// the thread that calls run is worker 0 and claims jobs like every other worker,
+// so a batch completes even if no worker wakes up in time, and run only ever waits
+// for the jobs a worker has already started
+//
+// run never allocates, never locks and never sleeps, the workers spin for a while after
+// each batch and then sleep on a futex until the next one
+//
+// the workers are created and destroyed by start and stop, which must not be called
+// while a batch is running
+class WorkerPool {
+public:
+    // called for each job of a batch with the index of the job and of the worker running it
+    typedef void (*Job)(void * context, size_t job, size_t worker);
+
+private:
+    // the batches alternate between two slots, so a worker that wakes up late
+    // for one batch never reads the slot the next batch is being written to
+    struct Batch {
+        Job job = nullptr;
+        void * context = nullptr;
+        size_t jobs = 0;
+        std::atomic<size_t> next {0};
+        std::atomic<size_t> finished {0};
+        // the workers reading this slot
+        std::atomic<size_t> active {0};
+    };
+
+    Batch batches[2];
+
+    // advanced by run for every batch, the slot of a batch is its generation & 1
+    std::atomic<uint32_t> generation {0};
+    std::atomic<uint32_t> sleepers {0};
+    std::atomic<bool> stopping {false};
+
+    std::vector<std::thread> threads;
+
+    // how long a worker polls for the next batch before it sleeps, long enough to
+    // cover the gap between the batches of consecutive callbacks at small buffer sizes
+    static constexpr int SPIN = 1 << 14;
+
+    static void pause() {
+#if defined(__x86_64__) || defined(__i386__)
+        __builtin_ia32_pause();
+#elif defined(__aarch64__) || defined(__arm__)
+        asm volatile("yield");
+#endif
+    }
+
+    void futexWait(uint32_t value) {
+        syscall(SYS_futex, reinterpret_cast<uint32_t *>(&generation), FUTEX_WAIT_PRIVATE, value, nullptr, nullptr, 0);
+    }
+
+    void futexWake() {
+        syscall(SYS_futex, reinterpret_cast<uint32_t *>(&generation), FUTEX_WAKE_PRIVATE, INT_MAX, nullptr, nullptr, 0);
+    }
+
+    static void claim(Batch & batch, size_t worker) {
+        for (;;) {
+            size_t job = batch.next.fetch_add(1, std::memory_order_relaxed);
+            if (job >= batch.jobs) return;
+            batch.job(batch.context, job, worker);
+            batch.finished.fetch_add(1, std::memory_order_release);
+        }
+    }
+
+    // a worker never takes priority over the audio thread, but should not be
+    // preempted by the rest of the app either
+    static void configureThread(size_t worker) {
+        unsigned int cpus = std::thread::hardware_concurrency();
+        if (cpus > 1) {
+            cpu_set_t set;
+            CPU_ZERO(&set);
+            CPU_SET(worker % cpus, &set);
+            if (sched_setaffinity(0, sizeof(set), &set) != 0) {
+                LOGW("worker %zu cannot be pinned to cpu %zu", worker, worker % cpus);
+            }
+        }
+        sched_param param {};
+        param.sched_priority = sched_get_priority_min(SCHED_FIFO);
+        if (pthread_setschedparam(pthread_self(), SCHED_FIFO, &param) != 0) {
+            LOGW("worker %zu cannot use SCHED_FIFO, it runs at normal priority", worker);
+        }
+    }
+
+    void workerLoop(size_t worker) {
+        configureThread(worker);
+        uint32_t seen = generation.load(std::memory_order_acquire);
+        for (;;) {
+            uint32_t current = seen;
+            for (int i = 0; i < SPIN; i++) {
+                current = generation.load(std::memory_order_acquire);
+                if (current != seen) break;
+                pause();
+            }
+            if (current == seen) {
+                sleepers.fetch_add(1, std::memory_order_seq_cst);
+                if (generation.load(std::memory_order_seq_cst) == seen) futexWait(seen);
+                sleepers.fetch_sub(1, std::memory_order_seq_cst);
+                continue;
+            }
+            seen = current;
+            if (stopping.load(std::memory_order_acquire)) return;
+            Batch & batch = batches[seen & 1];
+            batch.active.fetch_add(1, std::memory_order_seq_cst);
+            // if a newer batch has started, this slot may already be rewritten, skip it
+            if (generation.load(std::memory_order_seq_cst) == seen) claim(batch, worker);
+            batch.active.fetch_sub(1, std::memory_order_release);
+        }
+    }
+
+public:
+    ~WorkerPool() {
+        stop();
+    }
+
+    // the number of workers including the thread calling run
+    size_t size() const {
+        return threads.size() + 1;
+    }
+
+    // starts workers - 1 threads, the thread calling run is the remaining worker
+    void start(size_t workers) {
+        stop();
+        stopping.store(false);
+        for (size_t worker = 1; worker < workers; worker++) {
+            threads.emplace_back(&WorkerPool::workerLoop, this, worker);
+        }
+    }
+
+    void stop() {
+        if (threads.empty()) return;
+        stopping.store(true, std::memory_order_release);
+        generation.fetch_add(1, std::memory_order_seq_cst);
+        futexWake();
+        for (std::thread & thread : threads) thread.join();
+        threads.clear();
+    }
+
+    // runs job(context, i, worker) for every i in [0, jobs) and returns once all of them are done
+    void run(Job job, void * context, size_t jobs) {
+        if (threads.empty() || jobs < 2) {
+            for (size_t i = 0; i < jobs; i++) job(context, i, 0);
+            return;
+        }
+        uint32_t next = generation.load(std::memory_order_relaxed) + 1;
+        Batch & batch = batches[next & 1];
+        // a worker that woke up too late for the last batch in this slot may still be leaving it
+        while (batch.active.load(std::memory_order_seq_cst) != 0) pause();
+        batch.job = job;
+        batch.context = context;
+        batch.jobs = jobs;
+        batch.next.store(0, std::memory_order_relaxed);
+        batch.finished.store(0, std::memory_order_relaxed);
+        generation.store(next, std::memory_order_seq_cst);
+        if (sleepers.load(std::memory_order_seq_cst) != 0) futexWake();
+
+        claim(batch, 0);
+        for (int i = 0; batch.finished.load(std::memory_order_acquire) != jobs; i++) {
+            // only reached while a worker finishes a job it has already claimed
+            if (i < SPIN) pause(); else std::this_thread::yield();
+        }
+    }
+};
+
+#endif //AAUDIOTRACK_WORKERPOOL_H
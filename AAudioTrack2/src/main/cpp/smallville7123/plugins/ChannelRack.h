@@ -16,8 +16,12 @@
 #include "../Pattern.h"
 #include "../PatternList.h"
 #include "../PatternGroup.h"
+#include "../RoutingGraph.h"
+#include "../DoubleBuffer.h"
+#include "../WorkerPool.h"
 #include <AndroidDAW_SDK/midifile/MidiFile.h>
 #include <cstdlib>
+#include <memory>
 
 class ChannelRack : Plugin {
 public:
@@ -33,11 +37,8 @@ public:
     }
 
 public:
-    PortUtils2 * silencePort = nullptr;
-
     ChannelRack() {
-        silencePort = new PortUtils2();
-
+        setWorkers(1);
         // i dont think a ring buffer can be used, eg assuming the ring buffer IS the buffer, then it would need to re-push all notes in the new order each time it is modified, which would involve shifting and inserting notes, which could result in invalid playback of incorrect notes
         // for example if you have 0,0,1,0 and you want to set 1,0,1,0 then it would need to be 0,0,1,0 > 1,0,0,1 > 0,1,0,0 > 1,0,1,0
         // in which the audio thread CAN play any of the notes during the modification of the ring buffer
@@ -68,11 +69,6 @@ public:
         //00:37 AndroidDAW: for example if you have a ring buffer with a capacity of 5, you cannot give it 7 pieces of data and except it to be able to store, and access, all 7 pieces of data
     }
 
-    ~ChannelRack() {
-        silencePort->deallocatePorts<ENGINE_FORMAT>();
-        delete silencePort;
-    }
-
     void writePlugin(Plugin * plugin, HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer,
                      PortUtils2 *out, unsigned int samples) {
         plugin->write(hostInfo, in, mixer, out, samples);
@@ -84,207 +80,168 @@ public:
         effectRack->is_writing = true;
     }
 
-    void writeChannels(HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
-                       unsigned int samples) {
-        for (int i = 0; i < PatternGroup::cast(hostInfo->patternGroup)->rack.typeList.size(); ++i) {
-            PatternList *patternList = PatternGroup::cast(hostInfo->patternGroup)->rack.typeList[i];
-            if (patternList != nullptr) {
-                for (int i = 0; i < patternList->rack.typeList.size(); ++i) {
-                    Pattern *pattern = patternList->rack.typeList[i];
-                    if (pattern != nullptr) {
-                        Channel_Generator * channel = pattern->channelReference;
-                        if (channel != nullptr) {
-                            hostInfo->fillMidiEvents(
-                                    hostInfo->midiInputBuffer,
-                                    pattern->pianoRoll.grid,
-                                    pattern->pianoRoll.noteData,
-                                    samples,
-                                    hostInfo->engineSample
-                            );
-                            channel->out->allocatePorts<ENGINE_FORMAT>(out);
-                            channel->out->fillPortBuffer<ENGINE_FORMAT>(0);
-                            if (channel->plugin != nullptr) {
-                                channel->plugin->write(hostInfo, in, mixer,
-                                                       channel->out, samples);
-                            }
-                            if (channel->effectRack != nullptr) {
-                                channel->effectRack->write(hostInfo, in, mixer,
-                                                           channel->out, samples);
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        hostInfo->engineSample += samples;
-        // LOGE("wrote channels");
-    }
-
     static constexpr int NO_EVENT = 0;
     static constexpr int EVENT_NOTE_ON = 1;
     static constexpr int EVENT_NOTE_OFF = 2;
 
-    void writeChannelsDirect(HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
-                       unsigned int samples) {
-        for (int i = 0; i < rack.typeList.size(); ++i) {
-            Channel_Generator * channel = rack.typeList[i];
-            if (channel != nullptr) {
-                channel->out->allocatePorts<ENGINE_FORMAT>(out);
-                channel->out->fillPortBuffer<ENGINE_FORMAT>(0);
-                if (channel->plugin != nullptr) {
-                    hostInfo->midiInputBuffer.consumerClear();
-                    if (!channel->plugin->eventBuffer.isEmpty()) {
-                        int *tmp = channel->plugin->eventBuffer.peek();
-                        int event;
-                        if (tmp == nullptr) {
-                            event = NO_EVENT;
-                        } else {
-                            event = *tmp;
-                            channel->plugin->eventBuffer.remove();
-                        }
-                        switch(event) {
-                            case NO_EVENT:
-                                break;
-                            case EVENT_NOTE_ON: {
-                                smf::MidiEvent midiEvent;
-                                midiEvent.tick = hostInfo->engineSample;
-                                midiEvent.makeNoteOn(0, 0, 127);
-                                hostInfo->midiInputBuffer.insert(midiEvent);
-                                break;
-                            }
-                            case EVENT_NOTE_OFF: {
-                                smf::MidiEvent midiEvent;
-                                midiEvent.tick = hostInfo->engineSample;
-                                midiEvent.makeNoteOff(0, 0, 0);
-                                hostInfo->midiInputBuffer.insert(midiEvent);
-                                break;
-                            }
-                        }
-                    }
-                    channel->plugin->write(hostInfo, in, mixer, channel->out, samples);
-                }
-                if (channel->effectRack != nullptr) {
-                    channel->effectRack->write(hostInfo, in, mixer, channel->out, samples);
-                }
-            }
-        }
-        hostInfo->engineSample += samples;
-        // LOGE("wrote channels");
+    // renders the channels in parallel, see setWorkers
+    WorkerPool workers;
+
+    // every worker but the first reads its events from its own HostInfo,
+    // the first uses the engine's
+    std::vector<std::unique_ptr<HostInfo>> workerHostInfo;
+
+    // the block being rendered, shared by the jobs of a batch
+    struct Block {
+        ChannelRack * channelRack;
+        const RoutingGraph * graph;
+        HostInfo * hostInfo;
+        PortUtils2 * in;
+        Plugin * mixer;
+        PortUtils2 * out;
+        unsigned int samples;
+        uint64_t block;
+    };
+
+    // starts count - 1 threads to render channels alongside the audio thread,
+    // 1 renders every channel on the audio thread
+    //
+    // there are never more workers than cores unless limitToCores is false,
+    // a worker without a core of its own only delays the audio thread
+    //
+    // must not be called while the engine is running
+    void setWorkers(size_t count, bool limitToCores = true) {
+        size_t cores = std::thread::hardware_concurrency();
+        if (limitToCores && cores > 0 && count > cores) count = cores;
+        if (count < 1) count = 1;
+        workers.start(count);
+        workerHostInfo.clear();
+        workerHostInfo.emplace_back(nullptr);
+        for (size_t i = 1; i < count; i++) workerHostInfo.emplace_back(new HostInfo());
     }
 
-    void prepareMixerDirect(HostInfo * hostInfo, Plugin * mixer_, PortUtils2 * out) {
-        // LOGE("preparing mixer");
-        for (int i = 0; i < rack.typeList.size(); ++i) {
-            Channel_Generator * channel = rack.typeList[i];
-            if (channel != nullptr) {
-                if (channel->out->allocated) {
-                    mixer_->addPort(channel->out);
-                }
-            }
-        }
-        silencePort->allocatePorts<ENGINE_FORMAT>(out);
-        mixer_->addPort(silencePort);
-        silencePort->fillPortBuffer<ENGINE_FORMAT>(0);
-        // LOGE("prepared mixer");
+    HostInfo * hostInfoFor(HostInfo * hostInfo, size_t worker) {
+        return worker == 0 ? hostInfo : workerHostInfo[worker].get();
     }
 
-
-    void prepareMixer(HostInfo * hostInfo, Plugin * mixer_, PortUtils2 * out) {
-        // LOGE("preparing mixer");
-        for (int i = 0; i < PatternGroup::cast(hostInfo->patternGroup)->rack.typeList.size(); ++i) {
-            PatternList *patternList = PatternGroup::cast(hostInfo->patternGroup)->rack.typeList[i];
-            if (patternList != nullptr) {
-                for (int i = 0; i < patternList->rack.typeList.size(); ++i) {
-                    Pattern *pattern = patternList->rack.typeList[i];
-                    if (pattern != nullptr) {
-                        if (pattern->channelReference != nullptr) {
-                            if (pattern->channelReference->out->allocated) {
-                                mixer_->addPort(pattern->channelReference->out);
-                            }
-                        }
-                    }
-                }
-            }
+    void syncWorkerHostInfo(HostInfo * hostInfo) {
+        for (size_t i = 1; i < workerHostInfo.size(); i++) {
+            HostInfo * workerInfo = workerHostInfo[i].get();
+            workerInfo->engineSample = hostInfo->engineSample;
+            workerInfo->patternGroup = hostInfo->patternGroup;
+            workerInfo->midiFile = hostInfo->midiFile;
         }
-        silencePort->allocatePorts<ENGINE_FORMAT>(out);
-        mixer_->addPort(silencePort);
-        silencePort->fillPortBuffer<ENGINE_FORMAT>(0);
-        // LOGE("prepared mixer");
-    }
-
-    void mix(HostInfo *hostInfo, PortUtils2 *in, Plugin * mixer, PortUtils2 *out,
-             unsigned int samples) {
-        // LOGE("mixing");
-        mixer->write(hostInfo, in, mixer, out, samples);
-        // LOGE("mixed");
     }
 
-    void finalizeMixerDirect(HostInfo * hostInfo, Plugin * mixer_) {
-        // LOGE("finalizing mixer");
-        mixer_->removePort(silencePort);
-        silencePort->deallocatePorts<ENGINE_FORMAT>();
-
-        for (int i = 0; i < rack.typeList.size(); ++i) {
-            Channel_Generator * channel = rack.typeList[i];
-            if (channel != nullptr) {
-                if (channel->out->allocated) {
-                    mixer_->removePort(channel->out);
-                    channel->out->deallocatePorts<ENGINE_FORMAT>();
-                }
+    // renders the patterns of one channel
+    static void writeChannel(void * context, size_t job, size_t worker) {
+        Block * block = static_cast<Block *>(context);
+        const RoutingGraph::ChannelRoutes & render = block->graph->renders[job];
+        HostInfo * hostInfo = block->channelRack->hostInfoFor(block->hostInfo, worker);
+        Channel_Generator * channel = render.channel;
+        channel->renderedBlock = block->block;
+        for (size_t i = render.begin; i < render.end; i++) {
+            block->graph->renderRoutes[i].pattern->pianoRoll.fillMidiEvents(
+                    hostInfo->midiInputBuffer,
+                    block->samples,
+                    hostInfo->engineSample
+            );
+            channel->out->fillPortBuffer<ENGINE_FORMAT>(0);
+            if (channel->plugin != nullptr) {
+                channel->plugin->write(hostInfo, block->in, block->mixer,
+                                       channel->out, block->samples);
+            }
+            if (channel->effectRack != nullptr) {
+                channel->effectRack->write(hostInfo, block->in, block->mixer,
+                                           channel->out, block->samples);
             }
         }
-        // LOGE("finalized mixer");
     }
 
-    void finalizeMixer(HostInfo * hostInfo, Plugin * mixer_) {
-        // LOGE("finalizing mixer");
-        mixer_->removePort(silencePort);
-        silencePort->deallocatePorts<ENGINE_FORMAT>();
-
-        for (int i = 0; i < PatternGroup::cast(hostInfo->patternGroup)->rack.typeList.size(); ++i) {
-            PatternList *patternList = PatternGroup::cast(hostInfo->patternGroup)->rack.typeList[i];
-            if (patternList != nullptr) {
-                for (int i = 0; i < patternList->rack.typeList.size(); ++i) {
-                    Pattern *pattern = patternList->rack.typeList[i];
-                    if (pattern != nullptr) {
-                        if (pattern->channelReference != nullptr) {
-                            if (pattern->channelReference->out->allocated) {
-                                mixer_->removePort(pattern->channelReference->out);
-                                pattern->channelReference->out->deallocatePorts<ENGINE_FORMAT>();
-                            }
-                        }
+    // renders one channel from the events it was sent
+    //
+    // an event sent from the UI plays on the first frame of the next block
+    static void writeChannelDirect(void * context, size_t job, size_t worker) {
+        Block * block = static_cast<Block *>(context);
+        Channel_Generator * channel = block->graph->rackChannels[job];
+        HostInfo * hostInfo = block->channelRack->hostInfoFor(block->hostInfo, worker);
+        channel->renderedBlock = block->block;
+        channel->out->fillPortBuffer<ENGINE_FORMAT>(0);
+        if (channel->plugin != nullptr) {
+            hostInfo->midiInputBuffer.consumerClear();
+            if (!channel->plugin->eventBuffer.isEmpty()) {
+                int *tmp = channel->plugin->eventBuffer.peek();
+                int event;
+                if (tmp == nullptr) {
+                    event = NO_EVENT;
+                } else {
+                    event = *tmp;
+                    channel->plugin->eventBuffer.remove();
+                }
+                switch(event) {
+                    case NO_EVENT:
+                        break;
+                    case EVENT_NOTE_ON: {
+                        smf::MidiEvent midiEvent;
+                        midiEvent.tick = 0;
+                        midiEvent.makeNoteOn(0, 0, 127);
+                        hostInfo->midiInputBuffer.insert(midiEvent);
+                        break;
+                    }
+                    case EVENT_NOTE_OFF: {
+                        smf::MidiEvent midiEvent;
+                        midiEvent.tick = 0;
+                        midiEvent.makeNoteOff(0, 0, 0);
+                        hostInfo->midiInputBuffer.insert(midiEvent);
+                        break;
                     }
                 }
             }
+            channel->plugin->write(hostInfo, block->in, block->mixer, channel->out, block->samples);
+        }
+        if (channel->effectRack != nullptr) {
+            channel->effectRack->write(hostInfo, block->in, block->mixer, channel->out, block->samples);
         }
-        // LOGE("finalized mixer");
     }
 
-    void mixChannelsDirect(HostInfo *hostInfo, PortUtils2 *in, Plugin * mixer, PortUtils2 *out,
-                           unsigned int samples) {
-        prepareMixerDirect(hostInfo, mixer, out);
-        mix(hostInfo, in, mixer, out, samples);
-        finalizeMixerDirect(hostInfo, mixer);
+    // every channel writes only to its own port, so the channels are rendered as
+    // independent jobs, and are only mixed once all of them are done
+    void writeChannels(const RoutingGraph & graph, HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
+                       unsigned int samples) {
+        syncWorkerHostInfo(hostInfo);
+        Block block {this, &graph, hostInfo, in, mixer, out, samples, static_cast<Mixer *>(mixer)->block};
+        workers.run(writeChannel, &block, graph.renders.size());
+        hostInfo->engineSample += samples;
+        // LOGE("wrote channels");
     }
 
-    void mixChannels(HostInfo *hostInfo, PortUtils2 *in, Plugin * mixer, PortUtils2 *out,
-                     unsigned int samples) {
-        prepareMixer(hostInfo, mixer, out);
-        mix(hostInfo, in, mixer, out, samples);
-        finalizeMixer(hostInfo, mixer);
+    void writeChannelsDirect(const RoutingGraph & graph, HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
+                       unsigned int samples) {
+        syncWorkerHostInfo(hostInfo);
+        Block block {this, &graph, hostInfo, in, mixer, out, samples, static_cast<Mixer *>(mixer)->block};
+        workers.run(writeChannelDirect, &block, graph.rackChannels.size());
+        hostInfo->engineSample += samples;
+        // LOGE("wrote channels");
     }
 
+    // the graph the channels are rendered and mixed from, see AudioEngine::rebuildRoutingGraph
+    DoubleBuffer<RoutingGraph> * routingGraph = nullptr;
+
     int writeDirect(HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
               unsigned int samples) {
-        writeChannelsDirect(hostInfo, in, mixer, out, samples);
-        mixChannelsDirect(hostInfo, in, reinterpret_cast<Plugin*>(mixer), out, samples);
+        const RoutingGraph & graph = *routingGraph->pin();
+        writeChannelsDirect(graph, hostInfo, in, mixer, out, samples);
+        graph.mix(hostInfo, static_cast<Mixer *>(mixer), out, samples);
+        routingGraph->unpin();
         return PLUGIN_CONTINUE;
     }
 
     int write(HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
               unsigned int samples) override {
-        writeChannels(hostInfo, in, mixer, out, samples);
-        mixChannels(hostInfo, in, reinterpret_cast<Plugin*>(mixer), out, samples);
+        const RoutingGraph & graph = *routingGraph->pin();
+        writeChannels(graph, hostInfo, in, mixer, out, samples);
+        graph.mix(hostInfo, static_cast<Mixer *>(mixer), out, samples);
+        routingGraph->unpin();
         return PLUGIN_CONTINUE;
     }
 
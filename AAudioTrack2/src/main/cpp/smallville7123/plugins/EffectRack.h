@@ -35,18 +35,22 @@ public:
 public:
     bool tmp;
 
+    // never on the audio thread, allocates the port every effect writes into
+    void preparePorts(unsigned int samples, unsigned int channelCount) {
+        for (Channel_Effect * effect : rack.typeList) {
+            if (effect != nullptr) Mixer::preparePort(effect->out, samples, channelCount);
+        }
+    }
+
+    // each effect writes into its own port, which then replaces out
     int write(HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
               unsigned int samples) override {
         tmp = PLUGIN_STOP;
         for(auto effect : rack.typeList) {
-            if (effect->plugin == nullptr) continue;
-            PortUtils2 * tmpPort = new PortUtils2();
-            tmpPort->allocatePorts<ENGINE_FORMAT>(out->ports.samples, out->ports.channelCount);
-            tmpPort->fillPortBuffer<ENGINE_FORMAT>(0);
-            effect->plugin->is_writing = effect->plugin->write(hostInfo, out, mixer, tmpPort, samples);
-            out->copyFromPortToPort<ENGINE_FORMAT>(*tmpPort);
-            tmpPort->deallocatePorts<ENGINE_FORMAT>(out->ports.channelCount);
-            delete tmpPort;
+            if (effect == nullptr || effect->plugin == nullptr) continue;
+            effect->out->fillPortBuffer<ENGINE_FORMAT>(0);
+            effect->plugin->is_writing = effect->plugin->write(hostInfo, out, mixer, effect->out, samples);
+            out->copyFromPortToPort<ENGINE_FORMAT>(*effect->out);
             if (effect->plugin->is_writing == PLUGIN_CONTINUE) tmp = PLUGIN_CONTINUE;
         }
         return tmp;
@@ -7,13 +7,17 @@
 
 // sum each audio stream together
 // mix 3 streams into output
-// out[i] = stream[0][i] + stream[1][i] + stream[2][i]
+// out[i] = stream[0][i] * gain[0] + stream[1][i] * gain[1] + stream[2][i] * gain[2]
 //
-// if stream 0 + stream 1 would result in an overflow,
-// and the mixer still has stream 2 to add, it can either
-// clip and omit stream 2,
-// or apply a gain to both streams 0 and 1 and then add stream 2
+// each stream is summed across the whole block before the next one is added,
+// in plain loops over contiguous buffers that the compiler can vectorize
+//
+// no stream is ever dropped, if the sum exceeds the headroom of the output
+// it is softly clipped once every stream has been added
 
+#include <algorithm>
+#include <atomic>
+#include <cmath>
 #include <cstdint>
 #include <vector>
 #include <AndroidDAW_SDK/plugin/PortUtils2.h>
@@ -21,47 +25,191 @@
 
 using namespace AndroidDAW_SDK__Plugin_TYPEDEFS;
 
+// the gain and pan of one input of the Mixer
+//
+// gain and pan may be set from any thread, the mixer moves to new values
+// over the length of one block so that a change never clicks
+class MixerStrip {
+public:
+    std::atomic<float> gain {1.0f};
+
+    // -1 is fully left, 0 is centered and 1 is fully right
+    //
+    // the inputs are stereo, so pan is a balance, the centre leaves both sides at unity
+    std::atomic<float> pan {0.0f};
+
+    // audio thread only, the gains applied to each side at the end of the previous block
+    float left = 1.0f;
+    float right = 1.0f;
+
+    void targets(float & targetLeft, float & targetRight) const {
+        float g = gain.load(std::memory_order_relaxed);
+        float p = std::min(1.0f, std::max(-1.0f, pan.load(std::memory_order_relaxed)));
+        targetLeft = p > 0 ? g * (1.0f - p) : g;
+        targetRight = p < 0 ? g * (1.0f + p) : g;
+    }
+};
+
 class Mixer : public Plugin {
 public:
     int plugin_type() override {
         return PLUGIN_TYPE_MIXER;
     }
 
-    int write(HostInfo *hostInfo, PortUtils2 *unused, Plugin *mixer, PortUtils2 *out,
-              unsigned int samples) override {
-        // a mixer will have no direct input port, and instead manage its own input ports
-        // a silence port will always be given
-        if (ports.empty() || ports.size() == 1) {
-            out->fillPortBuffer<ENGINE_FORMAT>(0);
-            return PLUGIN_STOP;
+    // the level above which the output is softly clipped, below it the output is left untouched
+    static constexpr ENGINE_FORMAT SOFT_CLIP_KNEE = 0.8f;
+
+    struct Input {
+        PortUtils2 * port = nullptr;
+        // nullptr mixes the port at unity gain
+        MixerStrip * strip = nullptr;
+        // a post fader send also follows the fader of its source
+        const MixerStrip * fader = nullptr;
+        // the block the port was last written in, the port is only mixed if it was
+        // written in the block being mixed, nullptr if the port is always current
+        const uint64_t * written = nullptr;
+    };
+
+    std::vector<Input> inputs;
+
+    // counts the blocks the engine has rendered, advanced at the start of every block
+    uint64_t block = 0;
+
+    // never on the audio thread, makes port hold samples samples of channelCount channels
+    //
+    // the port stays allocated between blocks, it is only reallocated when its size
+    // changes, see AudioEngine::preparePorts
+    static void preparePort(PortUtils2 * port, unsigned int samples, unsigned int channelCount) {
+        if (port->allocated
+            && port->ports.samples == samples
+            && port->ports.channelCount == channelCount) {
+            return;
         }
+        port->deallocatePorts<ENGINE_FORMAT>();
+        port->allocatePorts<ENGINE_FORMAT>(samples, channelCount);
+    }
+
+    void addInput(PortUtils2 * port, MixerStrip * strip) {
+        inputs.push_back({port, strip});
+    }
 
-        for (int i = 0; i < samples; i++) {
-            // initialize with silence
-            ENGINE_FORMAT sumLeft = 0;
-            ENGINE_FORMAT sumRight = 0;
-            // sum each input port in the mixer
-            for (PortUtils2 * portUtils2 : ports) {
-                if (portUtils2->allocated) {
-                    bool overflowed = false;
-                    bool underflowed = false;
-                    ENGINE_FORMAT left = static_cast<ENGINE_FORMAT *>(portUtils2->ports.outputStereo->l->buf)[i];
-                    sumLeft = PLUGIN_HELPERS_add<ENGINE_FORMAT>(ENGINE_FORMAT_MIN,
-                                                                ENGINE_FORMAT_MAX, sumLeft, left,
-                                                                overflowed, underflowed);
-                    ENGINE_FORMAT right = static_cast<ENGINE_FORMAT *>(portUtils2->ports.outputStereo->r->buf)[i];
-                    sumRight = PLUGIN_HELPERS_add<ENGINE_FORMAT>(ENGINE_FORMAT_MIN,
-                                                                 ENGINE_FORMAT_MAX, sumRight, right,
-                                                                 overflowed, underflowed);
-                    if (overflowed || underflowed) break;
-                } else {
-                    LOGE("cannot mix a deallocated port, skipping");
+    void removeInput(PortUtils2 * port) {
+        inputs.erase(std::remove_if(inputs.begin(), inputs.end(), [port](const Input & input) {
+            return input.port == port;
+        }), inputs.end());
+    }
+
+    // out[i] += in[i] * gain, with the gain moving linearly from `from` to `to` across the block
+    static void accumulate(ENGINE_FORMAT * __restrict out, const ENGINE_FORMAT * __restrict in,
+                           unsigned int samples, float from, float to) {
+        if (from == to) {
+            if (to == 0.0f) return;
+            if (to == 1.0f) {
+                for (unsigned int i = 0; i < samples; i++) out[i] += in[i];
+            } else {
+                for (unsigned int i = 0; i < samples; i++) out[i] += in[i] * to;
+            }
+            return;
+        }
+        float step = (to - from) / static_cast<float>(samples);
+        for (unsigned int i = 0; i < samples; i++) {
+            out[i] += in[i] * (from + (step * static_cast<float>(i)));
+        }
+    }
+
+    // buffer[i] *= gain, with the gain moving linearly from `from` to `to` across the block
+    static void scale(ENGINE_FORMAT * buffer, unsigned int samples, float from, float to) {
+        if (from == to) {
+            if (to == 1.0f) return;
+            for (unsigned int i = 0; i < samples; i++) buffer[i] *= to;
+            return;
+        }
+        float step = (to - from) / static_cast<float>(samples);
+        for (unsigned int i = 0; i < samples; i++) {
+            buffer[i] *= from + (step * static_cast<float>(i));
+        }
+    }
+
+    // applies the gain and pan of strip to out in place
+    static void scale(PortUtils2 * out, MixerStrip & strip, unsigned int samples) {
+        float toLeft;
+        float toRight;
+        strip.targets(toLeft, toRight);
+        scale(reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->l->buf), samples, strip.left, toLeft);
+        scale(reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->r->buf), samples, strip.right, toRight);
+        strip.left = toLeft;
+        strip.right = toRight;
+    }
+
+    static ENGINE_FORMAT softClip(ENGINE_FORMAT value) {
+        ENGINE_FORMAT magnitude = std::abs(value);
+        if (magnitude <= SOFT_CLIP_KNEE) return value;
+        // the part above the knee is compressed smoothly towards 1, which it never reaches
+        ENGINE_FORMAT excess = (magnitude - SOFT_CLIP_KNEE) / (1 - SOFT_CLIP_KNEE);
+        return std::copysign(SOFT_CLIP_KNEE + ((1 - SOFT_CLIP_KNEE) * (excess / (1 + excess))), value);
+    }
+
+    // most blocks never reach the knee, so the peak is found first and the
+    // block is only clipped if it needs to be
+    static void softClip(ENGINE_FORMAT * buffer, unsigned int samples) {
+        ENGINE_FORMAT peak = 0;
+        for (unsigned int i = 0; i < samples; i++) peak = std::max(peak, std::abs(buffer[i]));
+        if (peak <= SOFT_CLIP_KNEE) return;
+        for (unsigned int i = 0; i < samples; i++) buffer[i] = softClip(buffer[i]);
+    }
+
+    static void softClip(PortUtils2 * out, unsigned int samples) {
+        softClip(reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->l->buf), samples);
+        softClip(reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->r->buf), samples);
+    }
+
+    // replaces out with the sum of the inputs written in block, without clipping it
+    static void sum(const std::vector<Input> & inputs, PortUtils2 *out, unsigned int samples, uint64_t block) {
+        ENGINE_FORMAT * outLeft = reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->l->buf);
+        ENGINE_FORMAT * outRight = reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->r->buf);
+        std::fill(outLeft, outLeft + samples, 0);
+        std::fill(outRight, outRight + samples, 0);
+
+        for (const Input & input : inputs) {
+            if (input.written != nullptr && *input.written != block) continue;
+            PortUtils2 * port = input.port;
+            if (!port->allocated) {
+                LOGE("cannot mix a deallocated port, skipping");
+                continue;
+            }
+            float fromLeft = 1.0f;
+            float fromRight = 1.0f;
+            float toLeft = 1.0f;
+            float toRight = 1.0f;
+            if (input.strip != nullptr) {
+                fromLeft = input.strip->left;
+                fromRight = input.strip->right;
+                input.strip->targets(toLeft, toRight);
+                if (input.fader != nullptr) {
+                    float faderLeft;
+                    float faderRight;
+                    input.fader->targets(faderLeft, faderRight);
+                    toLeft *= faderLeft;
+                    toRight *= faderRight;
                 }
+                input.strip->left = toLeft;
+                input.strip->right = toRight;
             }
-            // set the output buffer index to the result of the summed audio
-            reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->l->buf)[i] = sumLeft;
-            reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->r->buf)[i] = sumRight;
+            accumulate(outLeft, static_cast<ENGINE_FORMAT *>(port->ports.outputStereo->l->buf), samples, fromLeft, toLeft);
+            accumulate(outRight, static_cast<ENGINE_FORMAT *>(port->ports.outputStereo->r->buf), samples, fromRight, toRight);
         }
+    }
+
+    int write(HostInfo *hostInfo, PortUtils2 *unused, Plugin *mixer, PortUtils2 *out,
+              unsigned int samples) override {
+        // a mixer will have no direct input port, and instead manage its own inputs
+        return mix(inputs, out, samples);
+    }
+
+    // mixes the given inputs into out, the inputs are not retained
+    int mix(const std::vector<Input> & inputs, PortUtils2 *out, unsigned int samples) {
+        sum(inputs, out, samples, block);
+        softClip(out, samples);
         return PLUGIN_STOP;
     }
 };
@@ -16,6 +16,8 @@
 #include "../Track.h"
 #include "../TrackList.h"
 #include "../TrackGroup.h"
+#include "../RoutingGraph.h"
+#include "../DoubleBuffer.h"
 
 class Playlist : Plugin {
 public:
@@ -31,271 +33,206 @@ public:
     }
 
 public:
-    PortUtils2 * silencePort = nullptr;
+    // renders the channels that only play part of a block
+    PortUtils2 * segmentPort = nullptr;
+
+    // never on the audio thread, see AudioEngine::preparePorts
+    void preparePorts(unsigned int samples, unsigned int channelCount) {
+        Mixer::preparePort(segmentPort, samples, channelCount);
+    }
+
+    // the graph the patterns are rendered from, see AudioEngine::rebuildRoutingGraph
+    DoubleBuffer<RoutingGraph> * routingGraph = nullptr;
+
+    // the graph pinned for the block being rendered
+    const RoutingGraph * graph = nullptr;
+
+    // the block being rendered, a channel is claimed once per block
+    uint64_t block = 0;
 
     TrackGroup trackGroup;
 
     Playlist() {
-        silencePort = new PortUtils2();
+        segmentPort = new PortUtils2();
     }
 
     ~Playlist() {
-        silencePort->deallocatePorts<ENGINE_FORMAT>();
-        delete silencePort;
+        segmentPort->deallocatePorts<ENGINE_FORMAT>();
+        delete segmentPort;
     }
 
-    void writePlugin(Plugin * plugin, HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer,
-                     PortUtils2 *out, unsigned int samples) {
-        plugin->is_writing = plugin->write(hostInfo, in, mixer,
-                                           out, samples);
+    // the song position of the next block
+    int64_t sample = 0;
+
+    // copies frames frames of from into to, starting at offset in to
+    static void copyFrames(PortUtils2 * from, PortUtils2 * to, unsigned int offset, unsigned int frames) {
+        ENGINE_FORMAT * fromLeft = reinterpret_cast<ENGINE_FORMAT *>(from->ports.outputStereo->l->buf);
+        ENGINE_FORMAT * fromRight = reinterpret_cast<ENGINE_FORMAT *>(from->ports.outputStereo->r->buf);
+        ENGINE_FORMAT * toLeft = reinterpret_cast<ENGINE_FORMAT *>(to->ports.outputStereo->l->buf);
+        ENGINE_FORMAT * toRight = reinterpret_cast<ENGINE_FORMAT *>(to->ports.outputStereo->r->buf);
+        std::copy(fromLeft, fromLeft + frames, toLeft + offset);
+        std::copy(fromRight, fromRight + frames, toRight + offset);
     }
 
-    void writeEffectRack(EffectRack * effectRack, HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer,
-                         PortUtils2 *out, unsigned int samples) {
-        effectRack->is_writing = effectRack->write(hostInfo, in, mixer,
-                                                   out, samples);
+    // the first part of a channel rendered in a block clears its output
+    void claim(Channel_Generator * channel) {
+        if (channel->renderedBlock == block) return;
+        channel->renderedBlock = block;
+        channel->songOwner = nullptr;
+        channel->songRenderedTo = 0;
+        channel->out->fillPortBuffer<ENGINE_FORMAT>(0);
     }
 
-    void writeChannels(HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
-                       unsigned int samples) {
-        // LOGE("writing channels");
-
-        // how does a timeline play a midi track
-        // like would the timeline send MIDI ON and MIDI OFF messages to the midi track?
-        // in which when the MIDI track recieves MIDI ON,
-        // it starts playing its midi data,
-        // and when it recieves MIDI OFF, it stops playing its midi data?
-
-        // welp imma just assume that the timeline uses a MIDI based approach,
-        // and that, it sends MIDI note on/off messages to MIDI tracks when
-        // appropriate similar to how a piano roll sends MIDI note on/off messages
-        // to its associated plugin
-
-        // this causes the current pattern list
-        // in the step sequencer's channel rack
-        // to partially play
-        for (int i = 0; i < trackGroup.rack.typeList.size(); ++i) {
-            TrackList *trackList = trackGroup.rack.typeList[i];
-            if (trackList != nullptr) {
-                for (int i = 0; i < trackList->rack.typeList.size(); ++i) {
-                    Track *track = trackList->rack.typeList[i];
-//                    if (track->hasNote(hostInfo->engineSample)) {
-                        for (int i = 0; i < PatternGroup::cast(
-                                hostInfo->patternGroup)->rack.typeList.size(); ++i) {
-                            PatternList *patternList = PatternGroup::cast(
-                                    hostInfo->patternGroup)->rack.typeList[i];
-                            if (patternList != nullptr) {
-                                for (int i = 0; i < patternList->rack.typeList.size(); ++i) {
-                                    Pattern *pattern = patternList->rack.typeList[i];
-                                    if (pattern != nullptr) {
-                                        Channel_Generator *channel = pattern->channelReference;
-                                        if (channel != nullptr) {
-                                            channel->out->allocatePorts<ENGINE_FORMAT>(out);
-                                            channel->out->fillPortBuffer<ENGINE_FORMAT>(0);
-                                            if (channel->plugin != nullptr) {
-                                                if (channel->plugin->is_writing ==
-                                                    PLUGIN_CONTINUE) {
-                                                    writePlugin(channel->plugin, hostInfo, in,
-                                                                mixer,
-                                                                channel->out, samples);
-                                                }
-                                            }
-                                            if (channel->effectRack != nullptr) {
-                                                if (channel->effectRack->is_writing ==
-                                                    PLUGIN_CONTINUE) {
-                                                    writeEffectRack(channel->effectRack, hostInfo,
-                                                                    in,
-                                                                    mixer,
-                                                                    channel->out, samples);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
-//                    }
-                }
-            }
+    // renders the frames [offset, offset + frames) of a channel from the events in hostInfo->midiInputBuffer
+    void renderPart(Channel_Generator * channel, HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer,
+                    unsigned int samples, unsigned int offset, unsigned int frames) {
+        // a whole block is rendered in place, a part of a block is rendered
+        // into segmentPort and then copied to its offset
+        PortUtils2 * target = frames == samples ? channel->out : segmentPort;
+        if (target == segmentPort) segmentPort->fillPortBuffer<ENGINE_FORMAT>(0);
+        if (channel->plugin != nullptr) {
+            channel->plugin->write(hostInfo, in, mixer, target, frames);
         }
-        for (int32_t i = 0; i < samples; i ++) {
-            for (int i = 0; i < trackGroup.rack.typeList.size(); ++i) {
-                TrackList *trackList = trackGroup.rack.typeList[i];
-                if (trackList != nullptr) {
-                    for (int i = 0; i < trackList->rack.typeList.size(); ++i) {
-                        Track *track = trackList->rack.typeList[i];
-                        if (track->hasNote(hostInfo->engineSample)) {
-                            for (int i = 0; i < PatternGroup::cast(
-                                    hostInfo->patternGroup)->rack.typeList.size(); ++i) {
-                                PatternList *patternList = PatternGroup::cast(
-                                        hostInfo->patternGroup)->rack.typeList[i];
-                                if (patternList != nullptr) {
-                                    for (int i = 0; i < patternList->rack.typeList.size(); ++i) {
-                                        Pattern *pattern = patternList->rack.typeList[i];
-                                        if (pattern != nullptr) {
-                                            if (false) {
-                                                Channel_Generator *channel = pattern->channelReference;
-                                                if (channel != nullptr) {
-                                                    channel->out->allocatePorts<ENGINE_FORMAT>(out);
-                                                    channel->out->fillPortBuffer<ENGINE_FORMAT>(0);
-                                                    if (channel->plugin != nullptr) {
-                                                        channel->plugin->stopPlayback();
-                                                        writePlugin(channel->plugin, hostInfo, in,
-                                                                    mixer,
-                                                                    channel->out, samples);
-                                                    }
-                                                    if (channel->effectRack != nullptr) {
-                                                        writeEffectRack(channel->effectRack,
-                                                                        hostInfo, in, mixer,
-                                                                        channel->out, samples);
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            hostInfo->engineSample++;
-            // return from the audio loop
+        if (channel->effectRack != nullptr) {
+            channel->effectRack->write(hostInfo, in, mixer, target, frames);
         }
-        // LOGE("wrote channels");
+        if (target == segmentPort) copyFrames(segmentPort, channel->out, offset, frames);
     }
 
-    void prepareMixer(HostInfo * hostInfo, Plugin * mixer_, PortUtils2 * out) {
-        // LOGE("preparing mixer");
-        for (int i = 0; i < PatternGroup::cast(hostInfo->patternGroup)->rack.typeList.size(); ++i) {
-            PatternList *patternList = PatternGroup::cast(hostInfo->patternGroup)->rack.typeList[i];
-            if (patternList != nullptr) {
-                for (int i = 0; i < patternList->rack.typeList.size(); ++i) {
-                    Pattern *pattern = patternList->rack.typeList[i];
-                    if (pattern != nullptr) {
-                        if (pattern->channelReference != nullptr) {
-                            if (pattern->channelReference->out->allocated) {
-                                mixer_->addPort(pattern->channelReference->out);
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        silencePort->allocatePorts<ENGINE_FORMAT>(out);
-        mixer_->addPort(silencePort);
-        silencePort->fillPortBuffer<ENGINE_FORMAT>(0);
-        // LOGE("prepared mixer");
+    // renders the tail of a channel that was stopped, without events, from the frame it was
+    // rendered up to and at most up to the frame upTo, see Channel_Generator::songTailFrames
+    void renderTail(Channel_Generator * channel, HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer,
+                    unsigned int samples, unsigned int upTo) {
+        if (channel->songTailFrames == 0) return;
+        claim(channel);
+        unsigned int from = channel->songRenderedTo;
+        if (upTo <= from) return;
+        unsigned int frames = std::min(channel->songTailFrames, upTo - from);
+        hostInfo->midiInputBuffer.consumerClear();
+        renderPart(channel, hostInfo, in, mixer, samples, from, frames);
+        channel->songRenderedTo = from + frames;
+        channel->songTailFrames -= frames;
     }
 
-    void mix(HostInfo *hostInfo, PortUtils2 *in, Plugin * mixer, PortUtils2 *out,
-             unsigned int samples) {
-        // LOGE("mixing");
-        mixer->write(hostInfo, in, mixer, out, samples);
-        // LOGE("mixed");
+    // renders what is left of the tails of the channels that were stopped, once every
+    // track and clip has played the block
+    void renderTails(HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, unsigned int samples) {
+        for (const RoutingGraph::ChannelRoutes & render : graph->renders) {
+            renderTail(render.channel, hostInfo, in, mixer, samples, samples);
+        }
     }
 
-    void finalizeMixer(HostInfo * hostInfo, Plugin * mixer_) {
-        // LOGE("finalizing mixer");
-        mixer_->removePort(silencePort);
-        silencePort->deallocatePorts<ENGINE_FORMAT>();
-
-        for (int i = 0; i < PatternGroup::cast(hostInfo->patternGroup)->rack.typeList.size(); ++i) {
-            PatternList *patternList = PatternGroup::cast(hostInfo->patternGroup)->rack.typeList[i];
-            if (patternList != nullptr) {
-                for (int i = 0; i < patternList->rack.typeList.size(); ++i) {
-                    Pattern *pattern = patternList->rack.typeList[i];
-                    if (pattern != nullptr) {
-                        if (pattern->channelReference != nullptr) {
-                            if (pattern->channelReference->out->allocated) {
-                                mixer_->removePort(pattern->channelReference->out);
-                                pattern->channelReference->out->deallocatePorts<ENGINE_FORMAT>();
-                            }
-                        }
-                    }
-                }
+    // renders the channel of a pattern into the frames [offset, offset + frames) of the block,
+    // with the pattern playing from position
+    //
+    // a channel is played by one track or clip at a time, its owner, which may render it
+    // in several parts, a later track or clip becomes the owner for the frames after the
+    // last frame the owner rendered, such as the next of two back to back clips of the
+    // same pattern list, and is cut to those frames if it starts earlier
+    //
+    // if stop is true the channel receives an all notes off on the last frame, and is then
+    // rendered on its own until the voices it stopped have faded out, see renderTail
+    void playPattern(const void * owner, const RoutingGraph::Route & route, HostInfo *hostInfo, PortUtils2 *in,
+                     Plugin *mixer, PortUtils2 *out, unsigned int samples, unsigned int offset,
+                     unsigned int frames, int64_t position, bool stop) {
+        Pattern * pattern = route.pattern;
+        Channel_Generator *channel = route.channel;
+        claim(channel);
+        if (channel->songOwner != owner) {
+            if (offset + frames <= channel->songRenderedTo) return;
+            if (offset < channel->songRenderedTo) {
+                unsigned int skipped = channel->songRenderedTo - offset;
+                offset += skipped;
+                frames -= skipped;
+                position += skipped;
             }
+            channel->songOwner = owner;
         }
-        // LOGE("finalized mixer");
-    }
-
-    void mixChannels(HostInfo *hostInfo, PortUtils2 *in, Plugin * mixer, PortUtils2 *out,
-                     unsigned int samples) {
-        prepareMixer(hostInfo, mixer, out);
-        mix(hostInfo, in, mixer, out, samples);
-        finalizeMixer(hostInfo, mixer);
+        // the tail of an earlier stop plays up to this part, and on inside it
+        renderTail(channel, hostInfo, in, mixer, samples, offset);
+        channel->songTailFrames = frames >= channel->songTailFrames ? 0 : channel->songTailFrames - frames;
+        channel->songRenderedTo = offset + frames;
+        pattern->pianoRoll.fillMidiEvents(hostInfo->midiInputBuffer, frames, position);
+        if (stop) {
+            smf::MidiEvent midiEvent;
+            midiEvent.tick = frames - 1;
+            midiEvent.makeController(0, Sampler::ALL_NOTES_OFF, 0);
+            hostInfo->midiInputBuffer.insert(midiEvent);
+            channel->songTailFrames = Sampler::DECLICK_FRAMES;
+        }
+        renderPart(channel, hostInfo, in, mixer, samples, offset, frames);
     }
 
-    bool playing = false;
-
-    int play(Track * track, HostInfo * hostInfo, PortUtils2 *in, Plugin *mixer,
-                     PortUtils2 *out, unsigned int samples) {
-        if (track->patternListReference != nullptr) {
-            for (int i = 0;
-                 i < track->patternListReference->rack.typeList.size(); ++i) {
-                Pattern *pattern = track->patternListReference->rack.typeList[i];
-                if (pattern != nullptr) {
-                    Channel_Generator *channel = pattern->channelReference;
-                    if (channel != nullptr) {
-                        channel->out->allocatePorts<ENGINE_FORMAT>(out);
-                        channel->out->fillPortBuffer<ENGINE_FORMAT>(0);
-                        if (playing) {
-                            hostInfo->fillMidiEvents(
-                                    hostInfo->midiInputBuffer,
-                                    pattern->pianoRoll.grid,
-                                    pattern->pianoRoll.noteData,
-                                    samples,
-                                    hostInfo->engineSample
-                            );
-                            if (channel->plugin != nullptr) {
-                                channel->plugin->write(hostInfo, in, mixer,
-                                                       channel->out, samples);
-                            }
-                            if (channel->effectRack != nullptr) {
-                                channel->effectRack->write(hostInfo, in, mixer,
-                                                           channel->out, samples);
-                            }
-                        }
-                    }
-                }
-            }
+    void playPatternList(const void * owner, PatternList * patternList, HostInfo *hostInfo, PortUtils2 *in,
+                         Plugin *mixer, PortUtils2 *out, unsigned int samples, unsigned int offset,
+                         unsigned int frames, int64_t position, bool stop) {
+        const RoutingGraph::PatternListRoutes * routes = graph->find(patternList);
+        if (routes == nullptr) return;
+        for (size_t i = routes->begin; i < routes->end; ++i) {
+            playPattern(owner, graph->routes[i], hostInfo, in, mixer, out, samples, offset, frames, position, stop);
         }
-        return PLUGIN_CONTINUE;
     }
 
-    int p = PLUGIN_STOP;
-    uint64_t sample;
+    // plays the pattern list of a track for the frames [from, to) of the block, if the track is playing
+    void playTrackPart(Track * track, HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
+                       unsigned int samples, unsigned int from, unsigned int to, bool stop) {
+        if (!track->playing || to <= from || track->patternListReference == nullptr) return;
+        playPatternList(track, track->patternListReference, hostInfo, in, mixer, out, samples,
+                        from, to - from, track->position, stop);
+        track->position += to - from;
+    }
 
-    void process(Track * track, HostInfo * hostInfo, PortUtils2 *in, Plugin *mixer,
-                 PortUtils2 *out, unsigned int samples) {
-        size_t size = hostInfo->midiPlaylistInputBuffer.readAvailable();
-        if (p == PLUGIN_CONTINUE) {
-            playing = true;
-            p = play(track, hostInfo, in, mixer, out, samples);
-        }
+    // plays the pattern list of a track for the block, driven by the steps of the track
+    //
+    // the block is only split where the steps start or stop the pattern list,
+    // so a block without such an event renders every channel once, as pattern mode does
+    void playTrack(Track * track, HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
+                   unsigned int samples) {
+        HostInfo::PianoRollRingBuffer & events = hostInfo->midiPlaylistInputBuffer;
+        track->pianoRoll.fillMidiEvents(events, samples, sample);
+        size_t size = events.readAvailable();
+        unsigned int from = 0;
         for (int i = 0; i < size; ++i) {
-            smf::MidiEvent *midiEvent = hostInfo->midiPlaylistInputBuffer.at(i);
-            LOGE("PROC size = %zu, midiEvent->tick = %d, midiEvent->play = %s", size, midiEvent->tick, midiEvent->isNoteOn() ? "playing" : "paused");
-            if (midiEvent->isNoteOn()) {
-//                stopPlayback(hostInfo);
-                playing = true;
-                p = play(track, hostInfo, in, mixer, out, samples);
-            } else if (midiEvent->isNoteOff()) {
-                stopPlayback(hostInfo);
-                play(track, hostInfo, in, mixer, out, samples);
-                p = PLUGIN_STOP;
+            smf::MidiEvent *midiEvent = events.at(i);
+            if (midiEvent == nullptr) continue;
+            bool noteOn = midiEvent->isNoteOn();
+            // rests do not split the block
+            if (!noteOn && !midiEvent->isNoteOff()) continue;
+            unsigned int to = midiEvent->tick;
+            playTrackPart(track, hostInfo, in, mixer, out, samples, from, to, !noteOn);
+            from = to;
+            if (noteOn) {
+                track->playing = true;
+            } else {
+                track->playing = false;
+                track->position = 0;
             }
         }
-        if (playing) hostInfo->engineSample += samples;
+        playTrackPart(track, hostInfo, in, mixer, out, samples, from, samples, false);
     }
 
-    void stopPlayback(HostInfo * hostInfo) {
-        hostInfo->engineSample = 0;
-        playing = false;
+    // plays every clip that overlaps the block [sample, sample + samples)
+    //
+    // each clip plays its pattern list from the position the block reaches inside the clip,
+    // at the offset the clip starts at inside the block, and an all notes off is sent when
+    // the clip ends inside the block
+    //
+    // the index is only asked for the clips in this block, so the cost does not depend on
+    // the number of clips on the track
+    void playClips(const ClipIndex & clips, HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
+                   unsigned int samples) {
+        int64_t from = sample;
+        int64_t to = sample + samples;
+        clips.forEachClipIn(from, to, [&](const Clip & clip) {
+            if (clip.patternList == nullptr) return;
+            int64_t clipFrom = std::max(from, clip.start);
+            int64_t clipTo = std::min(to, clip.end());
+            playPatternList(&clip, clip.patternList, hostInfo, in, mixer, out, samples,
+                            clipFrom - from, clipTo - clipFrom,
+                            clip.offset + (clipFrom - clip.start), clipTo == clip.end());
+        });
     }
 
-    smf::MidiEvent * lastMidiEvent = nullptr;
-
     void processPatterns(HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
                        unsigned int samples) {
         for (int i = 0; i < trackGroup.rack.typeList.size(); ++i) {
@@ -303,14 +240,15 @@ public:
             if (trackList != nullptr) {
                 for (int i = 0; i < trackList->rack.typeList.size(); ++i) {
                     Track *track = trackList->rack.typeList[i];
-                    hostInfo->fillMidiEvents(
-                            hostInfo->midiPlaylistInputBuffer,
-                            track->pianoRoll.grid,
-                            track->pianoRoll.noteData,
-                            samples,
-                            sample
-                    );
-                    process(track, hostInfo, in, mixer, out, samples);
+                    if (track == nullptr) continue;
+                    const ClipIndex & clips = track->acquireClips();
+                    if (!clips.empty()) {
+                        // tracks with clips play them, other tracks are driven by their piano roll
+                        playClips(clips, hostInfo, in, mixer, out, samples);
+                    } else {
+                        playTrack(track, hostInfo, in, mixer, out, samples);
+                    }
+                    track->releaseClips();
                 }
             }
         }
@@ -319,8 +257,14 @@ public:
 
     int write(HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out,
           unsigned int samples) override {
+        graph = routingGraph->pin();
+        block = static_cast<Mixer *>(mixer)->block;
         processPatterns(hostInfo, in, mixer, out, samples);
-        mixChannels(hostInfo, in, reinterpret_cast<Plugin*>(mixer), out, samples);
+        renderTails(hostInfo, in, mixer, samples);
+        // only the channels that played in this block are mixed
+        graph->mix(hostInfo, static_cast<Mixer *>(mixer), out, samples);
+        graph = nullptr;
+        routingGraph->unpin();
         return PLUGIN_CONTINUE;
     }
 
@@ -5,110 +5,498 @@
 #ifndef AAUDIOTRACK_SAMPLER_H
 #define AAUDIOTRACK_SAMPLER_H
 
+#include <algorithm>
+#include <atomic>
 #include <cstdint>
+#include <memory>
 #include <AndroidDAW_SDK/plugin/PortUtils2.h>
 #include <AndroidDAW_SDK/plugin/Plugin.h>
 #include <AndroidDAW_SDK/midifile/MidiEvent.h>
 #include <AndroidDAW_SDK/midifile/MidiEventList.h>
+#include "../Interpolator.h"
+#include "../Sample.h"
+#include "../SamplePool.h"
+#include "../SampleStreamer.h"
 
 using namespace ARDOUR_TYPEDEFS;
 
+// plays a sample on a fixed pool of voices, every note on starts a voice of its own so
+// that hits overlap instead of cutting each other off
+//
+// the voices are allocated with the sampler, the audio thread never allocates: once
+// polyphony voices sound the oldest is released to make room, and once every voice is
+// busy the quietest of the released voices is cut
+//
+// a voice that is released or stolen fades out over DECLICK_FRAMES instead of stopping
+// at once, which would click
+//
+// a pitched sampler plays each note at the pitch of its key, relative to the root key
+// the sample was recorded at, reading between the frames of the sample with the
+// interpolation mode of the sampler, see Interpolator
 class Sampler : public Plugin {
 public:
+    // the voices that can sound at once
+    static constexpr size_t DEFAULT_POLYPHONY = 8;
+
+    // the voices that can fade out on top of the sounding ones
+    static constexpr size_t TAIL_VOICES = 2;
+
+    // about 1.3 ms at 48000 Hz
+    static constexpr uint32_t DECLICK_FRAMES = 64;
+
+    // middle C
+    static constexpr int DEFAULT_ROOT_KEY = 60;
+
+    // the furthest a note plays from the root key, 8 octaves
+    static constexpr int MAX_SEMITONES = 96;
+
     int plugin_type() override {
         return PLUGIN_TYPE_GENERATOR;
     }
 
-    int play(HostInfo *hostInfo, PortUtils2 *in, PortUtils2 *out, unsigned int samples) {
-        ENGINE_FORMAT * data = reinterpret_cast<ENGINE_FORMAT *>(audioData);
-        ENGINE_FORMAT * left = reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->l->buf);
-        ENGINE_FORMAT * right = reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->r->buf);
-        if (mIsPlaying && audioData != nullptr) {
-//            LOGW("playing audio %p at sample index %d", audioData, mReadSampleIndex);
-            if (mIsLooping) {
-                // we may transition from not looping to looping, upon the EOF being reached
-                // if this happens, reset the sample index
-                if (mReadSampleIndex >= audioDataTotalSamples) mReadSampleIndex = 0;
-                for (uint32_t bufIndex = 0; bufIndex < samples; bufIndex++) {
-                    left[bufIndex] = data[mReadSampleIndex + 0];
-                    right[bufIndex] = data[mReadSampleIndex + 1];
-                    mReadSampleIndex+=2;
-                    if (mReadSampleIndex >= audioDataTotalSamples) mReadSampleIndex = 0;
-                }
-                return PLUGIN_CONTINUE;
-            } else {
-                // if we are not looping then silence should be emmited when the end of the file is reached
-                bool EOF_reached = mReadSampleIndex >= audioDataTotalSamples;
-                if (EOF_reached) {
-                    // we know that the EOF has been reached before we even start playing
-                    // so just output silence with no additional checking
-                    out->fillPortBuffer<ENGINE_FORMAT>(0);
-                    // and return from the audio loop
-                    return PLUGIN_STOP;
-                } else {
-                    // we know that the EOF has been not reached before we even start playing
-                    // so we need to do checking to output silence when EOF has been reached
-                    if (mReadSampleIndex >= audioDataTotalSamples) mReadSampleIndex = 0;
-                    for (uint32_t bufIndex = 0; bufIndex < samples; bufIndex++) {
-                        left[bufIndex] = data[mReadSampleIndex + 0];
-                        right[bufIndex] = data[mReadSampleIndex + 1];
-                        mReadSampleIndex+=2;
-                        if (mReadSampleIndex >= audioDataTotalSamples) {
-                            // do not reset the sample index here
-                            EOF_reached = true;
-                            // output the rest as silence
-
-                            // verification
-                            //
-                            // if i is 5, and totalSamples is 6
-                            // then we need to write 1 sample
-                            //
-                            // however at this point, a sample has already been written
-                            // but the loop is not done, so we need to increment i by 1
-                            // so we can correctly check if we still need to write a sample
-                            //
-
-                            bufIndex++;
-
-                            // output the remaining samples as silence
-                            for (; bufIndex < samples; bufIndex++) {
-                                out->setPortBufferIndex(bufIndex, 0);
-                            }
-                            // and return from the audio loop
-                            mIsPlaying = false;
-                            return PLUGIN_STOP;
-                        }
-                    }
-                    return PLUGIN_CONTINUE;
-                }
-            }
-        } else {
-            out->fillPortBuffer<ENGINE_FORMAT>(0);
-            return PLUGIN_STOP;
+    // the sample being played, a reference held from pool, see setSample
+    //
+    // a sampler without one plays audioData, which it does not own
+    std::atomic<Sample *> sample {nullptr};
+    SamplePool * pool = nullptr;
+
+    SampleStreamer * streamer = nullptr;
+
+    // a sampler that is not pitched plays every key at the pitch of the sample, the step
+    // sequencer plays every step at PianoRoll::STEP_KEY, which is DEFAULT_ROOT_KEY
+    //
+    // these apply to the notes started from now on
+    std::atomic<bool> pitched {false};
+    std::atomic<int> rootKey {DEFAULT_ROOT_KEY};
+
+    // the Interpolator::Mode of the pitched voices, read once per block
+    std::atomic<int> interpolation {Interpolator::DEFAULT_MODE};
+
+    explicit Sampler(size_t polyphony = DEFAULT_POLYPHONY)
+            : polyphony(std::max<size_t>(polyphony, 1)),
+              voiceCount(this->polyphony + TAIL_VOICES),
+              voices(new Voice[voiceCount]) {
+        // built here and not on the audio thread
+        Interpolator::sincTable();
+    }
+
+    ~Sampler() {
+        if (streamer != nullptr) {
+            for (size_t i = 0; i < voiceCount; i++) streamer->remove(&voices[i].stream);
+        }
+        if (pool != nullptr) pool->release(sample.load());
+    }
+
+    /**
+     * replaces the sample, the voices play the new sample from their current position
+     *
+     * every voice reads a streamed sample through a stream of its own, which holds
+     * SampleStream::bytes(), so the streams are only allocated for a streamed sample
+     *
+     * the audio thread may still be playing the old sample until the block it is
+     * rendering finishes, see AudioEngine::quiesce
+     *
+     * @param newSample a reference acquired from newPool, which the sampler gives back when it is destroyed
+     * @return the old sample, which the caller releases once the audio thread is done with it
+     */
+    Sample * setSample(Sample * newSample, SampleStreamer * newStreamer, SamplePool * newPool) {
+        bool streamed = newSample != nullptr && newSample->streamed();
+        for (size_t i = 0; i < voiceCount; i++) {
+            if (streamer != nullptr) streamer->remove(&voices[i].stream);
+            if (streamed) voices[i].stream.allocate();
+        }
+        Sample * old = sample.exchange(newSample, std::memory_order_seq_cst);
+        streamer = newStreamer;
+        pool = newPool;
+        for (size_t i = 0; i < voiceCount; i++) {
+            voices[i].stream.sample = newSample;
+            if (streamed) streamer->add(&voices[i].stream);
         }
+        return old;
     }
 
-    int p = PLUGIN_STOP;
+    // the voices that can sound at once, not counting the ones fading out
+    size_t getPolyphony() const {
+        return polyphony;
+    }
 
+    // audio thread only, the voices that are sounding or fading out
+    size_t activeVoices() const {
+        size_t count = 0;
+        for (size_t i = 0; i < voiceCount; i++) count += voices[i].active ? 1 : 0;
+        return count;
+    }
+
+    // how many times the voices have played silence because the streamer was behind
+    uint32_t underruns() const {
+        uint32_t count = 0;
+        for (size_t i = 0; i < voiceCount; i++) count += voices[i].stream.underruns.load(std::memory_order_relaxed);
+        return count;
+    }
+
+    // the controller of a MIDI all notes off message, which releases every voice
+    static constexpr int ALL_NOTES_OFF = 123;
+
+    /**
+     * renders samples frames into out, starting the voices of the events in
+     * hostInfo->midiInputBuffer on the frame they play at
+     *
+     * the tick of every event is its offset from the start of these samples frames,
+     * see PianoRoll::fillMidiEvents, the block is rendered in parts split at the events,
+     * so a note starts on the same frame whatever the size of the block
+     */
     int write(HostInfo *hostInfo, PortUtils2 *in, Plugin *mixer, PortUtils2 *out, unsigned int samples) override {
+        ENGINE_FORMAT * left = reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->l->buf);
+        ENGINE_FORMAT * right = reinterpret_cast<ENGINE_FORMAT *>(out->ports.outputStereo->r->buf);
+        std::fill(left, left + samples, 0);
+        std::fill(right, right + samples, 0);
+        prepare();
         size_t size = hostInfo->midiInputBuffer.readAvailable();
-        if (p == PLUGIN_CONTINUE) {
-            p = play(hostInfo, in, out, samples);
-        }
+        unsigned int from = 0;
         for (int i = 0; i < size; ++i) {
             smf::MidiEvent *midiEvent = hostInfo->midiInputBuffer.at(i);
-//            LOGE("size = %zu, midiEvent->tick = %d, midiEvent->play = %s", size, midiEvent->tick, midiEvent->isNoteOn() ? "playing" : "paused");
+            if (midiEvent == nullptr) continue;
+            // an event outside the block plays on its nearest frame, events never go back in time
+            unsigned int at = static_cast<unsigned int>(std::max(midiEvent->tick, 0));
+            at = std::min(std::max(at, from), samples);
+            if (at > from) render(left + from, right + from, at - from);
+            from = at;
             if (midiEvent->isNoteOn()) {
-                stopPlayback();
-                startPlayback();
-                p = play(hostInfo, in, out, samples);
+                noteOn(midiEvent->getKeyNumber());
             } else if (midiEvent->isNoteOff()) {
-                stopPlayback();
-                p = PLUGIN_STOP;
+                noteOff(midiEvent->getKeyNumber());
+            } else if (midiEvent->isController() && midiEvent->getP1() == ALL_NOTES_OFF) {
+                allNotesOff();
             }
         }
+        if (samples > from) render(left + from, right + from, samples - from);
+        finish();
         return 0;
     }
+
+private:
+    struct Voice {
+        bool active = false;
+        bool releasing = false;
+        // the key of the note that started the voice, a note off of the same key releases it
+        int key = -1;
+        // when the voice was started, the oldest sounding voice is stolen first
+        uint64_t started = 0;
+        // the frame the voice plays next
+        uint64_t frame = 0;
+        // the voice was started or moved, its stream has to start over
+        bool restart = false;
+        // the frames the voice advances by every output frame, and the part of a frame it
+        // is past frame, in 32.32 fixed point, a voice at the pitch of the sample takes
+        // its frames as they are
+        uint64_t step = Interpolator::ONE;
+        uint32_t fraction = 0;
+        // a pitched voice reads the frames from fetchFrame on in order, the ones it has read
+        // last are kept in history, which is where the window of the next frames starts
+        uint64_t fetchFrame = 0;
+        ENGINE_FORMAT historyLeft[Interpolator::TAPS];
+        ENGINE_FORMAT historyRight[Interpolator::TAPS];
+        float gain = 1;
+        float gainStep = 0;
+        uint32_t rampFrames = 0;
+        // reads ahead of the voice while it plays a streamed sample
+        SampleStream stream;
+    };
+
+    // the frames of a streamed or pitched voice mixed at a time
+    static constexpr uint64_t SCRATCH_FRAMES = 256;
+
+    // the frames a pitched voice reads at a time, after its history
+    static constexpr uint64_t FETCH_FRAMES = 1024;
+
+    const size_t polyphony;
+    const size_t voiceCount;
+    const std::unique_ptr<Voice[]> voices;
+
+    // audio thread only
+    //
+    // playing is only compared once setSample has replaced it, the pool may already have
+    // freed it, so its rate is kept in playingRate
+    Sample * playing = nullptr;
+    uint32_t playingRate = 0;
+    uint64_t voicesStarted = 0;
+    ENGINE_FORMAT scratchLeft[SCRATCH_FRAMES];
+    ENGINE_FORMAT scratchRight[SCRATCH_FRAMES];
+    Interpolator::Mode mode = Interpolator::DEFAULT_MODE;
+    ENGINE_FORMAT windowLeft[Interpolator::TAPS + FETCH_FRAMES];
+    ENGINE_FORMAT windowRight[Interpolator::TAPS + FETCH_FRAMES];
+
+    static void release(Voice & voice) {
+        if (voice.releasing) return;
+        voice.releasing = true;
+        voice.rampFrames = DECLICK_FRAMES;
+        voice.gainStep = -voice.gain / DECLICK_FRAMES;
+    }
+
+    void noteOn(int key) {
+        Voice * free = nullptr;
+        Voice * oldest = nullptr;
+        Voice * quietest = nullptr;
+        size_t sounding = 0;
+        for (size_t i = 0; i < voiceCount; i++) {
+            Voice & voice = voices[i];
+            if (!voice.active) {
+                if (free == nullptr) free = &voice;
+            } else if (voice.releasing) {
+                if (quietest == nullptr || voice.gain < quietest->gain) quietest = &voice;
+            } else {
+                sounding++;
+                if (oldest == nullptr || voice.started < oldest->started) oldest = &voice;
+            }
+        }
+        if (sounding >= polyphony) {
+            // fades out on a tail voice, or is cut below if there is none left
+            release(*oldest);
+            if (quietest == nullptr) quietest = oldest;
+        }
+        Voice & voice = free != nullptr ? *free : *quietest;
+        voice.active = true;
+        voice.releasing = false;
+        voice.key = key;
+        voice.started = ++voicesStarted;
+        voice.frame = 0;
+        voice.restart = true;
+        voice.step = Interpolator::ONE;
+        if (pitched.load(std::memory_order_relaxed)) {
+            int semitones = key - rootKey.load(std::memory_order_relaxed);
+            voice.step = Interpolator::step(std::max(-MAX_SEMITONES, std::min(semitones, MAX_SEMITONES)));
+        }
+        voice.fraction = 0;
+        voice.gain = 1;
+        voice.gainStep = 0;
+        voice.rampFrames = 0;
+        mIsPlaying = true;
+    }
+
+    void noteOff(int key) {
+        for (size_t i = 0; i < voiceCount; i++) {
+            if (voices[i].active && voices[i].key == key) release(voices[i]);
+        }
+    }
+
+    void allNotesOff() {
+        for (size_t i = 0; i < voiceCount; i++) {
+            if (voices[i].active) release(voices[i]);
+        }
+    }
+
+    /**
+     * adds count frames of a voice to left and right, the frames of the voice
+     * are stride samples apart
+     *
+     * @return the frames mixed, fewer than count if the voice faded out
+     */
+    static uint64_t mix(Voice & voice, const ENGINE_FORMAT * fromLeft, const ENGINE_FORMAT * fromRight, size_t stride,
+                        ENGINE_FORMAT * left, ENGINE_FORMAT * right, uint64_t count) {
+        uint64_t i = 0;
+        for (; i < count && voice.rampFrames != 0; i++) {
+            left[i] += fromLeft[i * stride] * voice.gain;
+            right[i] += fromRight[i * stride] * voice.gain;
+            voice.gain += voice.gainStep;
+            voice.rampFrames--;
+        }
+        if (voice.releasing && voice.rampFrames == 0) {
+            voice.gain = 0;
+            voice.active = false;
+            return i;
+        }
+        if (voice.gain == 1) {
+            for (; i < count; i++) {
+                left[i] += fromLeft[i * stride];
+                right[i] += fromRight[i * stride];
+            }
+        } else {
+            for (; i < count; i++) {
+                left[i] += fromLeft[i * stride] * voice.gain;
+                right[i] += fromRight[i * stride] * voice.gain;
+            }
+        }
+        return count;
+    }
+
+    // reads the next count frames of a pitched voice into left and right, silence past the
+    // end of a sample that does not loop
+    void fetch(Voice & voice, const ENGINE_FORMAT * data, uint64_t frames, uint64_t residentFrames,
+               ENGINE_FORMAT * left, ENGINE_FORMAT * right, uint64_t count) {
+        while (count != 0) {
+            if (voice.fetchFrame >= frames) {
+                if (!mIsLooping) {
+                    std::fill(left, left + count, 0);
+                    std::fill(right, right + count, 0);
+                    return;
+                }
+                voice.fetchFrame = 0;
+            }
+            uint64_t end = voice.fetchFrame < residentFrames ? residentFrames : frames;
+            uint64_t part = std::min(count, end - voice.fetchFrame);
+            if (voice.fetchFrame < residentFrames) {
+                const ENGINE_FORMAT * from = data + (voice.fetchFrame * Sample::CHANNELS);
+                for (uint64_t i = 0; i < part; i++) {
+                    left[i] = from[(i * Sample::CHANNELS) + 0];
+                    right[i] = from[(i * Sample::CHANNELS) + 1];
+                }
+            } else {
+                voice.stream.readFrames(left, right, part);
+            }
+            left += part;
+            right += part;
+            count -= part;
+            voice.fetchFrame += part;
+        }
+    }
+
+    void renderPitched(Voice & voice, const ENGINE_FORMAT * data, uint64_t frames, uint64_t residentFrames,
+                       ENGINE_FORMAT * left, ENGINE_FORMAT * right, uint64_t samples) {
+        constexpr uint64_t TAPS = Interpolator::TAPS;
+        constexpr uint64_t HALF = Interpolator::HALF;
+        if (voice.restart) {
+            // the window starts HALF - 1 frames before the voice, which are silent, and
+            // always reads HALF frames ahead of it
+            voice.fetchFrame = voice.frame;
+            if (residentFrames < frames) {
+                voice.stream.restart(voice.fetchFrame < residentFrames ? 0 : voice.fetchFrame - residentFrames);
+            }
+            std::fill(voice.historyLeft, voice.historyLeft + TAPS, 0);
+            std::fill(voice.historyRight, voice.historyRight + TAPS, 0);
+            fetch(voice, data, frames, residentFrames,
+                  voice.historyLeft + (HALF - 1), voice.historyRight + (HALF - 1), HALF + 1);
+            voice.restart = false;
+        }
+        uint64_t bufIndex = 0;
+        while (bufIndex < samples && voice.active) {
+            uint64_t count = std::min(samples - bufIndex, SCRATCH_FRAMES);
+            // no more than the window holds
+            count = std::min(count, ((FETCH_FRAMES << 32) - voice.fraction) / voice.step);
+            if (!mIsLooping) {
+                // the voice ends on the last frame of the sample
+                uint64_t remaining = ((frames - voice.frame) << 32) - voice.fraction;
+                count = std::min(count, (remaining + voice.step - 1) / voice.step);
+            }
+            uint64_t position = voice.fraction + (voice.step * count);
+            uint64_t advance = position >> 32;
+            std::copy(voice.historyLeft, voice.historyLeft + TAPS, windowLeft);
+            std::copy(voice.historyRight, voice.historyRight + TAPS, windowRight);
+            fetch(voice, data, frames, residentFrames, windowLeft + TAPS, windowRight + TAPS, advance);
+            Interpolator::render(mode, windowLeft, windowRight, ((HALF - 1) << 32) | voice.fraction, voice.step,
+                                 scratchLeft, scratchRight, count);
+            std::copy(windowLeft + advance, windowLeft + advance + TAPS, voice.historyLeft);
+            std::copy(windowRight + advance, windowRight + advance + TAPS, voice.historyRight);
+            count = mix(voice, scratchLeft, scratchRight, 1, left + bufIndex, right + bufIndex, count);
+            bufIndex += count;
+            voice.fraction = static_cast<uint32_t>(position);
+            voice.frame += advance;
+            if (voice.frame >= frames) {
+                // if we are not looping the voice ends with the sample
+                if (!mIsLooping) voice.active = false;
+                voice.frame %= frames;
+            }
+        }
+    }
+
+    void render(Voice & voice, const ENGINE_FORMAT * data, uint64_t frames, uint64_t residentFrames,
+                ENGINE_FORMAT * left, ENGINE_FORMAT * right, uint64_t samples) {
+        if (voice.step != Interpolator::ONE) {
+            if (residentFrames < frames) voice.stream.looping.store(mIsLooping, std::memory_order_relaxed);
+            renderPitched(voice, data, frames, residentFrames, left, right, samples);
+            return;
+        }
+        if (residentFrames < frames) {
+            voice.stream.looping.store(mIsLooping, std::memory_order_relaxed);
+            if (voice.restart) {
+                voice.stream.restart(voice.frame < residentFrames ? 0 : voice.frame - residentFrames);
+            }
+        }
+        voice.restart = false;
+        // the resident frames are mixed here, the rest come from the stream
+        uint64_t bufIndex = 0;
+        while (bufIndex < samples && voice.active) {
+            uint64_t end = voice.frame < residentFrames ? residentFrames : frames;
+            uint64_t count = std::min(samples - bufIndex, end - voice.frame);
+            if (voice.frame < residentFrames) {
+                const ENGINE_FORMAT * from = data + (voice.frame * Sample::CHANNELS);
+                count = mix(voice, from, from + 1, Sample::CHANNELS, left + bufIndex, right + bufIndex, count);
+            } else {
+                count = std::min(count, SCRATCH_FRAMES);
+                voice.stream.readFrames(scratchLeft, scratchRight, count);
+                count = mix(voice, scratchLeft, scratchRight, 1, left + bufIndex, right + bufIndex, count);
+            }
+            bufIndex += count;
+            voice.frame += count;
+            if (voice.frame == frames) {
+                // if we are not looping the voice ends with the sample
+                if (!mIsLooping) voice.active = false;
+                voice.frame = 0;
+            }
+        }
+    }
+
+    // picks up a sample given by setSample, before the block is rendered
+    void prepare() {
+        Sample * current = sample.load(std::memory_order_seq_cst);
+        if (current != playing) {
+            // a sample converted to a new device rate keeps playing from the same moment
+            uint32_t currentRate = current != nullptr ? current->sampleRate : 0;
+            bool rescale = currentRate != 0 && playingRate != 0 && currentRate != playingRate;
+            for (size_t i = 0; i < voiceCount; i++) {
+                if (rescale) voices[i].frame = (voices[i].frame * currentRate) / playingRate;
+                // the stream has to start over for the new sample
+                voices[i].restart = true;
+            }
+            playing = current;
+            playingRate = currentRate;
+        }
+        mode = static_cast<Interpolator::Mode>(interpolation.load(std::memory_order_relaxed));
+    }
+
+    // mixes samples frames of every voice into left and right
+    void render(ENGINE_FORMAT * left, ENGINE_FORMAT * right, unsigned int samples) {
+        const ENGINE_FORMAT * data;
+        uint64_t frames;
+        uint64_t residentFrames;
+        if (playing != nullptr) {
+            data = playing->resident.data();
+            frames = playing->frames;
+            residentFrames = playing->residentFrames;
+        } else {
+            data = reinterpret_cast<ENGINE_FORMAT *>(audioData);
+            frames = audioDataTotalSamples / Sample::CHANNELS;
+            residentFrames = frames;
+        }
+
+        for (size_t i = 0; i < voiceCount; i++) {
+            Voice & voice = voices[i];
+            if (!voice.active) continue;
+            if (data == nullptr || frames == 0) {
+                voice.active = false;
+                continue;
+            }
+            if (voice.frame >= frames) {
+                // the new sample is shorter than the old one
+                if (!mIsLooping) {
+                    voice.active = false;
+                    continue;
+                }
+                voice.frame = 0;
+            }
+            render(voice, data, frames, residentFrames, left, right, samples);
+        }
+    }
+
+    // the plugin fields follow the newest voice, once the block is rendered
+    void finish() {
+        const Voice * newest = nullptr;
+        for (size_t i = 0; i < voiceCount; i++) {
+            const Voice & voice = voices[i];
+            if (voice.active && (newest == nullptr || voice.started > newest->started)) newest = &voice;
+        }
+        mIsPlaying = newest != nullptr;
+        if (newest != nullptr) mReadSampleIndex = newest->frame * Sample::CHANNELS;
+    }
 };
 
 #endif //AAUDIOTRACK_SAMPLER_H
@@ -84,33 +84,33 @@ public class PatternView extends CanvasView {
         int noteEndMidiVelocity = -1;
     }
 
-    int getNoteStart(SequencerView.Pattern pattern, long midiEvent) {
-        if (pattern.isMidiEventNoteOn(midiEvent)) {
-            double sample_position = pattern.getMidiTickAt(midiEvent);
+    int getNoteStart(SequencerView.Pattern pattern, int event) {
+        if (pattern.isSnapshotNoteOn(event)) {
+            double sample_position = pattern.getSnapshotTick(event);
             double pixelDouble = Math.floor(sample_position / zoom);
             return (int) pixelDouble;
         }
         return NO_POS;
     }
 
-    int getNoteMidiChannel(SequencerView.Pattern pattern, long midiEvent) {
-        if (pattern.isMidiEventNote(midiEvent)) return pattern.getMidiChannelAt(midiEvent);
+    int getNoteMidiChannel(SequencerView.Pattern pattern, int event) {
+        if (pattern.isSnapshotNote(event)) return pattern.getSnapshotChannel(event);
         return NO_POS;
     }
 
-    int getNoteMidiNumber(SequencerView.Pattern pattern, long midiEvent) {
-        if (pattern.isMidiEventNote(midiEvent)) return pattern.getMidiNumberAt(midiEvent);
+    int getNoteMidiNumber(SequencerView.Pattern pattern, int event) {
+        if (pattern.isSnapshotNote(event)) return pattern.getSnapshotNumber(event);
         return NO_POS;
     }
 
-    int getNoteMidiVelocity(SequencerView.Pattern pattern, long midiEvent) {
-        if (pattern.isMidiEventNote(midiEvent)) return pattern.getMidiVelocityAt(midiEvent);
+    int getNoteMidiVelocity(SequencerView.Pattern pattern, int event) {
+        if (pattern.isSnapshotNote(event)) return pattern.getSnapshotVelocity(event);
         return NO_POS;
     }
 
-    int getNoteEnd(SequencerView.Pattern pattern, long midiEvent) {
-        if (pattern.isMidiEventNoteOff(midiEvent)) {
-            double sample_position = pattern.getMidiTickAt(midiEvent);
+    int getNoteEnd(SequencerView.Pattern pattern, int event) {
+        if (pattern.isSnapshotNoteOff(event)) {
+            double sample_position = pattern.getSnapshotTick(event);
             double pixelDouble = Math.floor(sample_position / zoom);
             return (int) pixelDouble;
         }
@@ -126,27 +126,28 @@ public class PatternView extends CanvasView {
             if (pattern != null) {
                 Scroller<CanvasDrawer> viewScroller = canvas.getViewScroller();
                 int mScrollX = viewScroller.mScrollX;
-                for (int i = mScrollX; i < canvas.getWidth() + mScrollX; i++) {
-                    long midiEvent = pattern.getMidiEventAt(i);
-                    if (midiEvent != 0) {
-                        if (pattern.isMidiEventNote(midiEvent)) {
-                            if (noteData.noteStart == NO_POS && noteData.noteEnd == NO_POS) {
-                                // get note start only when we have no start and end
-                                noteData.noteStart = getNoteStart(pattern, midiEvent);
-                                noteData.noteStartMidiChannel = getNoteMidiChannel(pattern, midiEvent);
-                                noteData.noteStartMidiNumber = getNoteMidiNumber(pattern, midiEvent);
-                                noteData.noteStartMidiVelocity = getNoteMidiVelocity(pattern, midiEvent);
-                            }
-                            if (noteData.noteStart != NO_POS && noteData.noteEnd == NO_POS) {
-                                // get note end only when we have a start and no end
-                                noteData.noteEnd = getNoteEnd(pattern, midiEvent);
-                                noteData.noteEndMidiChannel = getNoteMidiChannel(pattern, midiEvent);
-                                noteData.noteEndMidiNumber = getNoteMidiNumber(pattern, midiEvent);
-                                noteData.noteEndMidiVelocity = getNoteMidiVelocity(pattern, midiEvent);
-                                if (noteData.noteEnd != NO_POS) {
-                                    noteDataArrayList.add(noteData);
-                                    noteData = new NoteData();
-                                }
+                // obtain every visible event with a single native call
+                int fromTick = (int) (mScrollX * zoom);
+                int toTick = (int) ((canvas.getWidth() + mScrollX) * zoom);
+                int events = pattern.snapshotEvents(fromTick, toTick);
+                for (int i = 0; i < events; i++) {
+                    if (pattern.isSnapshotNote(i)) {
+                        if (noteData.noteStart == NO_POS && noteData.noteEnd == NO_POS) {
+                            // get note start only when we have no start and end
+                            noteData.noteStart = getNoteStart(pattern, i);
+                            noteData.noteStartMidiChannel = getNoteMidiChannel(pattern, i);
+                            noteData.noteStartMidiNumber = getNoteMidiNumber(pattern, i);
+                            noteData.noteStartMidiVelocity = getNoteMidiVelocity(pattern, i);
+                        }
+                        if (noteData.noteStart != NO_POS && noteData.noteEnd == NO_POS) {
+                            // get note end only when we have a start and no end
+                            noteData.noteEnd = getNoteEnd(pattern, i);
+                            noteData.noteEndMidiChannel = getNoteMidiChannel(pattern, i);
+                            noteData.noteEndMidiNumber = getNoteMidiNumber(pattern, i);
+                            noteData.noteEndMidiVelocity = getNoteMidiVelocity(pattern, i);
+                            if (noteData.noteEnd != NO_POS) {
+                                noteDataArrayList.add(noteData);
+                                noteData = new NoteData();
                             }
                         }
                     }
@@ -175,7 +176,7 @@ public class PatternView extends CanvasView {
 
                 int rowHeight = windowHeight / rows;
                 for (NoteData data : noteDataArrayList) {
-                    int top = rowHeight * data.noteStartMidiNumber;
+                    int top = rowHeight * (data.noteStartMidiNumber - min);
                     canvas.drawRectAbsoluteLocation(data.noteStart, windowHeight - top, data.noteEnd, windowHeight - (top + rowHeight));
                 }
                 canvas.restorePaint();
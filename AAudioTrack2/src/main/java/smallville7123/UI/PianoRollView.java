@@ -50,18 +50,18 @@ public class PianoRollView extends CanvasView {
     int noteStart = NO_POS;
     int noteEnd = NO_POS;
 
-    int getNoteStart(long midiEvent) {
-        if (pattern.isMidiEventNoteOn(midiEvent)) {
-            double sample_position = pattern.getMidiTickAt(midiEvent);
+    int getNoteStart(int event) {
+        if (pattern.isSnapshotNoteOn(event)) {
+            double sample_position = pattern.getSnapshotTick(event);
             double pixelDouble = Math.floor(sample_position / zoom);
             return (int) pixelDouble;
         }
         return NO_POS;
     }
 
-    int getNoteEnd(long midiEvent) {
-        if (pattern.isMidiEventNoteOff(midiEvent)) {
-            double sample_position = pattern.getMidiTickAt(midiEvent);
+    int getNoteEnd(int event) {
+        if (pattern.isSnapshotNoteOff(event)) {
+            double sample_position = pattern.getSnapshotTick(event);
             double pixelDouble = Math.floor(sample_position / zoom);
             return (int) pixelDouble;
         }
@@ -76,26 +76,27 @@ public class PianoRollView extends CanvasView {
             canvas.setPaint(CanvasDrawer.paintRed);
             Scroller<CanvasDrawer> viewScroller = canvas.getViewScroller();
             int mScrollX = viewScroller.mScrollX;
-            for (int i = mScrollX; i < canvas.getWidth() + mScrollX; i++) {
-                long midiEvent = pattern.getMidiEventAt(i);
-                if (midiEvent != 0) {
-                    if (pattern.isMidiEventNote(midiEvent)) {
-                        if (noteStart == NO_POS && noteEnd == NO_POS) {
-                            // get note start only when we have no start and end
-                            noteStart = getNoteStart(midiEvent);
-                        }
-                        if (noteStart != NO_POS && noteEnd == NO_POS) {
-                            // get note end only when we have a start and no end
-                            noteEnd = getNoteEnd(midiEvent);
-                        }
-
-                        if (noteStart != NO_POS && noteEnd != NO_POS) {
-                            // ignore row index for now
-                            // note pitch changing is not implemented
-                            canvas.drawRectAbsoluteLocation(noteStart, 0 * rowHeight, noteEnd, rowHeight);
-                            noteStart = NO_POS;
-                            noteEnd = NO_POS;
-                        }
+            // obtain every visible event with a single native call
+            int fromTick = (int) (mScrollX * zoom);
+            int toTick = (int) ((canvas.getWidth() + mScrollX) * zoom);
+            int events = pattern.snapshotEvents(fromTick, toTick);
+            for (int i = 0; i < events; i++) {
+                if (pattern.isSnapshotNote(i)) {
+                    if (noteStart == NO_POS && noteEnd == NO_POS) {
+                        // get note start only when we have no start and end
+                        noteStart = getNoteStart(i);
+                    }
+                    if (noteStart != NO_POS && noteEnd == NO_POS) {
+                        // get note end only when we have a start and no end
+                        noteEnd = getNoteEnd(i);
+                    }
+
+                    if (noteStart != NO_POS && noteEnd != NO_POS) {
+                        // ignore row index for now
+                        // note pitch changing is not implemented
+                        canvas.drawRectAbsoluteLocation(noteStart, 0 * rowHeight, noteEnd, rowHeight);
+                        noteStart = NO_POS;
+                        noteEnd = NO_POS;
                     }
                 }
             }
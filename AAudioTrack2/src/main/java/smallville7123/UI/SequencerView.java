@@ -249,15 +249,6 @@ public class SequencerView extends FrameLayout {
         int maxLength;
         Context mContext;
 
-        @Override
-        public boolean[] getData() {
-            boolean[] data = new boolean[compoundButtons.size()];
-            for (int i = 0; i < compoundButtons.size(); i++) {
-                data[i] = compoundButtons.get(i).isChecked();
-            }
-            return data;
-        }
-
         @Override
         public void setViewResolution(int size) {
             if (currentViewResolution != size) {
@@ -271,15 +262,17 @@ public class SequencerView extends FrameLayout {
 
         public void setMaxLength(int size) {
             if (size == maxLength) return;
+            steps.setLength(size);
             if (size > maxLength) {
                 for (int i = maxLength; i < size; i++) {
+                    final int step = i;
                     ToggleButton note = new ToggleButton(mContext);
                     note.setBackgroundResource(R.drawable.toggle);
                     note.setTextOn("");
                     note.setTextOff("");
                     note.setText("");
-                    note.setOnCheckedChangeListener((b0, b1) -> {
-                        setNoteData();
+                    note.setOnCheckedChangeListener((b0, checked) -> {
+                        setStep(step, checked);
                     });
                     compoundButtons.add(note);
                     if (fitNotesToView || noteWidth == nullNoteWidth) {
@@ -299,6 +292,10 @@ public class SequencerView extends FrameLayout {
                 }
             }
             noteGrid.adapter.notifyDataSetChanged();
+            if (!isInEditMode()) {
+                // the native pattern must have every step before single steps can be changed
+                setNoteData();
+            }
         }
     }
 }
@@ -2,6 +2,7 @@ package smallville7123.aaudiotrack2;
 
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.util.Pair;
 
@@ -15,6 +16,9 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.FileAlreadyExistsException;
@@ -47,18 +51,150 @@ public class AAudioTrack2 {
     private native void createNativeInstance();
     private native void startEngine();
     private native void stopEngine();
-    public native void setNoteData(long pattern, boolean[] array);
-    public native long getMidiEventAt(long pattern, int index);
-    public native int getMidiTickAt(long pattern, long midiEvent);
-    public native int getMidiChannelAt(long pattern, long midiEvent);
-    public native int getMidiNumberAt(long pattern, long midiEvent);
-    public native int getMidiVelocityAt(long pattern, long midiEvent);
-    public native boolean isMidiEventNote(long pattern, long midiEvent);
-    public native boolean isMidiEventNoteOn(long pattern, long midiEvent);
-    public native boolean isMidiEventNoteOff(long pattern, long midiEvent);
-    public native void setTrackData(long track, boolean[] array);
+
+    /**
+     * replaces the notes of the given pattern with the given steps
+     * <br>
+     * <br>
+     * the steps are read in their packed form, see {@link Steps}
+     *
+     * @param pattern the native pattern
+     * @param steps the packed steps, step i is bit (i % 64) of steps[i / 64]
+     * @param length the number of steps
+     */
+    public native void setNoteData(long pattern, long[] steps, int length);
+
+    /**
+     * changes a single step of the given pattern without re-sending the other steps
+     * <br>
+     * <br>
+     * the change is made to the copy of the events the audio thread is not reading,
+     * which is then published, only the events of the changed step are rewritten
+     *
+     * @param pattern the native pattern
+     * @param index the step to change
+     * @param on true if the step should play a note
+     * @return false if the pattern was not built from steps, the whole pattern should then be
+     *         re-sent with {@link #setNoteData(long, long[], int)}
+     */
+    public native boolean setStep(long pattern, int index, boolean on);
+
+    /**
+     * changes the steps [offset, offset + length) of the given pattern without re-sending the other steps
+     * <br>
+     * <br>
+     * every step is published together
+     *
+     * @param pattern the native pattern
+     * @param offset the first step to change
+     * @param steps the new steps packed like {@link Steps}, bit 0 of steps[0] is step offset
+     * @param length the number of steps to change
+     * @return false if the pattern was not built from steps, the whole pattern should then be
+     *         re-sent with {@link #setNoteData(long, long[], int)}
+     * @see #setStep(long, int, boolean)
+     */
+    public native boolean setSteps(long pattern, int offset, long[] steps, int length);
+
+    /**
+     * the number of ints each event occupies in a snapshot buffer
+     * <br>
+     * <br>
+     * each event is packed as tick, channel, key number, velocity, type
+     * where type is one of {@link #NO_EVENT}, {@link #EVENT_NOTE_ON} or {@link #EVENT_NOTE_OFF}
+     * @see #snapshotPatternEvents(long, int, int, ByteBuffer)
+     */
+    public static final int SNAPSHOT_FIELDS = 5;
+
+    /**
+     * copies every MIDI event of the given pattern whose tick lies in [fromTick, toTick)
+     * into out, using a single JNI call
+     * <br>
+     * <br>
+     * a note that starts before fromTick or ends at or after toTick is copied as well:
+     * the note ons of the notes still on at fromTick come first, and the note offs of
+     * the notes still on at toTick come last, so every visible note has both its ends
+     *
+     * @param pattern the native pattern
+     * @param fromTick the first tick to include
+     * @param toTick the first tick to exclude
+     * @param out a direct buffer in native byte order, see {@link #SNAPSHOT_FIELDS} for its layout
+     * @return the number of matching events, if this is larger than the number of events
+     *         that fit in out then only the events that fit have been written
+     */
+    public native int snapshotPatternEvents(long pattern, int fromTick, int toTick, ByteBuffer out);
+
+    /**
+     * replaces the notes of the given track with the given steps
+     *
+     * @see #setNoteData(long, long[], int)
+     */
+    public native void setTrackData(long track, long[] steps, int length);
     public native int getDSPLoad();
 
+    /**
+     * renders the channels on count threads, the audio thread and count - 1 workers,
+     * count is limited to the number of cores
+     * <br>
+     * <br>
+     * 1, the default, renders every channel on the audio thread,
+     * the engine restarts if it is running
+     */
+    public native void setRenderWorkers(int count);
+
+    /**
+     * @return the number of threads the channels are rendered on
+     * @see #setRenderWorkers(int)
+     */
+    public native int getRenderWorkers();
+
+    /**
+     * samples larger than thresholdBytes once decoded are streamed from disk instead of
+     * being loaded into memory, only their first attackFrames frames stay in memory
+     * <br>
+     * <br>
+     * a streamed sample costs memory per channel playing it rather than per second of audio,
+     * applies to samples loaded after the call
+     *
+     * @param thresholdBytes the decoded size above which a sample is streamed, 16 MiB by default
+     * @param attackFrames the frames of a streamed sample that stay in memory, 32768 by default
+     */
+    public native void setSampleStreaming(long thresholdBytes, long attackFrames);
+
+    /**
+     * the memory the engine may keep for decoded samples that no channel plays
+     * <br>
+     * <br>
+     * every channel that loads a file with the same content shares one decoded copy of it,
+     * a copy no channel plays any more is kept so that loading it again skips decoding,
+     * until the pool exceeds this budget, 128 MiB by default
+     */
+    public native void setSamplePoolBudget(long bytes);
+
+    /**
+     * @return the memory held by decoded samples, whether or not a channel plays them
+     * @see #setSamplePoolBudget(long)
+     */
+    public native long getSamplePoolBytes();
+
+    // the resampler qualities, see setResamplerQuality
+    public static final int RESAMPLER_FAST = 0;
+    public static final int RESAMPLER_GOOD = 1;
+    public static final int RESAMPLER_BEST = 2;
+
+    /**
+     * the quality of the sample rate conversions done by the engine, one of {@link #RESAMPLER_FAST},
+     * {@link #RESAMPLER_GOOD}, the default, or {@link #RESAMPLER_BEST}
+     * <br>
+     * <br>
+     * the engine converts WAV and AIFF files to the device rate as it loads them, and converts
+     * the samples of every channel again whenever the device rate changes, a better quality
+     * costs more time per conversion, never any time while playing
+     * <br>
+     * <br>
+     * applies to samples converted from now on
+     */
+    public native void setResamplerQuality(int quality);
+
     public native void changeToDirectMode();
     public native void changeToPatternMode();
     public native void changeToSongMode();
@@ -70,6 +206,34 @@ public class AAudioTrack2 {
     public native void deletePattern(long patternList, long pattern);
 
     public native void bindPatternListToTrack(long patternList, long track);
+
+    /**
+     * places a clip of the given pattern list on the given track
+     * <br>
+     * <br>
+     * in song mode a track with clips plays each clip's pattern list while the clip covers
+     * the play head, instead of its own steps
+     *
+     * @param track the native track
+     * @param patternList the native pattern list the clip plays
+     * @param start the sample the clip starts at
+     * @param length the number of samples the clip plays for
+     * @param offset the position inside the pattern list that plays at start, in samples
+     * @return the id of the clip, or -1 if the clip could not be placed
+     */
+    public native int addClip(long track, long patternList, long start, long length, long offset);
+
+    /**
+     * removes a clip placed with {@link #addClip(long, long, long, long, long)}
+     *
+     * @return false if the track has no clip with the given id
+     */
+    public native boolean removeClip(long track, int clip);
+
+    /**
+     * removes every clip of the given track
+     */
+    public native void clearClips(long track);
     public native long createTrackList();
     public native void deleteTrackList(long trackList);
     public native long createTrack(long trackList);
@@ -85,14 +249,155 @@ public class AAudioTrack2 {
 //    public  native int getCurrentFrame();
 //    public  native int getTotalSamples();
     public  native void setTrack(long nativeChannel, String track);
+
+    /**
+     * decodes length bytes of fd from offset straight into the sampler of a channel
+     *
+     * @param length the number of bytes, or a negative value to read to the end of the file
+     * @param temporaryDirectory where the decoded sample is written if there is no decode cache
+     * @return false if the channel does not play samples or the range cannot be decoded
+     */
+    private native boolean setTrackRange(long nativeChannel, int fd, long offset, long length, String temporaryDirectory);
+
+    // the two halves of a load, used by SampleLoader to decode on its own threads,
+    // a prepared sample is a reference that setSample or releaseSample consumes
+    native long prepareSample(String path, String temporaryDirectory);
+    native long prepareSampleRange(int fd, long offset, long length, String temporaryDirectory);
+    native boolean playsSamples(long nativeChannel);
+    native boolean setSample(long nativeChannel, long sample);
+    native void releaseSample(long sample);
     public  native void setPlugin(long nativeChannel, long plugin);
     public  native void sendEvent(long nativeChannel, int event);
     public  native void resetPlayHead();
     public  native void pause();
     public  native void resume();
     public  native void loop(long nativeChannel, boolean value);
+
+    // the interpolation modes of pitched samples, see setInterpolation
+    public static final int INTERPOLATION_DROP = 0;
+    public static final int INTERPOLATION_LINEAR = 1;
+    public static final int INTERPOLATION_CUBIC = 2;
+    public static final int INTERPOLATION_SINC = 3;
+
+    /**
+     * makes the sampler of a channel play every note at the pitch of its key, or every note
+     * at the pitch of the sample, which is the default
+     * <br>
+     * <br>
+     * the step sequencer plays every step at middle C, so a pitched sampler plays the steps
+     * at the pitch of the sample unless rootKey is changed
+     * <br>
+     * <br>
+     * applies to the notes started from now on
+     *
+     * @param rootKey the key that plays the sample at its own pitch, 60 is middle C
+     * @return false if the channel does not play samples
+     */
+    public  native boolean setPitched(long nativeChannel, boolean pitched, int rootKey);
+
+    /**
+     * how the sampler of a channel reads between the frames of a sample it plays pitched,
+     * one of {@link #INTERPOLATION_DROP}, {@link #INTERPOLATION_LINEAR},
+     * {@link #INTERPOLATION_CUBIC}, the default, or {@link #INTERPOLATION_SINC}
+     * <br>
+     * <br>
+     * a better mode aliases and dulls the sound less, for more time per voice, on weak
+     * devices a cheaper mode allows more voices
+     *
+     * @return false if the channel does not play samples
+     */
+    public  native boolean setInterpolation(long nativeChannel, int mode);
+
+    /**
+     * sets the gain of a channel in the mixer, 1 is unity
+     * <br>
+     * <br>
+     * the mixer moves to the new gain over one block, so the change does not click
+     */
+    public  native void setGain(long nativeChannel, float gain);
+
+    /**
+     * sets the pan of a channel in the mixer, from -1 (left) through 0 (centre) to 1 (right)
+     */
+    public  native void setPan(long nativeChannel, float pan);
+
+    /**
+     * creates a mixer bus, which is mixed into the master bus until it is routed elsewhere
+     * <br>
+     * <br>
+     * a bus sums the channels, buses and sends routed to it, runs its inserts over the sum,
+     * and sends the result through its fader to its output
+     *
+     * @return the native bus
+     */
+    public native long createBus();
+
+    /**
+     * deletes a bus, the channels and buses routed to it are routed to the master bus,
+     * and the sends to it are removed
+     */
+    public native void deleteBus(long bus);
+
+    /**
+     * @return the native master bus, the bus every other bus and channel ends up in
+     */
+    public native long getMasterBus();
+
+    /**
+     * routes a channel to a bus, 0 or the master bus routes it to the master bus
+     */
+    public native void setChannelOutput(long nativeChannel, long bus);
+
+    /**
+     * routes a bus into another bus, 0 or the master bus routes it to the master bus
+     *
+     * @return false if the route would create a cycle, in which case nothing changes
+     */
+    public native boolean setBusOutput(long bus, long target);
+
+    /**
+     * sends a copy of a channel to a bus
+     *
+     * @param level the gain of the send, 1 is unity
+     * @param preFader true to take the send before the fader of the channel,
+     *                 false to follow the fader of the channel
+     * @return the native send
+     */
+    public native long addChannelSend(long nativeChannel, long bus, float level, boolean preFader);
+
+    /**
+     * sends a copy of a bus to another bus
+     *
+     * @param level the gain of the send, 1 is unity
+     * @param preFader true to take the send before the fader of the bus,
+     *                 false to follow the fader of the bus
+     * @return the native send, or 0 if the send would create a cycle
+     */
+    public native long addBusSend(long bus, long target, float level, boolean preFader);
+
+    public native void removeSend(long send);
+
+    public native void setSendLevel(long send, float level);
+
+    /**
+     * sets the fader gain of a bus, 1 is unity
+     */
+    public native void setBusGain(long bus, float gain);
+
+    /**
+     * sets the pan of a bus, from -1 (left) through 0 (centre) to 1 (right)
+     */
+    public native void setBusPan(long bus, float pan);
+
+    /**
+     * adds a delay to the end of the inserts of a bus
+     *
+     * @return the native effect
+     */
+    public native long addBusDelay(long bus);
     private   native long newChannel_();
     private   native long newSamplerChannel_();
+    private   native boolean renderToFile_(String path, long startSample, long lengthSamples, RenderListener listener);
 
     public class ChannelInterface {
         public final long nativeChannel;
@@ -107,10 +412,46 @@ public class AAudioTrack2 {
             DAW.loop(nativeChannel, value);
         }
 
+        /**
+         * @see AAudioTrack2#setPitched(long, boolean, int)
+         */
+        public boolean setPitched(boolean pitched, int rootKey) {
+            return DAW.setPitched(nativeChannel, pitched, rootKey);
+        }
+
+        /**
+         * @see AAudioTrack2#setInterpolation(long, int)
+         */
+        public boolean setInterpolation(int mode) {
+            return DAW.setInterpolation(nativeChannel, mode);
+        }
+
         public void sendEvent(int event) {
             DAW.sendEvent(nativeChannel, event);
         }
 
+        public void setGain(float gain) {
+            DAW.setGain(nativeChannel, gain);
+        }
+
+        public void setPan(float pan) {
+            DAW.setPan(nativeChannel, pan);
+        }
+
+        /**
+         * @see AAudioTrack2#setChannelOutput(long, long)
+         */
+        public void setOutput(long bus) {
+            DAW.setChannelOutput(nativeChannel, bus);
+        }
+
+        /**
+         * @see AAudioTrack2#addChannelSend(long, long, float, boolean)
+         */
+        public long addSend(long bus, float level, boolean preFader) {
+            return DAW.addChannelSend(nativeChannel, bus, level, preFader);
+        }
+
         /**
          * Load the sound from the specified path.
          *
@@ -225,11 +566,72 @@ public class AAudioTrack2 {
         return new ChannelInterface(this, newSamplerChannel_());
     }
 
+    /**
+     * @return the interface of a channel created elsewhere, such as by a view
+     */
+    public ChannelInterface getChannel(long nativeChannel) {
+        return new ChannelInterface(this, nativeChannel);
+    }
+
     public AAudioTrack2() {
         createNativeInstance();
         startEngine();
     }
 
+    /**
+     * receives the progress of {@link #renderToFile(String, long, long, RenderListener)}
+     * <br>
+     * <br>
+     * both methods are called on the render thread,
+     * if onProgress throws, the render is cancelled and onFinished is still called
+     */
+    public interface RenderListener {
+        /**
+         * called roughly once per second of rendered audio, and once when the render completes
+         *
+         * @param renderedSamples the number of samples written so far
+         * @param totalSamples the number of samples being rendered
+         * @return true to continue rendering, false to cancel the render
+         */
+        boolean onProgress(long renderedSamples, long totalSamples);
+
+        /**
+         * @param success false if the render failed or was cancelled
+         */
+        void onFinished(boolean success);
+    }
+
+    /**
+     * bounce the output of the engine to a 32-bit float stereo WAV file
+     * <br>
+     * <br>
+     * the engine stops playback and renders as fast as the CPU allows on a new thread,
+     * the device is restored once the render finishes
+     * <br>
+     * <br>
+     * other calls into the engine wait until the render finishes,
+     * so the listener must not wait for a thread that calls into the engine
+     *
+     * @param path the WAV file to write
+     * @param startSample the engine sample to start rendering from
+     * @param lengthSamples the number of samples to render
+     * @param listener the listener to notify, may be null
+     * @return the render thread
+     */
+    public Thread renderToFile(String path, long startSample, long lengthSamples, RenderListener listener) {
+        Thread thread = new Thread(() -> {
+            boolean success = false;
+            try {
+                success = renderToFile_(path, startSample, lengthSamples, listener);
+            } finally {
+                // also reached when onProgress throws, the exception is rethrown after this
+                if (listener != null) listener.onFinished(success);
+            }
+        }, "AAudioTrack2 renderToFile");
+        thread.start();
+        return thread;
+    }
+
     // each Audio Track instance will correspond to a Channel in the Channel Rack
 
     private void _load(long nativeChannel, Path tmp) {
@@ -239,23 +641,60 @@ public class AAudioTrack2 {
     private String decode(String tmp, int sampleRate, int channelCount) {
         String converted = "TMP_" + tmp + ".converted.ffmpeg.f_f32le.ar_" + sampleRate + ".ac_" + channelCount;
         Log.i(Config.TAG, "converted = [" + converted + "]");
-        int returnCode = FFmpeg.execute("-y" + " " +
+        if (decodeTo(tmp, converted, sampleRate, channelCount)) {
+            return converted;
+        } else {
+            throw new RuntimeException(Config.TAG + ": Command execution failed");
+        }
+    }
+
+    private boolean decodeTo(String input, String output, int sampleRate, int channelCount) {
+        // passed as separate arguments, so that paths may contain spaces
+        int returnCode = FFmpeg.execute(new String[] {
+                "-y",
                 // input
-                "-i " + tmp + " " +
+                "-i", input,
                 // output
-                "-f f32le" + " " + // audio format is Floating-Point 32-bit little-endian pcm
-                "-ar " + sampleRate + " " +
-                "-ac " + channelCount + " " +
-                converted
-        );
+                "-f", "f32le", // audio format is Floating-Point 32-bit little-endian pcm
+                "-ar", String.valueOf(sampleRate),
+                "-ac", String.valueOf(channelCount),
+                output
+        });
         if (returnCode == RETURN_CODE_SUCCESS) {
             Log.i(Config.TAG, "Command execution completed successfully.");
-            return converted;
+            return true;
+        } else {
+            Log.e(Config.TAG, "Command execution failed (returned " + returnCode + ")");
+            return false;
+        }
+    }
+
+    /**
+     * the default size of the decode cache, see {@link #setDecodeCache(Context, long)}
+     */
+    public static final long DEFAULT_DECODE_CACHE_BYTES = 512L * 1024 * 1024;
+
+    /**
+     * keeps decoded samples in the cache directory of the app, so that every file is decoded
+     * once and loads straight from the cache afterwards, even after the app restarts
+     * <br>
+     * <br>
+     * the cache is not touched by {@link #deleteTemporaryFiles(Context)}, once it holds more than
+     * maxBytes the samples that were loaded the longest ago are removed from it
+     *
+     * @param context this is used to obtain the cache directory
+     * @param maxBytes the size the cache may grow to, 0 disables the cache
+     */
+    public void setDecodeCache(Context context, long maxBytes) {
+        if (maxBytes <= 0) {
+            setDecodeCache_(null, 0);
         } else {
-            throw new RuntimeException(Config.TAG + ": Command execution failed (returned " + returnCode + ")");
+            setDecodeCache_(new File(context.getCacheDir(), "decoded").getPath(), maxBytes);
         }
     }
 
+    private native void setDecodeCache_(String directory, long maxBytes);
+
     /**
      * Load the sound from the specified path.
      *
@@ -310,11 +749,34 @@ public class AAudioTrack2 {
      */
     public void load(long nativeChannel, Context context, AssetFileDescriptor afd, CharSequence extension) {
         Objects.requireNonNull(afd);
-        File out = createTemporaryFile(context, extension);
-        Path outPath = out.toPath();
-        Utils.copy(afd, outPath);
-        _load(nativeChannel, outPath);
-        delete(out);
+        long length = afd.getLength() == AssetFileDescriptor.UNKNOWN_LENGTH ? -1 : afd.getLength();
+        if (!loadRange(nativeChannel, context, afd.getFileDescriptor(), afd.getStartOffset(), length)) {
+            File out = createTemporaryFile(context, extension);
+            Path outPath = out.toPath();
+            Utils.copy(afd, outPath);
+            _load(nativeChannel, outPath);
+            delete(out);
+            return;
+        }
+        try {
+            afd.close();
+        } catch (IOException ex) {
+            throw new RuntimeException("close failed: " + ex);
+        }
+    }
+
+    /**
+     * decodes the range in place, without copying it to a temporary file first
+     *
+     * @return false if the range must be copied instead, as the channel does not play samples
+     */
+    private boolean loadRange(long nativeChannel, Context context, FileDescriptor fd, long offset, long length) {
+        // the decoder reads its own duplicate of fd, which does not share the position of fd
+        try (ParcelFileDescriptor pfd = ParcelFileDescriptor.dup(fd)) {
+            return setTrackRange(nativeChannel, pfd.getFd(), offset, length, context.getFilesDir().getPath());
+        } catch (IOException ex) {
+            throw new RuntimeException("cannot read the file descriptor: " + ex);
+        }
     }
 
     private void delete(File file) {
@@ -341,6 +803,7 @@ public class AAudioTrack2 {
      *                  directory.
      */
     public void load(long nativeChannel, Context context, FileDescriptor fd, CharSequence extension) {
+        if (loadRange(nativeChannel, context, fd, 0, -1)) return;
         File out = createTemporaryFile(context, extension);
         Path outPath = out.toPath();
         Utils.copy(fd, outPath);
@@ -366,6 +829,7 @@ public class AAudioTrack2 {
      *                  directory.
      */
     public void load(long nativeChannel, Context context, FileDescriptor fd, long offset, long length, CharSequence extension) {
+        if (loadRange(nativeChannel, context, fd, offset, length)) return;
         File out = createTemporaryFile(context, extension);
         Path outPath = out.toPath();
         try {
@@ -441,14 +905,33 @@ public class AAudioTrack2 {
 
         private static void copy(AssetFileDescriptor fd, Path outPath) {
             Objects.requireNonNull(fd);
+            long length = fd.getLength() == AssetFileDescriptor.UNKNOWN_LENGTH ? Long.MAX_VALUE : fd.getLength();
             try {
-                copy(fd.createInputStream(), outPath);
+                FileInputStream fis = new FileInputStream(fd.getFileDescriptor());
+                copy(fis, outPath, fd.getStartOffset(), length, StandardCopyOption.REPLACE_EXISTING);
                 fd.close();
             } catch (IOException ex) {
                 throw new RuntimeException("close failed: " + ex);
             }
         }
 
+        /**
+         * Transfers a range of a file to another file, the kernel copies the bytes
+         * without passing them through a buffer.
+         */
+        private static long transfer(FileChannel source, long offset, long length, FileChannel sink)
+                throws IOException
+        {
+            long end = offset + Math.min(length, Math.max(0, source.size() - offset));
+            long position = offset;
+            while (position < end) {
+                long n = source.transferTo(position, end - position, sink);
+                if (n <= 0) break;
+                position += n;
+            }
+            return position - offset;
+        }
+
         /**
          * Reads all bytes from an input stream and writes them to an output stream.
          */
@@ -459,7 +942,7 @@ public class AAudioTrack2 {
             long nread = 0L;
             byte[] buf = new byte[BUFFER_SIZE];
             int n = 0;
-            while ((n = source.read(buf, 0, Math.min(BUFFER_SIZE, (int) (length - n)))) > 0) {
+            while ((n = source.read(buf, 0, (int) Math.min(BUFFER_SIZE, length - nread))) > 0) {
                 sink.write(buf, 0, n);
                 nread += n;
             }
@@ -569,9 +1052,9 @@ public class AAudioTrack2 {
             // FileAlreadyExistsException then it may be because the security
             // manager prevented us from deleting the file, in which case we just
             // throw the SecurityException.
-            OutputStream ostream;
+            FileChannel channel;
             try {
-                ostream = Files.newOutputStream(target, StandardOpenOption.CREATE_NEW,
+                channel = FileChannel.open(target, StandardOpenOption.CREATE_NEW,
                         StandardOpenOption.WRITE);
             } catch (FileAlreadyExistsException x) {
                 if (se != null)
@@ -581,8 +1064,11 @@ public class AAudioTrack2 {
             }
 
             // do the copy
-            try (OutputStream out = ostream) {
-                return copy(in, offset, length, out);
+            try (FileChannel out = channel) {
+                if (in instanceof FileInputStream) {
+                    return transfer(((FileInputStream) in).getChannel(), offset, length, out);
+                }
+                return copy(in, offset, length, Channels.newOutputStream(out));
             }
         }
     }
@@ -1,5 +1,9 @@
 package smallville7123.aaudiotrack2;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
 /**
  * a Pattern is a sequence of MIDI Events
  * <br>
@@ -15,8 +19,23 @@ public class Pattern {
     public int currentNativeResolution = 0;
     public int currentViewResolution = 0;
 
+    /**
+     * the steps of this pattern, one bit per step
+     * <br>
+     * <br>
+     * this is the canonical note data, call {@link #setNoteData()} after changing it
+     */
+    public final Steps steps = new Steps();
+
+    public Steps getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return a copy of the steps of this pattern, prefer {@link #getSteps()}
+     */
     public boolean[] getData() {
-        return new boolean[1];
+        return steps.toBooleanArray();
     }
 
     public long newChannel() {
@@ -44,39 +63,116 @@ public class Pattern {
         }
     }
 
+    // the number of steps the native pattern was last built from
+    private int nativeStepCount = -1;
+
     public void setNoteData() {
-        DAWReference.setNoteData(nativePattern, getData());
+        Steps steps = getSteps();
+        DAWReference.setNoteData(nativePattern, steps.words(), steps.length());
+        nativeStepCount = steps.length();
+    }
+
+    /**
+     * changes a single step, and sends only that step to the native pattern
+     * <br>
+     * <br>
+     * the whole pattern is re-sent instead if the number of steps has changed
+     * since the last {@link #setNoteData()} or if the change could not be applied
+     */
+    public void setStep(int index, boolean on) {
+        Steps steps = getSteps();
+        steps.set(index, on);
+        if (nativeStepCount != steps.length() || !DAWReference.setStep(nativePattern, index, on)) {
+            setNoteData();
+        }
+    }
+
+    /**
+     * replaces the steps [offset, offset + source.length()) with the given steps,
+     * and sends only those steps to the native pattern
+     *
+     * @see #setStep(int, boolean)
+     */
+    public void setSteps(int offset, Steps source) {
+        Steps steps = getSteps();
+        for (int i = 0; i < source.length(); i++) {
+            steps.set(offset + i, source.get(i));
+        }
+        if (nativeStepCount != steps.length() || !DAWReference.setSteps(nativePattern, offset, source.words(), source.length())) {
+            setNoteData();
+        }
+    }
+
+    private static final int SNAPSHOT_INITIAL_CAPACITY = 64;
+    private ByteBuffer snapshotBuffer = null;
+    private IntBuffer snapshot = null;
+    private int snapshotCapacity = 0;
+    private int snapshotSize = 0;
+
+    private void allocateSnapshot(int events) {
+        snapshotBuffer = ByteBuffer
+                .allocateDirect(events * AAudioTrack2.SNAPSHOT_FIELDS * Integer.BYTES)
+                .order(ByteOrder.nativeOrder());
+        snapshot = snapshotBuffer.asIntBuffer();
+        snapshotCapacity = events;
+    }
+
+    /**
+     * copies the MIDI events whose tick lies in [fromTick, toTick) out of the native pattern,
+     * with the note on and note off of every note that crosses the edges of that range,
+     * see {@link AAudioTrack2#snapshotPatternEvents(long, int, int, ByteBuffer)}
+     * <br>
+     * <br>
+     * the events can then be read with the getSnapshot* methods without any further JNI calls,
+     * the snapshot stays valid until the next call to this method
+     *
+     * @return the number of events in the snapshot
+     */
+    public final int snapshotEvents(int fromTick, int toTick) {
+        if (snapshotBuffer == null) allocateSnapshot(SNAPSHOT_INITIAL_CAPACITY);
+        int count = DAWReference.snapshotPatternEvents(nativePattern, fromTick, toTick, snapshotBuffer);
+        if (count > snapshotCapacity) {
+            allocateSnapshot(count);
+            count = DAWReference.snapshotPatternEvents(nativePattern, fromTick, toTick, snapshotBuffer);
+        }
+        // the pattern may have grown between the two calls
+        snapshotSize = Math.min(count, snapshotCapacity);
+        return snapshotSize;
+    }
+
+    public final int getSnapshotSize() {
+        return snapshotSize;
     }
 
-    public final long getMidiEventAt(int index) {
-        return DAWReference.getMidiEventAt(nativePattern, index);
+    public final int getSnapshotTick(int index) {
+        return snapshot.get(index * AAudioTrack2.SNAPSHOT_FIELDS);
     }
 
-    public final int getMidiTickAt(long midiEvent) {
-        return DAWReference.getMidiTickAt(nativePattern, midiEvent);
+    public final int getSnapshotChannel(int index) {
+        return snapshot.get(index * AAudioTrack2.SNAPSHOT_FIELDS + 1);
     }
 
-    public final int getMidiChannelAt(long midiEvent) {
-        return DAWReference.getMidiChannelAt(nativePattern, midiEvent);
+    public final int getSnapshotNumber(int index) {
+        return snapshot.get(index * AAudioTrack2.SNAPSHOT_FIELDS + 2);
     }
 
-    public final int getMidiNumberAt(long midiEvent) {
-        return DAWReference.getMidiNumberAt(nativePattern, midiEvent);
+    public final int getSnapshotVelocity(int index) {
+        return snapshot.get(index * AAudioTrack2.SNAPSHOT_FIELDS + 3);
     }
 
-    public final int getMidiVelocityAt(long midiEvent) {
-        return DAWReference.getMidiVelocityAt(nativePattern, midiEvent);
+    public final int getSnapshotType(int index) {
+        return snapshot.get(index * AAudioTrack2.SNAPSHOT_FIELDS + 4);
     }
 
-    public final boolean isMidiEventNote(long midiEvent) {
-        return DAWReference.isMidiEventNote(nativePattern, midiEvent);
+    public final boolean isSnapshotNote(int index) {
+        return getSnapshotType(index) != AAudioTrack2.NO_EVENT;
     }
 
-    public final boolean isMidiEventNoteOn(long midiEvent) {
-        return DAWReference.isMidiEventNoteOn(nativePattern, midiEvent);
+    public final boolean isSnapshotNoteOn(int index) {
+        return getSnapshotType(index) == AAudioTrack2.EVENT_NOTE_ON;
     }
 
-    public final boolean isMidiEventNoteOff(long midiEvent) {
-        return DAWReference.isMidiEventNoteOff(nativePattern, midiEvent);
+    public final boolean isSnapshotNoteOff(int index) {
+        return getSnapshotType(index) == AAudioTrack2.EVENT_NOTE_OFF;
     }
 }
@@ -35,18 +35,18 @@ public class PatternList<P extends Pattern> {
         patternArrayList.remove(pattern);
     }
 
-    public boolean[] getData() {
-        ArrayList<Boolean> data = new ArrayList<>();
+    /**
+     * @return the steps of every pattern in this list, one after the other
+     */
+    public Steps getSteps() {
+        Steps data = new Steps();
         for (int i = 0; i < patternArrayList.size(); i++) {
-            boolean[] patternData = patternArrayList.get(i).getData();
-            for (boolean value : patternData) {
-                data.add(value);
-            }
-        }
-        boolean[] data_ = new boolean[data.size()];
-        for (int i = 0; i < data.size(); i++) {
-            data_[i] = data.get(i);
+            data.append(patternArrayList.get(i).getSteps());
         }
-        return data_;
+        return data;
+    }
+
+    public boolean[] getData() {
+        return getSteps().toBooleanArray();
     }
 }
@@ -0,0 +1,310 @@
+package smallville7123.aaudiotrack2;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * loads samples into channels on a pool of background threads, one sample per thread,
+ * so that a project with many samples loads in parallel and never on the UI thread
+ * <br>
+ * <br>
+ * a sample is decoded without touching its channel, and only given to the channel once
+ * it is completely decoded, so a channel keeps playing its previous sample until then
+ * <br>
+ * <br>
+ * the same file loaded by several channels at once is decoded once, see
+ * {@link AAudioTrack2#setSamplePoolBudget(long)}
+ * <br>
+ * <br>
+ * channels that do not play samples are loaded on the pool threads the way
+ * {@link AAudioTrack2.ChannelInterface} loads them
+ */
+public class SampleLoader {
+
+    /**
+     * receives the progress of the loads of a {@link SampleLoader}
+     * <br>
+     * <br>
+     * called on the thread that finished or cancelled a load
+     */
+    public interface ProgressListener {
+        /**
+         * called whenever a load completes, fails or is cancelled
+         *
+         * @param completed the number of loads finished since the loader was last idle
+         * @param total the number of loads submitted since the loader was last idle
+         */
+        void onProgress(int completed, int total);
+    }
+
+    private interface Preparer {
+        // returns a prepared sample, or 0 if it cannot be decoded
+        long prepare(String temporaryDirectory);
+    }
+
+    private interface Fallback {
+        void load();
+    }
+
+    /**
+     * a load that can no longer be cancelled once its sample is given to its channel
+     */
+    private class Load extends CompletableFuture<AAudioTrack2.ChannelInterface> {
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        synchronized void swap(AAudioTrack2.ChannelInterface channel, long sample) {
+            if (isDone()) {
+                // cancelled while decoding, the sample stays in the pool for the next load of the file
+                DAW.releaseSample(sample);
+                return;
+            }
+            if (DAW.setSample(channel.nativeChannel, sample)) {
+                complete(channel);
+            } else {
+                completeExceptionally(new IllegalStateException("the channel no longer plays samples"));
+            }
+        }
+    }
+
+    private final AAudioTrack2 DAW;
+    private final Context context;
+    private final ThreadPoolExecutor executor;
+    private final Set<Load> loads = ConcurrentHashMap.newKeySet();
+    private volatile ProgressListener progressListener;
+    private int completed = 0;
+    private int total = 0;
+
+    /**
+     * creates a loader with a thread for every core
+     *
+     * @param context this is used to obtain a temporary directory to decode the audio files to
+     */
+    public SampleLoader(AAudioTrack2 DAW, Context context) {
+        this(DAW, context, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param context this is used to obtain a temporary directory to decode the audio files to
+     * @param threads the number of samples decoded at once
+     */
+    public SampleLoader(AAudioTrack2 DAW, Context context, int threads) {
+        this.DAW = DAW;
+        this.context = context;
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+                threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(() -> {
+                        // loading must not take time from the UI
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }, "AAudioTrack2 loader " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        // an idle loader holds no threads
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        progressListener = listener;
+    }
+
+    private synchronized void started() {
+        total++;
+    }
+
+    private synchronized void finished() {
+        completed++;
+        ProgressListener listener = progressListener;
+        if (listener != null) listener.onProgress(completed, total);
+        if (completed == total) {
+            completed = 0;
+            total = 0;
+        }
+    }
+
+    private static void close(Closeable resource) {
+        if (resource == null) return;
+        try {
+            resource.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private CompletableFuture<AAudioTrack2.ChannelInterface> submit(
+            AAudioTrack2.ChannelInterface channel, Preparer preparer, Fallback fallback, Closeable resource
+    ) {
+        Load load = new Load();
+        loads.add(load);
+        started();
+        load.whenComplete((result, error) -> {
+            loads.remove(load);
+            finished();
+        });
+        try {
+            executor.execute(() -> {
+                try {
+                    if (load.isDone()) return;
+                    if (!DAW.playsSamples(channel.nativeChannel)) {
+                        fallback.load();
+                        load.complete(channel);
+                        return;
+                    }
+                    long sample = preparer.prepare(context.getFilesDir().getPath());
+                    if (sample == 0) throw new RuntimeException("cannot decode the sample");
+                    load.swap(channel, sample);
+                } catch (Throwable t) {
+                    load.completeExceptionally(t);
+                } finally {
+                    close(resource);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            close(resource);
+            load.completeExceptionally(ex);
+        }
+        return load;
+    }
+
+    private static ParcelFileDescriptor dup(FileDescriptor fd) {
+        try {
+            return ParcelFileDescriptor.dup(fd);
+        } catch (IOException ex) {
+            throw new RuntimeException("cannot read the file descriptor: " + ex);
+        }
+    }
+
+    /**
+     * Load the sound from the specified path.
+     *
+     * @param channel the channel to load the audio into
+     * @param path the path to the audio file
+     * @return completes with channel once it plays the sound
+     */
+    public CompletableFuture<AAudioTrack2.ChannelInterface> loadPath(AAudioTrack2.ChannelInterface channel, String path) {
+        return submit(
+                channel,
+                temporaryDirectory -> DAW.prepareSample(path, temporaryDirectory),
+                () -> DAW.loadPath(channel.nativeChannel, context, path),
+                null
+        );
+    }
+
+    /**
+     * Load the sound from the specified APK resource.
+     *
+     * @param channel the channel to load the audio into
+     * @param resId the resource ID
+     * @param extension the extension that should be used to decode the file,
+     *                  see {@link AAudioTrack2#load(long, Context, int, CharSequence)}
+     * @return completes with channel once it plays the sound
+     */
+    public CompletableFuture<AAudioTrack2.ChannelInterface> load(AAudioTrack2.ChannelInterface channel, int resId, CharSequence extension) {
+        return load(channel, context.getResources().openRawResourceFd(resId), extension);
+    }
+
+    /**
+     * Load the sound from an asset file descriptor.
+     *
+     * @param channel the channel to load the audio into
+     * @param afd an asset file descriptor, which is closed once the load finishes
+     * @param extension the extension that should be used to decode the file,
+     *                  see {@link AAudioTrack2#load(long, Context, AssetFileDescriptor, CharSequence)}
+     * @return completes with channel once it plays the sound
+     */
+    public CompletableFuture<AAudioTrack2.ChannelInterface> load(AAudioTrack2.ChannelInterface channel, AssetFileDescriptor afd, CharSequence extension) {
+        long length = afd.getLength() == AssetFileDescriptor.UNKNOWN_LENGTH ? -1 : afd.getLength();
+        return submit(
+                channel,
+                temporaryDirectory -> DAW.prepareSampleRange(
+                        afd.getParcelFileDescriptor().getFd(), afd.getStartOffset(), length, temporaryDirectory
+                ),
+                () -> DAW.load(channel.nativeChannel, context, afd, extension),
+                afd
+        );
+    }
+
+    /**
+     * Load the sound from a FileDescriptor.
+     *
+     * @param channel the channel to load the audio into
+     * @param fd a FileDescriptor object, which may be closed as soon as this returns
+     * @param extension the extension that should be used to decode the file,
+     *                  see {@link AAudioTrack2#load(long, Context, FileDescriptor, CharSequence)}
+     * @return completes with channel once it plays the sound
+     */
+    public CompletableFuture<AAudioTrack2.ChannelInterface> load(AAudioTrack2.ChannelInterface channel, FileDescriptor fd, CharSequence extension) {
+        return load(channel, fd, 0, -1, extension);
+    }
+
+    /**
+     * Load the sound from a FileDescriptor.
+     *
+     * This version is useful if you store multiple sounds in a single
+     * binary. The offset specifies the offset from the start of the file
+     * and the length specifies the length of the sound within the file.
+     *
+     * @param channel the channel to load the audio into
+     * @param fd a FileDescriptor object, which may be closed as soon as this returns
+     * @param offset offset to the start of the sound
+     * @param length length of the sound, or a negative value to read to the end of the file
+     * @param extension the extension that should be used to decode the file,
+     *                  see {@link AAudioTrack2#load(long, Context, FileDescriptor, long, long, CharSequence)}
+     * @return completes with channel once it plays the sound
+     */
+    public CompletableFuture<AAudioTrack2.ChannelInterface> load(AAudioTrack2.ChannelInterface channel, FileDescriptor fd,
+                                                                long offset, long length, CharSequence extension) {
+        // the load reads its own duplicate, which stays open until the load finishes
+        ParcelFileDescriptor pfd = dup(fd);
+        return submit(
+                channel,
+                temporaryDirectory -> DAW.prepareSampleRange(pfd.getFd(), offset, length, temporaryDirectory),
+                () -> {
+                    if (length < 0) {
+                        DAW.load(channel.nativeChannel, context, pfd.getFileDescriptor(), extension);
+                    } else {
+                        DAW.load(channel.nativeChannel, context, pfd.getFileDescriptor(), offset, length, extension);
+                    }
+                },
+                pfd
+        );
+    }
+
+    /**
+     * cancels every load that has not given its sample to its channel yet
+     * <br>
+     * <br>
+     * a sample that is being decoded finishes decoding, as the decoder cannot be interrupted,
+     * but is not given to its channel
+     */
+    public void cancelAll() {
+        for (Load load : loads) load.cancel(false);
+    }
+
+    /**
+     * cancels every load and stops the threads of the loader, loads submitted afterwards fail
+     */
+    public void shutdown() {
+        cancelAll();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,191 @@
+package smallville7123.aaudiotrack2;
+
+import java.util.Arrays;
+
+/**
+ * a packed sequence of on/off steps
+ * <br>
+ * <br>
+ * each step costs a single bit, step i is stored in bit (i % 64) of word (i / 64),
+ * and every bit at or after {@link #length()} is kept clear
+ * <br>
+ * <br>
+ * the words are handed to native code as they are, see
+ * {@link AAudioTrack2#setNoteData(long, long[], int)}
+ *
+ * @see Pattern
+ * @see Track
+ */
+public class Steps {
+    private static final long[] EMPTY = new long[0];
+
+    private long[] words = EMPTY;
+    private int length = 0;
+
+    public Steps() {}
+
+    public Steps(int length) {
+        setLength(length);
+    }
+
+    static int wordsFor(int length) {
+        return (length + 63) >>> 6;
+    }
+
+    private void ensureWords(int count) {
+        if (words.length < count) {
+            words = Arrays.copyOf(words, Math.max(count, words.length * 2));
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * the backing words, this may be longer than {@link #wordsFor(int) wordsFor(length())}
+     * <br>
+     * <br>
+     * this is not a copy, it is only valid until the next call that changes the length
+     */
+    public long[] words() {
+        return words;
+    }
+
+    /**
+     * grows or shrinks this sequence, new steps are off
+     */
+    public void setLength(int length) {
+        if (length < 0) throw new IllegalArgumentException("length must not be negative: " + length);
+        int used = wordsFor(length);
+        ensureWords(used);
+        if (length < this.length) {
+            // clear the steps that were cut off so a later grow starts with them off
+            Arrays.fill(words, used, wordsFor(this.length), 0);
+            if ((length & 63) != 0) {
+                words[used - 1] &= (1L << length) - 1;
+            }
+        }
+        this.length = length;
+    }
+
+    public boolean get(int step) {
+        checkIndex(step);
+        return (words[step >>> 6] & (1L << step)) != 0;
+    }
+
+    public void set(int step, boolean on) {
+        checkIndex(step);
+        if (on) {
+            words[step >>> 6] |= 1L << step;
+        } else {
+            words[step >>> 6] &= ~(1L << step);
+        }
+    }
+
+    public boolean toggle(int step) {
+        checkIndex(step);
+        long bit = 1L << step;
+        return ((words[step >>> 6] ^= bit) & bit) != 0;
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0, wordsFor(length), 0);
+    }
+
+    /**
+     * @return the number of steps that are on
+     */
+    public int cardinality() {
+        int count = 0;
+        int used = wordsFor(length);
+        for (int i = 0; i < used; i++) {
+            count += Long.bitCount(words[i]);
+        }
+        return count;
+    }
+
+    private void checkIndex(int step) {
+        if (step < 0 || step >= length) {
+            throw new IndexOutOfBoundsException("step " + step + " out of range [0, " + length + ")");
+        }
+    }
+
+    /**
+     * appends every step of the given sequence to the end of this one
+     * <br>
+     * <br>
+     * this works a word at a time, no step is read individually
+     */
+    public void append(Steps other) {
+        int offset = length;
+        int otherLength = other.length;
+        if (otherLength == 0) return;
+        setLength(offset + otherLength);
+        int otherWords = wordsFor(otherLength);
+        int wordOffset = offset >>> 6;
+        int shift = offset & 63;
+        if (shift == 0) {
+            System.arraycopy(other.words, 0, words, wordOffset, otherWords);
+        } else {
+            for (int i = 0; i < otherWords; i++) {
+                long word = other.words[i];
+                words[wordOffset + i] |= word << shift;
+                // the high bits of the last word spill over only if there is room for them
+                if (wordOffset + i + 1 < wordsFor(length)) {
+                    words[wordOffset + i + 1] |= word >>> (64 - shift);
+                }
+            }
+        }
+    }
+
+    public void copyFrom(Steps other) {
+        setLength(0);
+        append(other);
+    }
+
+    public void copyFrom(boolean[] data) {
+        setLength(0);
+        setLength(data.length);
+        for (int i = 0; i < data.length; i++) {
+            if (data[i]) words[i >>> 6] |= 1L << i;
+        }
+    }
+
+    public Steps copy() {
+        Steps steps = new Steps();
+        steps.copyFrom(this);
+        return steps;
+    }
+
+    public boolean[] toBooleanArray() {
+        boolean[] data = new boolean[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (words[i >>> 6] & (1L << i)) != 0;
+        }
+        return data;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Steps)) return false;
+        Steps steps = (Steps) o;
+        if (length != steps.length) return false;
+        int used = wordsFor(length);
+        for (int i = 0; i < used; i++) {
+            if (words[i] != steps.words[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = length;
+        int used = wordsFor(length);
+        for (int i = 0; i < used; i++) {
+            hash = 31 * hash + Long.hashCode(words[i]);
+        }
+        return hash;
+    }
+}
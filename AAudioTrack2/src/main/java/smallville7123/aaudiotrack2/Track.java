@@ -6,8 +6,23 @@ public class Track {
     public int currentNativeResolution = 0;
     public int currentViewResolution = 0;
 
+    /**
+     * the steps of this track, one bit per step
+     * <br>
+     * <br>
+     * this is the canonical track data, call {@link #setTrackData()} after changing it
+     */
+    public final Steps steps = new Steps();
+
+    public Steps getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return a copy of the steps of this track, prefer {@link #getSteps()}
+     */
     public boolean[] getData() {
-        return new boolean[1];
+        return steps.toBooleanArray();
     }
 
     public void setNativeResolution(int size) {
@@ -24,10 +39,33 @@ public class Track {
     }
 
     public void setTrackData() {
-        DAWReference.setTrackData(nativeTrack, getData());
+        Steps steps = getSteps();
+        DAWReference.setTrackData(nativeTrack, steps.words(), steps.length());
     }
 
     public void bindPatternListToTrack(PatternList patternList) {
         DAWReference.bindPatternListToTrack(patternList.nativePatternList, nativeTrack);
     }
+
+    /**
+     * places a clip of the given pattern list on this track
+     *
+     * @return the id of the clip, or -1 if the clip could not be placed
+     * @see AAudioTrack2#addClip(long, long, long, long, long)
+     */
+    public int addClip(PatternList patternList, long start, long length, long offset) {
+        return DAWReference.addClip(nativeTrack, patternList.nativePatternList, start, length, offset);
+    }
+
+    public int addClip(PatternList patternList, long start, long length) {
+        return addClip(patternList, start, length, 0);
+    }
+
+    public boolean removeClip(int clip) {
+        return DAWReference.removeClip(nativeTrack, clip);
+    }
+
+    public void clearClips() {
+        DAWReference.clearClips(nativeTrack);
+    }
 }
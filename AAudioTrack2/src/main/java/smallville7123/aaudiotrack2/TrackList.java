@@ -23,18 +23,18 @@ public class TrackList<P extends Track> {
         trackArrayList.remove(track);
     }
 
-    public boolean[] getData() {
-        ArrayList<Boolean> data = new ArrayList<>();
+    /**
+     * @return the steps of every track in this list, one after the other
+     */
+    public Steps getSteps() {
+        Steps data = new Steps();
         for (int i = 0; i < trackArrayList.size(); i++) {
-            boolean[] trackData = trackArrayList.get(i).getData();
-            for (boolean value : trackData) {
-                data.add(value);
-            }
-        }
-        boolean[] data_ = new boolean[data.size()];
-        for (int i = 0; i < data.size(); i++) {
-            data_[i] = data.get(i);
+            data.append(trackArrayList.get(i).getSteps());
         }
-        return data_;
+        return data;
+    }
+
+    public boolean[] getData() {
+        return getSteps().toBooleanArray();
     }
 }
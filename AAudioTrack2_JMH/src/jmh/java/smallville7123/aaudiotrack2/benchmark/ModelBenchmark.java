@@ -0,0 +1,113 @@
+package smallville7123.aaudiotrack2.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import smallville7123.aaudiotrack2.AAudioTrack2;
+import smallville7123.aaudiotrack2.PatternGroup;
+import smallville7123.aaudiotrack2.PatternList;
+import smallville7123.aaudiotrack2.Steps;
+import smallville7123.aaudiotrack2.TrackGroup;
+import smallville7123.aaudiotrack2.TrackList;
+
+/**
+ * measures the model operations the sequencer performs, at a realistic project size
+ * <br>
+ * <br>
+ * run with the gc profiler (the default for this module) to see the allocation rate of each operation
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ModelBenchmark {
+    @Param({"100"})
+    public int patterns;
+
+    @Param({"256"})
+    public int steps;
+
+    AAudioTrack2 DAW;
+    PatternList<StepPattern> patternList;
+    TrackList<StepTrack> trackList;
+    StepPattern pattern;
+    int step;
+
+    @Setup
+    public void setup() {
+        DAW = new AAudioTrack2();
+        PatternGroup<PatternList<StepPattern>> patternGroup = new PatternGroup<>(DAW);
+        patternList = patternGroup.newPatternList(new PatternList<>());
+        for (int i = 0; i < patterns; i++) {
+            patternList.newPattern(new StepPattern(steps));
+        }
+        TrackGroup<TrackList<StepTrack>> trackGroup = new TrackGroup<>(DAW);
+        trackList = trackGroup.newTrackList(new TrackList<>());
+        for (int i = 0; i < patterns; i++) {
+            trackList.newTrack(new StepTrack(steps));
+        }
+        pattern = patternList.patternArrayList.get(patterns / 2);
+        step = 0;
+    }
+
+    @Benchmark
+    public boolean[] patternGetData() {
+        return pattern.getData();
+    }
+
+    @Benchmark
+    public boolean[] patternListGetData() {
+        return patternList.getData();
+    }
+
+    @Benchmark
+    public boolean[] trackListGetData() {
+        return trackList.getData();
+    }
+
+    @Benchmark
+    public Steps patternListGetSteps() {
+        return patternList.getSteps();
+    }
+
+    @Benchmark
+    public Steps trackListGetSteps() {
+        return trackList.getSteps();
+    }
+
+    /**
+     * adds a pattern to the end of the list and removes it again
+     */
+    @Benchmark
+    public void newAndRemovePattern(Blackhole blackhole) {
+        StepPattern added = patternList.newPattern(new StepPattern(steps));
+        blackhole.consume(added);
+        patternList.removePattern(added);
+    }
+
+    /**
+     * removes a pattern from the middle of the list and adds it back
+     */
+    @Benchmark
+    public void removeAndNewPattern(Blackhole blackhole) {
+        patternList.removePattern(pattern);
+        blackhole.consume(patternList.newPattern(pattern));
+    }
+
+    /**
+     * the work done by one click on a step in the sequencer
+     */
+    @Benchmark
+    public void toggleStep() {
+        pattern.toggle(step);
+        step = (step + 1) % steps;
+    }
+}
@@ -0,0 +1,22 @@
+package smallville7123.aaudiotrack2.benchmark;
+
+import smallville7123.aaudiotrack2.Pattern;
+
+/**
+ * a Pattern with every fourth step on
+ */
+public class StepPattern extends Pattern {
+    public StepPattern(int length) {
+        steps.setLength(length);
+        for (int i = 0; i < length; i += 4) {
+            steps.set(i, true);
+        }
+    }
+
+    /**
+     * the equivalent of clicking a step in the sequencer
+     */
+    public void toggle(int step) {
+        setStep(step, !steps.get(step));
+    }
+}
@@ -0,0 +1,15 @@
+package smallville7123.aaudiotrack2.benchmark;
+
+import smallville7123.aaudiotrack2.Track;
+
+/**
+ * a Track with every other step on
+ */
+public class StepTrack extends Track {
+    public StepTrack(int length) {
+        steps.setLength(length);
+        for (int i = 0; i < length; i += 2) {
+            steps.set(i, true);
+        }
+    }
+}
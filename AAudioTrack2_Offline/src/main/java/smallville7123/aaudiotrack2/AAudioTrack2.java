@@ -0,0 +1,118 @@
+package smallville7123.aaudiotrack2;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * JVM stand-in for the native AAudioTrack2
+ * <br>
+ * <br>
+ * this does not load libAAudioTrack2, every native object is replaced by a unique handle
+ * so the shared model classes (Pattern, PatternList, Track, ...) behave exactly as they do
+ * on a device, and the offline renderer can map those handles back to its own objects
+ *
+ * @see smallville7123.aaudiotrack2.offline.OfflineEngine
+ */
+public class AAudioTrack2 {
+    public static final int NO_EVENT = 0;
+    public static final int EVENT_NOTE_ON = 1;
+    public static final int EVENT_NOTE_OFF = 2;
+
+    public static final int SNAPSHOT_FIELDS = 5;
+
+    private long nextHandle = 1;
+    private int nextClip = 0;
+
+    private long newHandle() {
+        return nextHandle++;
+    }
+
+    // track -> pattern list
+    private final HashMap<Long, Long> trackBindings = new HashMap<>();
+
+    public class ChannelInterface {
+        public final long nativeChannel;
+
+        ChannelInterface(long nativeChannel) {
+            this.nativeChannel = nativeChannel;
+        }
+    }
+
+    public ChannelInterface newChannel() {
+        return new ChannelInterface(newHandle());
+    }
+
+    public ChannelInterface newSamplerChannel() {
+        return new ChannelInterface(newHandle());
+    }
+
+    public void setNoteData(long pattern, long[] steps, int length) {}
+
+    public boolean setStep(long pattern, int index, boolean on) {
+        return true;
+    }
+
+    public boolean setSteps(long pattern, int offset, long[] steps, int length) {
+        return true;
+    }
+
+    public int snapshotPatternEvents(long pattern, int fromTick, int toTick, ByteBuffer out) {
+        return 0;
+    }
+
+    public void setTrackData(long track, long[] steps, int length) {}
+
+    public void setPatternGridResolution(long pattern, int size) {}
+
+    public void setTrackGridResolution(long track, int size) {}
+
+    public void bindChannelToPattern(long channel, long pattern) {}
+
+    public long createPatternList() {
+        return newHandle();
+    }
+
+    public void deletePatternList(long patternList) {}
+
+    public long createPattern(long patternList) {
+        return newHandle();
+    }
+
+    public void deletePattern(long patternList, long pattern) {}
+
+    public void bindPatternListToTrack(long patternList, long track) {
+        trackBindings.put(track, patternList);
+    }
+
+    /**
+     * @return the native pattern list bound to the given track, or 0 if none is bound
+     */
+    public long getPatternListBoundToTrack(long track) {
+        Long patternList = trackBindings.get(track);
+        return patternList == null ? 0 : patternList;
+    }
+
+    public int addClip(long track, long patternList, long start, long length, long offset) {
+        return length > 0 ? nextClip++ : -1;
+    }
+
+    public boolean removeClip(long track, int clip) {
+        return true;
+    }
+
+    public void clearClips(long track) {}
+
+    public long createTrackList() {
+        return newHandle();
+    }
+
+    public void deleteTrackList(long trackList) {}
+
+    public long createTrack(long trackList) {
+        return newHandle();
+    }
+
+    public void deleteTrack(long trackList, long track) {
+        trackBindings.remove(track);
+    }
+}
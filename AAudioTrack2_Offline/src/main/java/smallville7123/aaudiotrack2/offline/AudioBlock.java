@@ -0,0 +1,27 @@
+package smallville7123.aaudiotrack2.offline;
+
+import java.util.Arrays;
+
+/**
+ * a non-interleaved stereo buffer, the JVM equivalent of a PortUtils2 output port
+ */
+public class AudioBlock {
+    public final float[] left;
+    public final float[] right;
+    public int frames;
+
+    public AudioBlock(int capacity) {
+        left = new float[capacity];
+        right = new float[capacity];
+        frames = capacity;
+    }
+
+    public int capacity() {
+        return left.length;
+    }
+
+    public void clear() {
+        Arrays.fill(left, 0, frames, 0.0f);
+        Arrays.fill(right, 0, frames, 0.0f);
+    }
+}
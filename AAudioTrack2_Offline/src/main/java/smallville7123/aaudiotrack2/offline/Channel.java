@@ -0,0 +1,46 @@
+package smallville7123.aaudiotrack2.offline;
+
+/**
+ * a generator followed by an effect rack, rendered into its own output block
+ * <br>
+ * <br>
+ * this mirrors the native Channel_Generator
+ */
+public class Channel {
+    public Generator generator = null;
+    public final EffectRack effectRack = new EffectRack();
+    final AudioBlock out;
+    final EventQueue events = new EventQueue();
+    boolean active = false;
+
+    Channel(int blockCapacity) {
+        out = new AudioBlock(blockCapacity);
+    }
+
+    void render(int frames) {
+        out.frames = frames;
+        out.clear();
+        int position = 0;
+        for (int i = 0; i < events.size; i++) {
+            int offset = events.offsets[i];
+            if (generator != null) {
+                if (offset > position) {
+                    generator.write(out, position, offset - position);
+                    position = offset;
+                }
+                if (events.types[i] == EventQueue.NOTE_ON) {
+                    generator.noteOn(events.keys[i], events.velocities[i]);
+                } else if (events.types[i] == EventQueue.NOTE_OFF) {
+                    generator.noteOff(events.keys[i]);
+                } else {
+                    generator.allNotesOff();
+                }
+            }
+        }
+        if (generator != null && position < frames) {
+            generator.write(out, position, frames - position);
+        }
+        effectRack.process(out);
+        events.clear();
+    }
+}
@@ -0,0 +1,24 @@
+package smallville7123.aaudiotrack2.offline;
+
+/**
+ * this particular delay implements a panned delay
+ * letting audio pass on the right channel, but delaying it on the left channel
+ */
+public class Delay extends Effect {
+    final DelayLine left;
+    final DelayLine right;
+
+    public Delay(int sampleRate) {
+        left = new DelayLine(sampleRate);
+        right = new DelayLine(sampleRate);
+        left.setdelay(sampleRate / 8);
+    }
+
+    @Override
+    public void process(AudioBlock block) {
+        for (int i = 0; i < block.frames; i++) {
+            block.left[i] = left.delayline(block.left[i]);
+            block.right[i] = right.delayline(block.right[i]);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package smallville7123.aaudiotrack2.offline;
+
+/**
+ * https://ccrma.stanford.edu/~jos/pasp/Variable_Delay_Lines.html
+ */
+public class DelayLine {
+    private final float[] A;
+    private int rptr = 0; // read index
+    private int wptr = 0; // write index
+
+    public DelayLine(int length) {
+        A = new float[length];
+    }
+
+    public void setdelay(int M) {
+        rptr = wptr - M;
+        while (rptr < 0) rptr += A.length;
+    }
+
+    public float delayline(float x) {
+        A[wptr++] = x;
+        float y = A[rptr++];
+        if (wptr >= A.length) wptr -= A.length;
+        if (rptr >= A.length) rptr -= A.length;
+        return y;
+    }
+}
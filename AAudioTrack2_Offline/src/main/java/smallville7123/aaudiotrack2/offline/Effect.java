@@ -0,0 +1,10 @@
+package smallville7123.aaudiotrack2.offline;
+
+/**
+ * a plugin that processes a block of audio in place
+ *
+ * @see EffectRack
+ */
+public abstract class Effect {
+    public abstract void process(AudioBlock block);
+}
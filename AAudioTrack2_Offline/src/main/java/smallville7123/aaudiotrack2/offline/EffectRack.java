@@ -0,0 +1,25 @@
+package smallville7123.aaudiotrack2.offline;
+
+import java.util.ArrayList;
+
+/**
+ * a chain of effects, applied in insertion order
+ */
+public class EffectRack {
+    public final ArrayList<Effect> effects = new ArrayList<>();
+
+    public <E extends Effect> E add(E effect) {
+        effects.add(effect);
+        return effect;
+    }
+
+    public void remove(Effect effect) {
+        effects.remove(effect);
+    }
+
+    public void process(AudioBlock block) {
+        for (int i = 0; i < effects.size(); i++) {
+            effects.get(i).process(block);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package smallville7123.aaudiotrack2.offline;
+
+import java.util.Arrays;
+
+/**
+ * the note events a channel receives during a single block, ordered by frame offset
+ * <br>
+ * <br>
+ * the arrays only grow, so a steady state render does not allocate
+ */
+class EventQueue {
+    static final int NOTE_ON = 1;
+    static final int NOTE_OFF = 2;
+    // stops every note, the key and velocity are not used
+    static final int ALL_NOTES_OFF = 3;
+
+    int[] offsets = new int[16];
+    int[] types = new int[16];
+    int[] keys = new int[16];
+    int[] velocities = new int[16];
+    int size = 0;
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * insert an event, keeping the queue sorted by offset,
+     * events with the same offset keep their insertion order
+     */
+    void add(int offset, int type, int key, int velocity) {
+        if (size == offsets.length) grow();
+        int i = size;
+        while (i > 0 && offsets[i - 1] > offset) {
+            offsets[i] = offsets[i - 1];
+            types[i] = types[i - 1];
+            keys[i] = keys[i - 1];
+            velocities[i] = velocities[i - 1];
+            i--;
+        }
+        offsets[i] = offset;
+        types[i] = type;
+        keys[i] = key;
+        velocities[i] = velocity;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = offsets.length * 2;
+        offsets = Arrays.copyOf(offsets, capacity);
+        types = Arrays.copyOf(types, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        velocities = Arrays.copyOf(velocities, capacity);
+    }
+}
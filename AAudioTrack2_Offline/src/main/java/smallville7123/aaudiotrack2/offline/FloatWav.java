@@ -0,0 +1,119 @@
+package smallville7123.aaudiotrack2.offline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * stereo IEEE float WAV files, used for offline renders and golden file comparisons
+ */
+public class FloatWav {
+    static final int HEADER_SIZE = 44;
+    static final short WAVE_FORMAT_IEEE_FLOAT = 3;
+    static final short CHANNELS = 2;
+    static final short BITS_PER_SAMPLE = 32;
+    static final int BYTES_PER_FRAME = CHANNELS * BITS_PER_SAMPLE / 8;
+
+    static void writeHeader(ByteBuffer header, int sampleRate, long dataBytes) {
+        header.clear();
+        header.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+        header.putInt((int) (HEADER_SIZE - 8 + dataBytes));
+        header.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+        header.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+        header.putInt(16);
+        header.putShort(WAVE_FORMAT_IEEE_FLOAT);
+        header.putShort(CHANNELS);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * BYTES_PER_FRAME);
+        header.putShort((short) BYTES_PER_FRAME);
+        header.putShort(BITS_PER_SAMPLE);
+        header.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        header.putInt((int) dataBytes);
+        header.flip();
+    }
+
+    /**
+     * writes interleaved frames, the header sizes are filled in on close
+     */
+    public static class Writer implements Closeable {
+        final FileChannel channel;
+        final ByteBuffer buffer;
+        final int sampleRate;
+        long dataBytes = 0;
+
+        public Writer(Path path, int sampleRate, int blockCapacity) throws IOException {
+            this.sampleRate = sampleRate;
+            channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+            );
+            buffer = ByteBuffer.allocateDirect(Math.max(HEADER_SIZE, blockCapacity * BYTES_PER_FRAME))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            writeHeader(buffer, sampleRate, 0);
+            writeFully(0);
+        }
+
+        private void writeFully(long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        public void write(AudioBlock block) throws IOException {
+            buffer.clear();
+            for (int i = 0; i < block.frames; i++) {
+                buffer.putFloat(block.left[i]);
+                buffer.putFloat(block.right[i]);
+            }
+            buffer.flip();
+            writeFully(HEADER_SIZE + dataBytes);
+            dataBytes += (long) block.frames * BYTES_PER_FRAME;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                writeHeader(buffer, sampleRate, dataBytes);
+                writeFully(0);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * read a file written by {@link Writer}
+     *
+     * @return the interleaved samples
+     */
+    public static float[] read(Path path) throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        if (file.remaining() < HEADER_SIZE
+                || file.getShort(20) != WAVE_FORMAT_IEEE_FLOAT
+                || file.getShort(22) != CHANNELS
+                || file.getShort(34) != BITS_PER_SAMPLE) {
+            throw new IOException(path + " is not a stereo 32-bit float WAV file");
+        }
+        int dataBytes = Math.min(file.getInt(40), file.remaining() - HEADER_SIZE);
+        float[] samples = new float[dataBytes / 4];
+        file.position(HEADER_SIZE);
+        file.asFloatBuffer().get(samples);
+        return samples;
+    }
+
+    /**
+     * @return the largest absolute difference between two renders, or infinity if their lengths differ
+     */
+    public static float maxAbsDifference(float[] a, float[] b) {
+        if (a.length != b.length) return Float.POSITIVE_INFINITY;
+        float max = 0;
+        for (int i = 0; i < a.length; i++) {
+            max = Math.max(max, Math.abs(a[i] - b[i]));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,26 @@
+package smallville7123.aaudiotrack2.offline;
+
+/**
+ * a plugin that produces audio in response to MIDI note events
+ * <br>
+ * <br>
+ * the engine splits each block at event boundaries,
+ * so write is only ever called for the frames between two events
+ *
+ * @see Sampler
+ */
+public abstract class Generator {
+    public abstract void noteOn(int key, int velocity);
+
+    public abstract void noteOff(int key);
+
+    /**
+     * stop every note, sent on the last frame a track or clip plays the channel
+     */
+    public abstract void allNotesOff();
+
+    /**
+     * write frames of audio into out, starting at offset
+     */
+    public abstract void write(AudioBlock out, int offset, int frames);
+}
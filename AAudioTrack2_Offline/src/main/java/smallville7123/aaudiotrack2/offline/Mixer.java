@@ -0,0 +1,33 @@
+package smallville7123.aaudiotrack2.offline;
+
+import java.util.List;
+
+/**
+ * sum each channel output together, clamping the result to [-1, 1]
+ */
+public class Mixer {
+    public void mix(List<Channel> channels, AudioBlock out) {
+        out.clear();
+        float[] left = out.left;
+        float[] right = out.right;
+        int frames = out.frames;
+        for (int c = 0; c < channels.size(); c++) {
+            Channel channel = channels.get(c);
+            if (!channel.active) continue;
+            float[] channelLeft = channel.out.left;
+            float[] channelRight = channel.out.right;
+            for (int i = 0; i < frames; i++) {
+                left[i] += channelLeft[i];
+                right[i] += channelRight[i];
+            }
+        }
+        for (int i = 0; i < frames; i++) {
+            left[i] = clamp(left[i]);
+            right[i] = clamp(right[i]);
+        }
+    }
+
+    private static float clamp(float value) {
+        return value > 1.0f ? 1.0f : value < -1.0f ? -1.0f : value;
+    }
+}
@@ -0,0 +1,332 @@
+package smallville7123.aaudiotrack2.offline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import smallville7123.aaudiotrack2.AAudioTrack2;
+import smallville7123.aaudiotrack2.Pattern;
+import smallville7123.aaudiotrack2.PatternGroup;
+import smallville7123.aaudiotrack2.PatternList;
+import smallville7123.aaudiotrack2.Steps;
+import smallville7123.aaudiotrack2.Track;
+import smallville7123.aaudiotrack2.TrackGroup;
+import smallville7123.aaudiotrack2.TrackList;
+
+/**
+ * a pure java engine that renders the same sequencing model as the native AudioEngine
+ * <br>
+ * <br>
+ * pattern mode plays every pattern of the PatternGroup in a loop, like ChannelRack::write,
+ * song mode plays the pattern list bound to each track whenever that track has a note,
+ * like Playlist::write, the steps of patterns and tracks are turned into the same events
+ * as the native PianoRoll, see {@link #scheduleSteps}
+ * <br>
+ * <br>
+ * usage:
+ * <pre>
+ *     AAudioTrack2 DAW = new AAudioTrack2(); // the JVM stub
+ *     PatternGroup&lt;PatternList&lt;Pattern&gt;&gt; group = new PatternGroup&lt;&gt;(DAW);
+ *     ...
+ *     OfflineEngine engine = new OfflineEngine(DAW, 48000, 512);
+ *     engine.setPatternGroup(group);
+ *     engine.channel(pattern.newSamplerChannel()).generator = sampler;
+ *     OfflineRenderer.render(engine, 0, 48000 * 60, Paths.get("out.wav"));
+ * </pre>
+ * the model is copied by {@link #prepare()}, call it again after editing the model
+ */
+public class OfflineEngine {
+    public static final int DEFAULT_SAMPLE_RATE = 48000;
+    public static final int DEFAULT_BLOCK_SIZE = 512;
+
+    // these match AudioEngine::createPattern and AudioEngine::createTrack
+    public static final int PATTERN_BEATS_PER_MINUTE = 240;
+    public static final int TRACK_BEATS_PER_MINUTE = 120;
+    public static final int DEFAULT_RESOLUTION = 16;
+
+    // these match PianoRoll::DEFAULT_VELOCITY and PianoRoll::STEP_KEY
+    static final int STEP_VELOCITY = 127;
+    static final int STEP_KEY = 60;
+
+    public enum Mode {
+        PATTERN,
+        SONG
+    }
+
+    public final int sampleRate;
+    public final int blockSize;
+    final AAudioTrack2 DAW;
+    final Mixer mixer = new Mixer();
+    final HashMap<Long, Channel> channels = new HashMap<>();
+    final ArrayList<Channel> channelList = new ArrayList<>();
+
+    PatternGroup<?> patternGroup = null;
+    TrackGroup<?> trackGroup = null;
+    Mode mode = Mode.PATTERN;
+    long engineSample = 0;
+
+    static class PreparedPattern {
+        Steps steps;
+        int samplesPerNote;
+        Channel channel;
+        long nativePatternList;
+    }
+
+    static class PreparedTrack {
+        Steps steps;
+        int samplesPerNote;
+        PreparedPattern[] patterns;
+        boolean playing;
+        long patternSample;
+    }
+
+    PreparedPattern[] patterns = new PreparedPattern[0];
+    PreparedTrack[] tracks = new PreparedTrack[0];
+
+    // the step events of the track being scheduled
+    final EventQueue trackEvents = new EventQueue();
+
+    public OfflineEngine(AAudioTrack2 DAW) {
+        this(DAW, DEFAULT_SAMPLE_RATE, DEFAULT_BLOCK_SIZE);
+    }
+
+    public OfflineEngine(AAudioTrack2 DAW, int sampleRate, int blockSize) {
+        this.DAW = DAW;
+        this.sampleRate = sampleRate;
+        this.blockSize = blockSize;
+    }
+
+    public void setPatternGroup(PatternGroup<?> patternGroup) {
+        this.patternGroup = patternGroup;
+    }
+
+    public void setTrackGroup(TrackGroup<?> trackGroup) {
+        this.trackGroup = trackGroup;
+    }
+
+    public void changeToPatternMode() {
+        mode = Mode.PATTERN;
+    }
+
+    public void changeToSongMode() {
+        mode = Mode.SONG;
+    }
+
+    /**
+     * @return the channel for the given native channel handle, creating it if needed
+     */
+    public Channel channel(long nativeChannel) {
+        Channel channel = channels.get(nativeChannel);
+        if (channel == null) {
+            channel = new Channel(blockSize);
+            channels.put(nativeChannel, channel);
+            channelList.add(channel);
+        }
+        return channel;
+    }
+
+    public long getEngineSample() {
+        return engineSample;
+    }
+
+    public void seek(long sample) {
+        engineSample = sample;
+        for (PreparedTrack track : tracks) {
+            track.playing = false;
+            track.patternSample = 0;
+        }
+    }
+
+    private static int resolution(int nativeResolution) {
+        return nativeResolution == 0 ? DEFAULT_RESOLUTION : nativeResolution;
+    }
+
+    /**
+     * copy the model into the engine, this must be called before rendering
+     * and again whenever the model changes
+     */
+    public void prepare() {
+        ArrayList<PreparedPattern> preparedPatterns = new ArrayList<>();
+        if (patternGroup != null) {
+            for (PatternList<? extends Pattern> patternList : patternGroup.patternListArrayList) {
+                for (Pattern pattern : patternList.patternArrayList) {
+                    PreparedPattern prepared = new PreparedPattern();
+                    prepared.steps = pattern.getSteps().copy();
+                    prepared.samplesPerNote = TempoGrid.samplesPerNote(
+                            sampleRate, PATTERN_BEATS_PER_MINUTE,
+                            resolution(pattern.currentNativeResolution)
+                    );
+                    prepared.channel = pattern.nativeChannel == 0 ? null : channel(pattern.nativeChannel);
+                    prepared.nativePatternList = patternList.nativePatternList;
+                    preparedPatterns.add(prepared);
+                }
+            }
+        }
+        patterns = preparedPatterns.toArray(new PreparedPattern[0]);
+
+        ArrayList<PreparedTrack> preparedTracks = new ArrayList<>();
+        if (trackGroup != null) {
+            for (TrackList<? extends Track> trackList : trackGroup.trackListArrayList) {
+                for (Track track : trackList.trackArrayList) {
+                    PreparedTrack prepared = new PreparedTrack();
+                    prepared.steps = track.getSteps().copy();
+                    prepared.samplesPerNote = TempoGrid.samplesPerNote(
+                            sampleRate, TRACK_BEATS_PER_MINUTE,
+                            resolution(track.currentNativeResolution)
+                    );
+                    long nativePatternList = DAW.getPatternListBoundToTrack(track.nativeTrack);
+                    ArrayList<PreparedPattern> bound = new ArrayList<>();
+                    if (nativePatternList != 0) {
+                        for (PreparedPattern pattern : patterns) {
+                            if (pattern.nativePatternList == nativePatternList) bound.add(pattern);
+                        }
+                    }
+                    prepared.patterns = bound.toArray(new PreparedPattern[0]);
+                    preparedTracks.add(prepared);
+                }
+            }
+        }
+        tracks = preparedTracks.toArray(new PreparedTrack[0]);
+    }
+
+    /**
+     * queue the step events of a looping sequence of steps that fall inside a window,
+     * in the layout of the native PianoRoll::setSteps
+     * <br>
+     * <br>
+     * every step that is on is a note on at the start of the step, every step that is off
+     * is a note off of the step before it, a step that is on right after a step that is on
+     * is preceded by a note off of that step one frame earlier, so the note is retriggered,
+     * and the last step, if it is on, is ended by a note off at the start of the next loop,
+     * every note is of STEP_KEY
+     * <br>
+     * <br>
+     * rests are not queued
+     *
+     * @param start the position inside the steps at the start of the window, counted from
+     *              the first loop, as the note off that ends a loop is only sent once it has looped
+     * @param offset the offset of the window inside the block
+     * @param frames the length of the window
+     */
+    static void scheduleSteps(Steps steps, long samplesPerNote, long start, int offset, int frames,
+                              EventQueue events) {
+        int size = steps.length();
+        if (size == 0 || samplesPerNote <= 0) return;
+        long end = start + frames;
+        for (long k = start / samplesPerNote; k * samplesPerNote <= end; k++) {
+            long tick = k * samplesPerNote;
+            int step = (int) (k % size);
+            boolean on = steps.get(step);
+            long retrigger = tick - 1;
+            if (step != 0 && on && steps.get(step - 1) && retrigger >= start && retrigger < end) {
+                events.add(offset + (int) (retrigger - start), EventQueue.NOTE_OFF, STEP_KEY, 0);
+            }
+            if (tick < start || tick >= end) continue;
+            int eventOffset = offset + (int) (tick - start);
+            if (step == 0 && k != 0 && steps.get(size - 1)) {
+                events.add(eventOffset, EventQueue.NOTE_OFF, STEP_KEY, 0);
+            }
+            if (on) {
+                events.add(eventOffset, EventQueue.NOTE_ON, STEP_KEY, STEP_VELOCITY);
+            } else {
+                events.add(eventOffset, EventQueue.NOTE_OFF, STEP_KEY, 0);
+            }
+        }
+    }
+
+    /**
+     * queue the step events of a looping pattern that fall inside a window of the block
+     *
+     * @param patternSample the position inside the pattern at the start of the window
+     * @param offset the offset of the window inside the block
+     * @param frames the length of the window
+     */
+    static void schedule(PreparedPattern pattern, long patternSample, int offset, int frames) {
+        if (pattern.channel == null) return;
+        scheduleSteps(pattern.steps, pattern.samplesPerNote, patternSample, offset, frames, pattern.channel.events);
+    }
+
+    void schedulePatterns(int frames) {
+        for (PreparedPattern pattern : patterns) {
+            if (pattern.channel == null) continue;
+            schedule(pattern, engineSample, 0, frames);
+            pattern.channel.active = true;
+        }
+    }
+
+    /**
+     * play the pattern list of a track for the frames [from, to) of the block, if the track
+     * is playing, like Playlist::playTrackPart
+     *
+     * @param stop true to stop every note on the last frame
+     */
+    static void scheduleTrackPart(PreparedTrack track, int from, int to, boolean stop) {
+        if (!track.playing || to <= from) return;
+        for (PreparedPattern pattern : track.patterns) {
+            if (pattern.channel == null) continue;
+            schedule(pattern, track.patternSample, from, to - from);
+            if (stop) pattern.channel.events.add(to - 1, EventQueue.ALL_NOTES_OFF, 0, 0);
+            pattern.channel.active = true;
+        }
+        track.patternSample += to - from;
+    }
+
+    /**
+     * play the pattern list of every track, driven by the steps of the track, like Playlist::playTrack
+     * <br>
+     * <br>
+     * every note on of the track plays the pattern list from where it is, every note off
+     * stops it and starts it over from the beginning, so a step that is on right after
+     * a step that is on restarts the pattern list
+     */
+    void scheduleTracks(int frames) {
+        for (PreparedTrack track : tracks) {
+            trackEvents.clear();
+            scheduleSteps(track.steps, track.samplesPerNote, engineSample, 0, frames, trackEvents);
+            int from = 0;
+            for (int i = 0; i < trackEvents.size; i++) {
+                int to = trackEvents.offsets[i];
+                boolean noteOn = trackEvents.types[i] == EventQueue.NOTE_ON;
+                scheduleTrackPart(track, from, to, !noteOn);
+                from = to;
+                if (noteOn) {
+                    track.playing = true;
+                } else {
+                    track.playing = false;
+                    track.patternSample = 0;
+                }
+            }
+            scheduleTrackPart(track, from, frames, false);
+        }
+    }
+
+    /**
+     * render the next out.frames frames into out, out.frames must not exceed the block size
+     */
+    public void process(AudioBlock out) {
+        int frames = out.frames;
+        if (frames > blockSize) {
+            throw new IllegalArgumentException("block of " + frames + " frames exceeds the block size of " + blockSize);
+        }
+        for (int i = 0; i < channelList.size(); i++) {
+            channelList.get(i).active = false;
+        }
+        switch (mode) {
+            case PATTERN:
+                schedulePatterns(frames);
+                break;
+            case SONG:
+                scheduleTracks(frames);
+                break;
+        }
+        for (int i = 0; i < channelList.size(); i++) {
+            Channel channel = channelList.get(i);
+            if (channel.active) {
+                channel.render(frames);
+            } else {
+                channel.events.clear();
+            }
+        }
+        mixer.mix(channelList, out);
+        engineSample += frames;
+    }
+}
@@ -0,0 +1,31 @@
+package smallville7123.aaudiotrack2.offline;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * render an {@link OfflineEngine} to a 32-bit float WAV file as fast as possible
+ */
+public class OfflineRenderer {
+    public static RenderStats render(OfflineEngine engine, long startSample, long frames, Path wav) throws IOException {
+        engine.prepare();
+        engine.seek(startSample);
+        AudioBlock block = new AudioBlock(engine.blockSize);
+        long blocks = 0;
+        long processingNanos = 0;
+        long begin = System.nanoTime();
+        try (FloatWav.Writer writer = new FloatWav.Writer(wav, engine.sampleRate, engine.blockSize)) {
+            long remaining = frames;
+            while (remaining > 0) {
+                block.frames = (int) Math.min(remaining, engine.blockSize);
+                long start = System.nanoTime();
+                engine.process(block);
+                processingNanos += System.nanoTime() - start;
+                writer.write(block);
+                remaining -= block.frames;
+                blocks++;
+            }
+        }
+        return new RenderStats(blocks, frames, engine.sampleRate, processingNanos, System.nanoTime() - begin);
+    }
+}
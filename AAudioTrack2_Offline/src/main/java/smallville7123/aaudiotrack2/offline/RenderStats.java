@@ -0,0 +1,45 @@
+package smallville7123.aaudiotrack2.offline;
+
+/**
+ * timings collected by {@link OfflineRenderer}
+ */
+public class RenderStats {
+    public final long blocks;
+    public final long frames;
+    public final int sampleRate;
+    /** time spent inside {@link OfflineEngine#process(AudioBlock)} */
+    public final long processingNanos;
+    /** time spent rendering and writing the file */
+    public final long totalNanos;
+
+    RenderStats(long blocks, long frames, int sampleRate, long processingNanos, long totalNanos) {
+        this.blocks = blocks;
+        this.frames = frames;
+        this.sampleRate = sampleRate;
+        this.processingNanos = processingNanos;
+        this.totalNanos = totalNanos;
+    }
+
+    public double blocksPerSecond() {
+        return processingNanos == 0 ? 0 : blocks * 1e9 / processingNanos;
+    }
+
+    /**
+     * @return how many times faster than real time the engine rendered
+     */
+    public double realtimeFactor() {
+        return processingNanos == 0 ? 0 : (frames * 1e9 / sampleRate) / processingNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "RenderStats{" +
+                "blocks=" + blocks +
+                ", frames=" + frames +
+                ", processingNanos=" + processingNanos +
+                ", totalNanos=" + totalNanos +
+                ", blocksPerSecond=" + blocksPerSecond() +
+                ", realtimeFactor=" + realtimeFactor() +
+                '}';
+    }
+}
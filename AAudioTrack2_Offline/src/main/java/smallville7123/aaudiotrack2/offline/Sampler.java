@@ -0,0 +1,82 @@
+package smallville7123.aaudiotrack2.offline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * plays a sample from the start on every note on, and stops it on every note off
+ * <br>
+ * <br>
+ * this mirrors the native Sampler plugin, the audio data is interleaved stereo
+ * in the same format that AAudioTrack2.decode() produces
+ */
+public class Sampler extends Generator {
+    float[] audioData = null;
+    int readIndex = 0;
+    boolean playing = false;
+    boolean looping = false;
+
+    public void setLooping(boolean value) {
+        looping = value;
+    }
+
+    /**
+     * @param interleavedStereo the sample data, this is not copied
+     */
+    public void load(float[] interleavedStereo) {
+        audioData = interleavedStereo;
+        readIndex = 0;
+    }
+
+    /**
+     * load raw 32-bit little-endian float stereo pcm,
+     * as written by ffmpeg with "-f f32le -ac 2"
+     */
+    public void loadF32le(Path path) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        float[] data = new float[bytes.remaining() / Float.BYTES];
+        bytes.asFloatBuffer().get(data);
+        load(data);
+    }
+
+    @Override
+    public void noteOn(int key, int velocity) {
+        readIndex = 0;
+        playing = true;
+    }
+
+    @Override
+    public void noteOff(int key) {
+        playing = false;
+    }
+
+    @Override
+    public void allNotesOff() {
+        playing = false;
+    }
+
+    @Override
+    public void write(AudioBlock out, int offset, int frames) {
+        float[] data = audioData;
+        if (!playing || data == null || data.length < 2) return;
+        float[] left = out.left;
+        float[] right = out.right;
+        int end = offset + frames;
+        for (int i = offset; i < end; i++) {
+            if (readIndex >= data.length - 1) {
+                if (!looping) {
+                    // if we are not looping then silence should be emitted when the end of the file is reached
+                    playing = false;
+                    return;
+                }
+                readIndex = 0;
+            }
+            left[i] = data[readIndex];
+            right[i] = data[readIndex + 1];
+            readIndex += 2;
+        }
+    }
+}
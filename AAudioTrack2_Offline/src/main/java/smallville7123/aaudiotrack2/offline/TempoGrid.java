@@ -0,0 +1,17 @@
+package smallville7123.aaudiotrack2.offline;
+
+/**
+ * maps a grid of notes to samples, assuming 4 beats per bar
+ * <br>
+ * <br>
+ * for example, 120 bpm at 48000 Hz with 16 notes per bar
+ * places a note every 6000 samples
+ */
+public class TempoGrid {
+    public static final int BEATS_PER_BAR = 4;
+
+    public static int samplesPerNote(int sampleRate, int beatsPerMinute, int notesPerBar) {
+        long samplesPerBar = (long) sampleRate * 60 * BEATS_PER_BAR / beatsPerMinute;
+        return (int) Math.max(1, samplesPerBar / notesPerBar);
+    }
+}
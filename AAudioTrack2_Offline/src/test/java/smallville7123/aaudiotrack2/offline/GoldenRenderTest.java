@@ -0,0 +1,133 @@
+package smallville7123.aaudiotrack2.offline;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import smallville7123.aaudiotrack2.AAudioTrack2;
+import smallville7123.aaudiotrack2.Pattern;
+import smallville7123.aaudiotrack2.PatternGroup;
+import smallville7123.aaudiotrack2.PatternList;
+import smallville7123.aaudiotrack2.Track;
+import smallville7123.aaudiotrack2.TrackGroup;
+import smallville7123.aaudiotrack2.TrackList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * renders a fixed project and compares it with the render checked in as golden/song.wav
+ * <br>
+ * <br>
+ * after an intended change to the output, regenerate the golden render with
+ * <pre>
+ *     ./gradlew :AAudioTrack2_Offline:test -PupdateGolden
+ * </pre>
+ * and check the new file in
+ */
+public class GoldenRenderTest {
+    static final int SAMPLE_RATE = 16000;
+    static final int BLOCK_SIZE = 256;
+
+    // two bars of the track, at TRACK_BEATS_PER_MINUTE
+    static final long FRAMES = 2 * 16 * TempoGrid.samplesPerNote(
+            SAMPLE_RATE, OfflineEngine.TRACK_BEATS_PER_MINUTE, OfflineEngine.DEFAULT_RESOLUTION
+    );
+
+    // the renders are deterministic, this only allows for the last bit of a float
+    static final float TOLERANCE = 1e-6f;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    // a decaying tone, computed with StrictMath so it is the same on every JVM
+    static float[] tone(double frequency, int frames, double pan) {
+        float[] data = new float[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            double envelope = StrictMath.exp(-6.0 * i / frames);
+            double value = 0.25 * envelope * StrictMath.sin(2 * StrictMath.PI * frequency * i / SAMPLE_RATE);
+            data[i * 2] = (float) (value * (1 - pan));
+            data[i * 2 + 1] = (float) (value * (1 + pan));
+        }
+        return data;
+    }
+
+    static Pattern pattern(PatternList<Pattern> patternList, int every, int offset) {
+        Pattern pattern = patternList.newPattern(new Pattern());
+        pattern.steps.setLength(16);
+        for (int i = offset; i < 16; i += every) pattern.steps.set(i, true);
+        pattern.newSamplerChannel();
+        return pattern;
+    }
+
+    /**
+     * a track playing a pattern list of a kick, a snare and a hat, the hat through a delay
+     */
+    static OfflineEngine project() {
+        AAudioTrack2 DAW = new AAudioTrack2();
+        PatternGroup<PatternList<Pattern>> patternGroup = new PatternGroup<>(DAW);
+        PatternList<Pattern> patternList = patternGroup.newPatternList(new PatternList<>());
+        Pattern kick = pattern(patternList, 4, 0);
+        Pattern snare = pattern(patternList, 8, 4);
+        Pattern hat = pattern(patternList, 2, 1);
+
+        TrackGroup<TrackList<Track>> trackGroup = new TrackGroup<>(DAW);
+        TrackList<Track> trackList = trackGroup.newTrackList(new TrackList<>());
+        Track track = trackList.newTrack(new Track());
+        track.steps.setLength(16);
+        // the pattern list starts over on each of the first 12 steps, as every step that is on
+        // right after a step that is on retriggers it, and stops for the rest of the bar
+        for (int i = 0; i < 12; i++) track.steps.set(i, true);
+        track.bindPatternListToTrack(patternList);
+
+        OfflineEngine engine = new OfflineEngine(DAW, SAMPLE_RATE, BLOCK_SIZE);
+        engine.setPatternGroup(patternGroup);
+        engine.setTrackGroup(trackGroup);
+        engine.changeToSongMode();
+
+        Sampler kickSampler = new Sampler();
+        kickSampler.load(tone(60, SAMPLE_RATE / 2, 0));
+        engine.channel(kick.nativeChannel).generator = kickSampler;
+        Sampler snareSampler = new Sampler();
+        snareSampler.load(tone(220, SAMPLE_RATE / 4, -0.5));
+        engine.channel(snare.nativeChannel).generator = snareSampler;
+        Sampler hatSampler = new Sampler();
+        hatSampler.load(tone(3000, SAMPLE_RATE / 16, 0.5));
+        Channel hatChannel = engine.channel(hat.nativeChannel);
+        hatChannel.generator = hatSampler;
+        hatChannel.effectRack.add(new Delay(SAMPLE_RATE));
+        return engine;
+    }
+
+    static Path golden() throws URISyntaxException {
+        URL url = GoldenRenderTest.class.getResource("/golden/song.wav");
+        assertNotNull("golden/song.wav is missing from the test resources", url);
+        return Paths.get(url.toURI());
+    }
+
+    @Test
+    public void songMatchesGoldenRender() throws IOException, URISyntaxException {
+        Path render = temporaryFolder.newFile("song.wav").toPath();
+        OfflineRenderer.render(project(), 0, FRAMES, render);
+
+        String update = System.getProperty("golden.update");
+        if (update != null) {
+            Files.copy(render, Paths.get(update), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        float[] expected = FloatWav.read(golden());
+        float[] actual = FloatWav.read(render);
+        assertEquals("the length of the render", expected.length, actual.length);
+        float difference = FloatWav.maxAbsDifference(expected, actual);
+        assertTrue("the render differs from the golden render by " + difference, difference <= TOLERANCE);
+    }
+}
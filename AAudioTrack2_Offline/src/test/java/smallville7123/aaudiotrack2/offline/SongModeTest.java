@@ -0,0 +1,124 @@
+package smallville7123.aaudiotrack2.offline;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import smallville7123.aaudiotrack2.AAudioTrack2;
+import smallville7123.aaudiotrack2.Pattern;
+import smallville7123.aaudiotrack2.PatternGroup;
+import smallville7123.aaudiotrack2.PatternList;
+import smallville7123.aaudiotrack2.Track;
+import smallville7123.aaudiotrack2.TrackGroup;
+import smallville7123.aaudiotrack2.TrackList;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * checks that song mode schedules the same events as the native Playlist
+ */
+public class SongModeTest {
+    static final int SAMPLE_RATE = 16000;
+    static final int BLOCK_SIZE = 256;
+
+    static final int TRACK_SAMPLES_PER_NOTE = TempoGrid.samplesPerNote(
+            SAMPLE_RATE, OfflineEngine.TRACK_BEATS_PER_MINUTE, OfflineEngine.DEFAULT_RESOLUTION
+    );
+
+    /**
+     * records the song position of every event it receives
+     */
+    static class Recorder extends Generator {
+        final List<Long> noteOns = new ArrayList<>();
+        final List<Long> stops = new ArrayList<>();
+        OfflineEngine engine;
+        long blockStart = -1;
+        int offset = 0;
+
+        // the engine only moves to the next block once every channel is rendered
+        long position() {
+            if (engine.getEngineSample() != blockStart) {
+                blockStart = engine.getEngineSample();
+                offset = 0;
+            }
+            return blockStart + offset;
+        }
+
+        @Override
+        public void noteOn(int key, int velocity) {
+            noteOns.add(position());
+        }
+
+        @Override
+        public void noteOff(int key) {}
+
+        @Override
+        public void allNotesOff() {
+            stops.add(position());
+        }
+
+        @Override
+        public void write(AudioBlock out, int offset, int frames) {
+            position();
+            this.offset += frames;
+        }
+    }
+
+    /**
+     * a track whose steps are on plays a pattern list of a single pattern that only has its first step on
+     */
+    static Recorder render(int... trackSteps) {
+        AAudioTrack2 DAW = new AAudioTrack2();
+        PatternGroup<PatternList<Pattern>> patternGroup = new PatternGroup<>(DAW);
+        PatternList<Pattern> patternList = patternGroup.newPatternList(new PatternList<>());
+        Pattern pattern = patternList.newPattern(new Pattern());
+        pattern.steps.setLength(16);
+        pattern.steps.set(0, true);
+        pattern.newSamplerChannel();
+
+        TrackGroup<TrackList<Track>> trackGroup = new TrackGroup<>(DAW);
+        TrackList<Track> trackList = trackGroup.newTrackList(new TrackList<>());
+        Track track = trackList.newTrack(new Track());
+        track.steps.setLength(16);
+        for (int step : trackSteps) track.steps.set(step, true);
+        track.bindPatternListToTrack(patternList);
+
+        OfflineEngine engine = new OfflineEngine(DAW, SAMPLE_RATE, BLOCK_SIZE);
+        engine.setPatternGroup(patternGroup);
+        engine.setTrackGroup(trackGroup);
+        engine.changeToSongMode();
+        Recorder recorder = new Recorder();
+        recorder.engine = engine;
+        engine.channel(pattern.nativeChannel).generator = recorder;
+        engine.prepare();
+
+        // a bar of the track
+        AudioBlock block = new AudioBlock(BLOCK_SIZE);
+        for (long frame = 0; frame < 16L * TRACK_SAMPLES_PER_NOTE; frame += BLOCK_SIZE) {
+            engine.process(block);
+        }
+        return recorder;
+    }
+
+    @Test
+    public void adjacentStepsRestartThePatternList() {
+        Recorder recorder = render(0, 1, 2);
+        long step = TRACK_SAMPLES_PER_NOTE;
+        // every step that is on starts the pattern list from its first step again
+        assertEquals(Arrays.asList(0L, step, 2 * step), recorder.noteOns);
+        // a note off one frame before every step that follows a step that is on,
+        // which stops the pattern list on its last frame, and the step that is off
+        assertEquals(Arrays.asList(step - 2, (2 * step) - 2, (3 * step) - 1), recorder.stops);
+    }
+
+    @Test
+    public void separateStepsStartThePatternListFromTheBeginning() {
+        Recorder recorder = render(0, 4);
+        long step = TRACK_SAMPLES_PER_NOTE;
+        assertEquals(Arrays.asList(0L, 4 * step), recorder.noteOns);
+        // the steps that are off stop the pattern list on its last frame
+        assertEquals(Arrays.asList(step - 1, (5 * step) - 1), recorder.stops);
+    }
+}
@@ -12,9 +12,11 @@ import smallville7123.AndroidDAW.SDK.UI.UpdatingTextView;
 import smallville7123.UI.PatternView;
 import smallville7123.UI.SequencerView;
 import smallville7123.aaudiotrack2.AAudioTrack2;
+import smallville7123.aaudiotrack2.SampleLoader;
 
 public class MainActivity extends AppCompatActivity {
     AAudioTrack2 audioTrack = new AAudioTrack2();
+    SampleLoader sampleLoader;
 
     void u(UpdatingTextView updatingTextView) {
         updatingTextView.setText(
@@ -45,6 +47,9 @@ public class MainActivity extends AppCompatActivity {
         updatingTextView.addOnDrawAction(() -> u(updatingTextView));
 
         audioTrack.deleteTemporaryFiles(this);
+        audioTrack.setDecodeCache(this, AAudioTrack2.DEFAULT_DECODE_CACHE_BYTES);
+        // samples are decoded off the UI thread, and play as soon as each one is ready
+        sampleLoader = new SampleLoader(audioTrack, this);
 
         // configure mode change
 
@@ -75,17 +80,17 @@ public class MainActivity extends AppCompatActivity {
         PatternView patternView = findViewById(R.id.patternView);
         patternView.setPatternList(list);
 
-        audioTrack.load(
-                sequencerView.addRow(list, "Kick").newSamplerChannel(),
-                this, R.raw.kick, "wav"
+        sampleLoader.load(
+                audioTrack.getChannel(sequencerView.addRow(list, "Kick").newSamplerChannel()),
+                R.raw.kick, "wav"
         );
-        audioTrack.load(
-                sequencerView.addRow(list, "Snare").newSamplerChannel(),
-                this, R.raw.snare_2, "wav"
+        sampleLoader.load(
+                audioTrack.getChannel(sequencerView.addRow(list, "Snare").newSamplerChannel()),
+                R.raw.snare_2, "wav"
         );
-//        audioTrack.load(
-//                sequencerView.addRow(list, "Loop").newSamplerChannel(),
-//                this, R.raw.loop_00001313, "wav"
+//        sampleLoader.load(
+//                audioTrack.getChannel(sequencerView.addRow(list, "Loop").newSamplerChannel()),
+//                R.raw.loop_00001313, "wav"
 //        );
 //        audioTrack.manager = new VstManager(this, findViewById(R.id.vstView));
 //        audioTrack.loadVST(
@@ -93,4 +98,10 @@ public class MainActivity extends AppCompatActivity {
 //                "smallville7123.DAW.simplesinewave"
 //        );
     }
+
+    @Override
+    protected void onDestroy() {
+        sampleLoader.shutdown();
+        super.onDestroy();
+    }
 }
\ No newline at end of file